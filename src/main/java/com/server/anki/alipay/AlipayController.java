@@ -11,8 +11,7 @@ import com.server.anki.shopping.entity.ShoppingOrder;
 import com.server.anki.shopping.service.PurchaseRequestService;
 import com.server.anki.shopping.service.ShoppingOrderService;
 import com.server.anki.user.User;
-import com.server.anki.wallet.entity.WithdrawalOrder;
-import com.server.anki.wallet.repository.WithdrawalOrderRepository;
+import com.server.anki.wallet.service.WalletTransactionService;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.jetbrains.annotations.NotNull;
@@ -22,6 +21,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.util.ContentCachingRequestWrapper;
 
 import java.io.BufferedReader;
@@ -44,6 +44,9 @@ public class AlipayController {
     @Autowired
     private AlipayService alipayService;
 
+    @Autowired
+    private PaymentStatusNotifier paymentStatusNotifier;
+
     @Autowired
     private MailOrderService mailOrderService;
 
@@ -53,15 +56,15 @@ public class AlipayController {
     @Autowired
     private PaymentOrderRepository paymentOrderRepository;
 
-    @Autowired
-    private WithdrawalOrderRepository withdrawalOrderRepository;
-
     @Autowired
     private PurchaseRequestService purchaseRequestService;
 
     @Autowired
     private ShoppingOrderService shoppingOrderService;
 
+    @Autowired
+    private WalletTransactionService walletTransactionService;
+
     /**
      * 处理支付宝统一回调通知
      * 增强日志记录，确保请求内容完整保留
@@ -291,27 +294,12 @@ public class AlipayController {
             return;
         }
 
-        // 查找提现订单并更新状态
-        Optional<WithdrawalOrder> orderOpt = withdrawalOrderRepository.findByOrderNumber(outBizNo);
-        if (orderOpt.isEmpty()) {
-            logger.warn("未找到提现订单: {}", outBizNo);
-            return;
-        }
-
-        WithdrawalOrder order = orderOpt.get();
+        // 与长连接推送、提现流程和对账使用同一处理逻辑，只更新仍在处理中的订单，失败时冲回余额
         if ("SUCCESS".equals(status)) {
-            order.setStatus(WithdrawalOrder.WithdrawalStatus.SUCCESS);
-            order.setAlipayOrderId(tradeNo);
-            order.setCompletedTime(LocalDateTime.now());
-            logger.info("提现成功更新订单状态: {}", outBizNo);
+            walletTransactionService.handleWithdrawalSuccess(outBizNo, tradeNo);
         } else if ("FAIL".equals(status)) {
-            order.setStatus(WithdrawalOrder.WithdrawalStatus.FAILED);
-            order.setErrorMessage("提现失败: " + params.get("error_code"));
-            order.setCompletedTime(LocalDateTime.now());
-            logger.info("提现失败更新订单状态: {}", outBizNo);
+            walletTransactionService.handleWithdrawalFailure(outBizNo, params.get("error_code"));
         }
-        withdrawalOrderRepository.save(order);
-        logger.info("提现订单状态已更新: {}, 新状态: {}", outBizNo, order.getStatus());
     }
 
 
@@ -396,6 +384,37 @@ public class AlipayController {
         }
     }
 
+    /**
+     * 等待支付结果（长轮询）
+     * 请求挂起直到订单进入终态或等待超时，超时返回202，客户端可立即再次发起等待
+     */
+    @GetMapping("/order/status/{orderNumber}/wait")
+    public DeferredResult<ResponseEntity<?>> waitPaymentStatus(
+            @PathVariable String orderNumber,
+            @RequestParam(defaultValue = "25") long timeout,
+            HttpServletRequest request,
+            HttpServletResponse response) {
+
+        DeferredResult<ResponseEntity<?>> rejected = new DeferredResult<>();
+        User user = authenticationService.getAuthenticatedUser(request, response);
+        if (user == null) {
+            rejected.setResult(ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("请先登录"));
+            return rejected;
+        }
+
+        Optional<PaymentOrder> paymentOrder = paymentOrderRepository.findByOrderNumber(orderNumber);
+        if (paymentOrder.isEmpty()) {
+            rejected.setResult(ResponseEntity.status(HttpStatus.NOT_FOUND).body("支付订单不存在"));
+            return rejected;
+        }
+        if (!paymentOrder.get().getUser().getId().equals(user.getId())) {
+            rejected.setResult(ResponseEntity.status(HttpStatus.FORBIDDEN).body("无权访问此订单"));
+            return rejected;
+        }
+
+        return paymentStatusNotifier.awaitTerminalStatus(paymentOrder.get(), timeout);
+    }
+
     /**
      * 查询支付状态
      */
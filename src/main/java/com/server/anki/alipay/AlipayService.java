@@ -7,6 +7,8 @@ import com.alipay.api.domain.AlipayTradePagePayModel;
 import com.alipay.api.internal.util.AlipaySignature;
 import com.alipay.api.request.*;
 import com.alipay.api.response.*;
+import com.server.anki.alipay.gateway.AlipayGateway;
+import com.server.anki.alipay.gateway.AlipayOperation;
 import com.server.anki.config.AlipayConfig;
 import com.server.anki.mailorder.entity.MailOrder;
 import com.server.anki.mailorder.enums.OrderStatus;
@@ -24,9 +26,6 @@ import com.server.anki.shopping.service.PurchaseRequestService;
 import com.server.anki.shopping.service.ShoppingOrderService;
 import com.server.anki.user.User;
 import com.server.anki.utils.DistributedLockHelper;
-import com.server.anki.wallet.entity.WithdrawalOrder;
-import com.server.anki.wallet.repository.WithdrawalOrderRepository;
-import com.server.anki.wallet.service.WalletService;
 import lombok.Getter;
 import lombok.Setter;
 import org.slf4j.Logger;
@@ -53,6 +52,9 @@ public class AlipayService {
     @Autowired
     private AlipayClient alipayClient;
 
+    @Autowired
+    private AlipayGateway alipayGateway;
+
     @Autowired
     private AlipayConfig alipayConfig;
 
@@ -75,16 +77,16 @@ public class AlipayService {
     private PurchaseRequestService purchaseRequestService;
 
     @Autowired
-    private WithdrawalOrderRepository withdrawalOrderRepository;
+    private ShoppingOrderRepository shoppingOrderRepository;
 
     @Autowired
-    private WalletService walletService;
+    private ProductRepository productRepository;
 
     @Autowired
-    private ShoppingOrderRepository shoppingOrderRepository;
+    private PaymentStatusCache paymentStatusCache;
 
     @Autowired
-    private ProductRepository productRepository;
+    private PaymentStatusNotifier paymentStatusNotifier;
     /**
      * 提现响应类
      * 封装支付宝提现API的响应信息
@@ -96,7 +98,10 @@ public class AlipayService {
         private String outBizNo;         // 商户转账订单号
         private String orderId;          // 支付宝转账订单号
         private String errorMessage;     // 错误信息
+        private String errorCode;        // 支付宝业务错误码
         private String status;           // 转账状态
+        // 转账请求可能已被支付宝执行但没有拿到结果（超时、网络异常等），不能按失败退款
+        private boolean outcomeUnknown;
     }
 
     /**
@@ -177,7 +182,8 @@ public class AlipayService {
             PaymentOrder savedPaymentOrder = paymentOrderRepository.save(paymentOrder);
 
             // 设置支付超时监控
-            paymentTimeoutService.setPaymentTimeout(savedPaymentOrder.getOrderNumber());
+            paymentTimeoutService.setPaymentTimeout(savedPaymentOrder.getOrderNumber(),
+                    savedPaymentOrder.getExpireTime());
 
             try {
                 // 创建支付宝支付表单
@@ -291,7 +297,8 @@ public class AlipayService {
             PaymentOrder savedPaymentOrder = paymentOrderRepository.save(paymentOrder);
 
             // 设置支付超时监控
-            paymentTimeoutService.setPaymentTimeout(savedPaymentOrder.getOrderNumber());
+            paymentTimeoutService.setPaymentTimeout(savedPaymentOrder.getOrderNumber(),
+                    savedPaymentOrder.getExpireTime());
 
             // 生成商品订单的描述信息
             StringBuilder orderDescription = new StringBuilder();
@@ -428,7 +435,8 @@ public class AlipayService {
             PaymentOrder savedPaymentOrder = paymentOrderRepository.save(paymentOrder);
 
             // 设置支付超时监控
-            paymentTimeoutService.setPaymentTimeout(savedPaymentOrder.getOrderNumber());
+            paymentTimeoutService.setPaymentTimeout(savedPaymentOrder.getOrderNumber(),
+                    savedPaymentOrder.getExpireTime());
 
             // 准备订单描述信息
             String orderDescription = formatOrderDescription(request);
@@ -521,6 +529,7 @@ public class AlipayService {
             // 4. 幂等性检查
             if (paymentOrder.getStatus() == PaymentStatus.PAID) {
                 logger.info("订单已处理过支付成功状态，订单号: {}", outTradeNo);
+                onPaymentStatusChanged(paymentOrder);
                 return;
             }
 
@@ -535,6 +544,7 @@ public class AlipayService {
             paymentOrder.setPaymentTime(LocalDateTime.now());
             paymentOrder.setAlipayTradeNo(tradeNo);
             paymentOrderRepository.save(paymentOrder);
+            onPaymentStatusChanged(paymentOrder);
             logger.info("订单状态已更新为已支付: {}", outTradeNo);
 
             // 7. 根据订单类型处理后续业务逻辑
@@ -648,9 +658,25 @@ public class AlipayService {
 
     /**
      * 统一查询支付状态
-     * 使用新的订单类型和订单信息字段
+     * 优先返回本地缓存，同一订单在最小查询间隔内最多查询一次支付宝，并发请求合并为一次查询
      */
     public PaymentStatusResponse queryUnifiedPaymentStatus(String orderNumber) {
+        return paymentStatusCache.getOrLoad(orderNumber, () -> loadUnifiedPaymentStatus(orderNumber));
+    }
+
+    /**
+     * 丢弃缓存并重新查询支付状态
+     * 用于支付宝推送订单状态变更、缓存结果已确定过时的场景
+     */
+    public PaymentStatusResponse refreshPaymentStatus(String orderNumber) {
+        paymentStatusCache.evict(orderNumber);
+        return queryUnifiedPaymentStatus(orderNumber);
+    }
+
+    /**
+     * 查询本地订单状态，非终态时向支付宝查询交易状态并同步到本地
+     */
+    private PaymentStatusResponse loadUnifiedPaymentStatus(String orderNumber) {
         logger.info("开始统一查询订单状态: {}", orderNumber);
 
         try {
@@ -677,7 +703,7 @@ public class AlipayService {
             request.setBizContent(bizContent.toString());
 
             // 3. 执行查询
-            AlipayTradeQueryResponse response = alipayClient.execute(request);
+            AlipayTradeQueryResponse response = alipayGateway.execute(AlipayOperation.TRADE_QUERY, request);
 
             // 4. 处理查询结果
             if (response.isSuccess()) {
@@ -739,6 +765,7 @@ public class AlipayService {
                     paymentOrder.setPaymentTime(LocalDateTime.now());
                     paymentOrder.setAlipayTradeNo(alipayTradeNo);
                     paymentOrderRepository.save(paymentOrder);
+                    onPaymentStatusChanged(paymentOrder);
 
                     // 处理订单支付成功业务逻辑
                     processOrderByType(paymentOrder);
@@ -757,6 +784,7 @@ public class AlipayService {
                 if (paymentOrder.getStatus() == PaymentStatus.WAITING) {
                     paymentOrder.setStatus(PaymentStatus.CANCELLED);
                     paymentOrderRepository.save(paymentOrder);
+                    onPaymentStatusChanged(paymentOrder);
 
                     // 发送订单关闭通知
                     messageService.sendMessage(
@@ -770,6 +798,19 @@ public class AlipayService {
         }
     }
 
+    /**
+     * 订单状态变更后写入支付状态缓存，并唤醒各节点上等待该订单支付结果的请求
+     * 两者都在事务提交后生效
+     */
+    private void onPaymentStatusChanged(PaymentOrder paymentOrder) {
+        paymentStatusCache.update(paymentOrder.getOrderNumber(), new PaymentStatusResponse(
+                PaymentStatusResponse.Status.SUCCESS,
+                paymentOrder.getStatus().name(),
+                null
+        ));
+        paymentStatusNotifier.publish(paymentOrder.getOrderNumber(), paymentOrder.getStatus().name());
+    }
+
     /**
      * 获取用户待支付订单
      * 使用新的订单类型和订单信息字段
@@ -1023,7 +1064,7 @@ public class AlipayService {
             queryBizContent.put("out_trade_no", orderNumber);
             queryRequest.setBizContent(queryBizContent.toString());
 
-            AlipayTradeQueryResponse queryResponse = alipayClient.execute(queryRequest);
+            AlipayTradeQueryResponse queryResponse = alipayGateway.execute(AlipayOperation.TRADE_QUERY, queryRequest);
 
             if (queryResponse.isSuccess()) {
                 String tradeStatus = queryResponse.getTradeStatus();
@@ -1038,11 +1079,12 @@ public class AlipayService {
                     closeBizContent.put("out_trade_no", orderNumber);
                     closeRequest.setBizContent(closeBizContent.toString());
 
-                    AlipayTradeCloseResponse closeResponse = alipayClient.execute(closeRequest);
+                    AlipayTradeCloseResponse closeResponse = alipayGateway.execute(AlipayOperation.TRADE_CLOSE, closeRequest);
 
                     if (closeResponse.isSuccess()) {
                         paymentOrder.setStatus(PaymentStatus.CANCELLED);
                         paymentOrderRepository.save(paymentOrder);
+                        onPaymentStatusChanged(paymentOrder);
 
                         messageService.sendMessage(
                                 paymentOrder.getUser(),
@@ -1072,7 +1114,9 @@ public class AlipayService {
 
     /**
      * 提现到支付宝账户
-     * 使用支付宝单笔转账接口
+     * 使用支付宝单笔转账接口，超时重试使用同一商户转账单号，支付宝按单号保证只转账一次。
+     * 只有支付宝明确返回业务失败，或请求被网关熔断、排队已满拒绝而没有发出时，才返回确定的失败；
+     * 超时、网络异常和支付宝系统繁忙返回结果未知（outcomeUnknown），需通过转账查询或异步通知确认
      */
     public AlipayWithdrawalResponse withdrawToAlipay(Long userId, BigDecimal amount, String accountInfo,
                                                      String realName, String withdrawalOrderNo) {
@@ -1104,26 +1148,26 @@ public class AlipayService {
 
             request.setBizContent(bizContent.toString());
 
-            // 配置客户端超时设置
-            AlipayConfig clientConfig = new AlipayConfig();
-            clientConfig.setConnectTimeout(10000); // 10秒连接超时
-            clientConfig.setReadTimeout(20000);    // 20秒读取超时
-
             // 使用重试机制调用支付宝API
             AlipayFundTransUniTransferResponse response = null;
             int maxRetries = 2;
             int currentRetry = 0;
             Exception lastException = null;
+            // 是否有请求可能已到达支付宝，重试被熔断拒绝时前一次超时的请求仍可能已执行
+            boolean requestMayHaveBeenSent = false;
 
             while (currentRetry <= maxRetries) {
                 try {
                     // 调用支付宝API
-                    response = alipayClient.execute(request);
+                    response = alipayGateway.execute(AlipayOperation.TRANSFER, request);
                     lastException = null;
                     break;
                 } catch (Exception e) {
                     lastException = e;
                     currentRetry++;
+                    if (!AlipayGateway.isRejectedBeforeSend(e)) {
+                        requestMayHaveBeenSent = true;
+                    }
 
                     if (isNetworkTimeoutError(e)) {
                         logger.warn("支付宝API调用超时，尝试第{}次重试", currentRetry);
@@ -1148,9 +1192,18 @@ public class AlipayService {
                 result.setSuccess(false);
                 String errorMsg = getErrorMessage(lastException, response);
                 result.setErrorMessage(errorMsg);
-                logger.error("用户 {} 提现请求处理失败: {}", userId, errorMsg);
+                if (response != null) {
+                    result.setErrorCode(response.getSubCode());
+                }
+                result.setOutcomeUnknown(isTransferOutcomeUnknown(requestMayHaveBeenSent, response));
+                if (result.isOutcomeUnknown()) {
+                    logger.error("用户 {} 提现请求结果未知，等待查询确认: {}", userId, errorMsg);
+                } else {
+                    logger.error("用户 {} 提现请求处理失败: {}", userId, errorMsg);
+                }
             }
         } catch (Exception e) {
+            // 构建请求时出错，请求没有发出
             logger.error("提现到支付宝处理异常", e);
             result.setSuccess(false);
             result.setErrorMessage("提现处理异常: " + extractErrorMessage(e));
@@ -1159,18 +1212,36 @@ public class AlipayService {
         return result;
     }
 
+    /**
+     * 判断转账结果是否未知
+     * 拿到支付宝的业务失败响应（重试使用同一单号，响应即该单号的结果），
+     * 或所有请求都被网关在发出前拒绝时结果是确定的，其余情况转账都可能已经执行
+     */
+    private boolean isTransferOutcomeUnknown(boolean requestMayHaveBeenSent,
+                                             AlipayFundTransUniTransferResponse response) {
+        if (response != null) {
+            // 支付宝服务不可用或系统繁忙时，转账可能已受理
+            return "20000".equals(response.getCode()) || "SYSTEM_ERROR".equals(response.getSubCode());
+        }
+        return requestMayHaveBeenSent;
+    }
+
     /**
      * 判断是否为网络超时错误
      */
     private boolean isNetworkTimeoutError(Exception e) {
         if (e == null) return false;
+        if (e instanceof AlipayApiException apiEx && AlipayGateway.GATEWAY_TIMEOUT.equals(apiEx.getErrCode())) {
+            return true;
+        }
 
         // 检查异常类型和消息内容
         String errorMsg = e.toString();
         return errorMsg.contains("timeout") ||
                 errorMsg.contains("timed out") ||
                 errorMsg.contains("504") ||
-                (e.getCause() != null && e.getCause() instanceof java.net.SocketTimeoutException);
+                (e.getCause() != null && e.getCause() instanceof java.net.SocketTimeoutException) ||
+                (e.getCause() != null && e.getCause() instanceof java.util.concurrent.TimeoutException);
     }
 
     /**
@@ -1227,7 +1298,7 @@ public class AlipayService {
             bizContent.put("out_biz_no", outBizNo);
             request.setBizContent(bizContent.toString());
 
-            AlipayFundTransOrderQueryResponse response = alipayClient.execute(request);
+            AlipayFundTransOrderQueryResponse response = alipayGateway.execute(AlipayOperation.TRANSFER_QUERY, request);
 
             AlipayWithdrawalResponse result = new AlipayWithdrawalResponse();
             result.setOutBizNo(outBizNo);
@@ -1238,6 +1309,7 @@ public class AlipayService {
                 result.setStatus(response.getStatus());
             } else {
                 result.setSuccess(false);
+                result.setErrorCode(response.getSubCode());
                 result.setErrorMessage(response.getSubMsg());
             }
 
@@ -1252,107 +1324,6 @@ public class AlipayService {
         }
     }
 
-    /**
-     * 处理支付宝提现成功消息
-     */
-    @Transactional
-    public void handleWithdrawalSuccess(Map<String, String> params) {
-        String outBizNo = params.get("out_biz_no");
-        String orderId = params.get("order_id");
-
-        logger.info("处理提现成功通知: 订单号={}, 支付宝转账单号={}", outBizNo, orderId);
-
-        try {
-            // 查找提现订单
-            Optional<WithdrawalOrder> orderOpt = withdrawalOrderRepository.findByOrderNumber(outBizNo);
-            if (orderOpt.isEmpty()) {
-                logger.warn("未找到提现订单: {}", outBizNo);
-                return;
-            }
-
-            WithdrawalOrder order = orderOpt.get();
-
-            // 幂等性检查
-            if (order.getStatus() == WithdrawalOrder.WithdrawalStatus.SUCCESS) {
-                logger.info("提现订单已处理成功，跳过重复处理: {}", outBizNo);
-                return;
-            }
-
-            // 更新订单状态
-            order.setStatus(WithdrawalOrder.WithdrawalStatus.SUCCESS);
-            order.setAlipayOrderId(orderId);
-            order.setCompletedTime(LocalDateTime.now());
-
-            withdrawalOrderRepository.save(order);
-
-            logger.info("提现成功状态已更新: {}", outBizNo);
-
-            // 发送提现成功通知
-            messageService.sendMessage(
-                    order.getUser(),
-                    String.format("您的提现申请已成功处理，金额: %.2f元", order.getAmount().doubleValue()),
-                    MessageType.WALLET_WITHDRAW_SUCCESS,
-                    null
-            );
-
-        } catch (Exception e) {
-            logger.error("处理提现成功通知失败: {}", e.getMessage(), e);
-            throw new RuntimeException("处理提现成功通知失败", e);
-        }
-    }
-
-    /**
-     * 处理支付宝提现失败消息
-     */
-    @Transactional
-    public void handleWithdrawalFailure(Map<String, String> params) {
-        String outBizNo = params.get("out_biz_no");
-        String errorCode = params.get("error_code");
-
-        logger.info("处理提现失败通知: 订单号={}, 错误码={}", outBizNo, errorCode);
-
-        try {
-            // 查找提现订单
-            Optional<WithdrawalOrder> orderOpt = withdrawalOrderRepository.findByOrderNumber(outBizNo);
-            if (orderOpt.isEmpty()) {
-                logger.warn("未找到提现订单: {}", outBizNo);
-                return;
-            }
-
-            WithdrawalOrder order = orderOpt.get();
-
-            // 幂等性检查
-            if (order.getStatus() == WithdrawalOrder.WithdrawalStatus.FAILED) {
-                logger.info("提现订单已处理失败，跳过重复处理: {}", outBizNo);
-                return;
-            }
-
-            // 更新订单状态
-            order.setStatus(WithdrawalOrder.WithdrawalStatus.FAILED);
-            order.setErrorMessage("提现失败: " + errorCode);
-            order.setCompletedTime(LocalDateTime.now());
-
-            withdrawalOrderRepository.save(order);
-
-            logger.info("提现失败状态已更新: {}", outBizNo);
-
-            // 添加退款到钱包的逻辑
-            walletService.refundFailedWithdrawal(order);
-
-            // 发送提现失败通知
-            messageService.sendMessage(
-                    order.getUser(),
-                    String.format("您的提现申请处理失败，金额: %.2f元已退回钱包", order.getAmount().doubleValue()),
-                    MessageType.WALLET_WITHDRAW_FAILED,
-                    null
-            );
-
-        } catch (Exception e) {
-            logger.error("处理提现失败通知失败: {}", e.getMessage(), e);
-            throw new RuntimeException("处理提现失败通知失败", e);
-        }
-    }
-
     /**
      * 处理订单结算消息
      */
@@ -1373,7 +1344,8 @@ public class AlipayService {
 
     /**
      * 处理退款成功回调
-     * 支持多种订单类型的退款处理
+     * 支持多种订单类型的退款处理。退款回调、消息推送和退款对账可能同时处理同一订单，
+     * 用条件更新把支付订单改为已退款，只有更新成功的一方继续处理关联订单
      *
      * @param orderNumber 商户订单号
      * @param alipayTradeNo 支付宝交易号
@@ -1385,22 +1357,24 @@ public class AlipayService {
                 orderNumber, alipayTradeNo, refundAmount);
 
         try {
-            // 1. 查询支付订单
+            // 1. 仅当订单尚未退款时更新状态，并发处理同一订单时只有一方更新成功
+            int updated = paymentOrderRepository.markRefundedIfNot(orderNumber, PaymentStatus.REFUNDED);
+
+            // 2. 查询支付订单
             PaymentOrder paymentOrder = paymentOrderRepository.findByOrderNumber(orderNumber)
                     .orElseThrow(() -> {
                         logger.error("未找到支付订单: {}", orderNumber);
                         return new RuntimeException("支付订单不存在");
                     });
 
-            // 2. 检查订单状态
-            if (paymentOrder.getStatus() == PaymentStatus.REFUNDED) {
+            if (updated == 0) {
                 logger.info("订单已处于退款状态，忽略重复通知: {}", orderNumber);
                 return;
             }
 
-            // 3. 更新支付订单状态
+            // 3. 广播支付订单状态变更
             paymentOrder.setStatus(PaymentStatus.REFUNDED);
-            paymentOrderRepository.save(paymentOrder);
+            onPaymentStatusChanged(paymentOrder);
             logger.info("支付订单状态已更新为已退款: {}", orderNumber);
 
             // 4. 根据订单类型处理关联订单
@@ -1434,6 +1408,32 @@ public class AlipayService {
         }
     }
 
+    /**
+     * 查询支付订单的退款结果
+     * 用于退款对账，退款成功时返回已退款金额，未退款或退款处理中时返回空。
+     * 本系统不保存退款请求号，只能查询未指定out_request_no发起的全额退款，
+     * 支付宝此时以商户订单号作为退款请求号；带请求号的部分退款需在发起退款时保存请求号后才能查询
+     *
+     * @param orderNumber 商户订单号
+     */
+    public Optional<String> queryRefundedAmount(String orderNumber) throws AlipayApiException {
+        AlipayTradeFastpayRefundQueryRequest request = new AlipayTradeFastpayRefundQueryRequest();
+        JSONObject bizContent = new JSONObject();
+        bizContent.put("out_trade_no", orderNumber);
+        // 未指定退款请求号发起的退款，其请求号即为商户订单号
+        // 带请求号发起的退款用此请求号查不到，对账会一直退避重试，需由退款回调或推送完成
+        bizContent.put("out_request_no", orderNumber);
+        request.setBizContent(bizContent.toString());
+
+        AlipayTradeFastpayRefundQueryResponse response = alipayGateway.execute(AlipayOperation.REFUND_QUERY, request);
+        if (response.isSuccess() && "REFUND_SUCCESS".equals(response.getRefundStatus())) {
+            return Optional.ofNullable(response.getRefundAmount());
+        }
+        logger.debug("订单 {} 尚未退款成功: {}", orderNumber,
+                response.isSuccess() ? response.getRefundStatus() : response.getSubMsg());
+        return Optional.empty();
+    }
+
     /**
      * 根据订单类型处理退款业务逻辑
      */
@@ -0,0 +1,143 @@
+package com.server.anki.alipay;
+
+import com.server.anki.pay.payment.PaymentStatus;
+import com.server.anki.pay.payment.PaymentStatusResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 支付状态本地缓存
+ * 客户端轮询支付状态时优先返回缓存结果；同一订单在最小查询间隔内最多向支付宝查询一次，
+ * 并发的轮询请求合并为一次查询并共享结果。
+ * 支付回调和支付宝消息推送在事务提交后直接写入最新状态，终态结果不再过期
+ */
+@Component
+public class PaymentStatusCache {
+    private static final Logger logger = LoggerFactory.getLogger(PaymentStatusCache.class);
+
+    // 本地终态和支付宝交易终态
+    private static final Set<String> TERMINAL_STATUSES = Set.of(
+            PaymentStatus.PAID.name(), PaymentStatus.REFUNDED.name(), PaymentStatus.CANCELLED.name(),
+            "TRADE_SUCCESS", "TRADE_FINISHED", "TRADE_CLOSED");
+
+    // 同一订单两次查询支付宝的最小间隔（毫秒）
+    @Value("${alipay.status-query.min-interval:5000}")
+    private long minQueryInterval;
+
+    // 缓存条目的保留时间（毫秒），超过后由定时任务清理
+    @Value("${alipay.status-query.cache-ttl:3600000}")
+    private long cacheTtl;
+
+    private final ConcurrentHashMap<String, CachedStatus> statuses = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, CompletableFuture<PaymentStatusResponse>> inFlightQueries =
+            new ConcurrentHashMap<>();
+
+    /**
+     * 获取订单支付状态
+     * 缓存为终态或仍在最小查询间隔内时直接返回；否则由第一个请求执行查询，其余并发请求等待同一结果
+     *
+     * @param loader 实际查询本地订单和支付宝交易状态的方法
+     */
+    public PaymentStatusResponse getOrLoad(String orderNumber, Supplier<PaymentStatusResponse> loader) {
+        CachedStatus cached = statuses.get(orderNumber);
+        if (cached != null && (cached.terminal() || !cached.isOlderThan(minQueryInterval))) {
+            return cached.response();
+        }
+
+        CompletableFuture<PaymentStatusResponse> future = new CompletableFuture<>();
+        CompletableFuture<PaymentStatusResponse> existing = inFlightQueries.putIfAbsent(orderNumber, future);
+        if (existing != null) {
+            logger.debug("合并订单 {} 的并发状态查询", orderNumber);
+            return await(existing);
+        }
+
+        try {
+            PaymentStatusResponse response = loader.get();
+            // 查询期间回调可能已写入终态，此时不用查询结果覆盖
+            statuses.compute(orderNumber, (key, current) ->
+                    current != null && current.terminal() ? current : CachedStatus.of(response));
+            future.complete(response);
+            return response;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightQueries.remove(orderNumber, future);
+        }
+    }
+
+    /**
+     * 写入订单最新状态
+     * 在事务中调用时推迟到提交后写入，避免事务回滚后缓存中留下未生效的状态
+     */
+    public void update(String orderNumber, PaymentStatusResponse response) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    statuses.put(orderNumber, CachedStatus.of(response));
+                }
+            });
+        } else {
+            statuses.put(orderNumber, CachedStatus.of(response));
+        }
+    }
+
+    /**
+     * 使订单缓存失效，下一次查询会重新访问支付宝
+     */
+    public void evict(String orderNumber) {
+        statuses.remove(orderNumber);
+    }
+
+    /**
+     * 定时清理过期的缓存条目
+     */
+    @Scheduled(fixedDelay = 600000)
+    public void cleanupExpiredEntries() {
+        int beforeSize = statuses.size();
+        statuses.entrySet().removeIf(entry -> entry.getValue().isOlderThan(cacheTtl));
+
+        int removedCount = beforeSize - statuses.size();
+        if (removedCount > 0) {
+            logger.info("已清理 {} 条过期的支付状态缓存", removedCount);
+        }
+    }
+
+    private PaymentStatusResponse await(CompletableFuture<PaymentStatusResponse> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw e;
+        }
+    }
+
+    private record CachedStatus(PaymentStatusResponse response, boolean terminal, long cachedAt) {
+
+        static CachedStatus of(PaymentStatusResponse response) {
+            boolean terminal = response.getStatus() == PaymentStatusResponse.Status.SUCCESS
+                    && response.getTradeStatus() != null
+                    && TERMINAL_STATUSES.contains(response.getTradeStatus());
+            return new CachedStatus(response, terminal, System.currentTimeMillis());
+        }
+
+        boolean isOlderThan(long millis) {
+            return System.currentTimeMillis() - cachedAt > millis;
+        }
+    }
+}
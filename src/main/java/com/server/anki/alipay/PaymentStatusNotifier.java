@@ -0,0 +1,222 @@
+package com.server.anki.alipay;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.server.anki.config.RedisConfig;
+import com.server.anki.pay.payment.PaymentOrder;
+import com.server.anki.pay.payment.PaymentOrderRepository;
+import com.server.anki.pay.payment.PaymentStatus;
+import com.server.anki.pay.payment.PaymentStatusResponse;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 支付状态变更通知
+ * 客户端通过长轮询挂起请求等待支付结果，支付回调或订单状态推送处理完成后，
+ * 在事务提交后经Redis发布订阅广播状态变更，持有等待请求的节点收到后立即返回结果。
+ * 各节点收到广播时同时刷新本地支付状态缓存
+ */
+@Component
+public class PaymentStatusNotifier {
+    private static final Logger logger = LoggerFactory.getLogger(PaymentStatusNotifier.class);
+
+    // 等待请求结束的状态
+    private static final Set<PaymentStatus> TERMINAL_STATUSES = Set.of(
+            PaymentStatus.PAID, PaymentStatus.REFUNDED, PaymentStatus.CANCELLED, PaymentStatus.TIMEOUT);
+
+    // 可写入支付状态缓存的状态，与查询接口对终态的判断保持一致
+    private static final Set<PaymentStatus> CACHEABLE_STATUSES = Set.of(
+            PaymentStatus.PAID, PaymentStatus.REFUNDED, PaymentStatus.CANCELLED);
+
+    // 单次长轮询的最长等待时间（秒）
+    @Value("${alipay.status-query.max-wait:30}")
+    private long maxWaitSeconds;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Autowired
+    private PaymentOrderRepository paymentOrderRepository;
+
+    @Autowired
+    private PaymentStatusCache paymentStatusCache;
+
+    private final ConcurrentHashMap<String, Set<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> handleStatusMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConfig.PAYMENT_STATUS_CHANNEL));
+    }
+
+    /**
+     * 挂起请求直到订单进入终态或等待超时
+     * 超时时返回202和当前状态，客户端可立即发起下一次等待
+     *
+     * @param timeoutSeconds 客户端期望的等待时间，不超过配置的最长等待时间
+     */
+    public DeferredResult<ResponseEntity<?>> awaitTerminalStatus(PaymentOrder order, long timeoutSeconds) {
+        long timeout = Math.max(1, Math.min(timeoutSeconds, maxWaitSeconds)) * 1000;
+        String orderNumber = order.getOrderNumber();
+        Map<String, Object> baseData = buildBaseData(order);
+
+        DeferredResult<ResponseEntity<?>> result = new DeferredResult<>(timeout);
+        if (TERMINAL_STATUSES.contains(order.getStatus())) {
+            result.setResult(buildResponse(baseData, order.getStatus()));
+            return result;
+        }
+
+        Waiter waiter = new Waiter(result, baseData);
+        waiters.computeIfAbsent(orderNumber, key -> ConcurrentHashMap.newKeySet()).add(waiter);
+        result.onTimeout(() -> result.setResult(ResponseEntity.status(HttpStatus.ACCEPTED)
+                .body(withStatus(baseData, PaymentStatus.WAITING))));
+        result.onCompletion(() -> removeWaiter(orderNumber, waiter));
+
+        // 注册后再读取一次状态，避免在首次读取和注册之间发生的状态变更被错过；
+        // 请求中已加载过该订单实体，按实体重新查询会返回持久化上下文中的旧状态，因此只查询状态列
+        paymentOrderRepository.findStatusByOrderNumber(orderNumber)
+                .filter(TERMINAL_STATUSES::contains)
+                .ifPresent(status -> result.setResult(buildResponse(baseData, status)));
+
+        return result;
+    }
+
+    /**
+     * 广播订单状态变更
+     * 在事务中调用时推迟到提交后广播，避免等待方读到尚未提交的状态
+     *
+     * @param status 本地支付状态或支付宝交易状态
+     */
+    public void publish(String orderNumber, String status) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    doPublish(orderNumber, status);
+                }
+            });
+        } else {
+            doPublish(orderNumber, status);
+        }
+    }
+
+    private void doPublish(String orderNumber, String status) {
+        JSONObject message = new JSONObject();
+        message.put("orderNumber", orderNumber);
+        message.put("status", status);
+        String payload = message.toJSONString();
+
+        try {
+            redisTemplate.convertAndSend(RedisConfig.PAYMENT_STATUS_CHANNEL, payload);
+        } catch (Exception e) {
+            // Redis不可用时至少唤醒本节点上的等待请求
+            logger.warn("广播支付状态变更失败，仅通知本节点: {}, {}", orderNumber, e.getMessage());
+            handleStatusMessage(payload);
+        }
+    }
+
+    private void handleStatusMessage(String payload) {
+        try {
+            JSONObject message = JSON.parseObject(payload);
+            String orderNumber = message.getString("orderNumber");
+            PaymentStatus status = toPaymentStatus(message.getString("status"));
+            if (orderNumber == null || status == null) {
+                return;
+            }
+
+            if (CACHEABLE_STATUSES.contains(status)) {
+                paymentStatusCache.update(orderNumber, new PaymentStatusResponse(
+                        PaymentStatusResponse.Status.SUCCESS, status.name(), null));
+            }
+
+            if (!TERMINAL_STATUSES.contains(status)) {
+                return;
+            }
+            Set<Waiter> orderWaiters = waiters.remove(orderNumber);
+            if (orderWaiters == null) {
+                return;
+            }
+            for (Waiter waiter : orderWaiters) {
+                waiter.result().setResult(buildResponse(waiter.baseData(), status));
+            }
+            logger.debug("订单 {} 状态变更为 {}，已唤醒 {} 个等待请求", orderNumber, status, orderWaiters.size());
+        } catch (Exception e) {
+            logger.error("处理支付状态变更消息失败: {}", payload, e);
+        }
+    }
+
+    /**
+     * 将本地支付状态或支付宝交易状态统一转换为本地支付状态
+     */
+    private PaymentStatus toPaymentStatus(String status) {
+        if (status == null) {
+            return null;
+        }
+        return switch (status) {
+            case "TRADE_SUCCESS", "TRADE_FINISHED" -> PaymentStatus.PAID;
+            case "TRADE_CLOSED" -> PaymentStatus.CANCELLED;
+            case "WAIT_BUYER_PAY" -> PaymentStatus.WAITING;
+            default -> {
+                try {
+                    yield PaymentStatus.valueOf(status);
+                } catch (IllegalArgumentException e) {
+                    yield null;
+                }
+            }
+        };
+    }
+
+    private void removeWaiter(String orderNumber, Waiter waiter) {
+        waiters.computeIfPresent(orderNumber, (key, orderWaiters) -> {
+            orderWaiters.remove(waiter);
+            return orderWaiters.isEmpty() ? null : orderWaiters;
+        });
+    }
+
+    /**
+     * 与支付状态查询接口保持一致的响应字段
+     */
+    private Map<String, Object> buildBaseData(PaymentOrder order) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("orderNumber", order.getOrderInfo());
+        data.put("orderType", order.getOrderType().name());
+        data.put("amount", order.getAmount());
+        data.put("expireTime", order.getExpireTime());
+        return data;
+    }
+
+    private ResponseEntity<?> buildResponse(Map<String, Object> baseData, PaymentStatus status) {
+        return ResponseEntity.ok(withStatus(baseData, status));
+    }
+
+    private Map<String, Object> withStatus(Map<String, Object> baseData, PaymentStatus status) {
+        Map<String, Object> data = new HashMap<>(baseData);
+        data.put("paymentStatus", status.name());
+        return data;
+    }
+
+    private record Waiter(DeferredResult<ResponseEntity<?>> result, Map<String, Object> baseData) {
+    }
+}
@@ -0,0 +1,179 @@
+package com.server.anki.alipay.gateway;
+
+import com.alipay.api.AlipayApiException;
+import com.alipay.api.AlipayRequest;
+import com.alipay.api.AlipayResponse;
+import com.server.anki.config.AlipayConfig;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 支付宝网关
+ * 所有访问支付宝的接口调用都经此发出：在固定大小的线程池中执行，排队已满时直接拒绝；
+ * 每类接口有独立的超时时间，超时从提交时开始计算，同时作为该类接口HTTP请求的读取超时，
+ * 放弃等待的请求在底层也会随之结束；排队期间已超时的请求不再发出。
+ * 连续失败达到阈值后熔断，避免支付宝响应变慢时拖垮调用方。
+ * 熔断和排队已满时请求没有发出，调用方可以按失败处理；超时时请求可能已被支付宝执行，
+ * 转账等有副作用的接口必须按结果未知处理，再通过查询接口或异步通知确认结果。
+ * 页面支付等只在本地签名的接口不经过网关
+ */
+@Component
+public class AlipayGateway {
+    private static final Logger logger = LoggerFactory.getLogger(AlipayGateway.class);
+
+    // 支付宝服务不可用的返回码，与网络异常一样计入熔断
+    private static final String SERVICE_UNAVAILABLE_CODE = "20000";
+
+    // 网关拒绝请求的错误码，请求没有发往支付宝
+    public static final String CIRCUIT_OPEN = "CIRCUIT_OPEN";
+    public static final String GATEWAY_BUSY = "GATEWAY_BUSY";
+
+    // 等待结果超时的错误码，请求可能已被支付宝执行
+    public static final String GATEWAY_TIMEOUT = "GATEWAY_TIMEOUT";
+
+    @Autowired
+    private AlipayConfig alipayConfig;
+
+    @Autowired
+    private AlipayTransport alipayTransport;
+
+    private ThreadPoolExecutor gatewayExecutor;
+
+    private AlipayCircuitBreaker circuitBreaker;
+
+    @PostConstruct
+    public void init() {
+        AlipayConfig.GatewayConfig config = alipayConfig.getGateway();
+        AtomicInteger threadIndex = new AtomicInteger();
+        gatewayExecutor = new ThreadPoolExecutor(
+                config.getMaxConcurrency(),
+                config.getMaxConcurrency(),
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(config.getQueueCapacity()),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "alipay-gateway-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        circuitBreaker = new AlipayCircuitBreaker(config.getFailureThreshold(), config.getOpenDuration());
+
+        logger.info("支付宝网关初始化完成, 并发数: {}, 排队上限: {}, 熔断阈值: {}, 离线桩: {}",
+                config.getMaxConcurrency(), config.getQueueCapacity(), config.getFailureThreshold(),
+                config.isStub());
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        gatewayExecutor.shutdown();
+        if (!gatewayExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+            gatewayExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 异步调用支付宝接口
+     * 熔断、排队已满或超时时返回以AlipayApiException失败的结果
+     */
+    public <T extends AlipayResponse> CompletableFuture<T> executeAsync(AlipayOperation operation,
+                                                                        AlipayRequest<T> request) {
+        if (!circuitBreaker.tryAcquire()) {
+            return CompletableFuture.failedFuture(new AlipayApiException(CIRCUIT_OPEN,
+                    "支付宝接口暂时不可用，请稍后重试"));
+        }
+
+        long timeoutMillis = alipayConfig.getGateway().getTimeoutMillis(operation);
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            gatewayExecutor.execute(() -> {
+                // 排队期间调用方已超时放弃，不再发出请求
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    future.complete(alipayTransport.execute(operation, request));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            circuitBreaker.release();
+            logger.warn("支付宝网关繁忙，拒绝请求: {}", operation);
+            return CompletableFuture.failedFuture(new AlipayApiException(GATEWAY_BUSY,
+                    "支付宝接口调用繁忙，请稍后重试"));
+        }
+
+        return future
+                .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .handle((response, throwable) -> {
+                    if (throwable == null) {
+                        recordResult(operation, !SERVICE_UNAVAILABLE_CODE.equals(response.getCode()));
+                        return response;
+                    }
+
+                    recordResult(operation, false);
+                    Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+                            ? throwable.getCause() : throwable;
+                    if (cause instanceof TimeoutException) {
+                        // 已发出的请求可能已在支付宝执行完成，底层请求在读取超时后结束
+                        logger.warn("支付宝接口调用超时: {}, 超时时间: {}ms", operation, timeoutMillis);
+                        throw new CompletionException(new AlipayApiException(GATEWAY_TIMEOUT,
+                                "支付宝接口调用超时: " + operation));
+                    }
+                    throw throwable instanceof CompletionException completionException
+                            ? completionException : new CompletionException(cause);
+                });
+    }
+
+    /**
+     * 同步调用支付宝接口，在调用线程上等待结果
+     */
+    public <T extends AlipayResponse> T execute(AlipayOperation operation, AlipayRequest<T> request)
+            throws AlipayApiException {
+        try {
+            return executeAsync(operation, request).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AlipayApiException alipayApiException) {
+                throw alipayApiException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new AlipayApiException(cause);
+        }
+    }
+
+    /**
+     * 判断异常是否表示请求未发往支付宝（熔断或排队已满），此时可以确定接口没有被执行
+     */
+    public static boolean isRejectedBeforeSend(Throwable throwable) {
+        return throwable instanceof AlipayApiException alipayApiException
+                && (CIRCUIT_OPEN.equals(alipayApiException.getErrCode())
+                || GATEWAY_BUSY.equals(alipayApiException.getErrCode()));
+    }
+
+    private void recordResult(AlipayOperation operation, boolean success) {
+        if (success) {
+            if (circuitBreaker.onSuccess()) {
+                logger.info("支付宝网关熔断已恢复");
+            }
+        } else if (circuitBreaker.onFailure()) {
+            logger.error("支付宝接口连续调用失败，网关熔断 {}ms, 最近失败接口: {}",
+                    alipayConfig.getGateway().getOpenDuration(), operation);
+        }
+    }
+}
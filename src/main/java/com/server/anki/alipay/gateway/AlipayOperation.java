@@ -0,0 +1,32 @@
+package com.server.anki.alipay.gateway;
+
+/**
+ * 经支付宝网关调用的接口类型
+ * 每类接口有独立的超时时间，可通过 alipay.gateway.timeouts 覆盖
+ */
+public enum AlipayOperation {
+    /** 交易查询 */
+    TRADE_QUERY(5000),
+
+    /** 交易关闭 */
+    TRADE_CLOSE(5000),
+
+    /** 退款查询 */
+    REFUND_QUERY(5000),
+
+    /** 单笔转账（提现），超时时转账结果未知，需通过转账订单查询确认 */
+    TRANSFER(15000),
+
+    /** 转账订单查询 */
+    TRANSFER_QUERY(5000);
+
+    private final long defaultTimeoutMillis;
+
+    AlipayOperation(long defaultTimeoutMillis) {
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+    }
+
+    public long getDefaultTimeoutMillis() {
+        return defaultTimeoutMillis;
+    }
+}
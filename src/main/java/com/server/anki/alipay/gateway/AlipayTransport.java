@@ -0,0 +1,18 @@
+package com.server.anki.alipay.gateway;
+
+import com.alipay.api.AlipayApiException;
+import com.alipay.api.AlipayRequest;
+import com.alipay.api.AlipayResponse;
+
+/**
+ * 支付宝请求的实际发送方式
+ * 正常运行时经SDK客户端发送，压测时可替换为离线桩
+ */
+public interface AlipayTransport {
+
+    /**
+     * 发送请求，按接口类型的超时时间限制等待支付宝响应的时间
+     */
+    <T extends AlipayResponse> T execute(AlipayOperation operation, AlipayRequest<T> request)
+            throws AlipayApiException;
+}
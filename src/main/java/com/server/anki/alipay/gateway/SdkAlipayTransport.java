@@ -0,0 +1,27 @@
+package com.server.anki.alipay.gateway;
+
+import com.alipay.api.AlipayApiException;
+import com.alipay.api.AlipayClient;
+import com.alipay.api.AlipayRequest;
+import com.alipay.api.AlipayResponse;
+
+import java.util.Map;
+
+/**
+ * 经支付宝SDK客户端发送请求
+ * 每类接口使用读取超时等于其超时时间的客户端，网关超时时底层请求也会随之结束，不会长期占用网关线程
+ */
+public class SdkAlipayTransport implements AlipayTransport {
+
+    private final Map<AlipayOperation, AlipayClient> clients;
+
+    public SdkAlipayTransport(Map<AlipayOperation, AlipayClient> clients) {
+        this.clients = clients;
+    }
+
+    @Override
+    public <T extends AlipayResponse> T execute(AlipayOperation operation, AlipayRequest<T> request)
+            throws AlipayApiException {
+        return clients.get(operation).execute(request);
+    }
+}
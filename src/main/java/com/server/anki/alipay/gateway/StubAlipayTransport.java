@@ -0,0 +1,86 @@
+package com.server.anki.alipay.gateway;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.alipay.api.AlipayApiException;
+import com.alipay.api.AlipayRequest;
+import com.alipay.api.AlipayResponse;
+import com.alipay.api.response.AlipayFundTransOrderQueryResponse;
+import com.alipay.api.response.AlipayFundTransUniTransferResponse;
+import com.alipay.api.response.AlipayTradeCloseResponse;
+import com.alipay.api.response.AlipayTradeFastpayRefundQueryResponse;
+import com.alipay.api.response.AlipayTradeQueryResponse;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 支付宝离线桩
+ * 不访问网络，按配置的延迟返回成功响应，用于在没有真实网关的环境中压测；
+ * 请求仍经过网关的并发隔离、超时和熔断处理
+ */
+public class StubAlipayTransport implements AlipayTransport {
+
+    private final long latencyMillis;
+
+    private final String tradeStatus;
+
+    public StubAlipayTransport(long latencyMillis, String tradeStatus) {
+        this.latencyMillis = latencyMillis;
+        this.tradeStatus = tradeStatus;
+    }
+
+    @Override
+    public <T extends AlipayResponse> T execute(AlipayOperation operation, AlipayRequest<T> request)
+            throws AlipayApiException {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AlipayApiException(e);
+            }
+        }
+
+        T response;
+        try {
+            response = request.getResponseClass().getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new AlipayApiException(e);
+        }
+        response.setCode("10000");
+        response.setMsg("Success");
+        response.setBody("{}");
+
+        JSONObject bizContent = parseBizContent(request);
+        String stubTradeNo = "STUB" + UUID.randomUUID().toString().replace("-", "");
+        if (response instanceof AlipayTradeQueryResponse queryResponse) {
+            queryResponse.setOutTradeNo(bizContent.getString("out_trade_no"));
+            queryResponse.setTradeNo(stubTradeNo);
+            queryResponse.setTradeStatus(tradeStatus);
+        } else if (response instanceof AlipayTradeCloseResponse closeResponse) {
+            closeResponse.setOutTradeNo(bizContent.getString("out_trade_no"));
+            closeResponse.setTradeNo(stubTradeNo);
+        } else if (response instanceof AlipayTradeFastpayRefundQueryResponse refundQueryResponse) {
+            // 桩不模拟退款，对账任务会按退避继续查询
+            refundQueryResponse.setOutTradeNo(bizContent.getString("out_trade_no"));
+            refundQueryResponse.setTradeNo(stubTradeNo);
+        } else if (response instanceof AlipayFundTransUniTransferResponse transferResponse) {
+            transferResponse.setOutBizNo(bizContent.getString("out_biz_no"));
+            transferResponse.setOrderId(stubTradeNo);
+            transferResponse.setStatus("SUCCESS");
+        } else if (response instanceof AlipayFundTransOrderQueryResponse transferQueryResponse) {
+            transferQueryResponse.setOutBizNo(bizContent.getString("out_biz_no"));
+            transferQueryResponse.setOrderId(stubTradeNo);
+            transferQueryResponse.setStatus("SUCCESS");
+        }
+        return response;
+    }
+
+    private JSONObject parseBizContent(AlipayRequest<?> request) {
+        Map<String, String> textParams = request.getTextParams();
+        String bizContent = textParams != null ? textParams.get("biz_content") : null;
+        JSONObject parsed = bizContent != null ? JSON.parseObject(bizContent) : null;
+        return parsed != null ? parsed : new JSONObject();
+    }
+}
@@ -2,6 +2,7 @@ package com.server.anki.alipay.message;
 
 import com.server.anki.pay.payment.PaymentStatusResponse;
 import com.server.anki.alipay.AlipayService;
+import com.server.anki.alipay.PaymentStatusNotifier;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,6 +23,9 @@ public class AlipayMessageService {
     @Autowired
     private AlipayService alipayService;
 
+    @Autowired
+    private PaymentStatusNotifier paymentStatusNotifier;
+
     /**
      * 处理订单状态变更消息
      * 使用统一查询方法处理订单状态
@@ -37,14 +41,17 @@ public class AlipayMessageService {
                 return;
             }
 
-            // 使用统一查询方法查询并更新订单状态
+            // 推送说明订单状态已变化，绕过缓存重新查询并更新订单状态
             PaymentStatusResponse statusResponse =
-                    alipayService.queryUnifiedPaymentStatus(content.getOrderNumber());
+                    alipayService.refreshPaymentStatus(content.getOrderNumber());
 
             // 根据查询结果处理特殊情况
             if (statusResponse.getStatus() == PaymentStatusResponse.Status.ERROR) {
                 logger.error("订单状态查询失败: {}", statusResponse.getMessage());
                 // 可以在这里添加重试逻辑或告警通知
+            } else if (statusResponse.getTradeStatus() != null) {
+                // 唤醒等待该订单支付结果的请求，订单此前已是终态时本地不会再产生状态变更
+                paymentStatusNotifier.publish(content.getOrderNumber(), statusResponse.getTradeStatus());
             }
 
         } catch (Exception e) {
@@ -2,8 +2,10 @@ package com.server.anki.chat;
 
 import com.server.anki.auth.AuthenticationService;
 import com.server.anki.chat.dto.ChatDTO;
+import com.server.anki.chat.dto.ChatHistoryPage;
 import com.server.anki.chat.entity.Chat;
 import com.server.anki.chat.entity.ChatMessage;
+import com.server.anki.chat.service.ChatHistoryService;
 import com.server.anki.ticket.Ticket;
 import com.server.anki.ticket.TicketDTO;
 import com.server.anki.ticket.TicketRepository;
@@ -40,6 +42,9 @@ public class ChatController {
     @Autowired
     private UserService userService; // 新增：注入 UserService
 
+    @Autowired
+    private ChatHistoryService chatHistoryService;
+
     @PostMapping("/send")
     public ResponseEntity<?> sendMessage(@RequestBody ChatMessage chatMessage,
                                          HttpServletRequest request,
@@ -136,4 +141,47 @@ public class ChatController {
         logger.info("Retrieved {} chats for ticket: {}", chatDTOs.size(), ticketId);
         return ResponseEntity.ok(chatDTOs);
     }
+
+    /**
+     * 游标分页获取工单聊天记录
+     * 首次请求不传beforeId获取最新一页，之后用返回的nextBeforeId加载更早的消息
+     */
+    @GetMapping("/ticket/{ticketId}/history")
+    public ResponseEntity<?> getChatHistory(@PathVariable Long ticketId,
+                                            @RequestParam(required = false) Long beforeId,
+                                            @RequestParam(required = false) Integer limit,
+                                            HttpServletRequest request,
+                                            HttpServletResponse response) {
+        logger.info("Received request to get chat history for ticket: {}, beforeId: {}", ticketId, beforeId);
+
+        User user = authenticationService.getAuthenticatedUser(request, response);
+        if (user == null) {
+            logger.warn("Unauthorized access attempt to get chat history");
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+
+        Ticket ticket;
+        try {
+            ticket = ticketRepository.findById(ticketId).orElseThrow();
+        } catch (Exception e) {
+            logger.error("Failed to find ticket. TicketId: {}", ticketId, e);
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Ticket not found.");
+        }
+
+        boolean isAdmin = userService.isAdminUser(user);
+        if (!ticket.getUser().getId().equals(user.getId()) && !isAdmin) {
+            logger.warn("User attempt to access chat history of another user's ticket. UserId: {}, TicketId: {}",
+                    user.getId(), ticketId);
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("您没有权限访问此工单");
+        }
+        if (!ticket.isOpen() && !isAdmin) {
+            logger.warn("Non-admin user attempt to access closed ticket chats. UserId: {}, TicketId: {}",
+                    user.getId(), ticketId);
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("工单已关闭，无法获取聊天记录。");
+        }
+
+        ChatHistoryPage page = chatHistoryService.getPage(ticketId, beforeId, limit);
+        logger.info("Retrieved {} chats for ticket: {}", page.messages().size(), ticketId);
+        return ResponseEntity.ok(page);
+    }
 }
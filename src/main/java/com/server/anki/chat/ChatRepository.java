@@ -1,9 +1,13 @@
 package com.server.anki.chat;
 
+import com.server.anki.chat.dto.ChatHistoryItem;
 import com.server.anki.chat.entity.Chat;
 import com.server.anki.ticket.Ticket;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -12,4 +16,11 @@ import java.util.List;
 public interface ChatRepository extends JpaRepository<Chat, Long> {
     @EntityGraph(attributePaths = {"user", "ticket"})
     List<Chat> findByTicket(Ticket ticket);
+
+    // 游标分页：按ID倒序取beforeId之前的一页，只投影展示所需字段
+    @Query("SELECT new com.server.anki.chat.dto.ChatHistoryItem(c.id, c.message, c.timestamp, u.id, u.username) " +
+            "FROM Chat c LEFT JOIN c.user u WHERE c.ticket.id = :ticketId AND c.id < :beforeId ORDER BY c.id DESC")
+    List<ChatHistoryItem> findHistoryBefore(@Param("ticketId") Long ticketId,
+                                            @Param("beforeId") Long beforeId,
+                                            Pageable pageable);
 }
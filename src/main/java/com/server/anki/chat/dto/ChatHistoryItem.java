@@ -0,0 +1,18 @@
+package com.server.anki.chat.dto;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+
+import java.time.LocalDateTime;
+
+/**
+ * 聊天历史记录的精简投影
+ * 只包含展示所需的字段，避免加载完整的用户和工单实体
+ */
+public record ChatHistoryItem(
+        Long id,
+        String message,
+        @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss.SSS")
+        LocalDateTime timestamp,
+        Long userId,
+        String username) {
+}
@@ -0,0 +1,13 @@
+package com.server.anki.chat.dto;
+
+import java.util.List;
+
+/**
+ * 聊天历史分页结果
+ *
+ * @param messages 本页消息，按时间正序排列
+ * @param nextBeforeId 加载更早消息时使用的游标，没有更多消息时为null
+ * @param hasMore 是否还有更早的消息
+ */
+public record ChatHistoryPage(List<ChatHistoryItem> messages, Long nextBeforeId, boolean hasMore) {
+}
@@ -14,6 +14,9 @@ import java.time.LocalDateTime;
 @Setter
 @Getter
 @Entity
+@Table(indexes = {
+        @Index(name = "idx_chat_ticket_id", columnList = "ticket_id, id")
+})
 @JsonIdentityInfo(generator = ObjectIdGenerators.PropertyGenerator.class, property = "id")
 public class Chat {
     @Id
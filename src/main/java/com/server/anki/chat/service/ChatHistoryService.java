@@ -0,0 +1,64 @@
+package com.server.anki.chat.service;
+
+import com.server.anki.chat.ChatRepository;
+import com.server.anki.chat.dto.ChatHistoryItem;
+import com.server.anki.chat.dto.ChatHistoryPage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 聊天历史查询服务
+ * 基于 (ticket_id, id) 索引的游标分页，每次只读取一页，查询代价与历史长度无关
+ */
+@Service
+public class ChatHistoryService {
+    private static final Logger logger = LoggerFactory.getLogger(ChatHistoryService.class);
+
+    // 单页最大条数
+    private static final int MAX_PAGE_SIZE = 100;
+
+    // 默认每页条数，WebSocket连接建立时推送的最新一页也使用该值
+    @Value("${chat.history.page-size:30}")
+    private int defaultPageSize;
+
+    @Autowired
+    private ChatRepository chatRepository;
+
+    /**
+     * 获取工单最新一页聊天记录
+     */
+    public ChatHistoryPage getLatestPage(Long ticketId) {
+        return getPage(ticketId, null, defaultPageSize);
+    }
+
+    /**
+     * 获取指定消息之前的一页聊天记录
+     *
+     * @param beforeId 游标，为null时从最新一条开始
+     * @param limit 每页条数，为null时使用默认值
+     */
+    public ChatHistoryPage getPage(Long ticketId, Long beforeId, Integer limit) {
+        int pageSize = limit == null ? defaultPageSize : Math.min(Math.max(limit, 1), MAX_PAGE_SIZE);
+
+        // 多取一条用于判断是否还有更早的消息
+        List<ChatHistoryItem> rows = chatRepository.findHistoryBefore(ticketId,
+                beforeId != null ? beforeId : Long.MAX_VALUE, PageRequest.of(0, pageSize + 1));
+
+        boolean hasMore = rows.size() > pageSize;
+        List<ChatHistoryItem> messages = new ArrayList<>(hasMore ? rows.subList(0, pageSize) : rows);
+        Collections.reverse(messages);
+
+        Long nextBeforeId = hasMore ? messages.get(0).id() : null;
+        logger.debug("查询工单 {} 的聊天记录, beforeId: {}, 返回 {} 条, hasMore: {}",
+                ticketId, beforeId, messages.size(), hasMore);
+        return new ChatHistoryPage(messages, nextBeforeId, hasMore);
+    }
+}
@@ -3,23 +3,24 @@ package com.server.anki.chat.service;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import com.server.anki.chat.entity.Chat;
+import com.server.anki.chat.dto.ChatDTO;
 import com.server.anki.chat.dto.ChatMessageDTO;
-import com.server.anki.chat.ChatRepository;
-import com.server.anki.ticket.Ticket;
-import com.server.anki.ticket.TicketRepository;
-import com.server.anki.user.User;
-import com.server.anki.user.UserRepository;
 import com.server.anki.websocket.ChatWebSocketHandler;
+import com.server.anki.config.RabbitMQConfig;
+import com.rabbitmq.client.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.converter.MessageConverter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
-import java.util.Set;
 import org.springframework.web.socket.WebSocketSession;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 
 /**
  * 聊天消息消费者服务
@@ -33,16 +34,13 @@ public class ChatMessageConsumer {
     private static final Logger logger = LoggerFactory.getLogger(ChatMessageConsumer.class);
 
     @Autowired
-    private ChatRepository chatRepository;
-
-    @Autowired
-    private UserRepository userRepository;
+    private ChatPersistenceService chatPersistenceService;
 
     @Autowired
-    private TicketRepository ticketRepository;
+    private ChatWebSocketHandler webSocketHandler;
 
     @Autowired
-    private ChatWebSocketHandler webSocketHandler;
+    private MessageConverter messageConverter;
 
     public ChatMessageConsumer() {
         ObjectMapper objectMapper = new ObjectMapper();
@@ -50,49 +48,138 @@ public class ChatMessageConsumer {
         objectMapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
     }
     /**
-     * 处理从消息队列接收的聊天消息
+     * 批量消费聊天消息
+     * 先将整批发送消息写入数据库并取得聊天ID，再按原顺序推送和处理其他动作，全部完成后统一确认；
+     * 无法解析或用户、工单不存在的消息单独拒绝进入聊天死信队列，批量写入失败时退回逐条写入
      */
-    @RabbitListener(queues = "chat.queue")
-    @Transactional
-    public void processChatMessage(ChatMessageDTO message) {
+    @RabbitListener(queues = RabbitMQConfig.CHAT_QUEUE,
+            containerFactory = RabbitMQConfig.CHAT_BATCH_CONTAINER_FACTORY)
+    public void processChatMessages(List<Message> amqpMessages, Channel channel) throws IOException {
+        List<PendingMessage> pending = new ArrayList<>(amqpMessages.size());
+        List<PendingMessage> sends = new ArrayList<>();
+
+        for (Message amqpMessage : amqpMessages) {
+            long deliveryTag = amqpMessage.getMessageProperties().getDeliveryTag();
+            try {
+                // 批量监听时容器不做类型推断，这里按聊天消息类型手动转换
+                amqpMessage.getMessageProperties().setInferredArgumentType(ChatMessageDTO.class);
+                ChatMessageDTO message = (ChatMessageDTO) messageConverter.fromMessage(amqpMessage);
+                if (message.getAction() == null) {
+                    throw new IllegalArgumentException("消息缺少动作类型");
+                }
+
+                ChatDTO chatDTO = null;
+                if (message.getAction() == ChatMessageDTO.MessageAction.SEND) {
+                    chatDTO = webSocketHandler.buildChatDTO(message.getTicketId(), message.getUserId(),
+                            message.getMessage(), message.getTimestamp());
+                    if (chatDTO.getUser() == null || chatDTO.getTicket() == null) {
+                        throw new IllegalArgumentException("用户或工单不存在");
+                    }
+                }
+
+                PendingMessage item = new PendingMessage(deliveryTag, message, chatDTO);
+                pending.add(item);
+                if (chatDTO != null) {
+                    sends.add(item);
+                }
+            } catch (Exception e) {
+                logger.error("聊天消息校验失败，转入死信队列，deliveryTag: {}, 错误: {}", deliveryTag, e.getMessage());
+                channel.basicNack(deliveryTag, false, false);
+            }
+        }
+
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        if (!sends.isEmpty() && !persistBatch(sends)) {
+            persistIndividually(sends, channel);
+        }
+
+        long lastTag = -1;
+        for (PendingMessage item : pending) {
+            if (item.chatDTO() != null && item.chatDTO().getId() == null) {
+                // 逐条写入失败，已拒绝
+                continue;
+            }
+            try {
+                dispatch(item);
+                lastTag = Math.max(lastTag, item.deliveryTag());
+            } catch (Exception e) {
+                if (item.chatDTO() != null) {
+                    // 聊天记录已入库，推送失败时客户端可通过历史记录获取
+                    logger.warn("聊天消息推送失败，工单ID: {}, 错误: {}", item.message().getTicketId(), e.getMessage());
+                    lastTag = Math.max(lastTag, item.deliveryTag());
+                } else {
+                    logger.error("处理聊天消息时发生错误，转入死信队列: {}", e.getMessage(), e);
+                    channel.basicNack(item.deliveryTag(), false, false);
+                }
+            }
+        }
+
+        if (lastTag >= 0) {
+            // 同一通道上批内消息的deliveryTag最小，multiple确认只会覆盖本批次中尚未拒绝的消息
+            channel.basicAck(lastTag, true);
+        }
+    }
+
+    /**
+     * 整批写入聊天记录，成功后为推送的消息填入聊天ID
+     */
+    private boolean persistBatch(List<PendingMessage> sends) {
         try {
-            logger.info("接收到聊天消息，用户ID: {}, 工单ID: {}",
-                    message.getUserId(), message.getTicketId());
-
-            switch (message.getAction()) {
-                case SEND -> handleSendMessage(message);
-                case BROADCAST -> handleBroadcastMessage(message);
-                case ERROR -> handleErrorMessage(message);
-                default -> logger.warn("未知的消息动作类型: {}", message.getAction());
+            List<Long> ids = chatPersistenceService.insertAll(sends.stream().map(this::toPendingChat).toList());
+            for (int i = 0; i < sends.size(); i++) {
+                sends.get(i).chatDTO().setId(ids.get(i));
             }
+            logger.debug("批量写入聊天记录 {} 条", sends.size());
+            return true;
         } catch (Exception e) {
-            logger.error("处理聊天消息时发生错误: {}", e.getMessage(), e);
+            logger.warn("批量写入 {} 条聊天记录失败，改为逐条写入: {}", sends.size(), e.getMessage());
+            return false;
         }
     }
 
     /**
-     * 处理发送消息
+     * 逐条写入聊天记录，写入失败的消息拒绝进入聊天死信队列
      */
-    private void handleSendMessage(ChatMessageDTO message) throws Exception {
-        // 获取用户和工单信息
-        User user = userRepository.findById(message.getUserId())
-                .orElseThrow(() -> new IllegalStateException("用户不存在"));
-
-        Ticket ticket = ticketRepository.findById(message.getTicketId())
-                .orElseThrow(() -> new IllegalStateException("工单不存在"));
+    private void persistIndividually(List<PendingMessage> sends, Channel channel) throws IOException {
+        for (PendingMessage item : sends) {
+            try {
+                item.chatDTO().setId(chatPersistenceService.insert(toPendingChat(item)));
+            } catch (Exception e) {
+                logger.error("聊天记录写入失败，转入死信队列. 工单ID: {}, 用户ID: {}, 错误: {}",
+                        item.message().getTicketId(), item.message().getUserId(), e.getMessage());
+                channel.basicNack(item.deliveryTag(), false, false);
+            }
+        }
+    }
 
-        // 创建并保存聊天记录
-        Chat chat = new Chat();
-        chat.setMessage(message.getMessage());
-        chat.setTimestamp(message.getTimestamp());
-        chat.setUser(user);
-        chat.setTicket(ticket);
+    private ChatPersistenceService.PendingChat toPendingChat(PendingMessage item) {
+        ChatMessageDTO message = item.message();
+        return new ChatPersistenceService.PendingChat(message.getTicketId(), message.getUserId(),
+                message.getMessage(), message.getTimestamp());
+    }
 
-        Chat savedChat = chatRepository.save(chat);
+    private void dispatch(PendingMessage item) throws Exception {
+        ChatMessageDTO message = item.message();
+        logger.info("处理聊天消息，用户ID: {}, 工单ID: {}, 动作: {}",
+                message.getUserId(), message.getTicketId(), message.getAction());
 
-        // 广播消息给所有相关会话
-        broadcastToTicketSessions(ticket.getId(), savedChat);
+        switch (message.getAction()) {
+            case SEND -> handleSendMessage(message.getTicketId(), item.chatDTO());
+            case BROADCAST -> handleBroadcastMessage(message);
+            case ERROR -> handleErrorMessage(message);
+            default -> logger.warn("未知的消息动作类型: {}", message.getAction());
+        }
+    }
 
+    /**
+     * 处理发送消息
+     * 聊天记录已入库，使用缓存的参与者信息把带ID的消息推送给工单的所有会话
+     */
+    private void handleSendMessage(Long ticketId, ChatDTO chatDTO) throws Exception {
+        webSocketHandler.broadcastToTicket(ticketId, chatDTO);
         logger.info("聊天消息处理完成");
     }
 
@@ -100,7 +187,7 @@ public class ChatMessageConsumer {
      * 处理广播消息
      */
     private void handleBroadcastMessage(ChatMessageDTO message) throws Exception {
-        broadcastToTicketSessions(message.getTicketId(), message.getMessage());
+        webSocketHandler.broadcastToTicket(message.getTicketId(), message.getMessage());
         logger.info("广播消息发送完成");
     }
 
@@ -115,17 +202,6 @@ public class ChatMessageConsumer {
         }
     }
 
-    /**
-     * 向工单相关的所有WebSocket会话广播消息
-     */
-    private void broadcastToTicketSessions(Long ticketId, Object message) throws Exception {
-        Set<WebSocketSession> sessions = webSocketHandler.getTicketSessions(ticketId);
-        if (sessions != null) {
-            for (WebSocketSession session : sessions) {
-                if (session.isOpen()) {
-                    webSocketHandler.sendMessage(session, message);
-                }
-            }
-        }
+    private record PendingMessage(long deliveryTag, ChatMessageDTO message, ChatDTO chatDTO) {
     }
-}
\ No newline at end of file
+}
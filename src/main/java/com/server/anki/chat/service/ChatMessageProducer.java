@@ -3,7 +3,7 @@ package com.server.anki.chat.service;
 import com.server.anki.chat.dto.ChatMessageDTO;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import com.server.anki.message.publisher.MessagePublisher;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -16,7 +16,7 @@ public class ChatMessageProducer {
     private static final Logger logger = LoggerFactory.getLogger(ChatMessageProducer.class);
 
     @Autowired
-    private RabbitTemplate rabbitTemplate;
+    private MessagePublisher messagePublisher;
 
     // 交换机和路由配置
     private static final String CHAT_EXCHANGE = "chat.exchange";
@@ -30,10 +30,12 @@ public class ChatMessageProducer {
             logger.info("发送聊天消息到队列，用户ID: {}, 工单ID: {}",
                     message.getUserId(), message.getTicketId());
 
-            rabbitTemplate.convertAndSend(
+            messagePublisher.publish(
                     CHAT_EXCHANGE,
                     CHAT_ROUTING_KEY,
-                    message
+                    message,
+                    payload -> logger.error("聊天消息发布失败，消息已丢失, 用户ID: {}, 工单ID: {}",
+                            message.getUserId(), message.getTicketId())
             );
 
             logger.info("消息发送成功");
@@ -51,10 +53,11 @@ public class ChatMessageProducer {
             ChatMessageDTO message = ChatMessageDTO.createErrorMessage(
                     errorMessage, sessionId);
 
-            rabbitTemplate.convertAndSend(
+            messagePublisher.publish(
                     CHAT_EXCHANGE,
                     CHAT_ROUTING_KEY,
-                    message
+                    message,
+                    payload -> logger.error("聊天错误消息发布失败, 会话ID: {}", sessionId)
             );
 
             logger.info("错误消息发送成功");
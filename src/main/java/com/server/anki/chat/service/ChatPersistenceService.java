@@ -0,0 +1,93 @@
+package com.server.anki.chat.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.stereotype.Service;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 聊天记录批量持久化服务
+ * 由聊天消息消费者在推送前调用，使用JDBC批量插入并返回生成的聊天ID，
+ * 写入成功后消费者才确认队列消息，写入失败的消息进入聊天死信队列
+ */
+@Service
+public class ChatPersistenceService {
+
+    private static final String INSERT_CHAT_SQL =
+            "INSERT INTO `chat` (`message`, `timestamp`, `ticket_id`, `user_id`) VALUES (?, ?, ?, ?)";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * 批量写入聊天记录
+     *
+     * @return 按输入顺序排列的聊天ID
+     */
+    public List<Long> insertAll(List<PendingChat> chats) {
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+        jdbcTemplate.batchUpdate(
+                connection -> connection.prepareStatement(INSERT_CHAT_SQL, Statement.RETURN_GENERATED_KEYS),
+                new BatchPreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement ps, int i) throws SQLException {
+                        bind(ps, chats.get(i));
+                    }
+
+                    @Override
+                    public int getBatchSize() {
+                        return chats.size();
+                    }
+                },
+                keyHolder);
+
+        List<Map<String, Object>> keys = keyHolder.getKeyList();
+        if (keys.size() != chats.size()) {
+            throw new IllegalStateException("聊天记录生成的ID数量与写入条数不一致: "
+                    + keys.size() + "/" + chats.size());
+        }
+        return keys.stream().map(ChatPersistenceService::extractId).toList();
+    }
+
+    /**
+     * 写入单条聊天记录
+     *
+     * @return 生成的聊天ID
+     */
+    public Long insert(PendingChat chat) {
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+        jdbcTemplate.update(connection -> {
+            PreparedStatement ps = connection.prepareStatement(INSERT_CHAT_SQL, Statement.RETURN_GENERATED_KEYS);
+            bind(ps, chat);
+            return ps;
+        }, keyHolder);
+        return extractId(keyHolder.getKeys());
+    }
+
+    private static void bind(PreparedStatement ps, PendingChat chat) throws SQLException {
+        ps.setString(1, chat.message());
+        ps.setTimestamp(2, Timestamp.valueOf(chat.timestamp()));
+        ps.setLong(3, chat.ticketId());
+        ps.setLong(4, chat.userId());
+    }
+
+    private static Long extractId(Map<String, Object> key) {
+        if (key == null || key.isEmpty()) {
+            throw new IllegalStateException("聊天记录未返回生成的ID");
+        }
+        return ((Number) key.values().iterator().next()).longValue();
+    }
+
+    public record PendingChat(Long ticketId, Long userId, String message, LocalDateTime timestamp) {
+    }
+}
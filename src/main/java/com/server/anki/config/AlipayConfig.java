@@ -1,9 +1,14 @@
 package com.server.anki.config;
 
+import com.alipay.api.AlipayApiException;
 import com.alipay.api.AlipayClient;
 import com.alipay.api.DefaultAlipayClient;
 import com.alipay.api.msg.AlipayMsgClient;
 import com.alipay.api.msg.MsgHandler;
+import com.server.anki.alipay.gateway.AlipayOperation;
+import com.server.anki.alipay.gateway.AlipayTransport;
+import com.server.anki.alipay.gateway.SdkAlipayTransport;
+import com.server.anki.alipay.gateway.StubAlipayTransport;
 import lombok.Getter;
 import lombok.Setter;
 import org.slf4j.Logger;
@@ -12,6 +17,10 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * 支付宝配置类
  * 包含普通支付接口配置、OAuth配置和消息服务配置
@@ -34,8 +43,8 @@ public class AlipayConfig {
     private String unifiedCallbackUrl;
 
     // 新增超时配置参数
-    private int connectTimeout = 30000;  // 默认连接超时时间，30秒
-    private int readTimeout = 30000;     // 默认读取超时时间，30秒
+    private int connectTimeout = 5000;   // 默认连接超时时间，5秒
+    private int readTimeout = 15000;     // 默认读取超时时间，15秒，用于不经网关的调用，经网关的调用使用各接口的超时时间
 
     public String getCallbackUrl() {
         return unifiedCallbackUrl != null ? unifiedCallbackUrl : notifyUrl;
@@ -47,6 +56,9 @@ public class AlipayConfig {
     // WebSocket消息服务配置
     private WsConfig ws = new WsConfig();
 
+    // 支付宝网关配置
+    private GatewayConfig gateway = new GatewayConfig();
+
     /**
      * OAuth2.0 配置内部类
      * 改为非静态内部类，这样可以访问外部类的成员
@@ -90,34 +102,99 @@ public class AlipayConfig {
         private int reconnectInterval = 5000;
         private int bizThreadPoolCoreSize = 16;
         private int bizThreadPoolMaxSize = 32;
+        private int workerPartitions = 8;        // 消息处理分区数，同一订单的消息总在同一分区中按序处理
+        private int workerQueueCapacity = 1000;  // 每个分区等待处理的消息上限，超过后不确认消息
+        private int maxProcessAttempts = 3;      // 单条消息的最大处理次数
+        private long retryInterval = 1000;       // 消息处理重试间隔，毫秒，按次数递增
+        private long processingTimeout = 600000; // 处理中标记的有效期，毫秒，进程中途退出后到期的消息可被补偿处理
+        private long nodeTimeout = 30000;        // 节点心跳有效期，毫秒，节点退出后其认领的消息在心跳过期后可被补偿处理
+        private int maxReplays = 20;             // 未处理完成的消息最多补偿处理的次数
+    }
+
+    /**
+     * 支付宝网关配置内部类
+     */
+    @Getter
+    @Setter
+    public static class GatewayConfig {
+        private int maxConcurrency = 32;        // 同时进行的支付宝调用上限
+        private int queueCapacity = 200;        // 等待执行的调用上限，超过后直接拒绝
+        private int failureThreshold = 10;      // 连续失败多少次后熔断
+        private long openDuration = 30000;      // 熔断持续时间，毫秒
+        private int maxIdleConnections = 32;    // 连接池保留的空闲连接数
+        private long keepAliveDuration = 60000; // 空闲连接保留时间，毫秒
+        // 各类接口的超时时间，毫秒，未配置的使用默认值
+        private Map<AlipayOperation, Long> timeouts = new EnumMap<>(AlipayOperation.class);
+
+        /**
+         * 获取接口的超时时间，同时用作该类接口SDK客户端的读取超时
+         */
+        public long getTimeoutMillis(AlipayOperation operation) {
+            Long configured = timeouts.get(operation);
+            return configured != null ? configured : operation.getDefaultTimeoutMillis();
+        }
+
+        // 离线桩配置，仅用于压测
+        private boolean stub = false;
+        private long stubLatency = 200;         // 桩响应延迟，毫秒
+        private String stubTradeStatus = "WAIT_BUYER_PAY";
     }
 
     /**
      * 配置支付宝客户端
      * 用于处理普通的支付接口调用和OAuth认证
-     * 使用系统属性设置超时参数
+     * 复用连接池中的连接，超时只作用于本客户端
+     */
+    @Bean
+    public AlipayClient alipayClient() throws AlipayApiException {
+        logger.info("初始化支付宝客户端, AppID: {}, 连接超时: {}ms, 读取超时: {}ms, 空闲连接数: {}",
+                appId, connectTimeout, readTimeout, gateway.getMaxIdleConnections());
+        return createClient(readTimeout);
+    }
+
+    /**
+     * 配置支付宝网关的请求发送方式
+     * 开启离线桩时不访问支付宝；否则按接口超时时间分组，每种超时时间创建一个读取超时与之相同的客户端，
+     * 网关等待超时时底层HTTP请求也会在相近的时间结束，不会在网关线程池中继续等待
      */
     @Bean
-    public AlipayClient alipayClient() {
-        logger.info("初始化支付宝客户端, AppID: {}, 连接超时: {}ms, 读取超时: {}ms",
-                appId, connectTimeout, readTimeout);
-
-        // 设置超时系统属性
-        System.setProperty("sun.net.client.defaultConnectTimeout", String.valueOf(connectTimeout));
-        System.setProperty("sun.net.client.defaultReadTimeout", String.valueOf(readTimeout));
-        System.setProperty("http.connectionTimeout", String.valueOf(connectTimeout));
-        System.setProperty("http.socketTimeout", String.valueOf(readTimeout));
-
-        // 使用标准构造函数
-        return new DefaultAlipayClient(
-                gatewayUrl,
-                appId,
-                privateKey,
-                "json",
-                "UTF-8",
-                publicKey,
-                "RSA2"
-        );
+    public AlipayTransport alipayTransport() throws AlipayApiException {
+        if (gateway.isStub()) {
+            logger.warn("支付宝网关使用离线桩, 响应延迟: {}ms, 交易状态: {}",
+                    gateway.getStubLatency(), gateway.getStubTradeStatus());
+            return new StubAlipayTransport(gateway.getStubLatency(), gateway.getStubTradeStatus());
+        }
+
+        Map<Long, AlipayClient> clientsByTimeout = new HashMap<>();
+        Map<AlipayOperation, AlipayClient> clients = new EnumMap<>(AlipayOperation.class);
+        for (AlipayOperation operation : AlipayOperation.values()) {
+            long timeoutMillis = gateway.getTimeoutMillis(operation);
+            AlipayClient client = clientsByTimeout.get(timeoutMillis);
+            if (client == null) {
+                client = createClient((int) timeoutMillis);
+                clientsByTimeout.put(timeoutMillis, client);
+            }
+            clients.put(operation, client);
+        }
+        logger.info("支付宝网关客户端初始化完成, 读取超时: {}ms", clientsByTimeout.keySet());
+        return new SdkAlipayTransport(clients);
+    }
+
+    private AlipayClient createClient(int readTimeoutMillis) throws AlipayApiException {
+        com.alipay.api.AlipayConfig clientConfig = new com.alipay.api.AlipayConfig();
+        clientConfig.setServerUrl(gatewayUrl);
+        clientConfig.setAppId(appId);
+        clientConfig.setPrivateKey(privateKey);
+        clientConfig.setFormat("json");
+        clientConfig.setCharset("UTF-8");
+        clientConfig.setAlipayPublicKey(publicKey);
+        clientConfig.setSignType("RSA2");
+        clientConfig.setConnectTimeout(Math.min(connectTimeout, readTimeoutMillis));
+        clientConfig.setReadTimeout(readTimeoutMillis);
+        clientConfig.setMaxIdleConnections(gateway.getMaxIdleConnections());
+        clientConfig.setKeepAliveDuration(gateway.getKeepAliveDuration());
+
+        return new DefaultAlipayClient(clientConfig);
     }
 
     /**
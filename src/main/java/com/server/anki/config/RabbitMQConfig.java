@@ -4,12 +4,21 @@ import com.server.anki.wallet.message.WalletMessageType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.core.*;
+import org.springframework.amqp.rabbit.config.DirectRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.DirectRabbitListenerContainerFactoryConfigurer;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * RabbitMQ配置类
@@ -22,6 +31,7 @@ public class RabbitMQConfig {
     // 原有的通知队列配置
     public static final String NOTIFICATION_QUEUE = "notification.queue";
     public static final String MESSAGE_QUEUE = "message.queue";
+    public static final String MESSAGE_BULK_QUEUE = "message.bulk.queue";
     public static final String DEAD_LETTER_QUEUE = "dead.letter.queue";
 
     public static final String NOTIFICATION_EXCHANGE = "notification.exchange";
@@ -30,6 +40,7 @@ public class RabbitMQConfig {
 
     public static final String NOTIFICATION_ROUTING_KEY = "notification.routing.key";
     public static final String MESSAGE_ROUTING_KEY = "message.routing.key";
+    public static final String MESSAGE_BULK_ROUTING_KEY = "message.bulk.routing.key";
     public static final String DEAD_LETTER_ROUTING_KEY = "dead.letter.routing.key";
 
     // 新增聊天消息队列配置
@@ -70,6 +81,11 @@ public class RabbitMQConfig {
     public static final String WALLET_WITHDRAW_QUEUE = "wallet.withdraw.queue";
     public static final String WALLET_WITHDRAW_KEY = "wallet.withdraw";
 
+    // 钱包分片队列，按用户ID分片，同一用户的消息总是进入同一分片并按顺序处理
+    public static final String WALLET_SHARD_QUEUE_PREFIX = "wallet.shard.queue.";
+    public static final String WALLET_SHARD_KEY_PREFIX = "wallet.shard.";
+    public static final String WALLET_SHARD_CONTAINER_FACTORY = "walletShardListenerContainerFactory";
+
     // 钱包死信队列
     public static final String WALLET_DLQ = "wallet.dlq";
     public static final String WALLET_DLK = "wallet.dlk";
@@ -82,6 +98,72 @@ public class RabbitMQConfig {
     public static final String AUDIT_ROUTING_KEY = "wallet.audit";
     public static final String AUDIT_DLK = "wallet.audit.dlk";
 
+    // 站内消息批量消费配置
+    public static final String MESSAGE_BATCH_CONTAINER_FACTORY = "messageBatchListenerContainerFactory";
+
+    // 聊天消息批量消费配置
+    public static final String CHAT_BATCH_CONTAINER_FACTORY = "chatBatchListenerContainerFactory";
+
+    // 按负载类型划分的监听容器
+    // 低延迟：实时通知
+    public static final String LATENCY_CONTAINER_FACTORY = "latencyListenerContainerFactory";
+    // 高吞吐：审计日志、批量消息、死信处理等可积压的后台任务
+    public static final String THROUGHPUT_CONTAINER_FACTORY = "throughputListenerContainerFactory";
+    // 严格有序：钱包资金变更，每个队列只有一个消费者
+    public static final String ORDERED_CONTAINER_FACTORY = "orderedListenerContainerFactory";
+
+    // 每批最多消费的消息数
+    @Value("${message.consumer.batch-size:50}")
+    private int messageBatchSize;
+
+    // 凑批的最长等待时间（毫秒），超时后按已收到的消息处理
+    @Value("${message.consumer.batch-timeout:200}")
+    private long messageBatchTimeout;
+
+    // 聊天消息每批最多消费的消息数
+    @Value("${chat.consumer.batch-size:50}")
+    private int chatBatchSize;
+
+    // 聊天消息凑批的最长等待时间（毫秒），保持较小以免推送延迟
+    @Value("${chat.consumer.batch-timeout:20}")
+    private long chatBatchTimeout;
+
+    // 低延迟容器：多消费者、小预取，避免消息排在慢消息之后
+    @Value("${mq.listener.latency.concurrency:4}")
+    private int latencyConcurrency;
+
+    @Value("${mq.listener.latency.max-concurrency:16}")
+    private int latencyMaxConcurrency;
+
+    @Value("${mq.listener.latency.prefetch:5}")
+    private int latencyPrefetch;
+
+    // 高吞吐容器：多消费者、大预取，逐条确认
+    @Value("${mq.listener.throughput.concurrency:2}")
+    private int throughputConcurrency;
+
+    @Value("${mq.listener.throughput.max-concurrency:8}")
+    private int throughputMaxConcurrency;
+
+    @Value("${mq.listener.throughput.prefetch:250}")
+    private int throughputPrefetch;
+
+    // 有序容器：单消费者逐条处理，前一条确认后才投递下一条
+    @Value("${mq.listener.ordered.prefetch:1}")
+    private int orderedPrefetch;
+
+    // 钱包分片数，修改前需要先停止生产并消费完所有分片队列
+    @Value("${wallet.shard.count:8}")
+    private int walletShardCount;
+
+    // 每个分片消费者的预取数，单消费者串行处理，预取不会打乱顺序
+    @Value("${wallet.shard.prefetch:10}")
+    private int walletShardPrefetch;
+
+    // 是否在虚拟线程上运行消费者，需要Java 21及以上
+    @Value("${mq.listener.virtual-threads:false}")
+    private boolean virtualThreads;
+
     // 通用配置
     @Bean
     public MessageConverter jsonMessageConverter() {
@@ -102,6 +184,137 @@ public class RabbitMQConfig {
         return template;
     }
 
+    /**
+     * 站内消息批量监听容器
+     * 一次交付最多batch-size条消息或等待batch-timeout毫秒，由消费者手动确认，
+     * 保证整批入库成功后再统一ack，毒消息单独拒绝进入死信队列
+     */
+    @Bean(name = MESSAGE_BATCH_CONTAINER_FACTORY)
+    public SimpleRabbitListenerContainerFactory messageBatchListenerContainerFactory(
+            ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(messageBatchSize);
+        factory.setReceiveTimeout(messageBatchTimeout);
+        factory.setPrefetchCount(messageBatchSize * 2);
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        factory.setDefaultRequeueRejected(false);
+        return factory;
+    }
+
+    /**
+     * 聊天消息批量监听容器
+     * 单消费者保持工单内的消息顺序，由消费者在聊天记录入库后手动确认，
+     * 入库失败的消息拒绝后进入聊天死信队列
+     */
+    @Bean(name = CHAT_BATCH_CONTAINER_FACTORY)
+    public SimpleRabbitListenerContainerFactory chatBatchListenerContainerFactory(
+            ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(chatBatchSize);
+        factory.setReceiveTimeout(chatBatchTimeout);
+        factory.setPrefetchCount(chatBatchSize * 2);
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        factory.setDefaultRequeueRejected(false);
+        return factory;
+    }
+
+    /**
+     * 低延迟监听容器
+     * 用于实时通知，预取少量消息，按负载在concurrency和max-concurrency之间伸缩
+     */
+    @Bean(name = LATENCY_CONTAINER_FACTORY)
+    public SimpleRabbitListenerContainerFactory latencyListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer, ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = createListenerContainerFactory(
+                configurer, connectionFactory, "mq-latency-");
+        factory.setConcurrentConsumers(latencyConcurrency);
+        factory.setMaxConcurrentConsumers(latencyMaxConcurrency);
+        factory.setPrefetchCount(latencyPrefetch);
+        factory.setBatchSize(1);
+        factory.setAcknowledgeMode(AcknowledgeMode.AUTO);
+        return factory;
+    }
+
+    /**
+     * 高吞吐监听容器
+     * 用于审计日志、批量消息和死信处理，大预取减少等待投递的往返；
+     * 每条消息处理完立即确认，某条消息失败只会拒绝它自己，不会连带已处理的消息重新投递
+     */
+    @Bean(name = THROUGHPUT_CONTAINER_FACTORY)
+    public SimpleRabbitListenerContainerFactory throughputListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer, ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = createListenerContainerFactory(
+                configurer, connectionFactory, "mq-throughput-");
+        factory.setConcurrentConsumers(throughputConcurrency);
+        factory.setMaxConcurrentConsumers(throughputMaxConcurrency);
+        factory.setPrefetchCount(throughputPrefetch);
+        factory.setBatchSize(1);
+        factory.setAcknowledgeMode(AcknowledgeMode.AUTO);
+        return factory;
+    }
+
+    /**
+     * 严格有序监听容器
+     * 用于钱包消息，每个队列固定一个消费者且一次只预取一条，失败的消息直接进入死信队列而不是重新排队
+     */
+    @Bean(name = ORDERED_CONTAINER_FACTORY)
+    public SimpleRabbitListenerContainerFactory orderedListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer, ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = createListenerContainerFactory(
+                configurer, connectionFactory, "mq-ordered-");
+        factory.setConcurrentConsumers(1);
+        factory.setMaxConcurrentConsumers(1);
+        factory.setPrefetchCount(orderedPrefetch);
+        factory.setBatchSize(1);
+        factory.setAcknowledgeMode(AcknowledgeMode.AUTO);
+        factory.setDefaultRequeueRejected(false);
+        return factory;
+    }
+
+    /**
+     * 钱包分片监听容器
+     * 使用DirectMessageListenerContainer，每个分片队列独立一个消费者和通道：
+     * 分片内严格串行，分片之间并行
+     */
+    @Bean(name = WALLET_SHARD_CONTAINER_FACTORY)
+    public DirectRabbitListenerContainerFactory walletShardListenerContainerFactory(
+            DirectRabbitListenerContainerFactoryConfigurer configurer, ConnectionFactory connectionFactory) {
+        DirectRabbitListenerContainerFactory factory = new DirectRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setConsumersPerQueue(1);
+        factory.setPrefetchCount(walletShardPrefetch);
+        factory.setAcknowledgeMode(AcknowledgeMode.AUTO);
+        factory.setDefaultRequeueRejected(false);
+
+        SimpleAsyncTaskExecutor taskExecutor = new SimpleAsyncTaskExecutor("mq-wallet-shard-");
+        taskExecutor.setVirtualThreads(virtualThreads);
+        factory.setTaskExecutor(taskExecutor);
+        return factory;
+    }
+
+    /**
+     * 创建监听容器工厂
+     * 先应用spring.rabbitmq.listener.simple中的通用配置（消息转换器、重试等），再由调用方按负载覆盖
+     */
+    private SimpleRabbitListenerContainerFactory createListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer, ConnectionFactory connectionFactory,
+            String threadNamePrefix) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+
+        // 每类负载使用独立命名的消费线程，便于在线程转储中区分
+        SimpleAsyncTaskExecutor taskExecutor = new SimpleAsyncTaskExecutor(threadNamePrefix);
+        taskExecutor.setVirtualThreads(virtualThreads);
+        factory.setTaskExecutor(taskExecutor);
+        return factory;
+    }
+
     // 原有的通知队列定义
     @Bean
     public Queue notificationQueue() {
@@ -119,6 +332,15 @@ public class RabbitMQConfig {
                 .build();
     }
 
+    // 批量站内消息队列，一条消息携带多个接收者
+    @Bean
+    public Queue messageBulkQueue() {
+        return QueueBuilder.durable(MESSAGE_BULK_QUEUE)
+                .withArgument("x-dead-letter-exchange", DEAD_LETTER_EXCHANGE)
+                .withArgument("x-dead-letter-routing-key", DEAD_LETTER_ROUTING_KEY)
+                .build();
+    }
+
     @Bean
     public Queue deadLetterQueue() {
         return QueueBuilder.durable(DEAD_LETTER_QUEUE).build();
@@ -237,6 +459,14 @@ public class RabbitMQConfig {
                 .with(MESSAGE_ROUTING_KEY);
     }
 
+    @Bean
+    public Binding messageBulkBinding(Queue messageBulkQueue, DirectExchange messageExchange) {
+        return BindingBuilder
+                .bind(messageBulkQueue)
+                .to(messageExchange)
+                .with(MESSAGE_BULK_ROUTING_KEY);
+    }
+
     @Bean
     public Binding deadLetterBinding(Queue deadLetterQueue, DirectExchange deadLetterExchange) {
         return BindingBuilder
@@ -262,6 +492,7 @@ public class RabbitMQConfig {
                 .with(CHAT_DLK);
     }
 
+    // 以下按消息类型划分的钱包队列已由分片队列取代，保留声明和消费以处理升级前遗留的消息
     // 钱包初始化队列
     @Bean
     public Queue walletInitQueue() {
@@ -302,6 +533,26 @@ public class RabbitMQConfig {
                 .build();
     }
 
+    /**
+     * 钱包分片队列及绑定
+     * 不设置消息过期时间，分片单消费者积压时资金消息也不能被丢入死信队列
+     */
+    @Bean
+    public Declarables walletShardDeclarables() {
+        List<Declarable> declarables = new ArrayList<>(walletShardCount * 2);
+        for (int shard = 0; shard < walletShardCount; shard++) {
+            Queue queue = QueueBuilder.durable(getWalletShardQueue(shard))
+                    .withArgument("x-dead-letter-exchange", WALLET_DLX)
+                    .withArgument("x-dead-letter-routing-key", WALLET_DLK)
+                    .build();
+            declarables.add(queue);
+            declarables.add(BindingBuilder.bind(queue)
+                    .to(walletExchange())
+                    .with(getWalletShardRoutingKey(shard)));
+        }
+        return new Declarables(declarables);
+    }
+
     // 钱包死信队列
     @Bean
     public Queue walletDeadLetterQueue() {
@@ -372,6 +623,25 @@ public class RabbitMQConfig {
         };
     }
 
+    public static String getWalletShardQueue(int shard) {
+        return WALLET_SHARD_QUEUE_PREFIX + shard;
+    }
+
+    public static String getWalletShardRoutingKey(int shard) {
+        return WALLET_SHARD_KEY_PREFIX + shard;
+    }
+
+    /**
+     * 获取全部钱包分片队列名，供监听器通过SpEL引用
+     */
+    public static String[] getWalletShardQueues(int shardCount) {
+        String[] queues = new String[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            queues[shard] = getWalletShardQueue(shard);
+        }
+        return queues;
+    }
+
     @Bean
     public Queue auditQueue() {
         return QueueBuilder.durable(AUDIT_QUEUE)
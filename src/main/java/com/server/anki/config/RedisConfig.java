@@ -21,6 +21,7 @@ import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
 import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
 import org.springframework.data.redis.serializer.RedisSerializationContext;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
@@ -66,6 +67,12 @@ public class RedisConfig {
 
     // 支付超时相关常量
     public static final String PAYMENT_TIMEOUT_KEY_PREFIX = "pay:timeout:";
+    // 待支付订单的到期调度集合，成员为支付订单号，分数为到期时间戳（毫秒）
+    public static final String PAYMENT_TIMEOUT_SCHEDULE_KEY = PAYMENT_TIMEOUT_KEY_PREFIX + "schedule";
+    // 超时处理失败的重试次数，哈希字段为支付订单号
+    public static final String PAYMENT_TIMEOUT_ATTEMPTS_KEY = PAYMENT_TIMEOUT_KEY_PREFIX + "attempts";
+    // 支付状态变更的发布订阅频道，用于唤醒各节点上等待支付结果的请求
+    public static final String PAYMENT_STATUS_CHANNEL = "pay:status:changed";
     // 从配置文件读取支付超时时间
     @Value("${payment.timeout.duration}")
     @Getter
@@ -134,6 +141,16 @@ public class RedisConfig {
         return template;
     }
 
+    /**
+     * Redis发布订阅的监听容器，供各业务组件注册频道监听
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        return container;
+    }
+
     /**
      * 创建 Token 黑名单专用的 RedisTemplate
      */
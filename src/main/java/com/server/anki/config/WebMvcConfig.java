@@ -3,15 +3,25 @@ package com.server.anki.config;
 import com.server.anki.auth.ratelimit.RateLimitInterceptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import java.util.concurrent.Callable;
+
 /**
  * Web MVC 配置类
  */
 @Configuration
 public class WebMvcConfig implements WebMvcConfigurer {
 
+    // 请求属性，处理方法设置后该请求的异步处理使用此超时时间（毫秒），用于流式导出等耗时较长的接口
+    public static final String ASYNC_TIMEOUT_ATTRIBUTE = WebMvcConfig.class.getName() + ".asyncTimeout";
+
     @Autowired
     private RateLimitInterceptor rateLimitInterceptor;
 
@@ -29,4 +39,18 @@ public class WebMvcConfig implements WebMvcConfigurer {
                         "/api/open/**"
                 );
     }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        // 只为设置了超时属性的请求放宽异步超时，其他异步请求仍使用默认超时
+        configurer.registerCallableInterceptors(new CallableProcessingInterceptor() {
+            @Override
+            public <T> void beforeConcurrentHandling(NativeWebRequest request, Callable<T> task) {
+                Object timeout = request.getAttribute(ASYNC_TIMEOUT_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+                if (timeout instanceof Long millis && request instanceof AsyncWebRequest asyncWebRequest) {
+                    asyncWebRequest.setTimeout(millis);
+                }
+            }
+        });
+    }
 }
\ No newline at end of file
@@ -25,7 +25,9 @@ import java.util.UUID;
  * 所有的数值类型字段都使用包装类型以支持 NULL 值和更好的领域模型表达
  */
 @Entity
-@Table(name = "mail_order")
+@Table(name = "mail_order", indexes = {
+        @Index(name = "idx_mail_order_refund_check", columnList = "order_status, refund_next_check_at")
+})
 public class MailOrder implements FeeableOrder, Timeoutable {
 
     // 基本订单信息
@@ -174,6 +176,18 @@ public class MailOrder implements FeeableOrder, Timeoutable {
     @Column(name = "refund_date")
     private LocalDateTime refundDate;
 
+    // 退款对账次数和下次对账时间，由退款对账任务按指数退避维护
+    @Setter
+    @Getter
+    @Column(name = "refund_attempts", nullable = false, columnDefinition = "int default 0")
+    private Integer refundAttempts = 0;
+
+    @Setter
+    @Getter
+    @JsonFormat(pattern = "yyyy-MM-dd'T'HH:mm:ss.SSS")
+    @Column(name = "refund_next_check_at")
+    private LocalDateTime refundNextCheckAt;
+
     // 服务类型
     @Setter
     @Getter
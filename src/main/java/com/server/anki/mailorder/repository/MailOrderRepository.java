@@ -2,13 +2,16 @@ package com.server.anki.mailorder.repository;
 
 import com.server.anki.mailorder.entity.MailOrder;
 import com.server.anki.mailorder.enums.OrderStatus;
+import com.server.anki.pay.refund.RefundDue;
 import com.server.anki.user.User;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
@@ -118,4 +121,22 @@ public interface MailOrderRepository extends JpaRepository<MailOrder, Long> {
     Page<MailOrder> findByAssignedUserId(Long assignedUserId, Pageable pageable);
     Page<MailOrder> findByAssignedUserIdAndOrderStatusIn(Long userId, List<OrderStatus> statuses, Pageable pageable);
 
-}
\ No newline at end of file
+    // 到期需要退款对账的订单，按下次对账时间排序；未对账过的订单需在申请退款后经过宽限期
+    @Query("SELECT o.orderNumber AS orderNumber, o.refundAttempts AS refundAttempts " +
+            "FROM MailOrder o WHERE o.orderStatus = :status " +
+            "AND ((o.refundNextCheckAt IS NULL AND o.refundRequestedAt <= :graceCutoff) " +
+            "OR o.refundNextCheckAt <= :now) ORDER BY o.refundNextCheckAt")
+    List<RefundDue> findRefundDue(
+            @Param("status") OrderStatus status,
+            @Param("now") LocalDateTime now,
+            @Param("graceCutoff") LocalDateTime graceCutoff,
+            Pageable pageable);
+
+    // 记录一次未完成的退款对账，并安排下次对账时间
+    @Transactional
+    @Modifying
+    @Query("UPDATE MailOrder o SET o.refundAttempts = o.refundAttempts + 1, o.refundNextCheckAt = :nextCheckAt " +
+            "WHERE o.orderNumber = :orderNumber")
+    int scheduleNextRefundCheck(@Param("orderNumber") UUID orderNumber,
+                                @Param("nextCheckAt") LocalDateTime nextCheckAt);
+}
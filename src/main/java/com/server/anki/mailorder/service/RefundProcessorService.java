@@ -9,12 +9,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionTemplate;
 
-import java.time.LocalDateTime;
-import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
 
+/**
+ * 邮件订单自动退款处理
+ * 由RefundReconciliationService在订单到期时调用，每次只处理一个订单
+ */
 @Service
 public class RefundProcessorService {
 
@@ -34,70 +37,81 @@ public class RefundProcessorService {
     // 添加 logger 定义
     private static final Logger logger = LoggerFactory.getLogger(RefundProcessorService.class);
 
-    @Transactional
-    public void processRefunds() {
-        List<MailOrder> refundingOrders = mailOrderRepository.findByOrderStatus(OrderStatus.REFUNDING);
-        for (MailOrder order : refundingOrders) {
-            if (isRefundDue(order)) {
-                try {
-                    transactionTemplate.execute(status -> {
-                        // 尝试处理退款
-                        mailOrderService.processRefund(order.getOrderNumber());
-                        return null;
-                    });
-                } catch (Exception e) {
-                    logger.error("处理订单 {} 自动退款时发生错误: {}",
-                            order.getOrderNumber(), e.getMessage());
-
-                    // 退款处理失败时发送通知
-                    messageService.sendMessage(
-                            order.getUser(),
-                            String.format("订单 #%s 自动退款处理失败，原因：%s",
-                                    order.getOrderNumber(), e.getMessage()),
-                            MessageType.ORDER_STATUS_UPDATED,
-                            null
-                    );
-
-                    // 通知配送员退款处理失败
-                    if (order.getAssignedUser() != null) {
-                        messageService.sendMessage(
-                                order.getAssignedUser(),
-                                String.format("订单 #%s 自动退款处理失败",
-                                        order.getOrderNumber()),
-                                MessageType.ORDER_STATUS_UPDATED,
-                                null
-                        );
-                    }
-                }
-            }
+    /**
+     * 处理单个邮件订单的自动退款
+     * 退款资金划转在独立事务中完成
+     *
+     * @param attempts 此前已对账的次数，首次处理时发送退款即将处理的通知
+     * @return 订单是否已完成退款，未完成时由调用方安排下次对账
+     */
+    public boolean processRefund(UUID orderNumber, int attempts) {
+        Optional<MailOrder> orderOpt = mailOrderRepository.findByOrderNumber(orderNumber);
+        if (orderOpt.isEmpty() || orderOpt.get().getOrderStatus() != OrderStatus.REFUNDING) {
+            // 订单已被其他途径处理，视为完成
+            return true;
+        }
+        MailOrder order = orderOpt.get();
+
+        if (attempts == 0) {
+            notifyRefundDue(order);
         }
-    }
 
-    private boolean isRefundDue(MailOrder order) {
-        boolean isDue = order.getRefundRequestedAt()
-                .plusMinutes(30).isBefore(LocalDateTime.now());
+        try {
+            transactionTemplate.execute(status -> {
+                // 尝试处理退款
+                mailOrderService.processRefund(orderNumber);
+                return null;
+            });
+        } catch (Exception e) {
+            logger.error("处理订单 {} 自动退款时发生错误: {}",
+                    order.getOrderNumber(), e.getMessage());
 
-        if (isDue) {
-            // 发送退款即将自动处理的通知
+            // 退款处理失败时发送通知
             messageService.sendMessage(
                     order.getUser(),
-                    String.format("订单 #%s 将进行自动退款处理",
-                            order.getOrderNumber()),
+                    String.format("订单 #%s 自动退款处理失败，原因：%s",
+                            order.getOrderNumber(), e.getMessage()),
                     MessageType.ORDER_STATUS_UPDATED,
                     null
             );
 
+            // 通知配送员退款处理失败
             if (order.getAssignedUser() != null) {
                 messageService.sendMessage(
                         order.getAssignedUser(),
-                        String.format("订单 #%s 即将进行自动退款处理",
+                        String.format("订单 #%s 自动退款处理失败",
                                 order.getOrderNumber()),
                         MessageType.ORDER_STATUS_UPDATED,
                         null
                 );
             }
+            return false;
         }
 
-        return isDue;
+        // 余额不足等情况下订单会被锁定并保持退款状态
+        return mailOrderRepository.findByOrderNumber(orderNumber)
+                .map(refreshed -> refreshed.getOrderStatus() != OrderStatus.REFUNDING)
+                .orElse(true);
+    }
+
+    private void notifyRefundDue(MailOrder order) {
+        // 发送退款即将自动处理的通知
+        messageService.sendMessage(
+                order.getUser(),
+                String.format("订单 #%s 将进行自动退款处理",
+                        order.getOrderNumber()),
+                MessageType.ORDER_STATUS_UPDATED,
+                null
+        );
+
+        if (order.getAssignedUser() != null) {
+            messageService.sendMessage(
+                    order.getAssignedUser(),
+                    String.format("订单 #%s 即将进行自动退款处理",
+                            order.getOrderNumber()),
+                    MessageType.ORDER_STATUS_UPDATED,
+                    null
+            );
+        }
     }
-}
\ No newline at end of file
+}
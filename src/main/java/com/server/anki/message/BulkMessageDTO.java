@@ -0,0 +1,28 @@
+package com.server.anki.message;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * 批量站内消息
+ * 一次投递携带接收者ID列表或接收者用户组，由消费端展开为批量入库和一次WebSocket群发
+ */
+@Setter
+@Getter
+@NoArgsConstructor
+public class BulkMessageDTO {
+    // 接收者ID列表，与recipientGroup二选一
+    private List<Long> recipientIds;
+    // 接收者用户组（如 admin），由消费端解析为用户ID
+    private String recipientGroup;
+    private String content;
+    private MessageType type;
+    private Long ticketId;
+    private LocalDateTime createdDate;
+    // 是否同时推送实时通知
+    private boolean notify;
+}
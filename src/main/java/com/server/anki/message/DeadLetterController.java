@@ -0,0 +1,154 @@
+package com.server.anki.message;
+
+import com.server.anki.auth.AuthenticationService;
+import com.server.anki.message.service.DeadLetterService;
+import com.server.anki.user.User;
+import com.server.anki.user.UserService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+/**
+ * 死信队列管理接口
+ * 仅管理员可用
+ */
+@RestController
+@RequestMapping("/api/admin/dead-letters")
+public class DeadLetterController {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeadLetterController.class);
+
+    @Autowired
+    private DeadLetterService deadLetterService;
+
+    @Autowired
+    private AuthenticationService authenticationService;
+
+    @Autowired
+    private UserService userService;
+
+    /**
+     * 获取各死信队列的积压数和滞留时间
+     */
+    @GetMapping("/queues")
+    public ResponseEntity<?> getQueueStats(HttpServletRequest request, HttpServletResponse response) {
+        ResponseEntity<?> denied = checkAdmin(request, response);
+        if (denied != null) {
+            return denied;
+        }
+        return ResponseEntity.ok(deadLetterService.getQueueStats());
+    }
+
+    /**
+     * 浏览死信消息，支持按消息类型和错误信息过滤
+     */
+    @GetMapping("/queues/{queue}/messages")
+    public ResponseEntity<?> browse(
+            @PathVariable String queue,
+            @RequestParam(required = false) String type,
+            @RequestParam(required = false) String error,
+            @RequestParam(defaultValue = "50") int limit,
+            HttpServletRequest request,
+            HttpServletResponse response) {
+        ResponseEntity<?> denied = checkAdmin(request, response);
+        if (denied != null) {
+            return denied;
+        }
+
+        try {
+            return ResponseEntity.ok(deadLetterService.browse(queue, type, error, limit));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    /**
+     * 按速率批量重放死信消息到原始交换机
+     */
+    @PostMapping("/queues/{queue}/replay")
+    public ResponseEntity<?> replay(
+            @PathVariable String queue,
+            @RequestParam(required = false) String type,
+            @RequestParam(required = false) String error,
+            @RequestParam(defaultValue = "1000") int max,
+            @RequestParam(defaultValue = "0") int rate,
+            HttpServletRequest request,
+            HttpServletResponse response) {
+        ResponseEntity<?> denied = checkAdmin(request, response);
+        if (denied != null) {
+            return denied;
+        }
+
+        try {
+            DeadLetterReplayDTO job = deadLetterService.startReplay(queue, type, error, max, rate);
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(job);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    /**
+     * 查询所有重放任务
+     */
+    @GetMapping("/replays")
+    public ResponseEntity<?> getReplayJobs(HttpServletRequest request, HttpServletResponse response) {
+        ResponseEntity<?> denied = checkAdmin(request, response);
+        if (denied != null) {
+            return denied;
+        }
+        return ResponseEntity.ok(deadLetterService.getReplayJobs());
+    }
+
+    /**
+     * 查询重放任务进度
+     */
+    @GetMapping("/replays/{jobId}")
+    public ResponseEntity<?> getReplayJob(
+            @PathVariable String jobId,
+            HttpServletRequest request,
+            HttpServletResponse response) {
+        ResponseEntity<?> denied = checkAdmin(request, response);
+        if (denied != null) {
+            return denied;
+        }
+        return deadLetterService.getReplayJob(jobId)
+                .<ResponseEntity<?>>map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    /**
+     * 取消重放任务
+     */
+    @DeleteMapping("/replays/{jobId}")
+    public ResponseEntity<?> cancelReplay(
+            @PathVariable String jobId,
+            HttpServletRequest request,
+            HttpServletResponse response) {
+        ResponseEntity<?> denied = checkAdmin(request, response);
+        if (denied != null) {
+            return denied;
+        }
+        if (!deadLetterService.cancelReplay(jobId)) {
+            return ResponseEntity.notFound().build();
+        }
+        logger.info("死信重放任务已取消: {}", jobId);
+        return ResponseEntity.ok().build();
+    }
+
+    private ResponseEntity<?> checkAdmin(HttpServletRequest request, HttpServletResponse response) {
+        User user = authenticationService.getAuthenticatedUser(request, response);
+        if (user == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("请先登录");
+        }
+        if (!userService.isAdminUser(user)) {
+            logger.warn("非管理员用户 {} 尝试访问死信队列管理接口", user.getId());
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("只有管理员才能访问此资源");
+        }
+        return null;
+    }
+}
@@ -0,0 +1,23 @@
+package com.server.anki.message;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+
+import java.time.LocalDateTime;
+
+/**
+ * 死信消息视图
+ * 从x-death头中解析出原始交换机、路由键和死信原因，消息体只保留预览
+ */
+public record DeadLetterDTO(
+        String queue,
+        String messageId,
+        String type,
+        String reason,
+        String error,
+        String originalExchange,
+        String originalRoutingKey,
+        long deathCount,
+        @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+        LocalDateTime deadLetteredTime,
+        String payload) {
+}
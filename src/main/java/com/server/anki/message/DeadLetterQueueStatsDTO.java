@@ -0,0 +1,10 @@
+package com.server.anki.message;
+
+/**
+ * 死信队列统计
+ *
+ * @param depth 队列中的消息数
+ * @param oldestAgeSeconds 队首消息进入死信队列至今的秒数，队列为空时为0
+ */
+public record DeadLetterQueueStatsDTO(String queue, long depth, long oldestAgeSeconds) {
+}
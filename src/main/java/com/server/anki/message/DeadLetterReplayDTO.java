@@ -0,0 +1,34 @@
+package com.server.anki.message;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+
+import java.time.LocalDateTime;
+
+/**
+ * 死信重放任务状态
+ *
+ * @param scanned 已检查的消息数
+ * @param replayed 已重新投递到原始交换机的消息数
+ * @param skipped 不符合过滤条件而放回队列的消息数
+ * @param duplicates 已被重放过而直接丢弃的重复消息数
+ * @param failed 重新投递失败而放回队列的消息数
+ */
+public record DeadLetterReplayDTO(
+        String jobId,
+        String queue,
+        String typeFilter,
+        String errorFilter,
+        int maxMessages,
+        int ratePerSecond,
+        String status,
+        int scanned,
+        int replayed,
+        int skipped,
+        int duplicates,
+        int failed,
+        String error,
+        @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+        LocalDateTime startTime,
+        @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+        LocalDateTime endTime) {
+}
@@ -11,7 +11,9 @@ import lombok.Setter;
 import java.time.LocalDateTime;
 @Setter
 @Getter
-@Table(name = "message")
+@Table(name = "message", indexes = {
+        @Index(name = "idx_message_user_read_id", columnList = "user_id, is_read, id")
+})
 @Entity
 public class Message {
     // Getters and setters
@@ -26,6 +26,9 @@ public class MessageController {
 
     private static final Logger logger = LoggerFactory.getLogger(MessageController.class);
 
+    // 未读消息单页最大条数
+    private static final int MAX_UNREAD_PAGE_SIZE = 100;
+
     @Autowired
     private MessageService messageService;
 
@@ -67,19 +70,35 @@ public class MessageController {
     }
 
     @GetMapping("/unread")
-    public ResponseEntity<?> getUnreadMessages(HttpServletRequest request, HttpServletResponse response) {
-        logger.info("收到获取未读消息的请求");
+    public ResponseEntity<?> getUnreadMessages(
+            @RequestParam(required = false) Long beforeId,
+            @RequestParam(defaultValue = "20") int limit,
+            HttpServletRequest request,
+            HttpServletResponse response) {
+        logger.info("收到获取未读消息的请求, beforeId: {}, limit: {}", beforeId, limit);
         User user = authenticationService.getAuthenticatedUser(request, response);
         if (user == null) {
             logger.warn("未授权的访问尝试获取未读消息");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
         }
         logger.info("正在为用户获取未读消息: {}", user.getId());
-        List<Message> unreadMessages = messageService.getUnreadMessages(user.getId());
+        // 客户端以本页最后一条消息的ID作为下一页的beforeId
+        List<Message> unreadMessages = messageService.getUnreadMessages(
+                user.getId(), beforeId, Math.min(Math.max(limit, 1), MAX_UNREAD_PAGE_SIZE));
         logger.info("为用户检索到 {} 条未读消息: {}", unreadMessages.size(), user.getId());
         return ResponseEntity.ok(unreadMessages);
     }
 
+    @GetMapping("/unread/count")
+    public ResponseEntity<?> getUnreadCount(HttpServletRequest request, HttpServletResponse response) {
+        User user = authenticationService.getAuthenticatedUser(request, response);
+        if (user == null) {
+            logger.warn("未授权的访问尝试获取未读消息数");
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+        return ResponseEntity.ok(Map.of("count", messageService.getUnreadCount(user.getId())));
+    }
+
     @PostMapping("/{messageId}/read")
     public ResponseEntity<?> markAsRead(
             @PathVariable Long messageId,
@@ -95,7 +114,7 @@ public class MessageController {
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
         }
         logger.info("正在为用户标记消息为已读: {}，消息ID: {}", user.getId(), messageId);
-        messageService.markAsRead(messageId);
+        messageService.markAsRead(user.getId(), messageId);
 
         // 返回更新后的分页消息
         Pageable pageable = PageRequest.of(page, size, Sort.by("createdDate").descending());
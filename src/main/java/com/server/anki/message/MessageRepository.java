@@ -3,7 +3,11 @@ package com.server.anki.message;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
 
@@ -17,4 +21,20 @@ public interface MessageRepository extends JpaRepository<Message, Long> {
 
     // 更新方法名以匹配实体类的属性名
     List<Message> findByUserIdAndReadOrderByCreatedDateDesc(Long userId, boolean read);
+
+    long countByUserIdAndRead(Long userId, boolean read);
+
+    // 未读消息键集分页：按ID倒序取beforeId之前的一页
+    @Query("SELECT m FROM Message m WHERE m.userId = :userId AND m.read = false AND m.id < :beforeId ORDER BY m.id DESC")
+    List<Message> findUnreadBefore(@Param("userId") Long userId, @Param("beforeId") Long beforeId, Pageable pageable);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE Message m SET m.read = true WHERE m.id = :messageId AND m.userId = :userId AND m.read = false")
+    int markAsRead(@Param("userId") Long userId, @Param("messageId") Long messageId);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE Message m SET m.read = true WHERE m.userId = :userId AND m.read = false")
+    int markAllAsRead(@Param("userId") Long userId);
 }
\ No newline at end of file
@@ -22,6 +22,7 @@ public enum MessageType {
     ORDER_PAYMENT_CANCELLED, // 支付取消
     ORDER_REFUND_PROCESSING, // 退款处理中
     WALLET_REFUND,
+    WALLET_PENDING_RELEASED,  // 待结算金额已释放
     BILLING_INFO,
     ORDER_WARNING,
     STORE_NEW_ORDER,
@@ -0,0 +1,74 @@
+package com.server.anki.message.outbox;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.LocalDateTime;
+
+/**
+ * 发件箱事件
+ * 与业务数据在同一事务中写入，提交后由OutboxRelay投递到RabbitMQ
+ */
+@Setter
+@Getter
+@Entity
+@Table(name = "outbox_event", indexes = {
+        @Index(name = "idx_outbox_status_id", columnList = "status, id"),
+        @Index(name = "idx_outbox_status_partition", columnList = "status, partition_no, id")
+})
+public class OutboxEvent {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "exchange", nullable = false)
+    private String exchange;
+
+    @Column(name = "routing_key", nullable = false)
+    private String routingKey;
+
+    // 投递分区，由路由键的CRC32对分区数取模得到，同一路由键的事件总在同一分区
+    @Column(name = "partition_no")
+    private Integer partitionNo;
+
+    // 消息体的类型标识，投递时写入__TypeId__头，消费端据此反序列化
+    @Column(name = "payload_type")
+    private String payloadType;
+
+    // 经消息转换器序列化后的JSON消息体
+    @Lob
+    @Column(name = "payload", nullable = false, columnDefinition = "TEXT")
+    private String payload;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "status", nullable = false, length = 16)
+    private OutboxStatus status = OutboxStatus.PENDING;
+
+    @Column(name = "attempts", nullable = false)
+    private int attempts = 0;
+
+    @Column(name = "created_time", nullable = false)
+    private LocalDateTime createdTime;
+
+    @Column(name = "sent_time")
+    private LocalDateTime sentTime;
+
+    @Column(name = "last_error")
+    private String lastError;
+
+    // 认领该事件进行投递的节点，投递完成后清空
+    @Column(name = "claimed_by", length = 64)
+    private String claimedBy;
+
+    @Column(name = "claimed_time")
+    private LocalDateTime claimedTime;
+
+    public enum OutboxStatus {
+        PENDING,  // 等待投递
+        SENDING,  // 已被节点认领，正在投递
+        SENT,     // 已被Broker确认
+        FAILED    // 超过最大投递次数
+    }
+}
@@ -0,0 +1,23 @@
+package com.server.anki.message.outbox;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+
+@Repository
+public interface OutboxEventRepository extends JpaRepository<OutboxEvent, Long> {
+
+    long countByStatus(OutboxEvent.OutboxStatus status);
+
+    // 清理早于指定时间的已投递事件
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM OutboxEvent e WHERE e.status = com.server.anki.message.outbox.OutboxEvent.OutboxStatus.SENT " +
+            "AND e.sentTime < :before")
+    int deleteSentBefore(@Param("before") LocalDateTime before);
+}
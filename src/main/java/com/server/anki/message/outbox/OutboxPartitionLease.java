@@ -0,0 +1,30 @@
+package com.server.anki.message.outbox;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.LocalDateTime;
+
+/**
+ * 发件箱分区租约
+ * 事件按路由键的CRC32对分区数取模划分分区，每个分区同一时刻只由持有租约的节点投递；
+ * 节点定期续约，租约过期的分区由其他节点接管
+ */
+@Setter
+@Getter
+@Entity
+@Table(name = "outbox_partition_lease")
+public class OutboxPartitionLease {
+
+    @Id
+    @Column(name = "partition_no")
+    private Integer partitionNo;
+
+    // 持有租约的节点，为空表示分区空闲
+    @Column(name = "owner", length = 64)
+    private String owner;
+
+    @Column(name = "lease_until")
+    private LocalDateTime leaseUntil;
+}
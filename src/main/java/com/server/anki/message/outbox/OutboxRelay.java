@@ -0,0 +1,436 @@
+package com.server.anki.message.outbox;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.AbstractJavaTypeMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 发件箱投递器
+ * 事件按路由键的CRC32划分到固定数量的分区，各节点通过outbox_partition_lease表中的租约分担分区，
+ * 每个分区同一时刻只由持有租约的节点投递，因此同一路由键的事件由一个节点按id顺序发布，不需要分布式锁。
+ * 节点按存活节点数均分分区，每轮续约并释放多出的分区，租约过期的分区由其他节点接管，
+ * 接管时把前一节点认领未完成的事件退回待投递。
+ * 每批在短事务中用 FOR UPDATE SKIP LOCKED 认领本节点分区中最早的事件（状态置为SENDING），
+ * 提交后在事务外按id顺序在一个通道上连续发布并统一等待确认，再在新的短事务中标记结果。
+ * 某条事件未被确认时，同一路由键在本批中尚未确认的后续事件退回，下一批从失败的事件开始；
+ * 仅当Broker拒绝某条消息却确认了其后的消息（Broker内部错误）时，同一路由键的顺序才可能被打乱。
+ * 投递是至少一次的，消息ID固定为 outbox-{id}，消费端可据此去重
+ */
+@Component
+public class OutboxRelay {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboxRelay.class);
+
+    private static final String INIT_LEASE_SQL =
+            "INSERT IGNORE INTO `outbox_partition_lease` (`partition_no`) VALUES (?)";
+
+    // 其他存活节点数，用于计算本节点应持有的分区数
+    private static final String COUNT_OTHER_OWNERS_SQL =
+            "SELECT COUNT(DISTINCT `owner`) FROM `outbox_partition_lease` " +
+                    "WHERE `owner` IS NOT NULL AND `owner` <> ? AND `lease_until` > ?";
+
+    private static final String SELECT_LEASES_SQL =
+            "SELECT `partition_no`, `owner`, `lease_until` FROM `outbox_partition_lease` " +
+                    "WHERE `partition_no` < ? ORDER BY `partition_no` FOR UPDATE SKIP LOCKED";
+
+    private static final String RENEW_LEASE_SQL =
+            "UPDATE `outbox_partition_lease` SET `owner` = ?, `lease_until` = ? WHERE `partition_no` = ?";
+
+    private static final String RELEASE_LEASE_SQL =
+            "UPDATE `outbox_partition_lease` SET `owner` = NULL, `lease_until` = NULL " +
+                    "WHERE `partition_no` = ? AND `owner` = ?";
+
+    // 接管分区时退回前一节点认领但未完成的事件
+    private static final String RESET_PARTITION_SQL =
+            "UPDATE `outbox_event` SET `status` = 'PENDING', `claimed_by` = NULL, `claimed_time` = NULL " +
+                    "WHERE `status` = 'SENDING' AND `partition_no` = ?";
+
+    // 为未记录分区的待投递事件补算分区（如升级前写入的事件）
+    private static final String BACKFILL_PARTITION_SQL =
+            "UPDATE `outbox_event` SET `partition_no` = CRC32(`routing_key`) % ? " +
+                    "WHERE `status` IN ('PENDING', 'SENDING') AND `partition_no` IS NULL";
+
+    // 只扫描本节点分区的索引范围，其他节点不会锁定这些行，跳过的只可能是本节点自己的行
+    private static final String SELECT_CLAIMABLE_SQL =
+            "SELECT `id`, `exchange`, `routing_key`, `payload_type`, `payload`, `attempts` FROM `outbox_event` " +
+                    "WHERE `status` = 'PENDING' AND `partition_no` IN (%s) " +
+                    "ORDER BY `id` LIMIT ? FOR UPDATE SKIP LOCKED";
+
+    private static final String CLAIM_SQL =
+            "UPDATE `outbox_event` SET `status` = 'SENDING', `claimed_by` = ?, `claimed_time` = ? " +
+                    "WHERE `id` = ? AND `status` = 'PENDING'";
+
+    // 只更新仍由本节点认领的事件，分区被接管后退回的事件不会被过期的结果覆盖
+    private static final String MARK_SENT_SQL =
+            "UPDATE `outbox_event` SET `status` = 'SENT', `attempts` = `attempts` + 1, `sent_time` = ?, " +
+                    "`claimed_by` = NULL, `claimed_time` = NULL " +
+                    "WHERE `id` = ? AND `status` = 'SENDING' AND `claimed_by` = ?";
+
+    private static final String MARK_RETRY_SQL =
+            "UPDATE `outbox_event` SET `status` = ?, `attempts` = `attempts` + 1, `last_error` = ?, " +
+                    "`claimed_by` = NULL, `claimed_time` = NULL " +
+                    "WHERE `id` = ? AND `status` = 'SENDING' AND `claimed_by` = ?";
+
+    private static final String RELEASE_SQL =
+            "UPDATE `outbox_event` SET `status` = 'PENDING', `claimed_by` = NULL, `claimed_time` = NULL " +
+                    "WHERE `id` = ? AND `status` = 'SENDING' AND `claimed_by` = ?";
+
+    // 单批认领和发布的最大事件数
+    @Value("${outbox.relay.batch-size:200}")
+    private int batchSize;
+
+    // 等待一批消息全部确认的超时时间（毫秒）
+    @Value("${outbox.relay.confirm-timeout:10000}")
+    private long confirmTimeout;
+
+    // 投递分区数，修改前需先投递完所有事件
+    @Value("${outbox.relay.partitions:16}")
+    private int partitions;
+
+    // 分区租约时长（毫秒），须大于一批事件的发布和确认时间
+    @Value("${outbox.relay.lease-timeout:30000}")
+    private long leaseTimeout;
+
+    // 超过该投递次数后标记为失败，需要人工处理
+    @Value("${outbox.relay.max-attempts:10}")
+    private int maxAttempts;
+
+    // 已发送事件的保留天数
+    @Value("${outbox.relay.retention-days:7}")
+    private int retentionDays;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private RabbitTemplate rabbitTemplate;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 本节点的租约和认领标识
+    private final String relayId = resolveRelayId();
+
+    private Counter sentCounter;
+    private Counter failedCounter;
+    private volatile int ownedPartitions;
+
+    @PostConstruct
+    public void init() {
+        List<Object[]> leaseRows = new ArrayList<>(partitions);
+        for (int partition = 0; partition < partitions; partition++) {
+            leaseRows.add(new Object[]{partition});
+        }
+        jdbcTemplate.batchUpdate(INIT_LEASE_SQL, leaseRows);
+
+        sentCounter = Counter.builder("outbox.relay.sent")
+                .description("发件箱已投递并确认的事件数")
+                .register(meterRegistry);
+        failedCounter = Counter.builder("outbox.relay.failed")
+                .description("发件箱投递失败的次数")
+                .register(meterRegistry);
+        Gauge.builder("outbox.pending", outboxEventRepository,
+                        repository -> repository.countByStatus(OutboxEvent.OutboxStatus.PENDING))
+                .description("发件箱中等待投递的事件数")
+                .register(meterRegistry);
+        Gauge.builder("outbox.relay.partitions", this, relay -> relay.ownedPartitions)
+                .description("本节点持有租约的发件箱分区数")
+                .register(meterRegistry);
+        logger.info("发件箱投递器已启动, 节点标识: {}, 分区数: {}", relayId, partitions);
+    }
+
+    /**
+     * 投递本节点分区中待发送的事件
+     * 整批都被确认时说明积压可能还未清空，续约后立即继续下一批
+     */
+    @Scheduled(fixedDelayString = "${outbox.relay.interval:200}")
+    public void relay() {
+        try {
+            BatchResult result;
+            do {
+                List<Integer> owned = refreshLeases();
+                if (owned.isEmpty()) {
+                    return;
+                }
+                List<OutboxRow> rows = claimBatch(owned);
+                if (rows.isEmpty()) {
+                    return;
+                }
+                result = relayBatch(rows);
+            } while (result.sent() == batchSize);
+        } catch (Exception e) {
+            logger.error("投递发件箱事件时发生错误", e);
+        }
+    }
+
+    /**
+     * 每天凌晨清理过期的已发送事件
+     */
+    @Scheduled(cron = "0 30 3 * * ?")
+    public void cleanupSentEvents() {
+        int deleted = outboxEventRepository.deleteSentBefore(LocalDateTime.now().minusDays(retentionDays));
+        logger.info("已清理 {} 条过期的发件箱事件", deleted);
+    }
+
+    /**
+     * 续约本节点的分区并按存活节点数重新分配
+     * 只在两批之间调用，此时本节点没有正在投递的事件，释放分区不会与接管节点同时投递
+     *
+     * @return 本节点持有租约的分区
+     */
+    private List<Integer> refreshLeases() {
+        List<Integer> owned = transactionTemplate.execute(status -> {
+            LocalDateTime now = LocalDateTime.now();
+            Timestamp nowTime = Timestamp.valueOf(now);
+            Timestamp leaseUntil = Timestamp.valueOf(now.plusNanos(leaseTimeout * 1_000_000));
+
+            Integer otherOwners = jdbcTemplate.queryForObject(COUNT_OTHER_OWNERS_SQL, Integer.class,
+                    relayId, nowTime);
+            int others = otherOwners != null ? otherOwners : 0;
+            int target = (partitions + others) / (others + 1);
+
+            // 被其他节点同时锁定的租约本轮跳过，下一轮再参与分配
+            List<Integer> mine = new ArrayList<>();
+            List<Integer> free = new ArrayList<>();
+            jdbcTemplate.query(SELECT_LEASES_SQL, rs -> {
+                int partition = rs.getInt("partition_no");
+                String owner = rs.getString("owner");
+                Timestamp until = rs.getTimestamp("lease_until");
+                if (relayId.equals(owner)) {
+                    mine.add(partition);
+                } else if (owner == null || until == null || until.before(nowTime)) {
+                    free.add(partition);
+                }
+            }, partitions);
+
+            while (mine.size() > target) {
+                int released = mine.remove(mine.size() - 1);
+                jdbcTemplate.update(RELEASE_LEASE_SQL, released, relayId);
+            }
+            List<Integer> acquired = new ArrayList<>();
+            for (int partition : free) {
+                if (mine.size() >= target) {
+                    break;
+                }
+                mine.add(partition);
+                acquired.add(partition);
+            }
+
+            jdbcTemplate.batchUpdate(RENEW_LEASE_SQL, mine, mine.size(), (ps, partition) -> {
+                ps.setString(1, relayId);
+                ps.setTimestamp(2, leaseUntil);
+                ps.setInt(3, partition);
+            });
+            for (int partition : acquired) {
+                int reset = jdbcTemplate.update(RESET_PARTITION_SQL, partition);
+                if (reset > 0) {
+                    logger.warn("接管发件箱分区 {}，退回前一节点未完成的 {} 条事件", partition, reset);
+                }
+            }
+            if (!acquired.isEmpty()) {
+                logger.info("发件箱投递器接管分区: {}, 当前持有: {}", acquired, mine.size());
+            }
+            return mine;
+        });
+        ownedPartitions = owned != null ? owned.size() : 0;
+        return owned != null ? owned : List.of();
+    }
+
+    /**
+     * 在短事务中认领本节点分区中最早的一批事件
+     */
+    private List<OutboxRow> claimBatch(List<Integer> owned) {
+        List<OutboxRow> rows = transactionTemplate.execute(status -> {
+            jdbcTemplate.update(BACKFILL_PARTITION_SQL, partitions);
+
+            String placeholders = String.join(",", Collections.nCopies(owned.size(), "?"));
+            List<Object> args = new ArrayList<>(owned);
+            args.add(batchSize);
+            List<OutboxRow> claimable = jdbcTemplate.query(String.format(SELECT_CLAIMABLE_SQL, placeholders),
+                    (rs, rowNum) -> new OutboxRow(
+                            rs.getLong("id"),
+                            rs.getString("exchange"),
+                            rs.getString("routing_key"),
+                            rs.getString("payload_type"),
+                            rs.getString("payload"),
+                            rs.getInt("attempts")),
+                    args.toArray());
+            if (!claimable.isEmpty()) {
+                Timestamp claimedTime = Timestamp.valueOf(LocalDateTime.now());
+                jdbcTemplate.batchUpdate(CLAIM_SQL, claimable, claimable.size(), (ps, row) -> {
+                    ps.setString(1, relayId);
+                    ps.setTimestamp(2, claimedTime);
+                    ps.setLong(3, row.id());
+                });
+            }
+            return claimable;
+        });
+        return rows != null ? rows : List.of();
+    }
+
+    /**
+     * 在事务外发布已认领的事件
+     * 整批按id顺序在同一通道上连续发布，Broker按发布顺序入队，之后统一等待确认；
+     * 某个路由键发布出错后，该路由键本批剩余的事件不再发布
+     */
+    private BatchResult relayBatch(List<OutboxRow> rows) {
+        List<CorrelationData> confirms = new ArrayList<>(rows.size());
+        rabbitTemplate.invoke(operations -> {
+            Set<String> brokenKeys = new HashSet<>();
+            for (OutboxRow row : rows) {
+                CorrelationData correlationData = new CorrelationData(String.valueOf(row.id()));
+                confirms.add(correlationData);
+                if (brokenKeys.contains(row.routingKey())) {
+                    correlationData.getFuture().completeExceptionally(
+                            new IllegalStateException("同一路由键的前序事件发布失败"));
+                    continue;
+                }
+                try {
+                    operations.send(row.exchange(), row.routingKey(), toAmqpMessage(row), correlationData);
+                } catch (Exception e) {
+                    brokenKeys.add(row.routingKey());
+                    correlationData.getFuture().completeExceptionally(e);
+                }
+            }
+            return null;
+        });
+
+        long deadline = System.currentTimeMillis() + confirmTimeout;
+        Set<String> failedKeys = new HashSet<>();
+        List<OutboxRow> sent = new ArrayList<>(rows.size());
+        List<Object[]> retries = new ArrayList<>();
+        List<OutboxRow> released = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+            OutboxRow row = rows.get(i);
+            String error = awaitConfirm(confirms.get(i), deadline);
+            if (error == null) {
+                sent.add(row);
+            } else if (failedKeys.add(row.routingKey())) {
+                OutboxEvent.OutboxStatus nextStatus = row.attempts() + 1 >= maxAttempts
+                        ? OutboxEvent.OutboxStatus.FAILED : OutboxEvent.OutboxStatus.PENDING;
+                retries.add(new Object[]{nextStatus.name(), truncate(error), row.id(), relayId});
+            } else {
+                // 同一路由键前面已有事件失败，退回后在下一批中排在失败的事件之后
+                released.add(row);
+            }
+        }
+
+        markBatch(sent, retries, released);
+        logger.debug("发件箱投递完成, 成功: {}, 失败: {}, 退回: {}", sent.size(), retries.size(), released.size());
+        return new BatchResult(sent.size(), retries.size());
+    }
+
+    private void markBatch(List<OutboxRow> sent, List<Object[]> retries, List<OutboxRow> released) {
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        transactionTemplate.executeWithoutResult(status -> {
+            if (!sent.isEmpty()) {
+                jdbcTemplate.batchUpdate(MARK_SENT_SQL, sent, sent.size(), (ps, row) -> {
+                    ps.setTimestamp(1, now);
+                    ps.setLong(2, row.id());
+                    ps.setString(3, relayId);
+                });
+            }
+            if (!retries.isEmpty()) {
+                jdbcTemplate.batchUpdate(MARK_RETRY_SQL, retries);
+            }
+            if (!released.isEmpty()) {
+                jdbcTemplate.batchUpdate(RELEASE_SQL, released, released.size(), (ps, row) -> {
+                    ps.setLong(1, row.id());
+                    ps.setString(2, relayId);
+                });
+            }
+        });
+
+        sentCounter.increment(sent.size());
+        if (!retries.isEmpty()) {
+            failedCounter.increment(retries.size());
+            logger.warn("发件箱 {} 条事件未被确认，等待下次投递，同路由键退回 {} 条", retries.size(), released.size());
+        }
+    }
+
+    private Message toAmqpMessage(OutboxRow row) {
+        MessageProperties properties = new MessageProperties();
+        properties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+        properties.setContentEncoding(StandardCharsets.UTF_8.name());
+        properties.setMessageId("outbox-" + row.id());
+        if (row.payloadType() != null) {
+            properties.setHeader(AbstractJavaTypeMapper.DEFAULT_CLASSID_FIELD_NAME, row.payloadType());
+        }
+        return new Message(row.payload().getBytes(StandardCharsets.UTF_8), properties);
+    }
+
+    /**
+     * 等待单条消息的确认
+     *
+     * @return 确认成功返回null，否则返回失败原因
+     */
+    private String awaitConfirm(CorrelationData correlationData, long deadline) {
+        try {
+            long remaining = Math.max(deadline - System.currentTimeMillis(), 0);
+            CorrelationData.Confirm confirm = correlationData.getFuture().get(remaining, TimeUnit.MILLISECONDS);
+            if (!confirm.isAck()) {
+                return confirm.getReason() != null ? confirm.getReason() : "Broker拒绝";
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "等待确认被中断";
+        } catch (Exception e) {
+            return e.getCause() != null ? e.getCause().getMessage() : "等待确认超时";
+        }
+    }
+
+    private static String resolveRelayId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            host = "unknown";
+        }
+        String id = host + "-" + UUID.randomUUID().toString().substring(0, 8);
+        return id.length() > 64 ? id.substring(id.length() - 64) : id;
+    }
+
+    private String truncate(String error) {
+        return error != null && error.length() > 255 ? error.substring(0, 252) + "..." : error;
+    }
+
+    private record OutboxRow(long id, String exchange, String routingKey,
+                             String payloadType, String payload, int attempts) {
+    }
+
+    private record BatchResult(int sent, int failed) {
+    }
+}
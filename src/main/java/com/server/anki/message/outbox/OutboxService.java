@@ -0,0 +1,68 @@
+package com.server.anki.message.outbox;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.AbstractJavaTypeMapper;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.zip.CRC32;
+
+/**
+ * 发件箱服务
+ * 把待发送的消息写入outbox_event表，加入调用方的事务：
+ * 业务数据回滚时消息一并回滚，提交后由OutboxRelay负责投递
+ */
+@Service
+public class OutboxService {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboxService.class);
+
+    // 投递分区数，必须与OutboxRelay使用的分区数一致
+    @Value("${outbox.relay.partitions:16}")
+    private int partitions;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private MessageConverter messageConverter;
+
+    /**
+     * 登记一条待发送的消息
+     * 使用与RabbitTemplate相同的消息转换器序列化，消费端无需任何改动
+     */
+    @Transactional
+    public OutboxEvent enqueue(String exchange, String routingKey, Object payload) {
+        Message message = messageConverter.toMessage(payload, new MessageProperties());
+
+        OutboxEvent event = new OutboxEvent();
+        event.setExchange(exchange);
+        event.setRoutingKey(routingKey);
+        event.setPartitionNo(partitionOf(routingKey, partitions));
+        event.setPayloadType(message.getMessageProperties()
+                .getHeader(AbstractJavaTypeMapper.DEFAULT_CLASSID_FIELD_NAME));
+        event.setPayload(new String(message.getBody(), StandardCharsets.UTF_8));
+        event.setCreatedTime(LocalDateTime.now());
+
+        OutboxEvent saved = outboxEventRepository.save(event);
+        logger.debug("消息已写入发件箱: id={}, 交换机={}, 路由键={}", saved.getId(), exchange, routingKey);
+        return saved;
+    }
+
+    /**
+     * 计算路由键所属的投递分区，与MySQL中 CRC32(routing_key) % partitions 的结果一致
+     */
+    private static int partitionOf(String routingKey, int partitions) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(routingKey.getBytes(StandardCharsets.UTF_8));
+        return (int) (crc32.getValue() % partitions);
+    }
+}
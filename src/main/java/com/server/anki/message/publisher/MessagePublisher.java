@@ -0,0 +1,341 @@
+package com.server.anki.message.publisher;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * RabbitMQ消息发布器
+ * 业务线程只把消息放入按交换机划分的有界发件箱，每个交换机由一个发布线程按入队顺序批量发布，
+ * 并等待整批的发布确认后再发布下一批。
+ * 被拒绝或超时未确认的消息按原顺序放回发件箱头部，退避后先于之后入队的消息重新发布，
+ * 因此同一交换机的消息按提交顺序到达；超过重试次数后交给调用方提供的失败处理逻辑。
+ * 同一批次中broker拒绝某条消息却确认了其后的消息时（broker内部错误），被拒绝的消息重发后会晚于这些消息到达。
+ * 发件箱已满时调用线程最多阻塞等待入队超时时间，仍无法入队则按发布失败处理。
+ * 在事务中调用时，消息在事务提交后才进入发件箱，事务回滚则丢弃；
+ * 需要与业务数据严格一致的消息（如钱包消息）应使用OutboxService
+ */
+@Service
+public class MessagePublisher {
+
+    private static final Logger logger = LoggerFactory.getLogger(MessagePublisher.class);
+
+    // 重试的基础退避时间（毫秒）
+    private static final long RETRY_BASE_DELAY = 1000;
+
+    // 每个交换机发件箱的容量，满时调用线程阻塞等待
+    @Value("${mq.publisher.queue-capacity:10000}")
+    private int queueCapacity;
+
+    // 发件箱已满时调用线程等待入队的最长时间（毫秒）
+    @Value("${mq.publisher.enqueue-timeout:5000}")
+    private long enqueueTimeout;
+
+    // 单批发布的最大消息数
+    @Value("${mq.publisher.batch-size:100}")
+    private int batchSize;
+
+    // 被拒绝或确认超时后的最大重试次数
+    @Value("${mq.publisher.max-retries:3}")
+    private int maxRetries;
+
+    // 等待发布确认的超时时间（毫秒）
+    @Value("${mq.publisher.confirm-timeout:30000}")
+    private long confirmTimeout;
+
+    @Autowired
+    private RabbitTemplate rabbitTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, ExchangeOutbox> outboxes = new ConcurrentHashMap<>();
+    private final AtomicInteger unconfirmed = new AtomicInteger();
+    private Counter retriedCounter;
+    private Counter failedCounter;
+    private volatile boolean running = true;
+
+    @PostConstruct
+    public void init() {
+        retriedCounter = Counter.builder("mq.publish.retried")
+                .description("因被拒绝或确认超时而重新发布的消息数")
+                .register(meterRegistry);
+        failedCounter = Counter.builder("mq.publish.failed")
+                .description("超过重试次数或无法进入发件箱的消息数")
+                .register(meterRegistry);
+        Gauge.builder("mq.publish.unconfirmed", unconfirmed, AtomicInteger::get)
+                .description("已发布但尚未收到确认的消息数")
+                .register(meterRegistry);
+
+        logger.info("消息发布器初始化完成, 发件箱容量: {}, 批量大小: {}", queueCapacity, batchSize);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        // 发布线程发布完发件箱中剩余的消息后退出
+        running = false;
+        for (ExchangeOutbox outbox : outboxes.values()) {
+            outbox.thread.join(confirmTimeout);
+        }
+    }
+
+    /**
+     * 异步发布消息
+     *
+     * @param onFailure 无法进入发件箱或超过重试次数仍未被确认时的处理逻辑，参数为原始消息体，不能为null
+     */
+    public void publish(String exchange, String routingKey, Object payload, Consumer<Object> onFailure) {
+        PendingPublish pending = new PendingPublish(exchange, routingKey, payload,
+                Objects.requireNonNull(onFailure, "onFailure"));
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            // 避免通知先于业务数据可见，或业务回滚后通知仍被发出
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    enqueue(pending);
+                }
+            });
+            return;
+        }
+        enqueue(pending);
+    }
+
+    /**
+     * 获取所有发件箱中待发布的消息总数
+     */
+    public int getBacklog() {
+        return outboxes.values().stream().mapToInt(outbox -> outbox.queue.size()).sum();
+    }
+
+    /**
+     * 获取已发布但尚未确认的消息数
+     */
+    public int getUnconfirmedCount() {
+        return unconfirmed.get();
+    }
+
+    private void enqueue(PendingPublish pending) {
+        ExchangeOutbox outbox = outboxes.computeIfAbsent(pending.exchange, ExchangeOutbox::new);
+        boolean enqueued;
+        try {
+            enqueued = running && outbox.queue.offer(pending, enqueueTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            enqueued = false;
+        }
+        if (!enqueued) {
+            fail(pending, "发件箱已满或发布器已关闭");
+        }
+    }
+
+    private void fail(PendingPublish pending, String reason) {
+        failedCounter.increment();
+        logger.error("消息发布失败. 交换机: {}, 路由键: {}, 已发布 {} 次, 原因: {}",
+                pending.exchange, pending.routingKey, pending.attempts, reason);
+        try {
+            pending.onFailure.accept(pending.payload);
+        } catch (Exception e) {
+            logger.error("执行消息发布失败处理时发生错误", e);
+        }
+    }
+
+    private static final class PendingPublish {
+        private final String exchange;
+        private final String routingKey;
+        private final Object payload;
+        private final Consumer<Object> onFailure;
+        private final long enqueuedAt = System.currentTimeMillis();
+        private int attempts;
+
+        private PendingPublish(String exchange, String routingKey, Object payload, Consumer<Object> onFailure) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.payload = payload;
+            this.onFailure = onFailure;
+        }
+    }
+
+    /**
+     * 单个交换机的发件箱
+     * 由一个发布线程按顺序发布，重试的消息放在retries中，总是先于发件箱中的消息发布
+     */
+    private final class ExchangeOutbox {
+        private final String exchange;
+        private final BlockingQueue<PendingPublish> queue;
+        // 只由发布线程访问
+        private final Deque<PendingPublish> retries = new ArrayDeque<>();
+        private final Timer latencyTimer;
+        private final Thread thread;
+
+        private ExchangeOutbox(String exchange) {
+            this.exchange = exchange;
+            this.queue = new LinkedBlockingQueue<>(queueCapacity);
+            this.latencyTimer = Timer.builder("mq.publish.latency")
+                    .description("消息从进入发件箱到收到发布确认的耗时")
+                    .tag("exchange", exchange)
+                    .register(meterRegistry);
+            Gauge.builder("mq.publish.backlog", queue, BlockingQueue::size)
+                    .description("发件箱中等待发布的消息数")
+                    .tag("exchange", exchange)
+                    .register(meterRegistry);
+            this.thread = new Thread(this::run, "mq-publisher-" + exchange);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        private void run() {
+            List<PendingPublish> batch = new ArrayList<>(batchSize);
+            while (running || !queue.isEmpty() || !retries.isEmpty()) {
+                try {
+                    if (!nextBatch(batch)) {
+                        continue;
+                    }
+                    List<PendingPublish> failed = publishBatch(batch);
+                    batch.clear();
+                    if (!failed.isEmpty()) {
+                        scheduleRetries(failed);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
+                    logger.error("交换机 {} 的发布线程发生错误", exchange, e);
+                    batch.clear();
+                }
+            }
+            // 关闭时仍未发布的消息按失败处理
+            retries.forEach(pending -> fail(pending, "发布器已关闭"));
+            retries.clear();
+        }
+
+        /**
+         * 取下一批消息，重试的消息在前
+         */
+        private boolean nextBatch(List<PendingPublish> batch) throws InterruptedException {
+            while (!retries.isEmpty() && batch.size() < batchSize) {
+                batch.add(retries.pollFirst());
+            }
+            if (batch.isEmpty()) {
+                PendingPublish first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    return false;
+                }
+                batch.add(first);
+            }
+            queue.drainTo(batch, batchSize - batch.size());
+            return true;
+        }
+
+        /**
+         * 在同一通道上按顺序发布整批消息，并等待全部确认
+         *
+         * @return 按原顺序排列的未被确认的消息，包括发布异常后未发出的消息
+         */
+        private List<PendingPublish> publishBatch(List<PendingPublish> batch) throws InterruptedException {
+            List<CorrelationData> confirms = new ArrayList<>(batch.size());
+            try {
+                rabbitTemplate.invoke(operations -> {
+                    for (PendingPublish pending : batch) {
+                        CorrelationData correlationData = new CorrelationData(UUID.randomUUID().toString());
+                        pending.attempts++;
+                        operations.convertAndSend(pending.exchange, pending.routingKey, pending.payload,
+                                correlationData);
+                        confirms.add(correlationData);
+                        unconfirmed.incrementAndGet();
+                    }
+                    return null;
+                });
+            } catch (Exception e) {
+                // 发布异常后的消息没有发出，与未确认的消息一起按原顺序重试
+                logger.warn("交换机 {} 发布消息时发生错误: {}", exchange, e.getMessage());
+            }
+
+            List<PendingPublish> failed = new ArrayList<>();
+            long deadline = System.currentTimeMillis() + confirmTimeout;
+            for (int i = 0; i < batch.size(); i++) {
+                PendingPublish pending = batch.get(i);
+                if (i >= confirms.size()) {
+                    failed.add(pending);
+                    continue;
+                }
+                if (awaitConfirm(confirms.get(i), deadline)) {
+                    latencyTimer.record(System.currentTimeMillis() - pending.enqueuedAt, TimeUnit.MILLISECONDS);
+                } else {
+                    failed.add(pending);
+                }
+            }
+            return failed;
+        }
+
+        private boolean awaitConfirm(CorrelationData correlationData, long deadline) throws InterruptedException {
+            try {
+                long remaining = Math.max(deadline - System.currentTimeMillis(), 0);
+                CorrelationData.Confirm confirm = correlationData.getFuture().get(remaining, TimeUnit.MILLISECONDS);
+                if (!confirm.isAck()) {
+                    logger.warn("消息发布被拒绝, 交换机: {}, 原因: {}", exchange, confirm.getReason());
+                }
+                return confirm.isAck();
+            } catch (TimeoutException e) {
+                logger.warn("等待发布确认超时, 交换机: {}", exchange);
+                return false;
+            } catch (ExecutionException e) {
+                logger.warn("等待发布确认失败, 交换机: {}, 原因: {}", exchange, e.getMessage());
+                return false;
+            } finally {
+                unconfirmed.decrementAndGet();
+            }
+        }
+
+        /**
+         * 未确认的消息按原顺序放回发件箱头部，超过重试次数的交给失败处理，退避后再发布
+         */
+        private void scheduleRetries(List<PendingPublish> failed) throws InterruptedException {
+            int maxAttempts = 0;
+            for (PendingPublish pending : failed) {
+                if (pending.attempts > maxRetries) {
+                    fail(pending, "已达到最大重试次数");
+                    continue;
+                }
+                retries.addLast(pending);
+                maxAttempts = Math.max(maxAttempts, pending.attempts);
+            }
+            if (retries.isEmpty() || !running) {
+                return;
+            }
+
+            retriedCounter.increment(retries.size());
+            // 退避期间整个交换机暂停发布，之后入队的消息不会越过重试的消息
+            long delay = RETRY_BASE_DELAY * (1L << Math.max(maxAttempts - 1, 0));
+            logger.warn("交换机 {} 有 {} 条消息未被确认，{}ms后重新发布", exchange, retries.size(), delay);
+            Thread.sleep(delay);
+        }
+    }
+}
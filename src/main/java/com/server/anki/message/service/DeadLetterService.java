@@ -1,25 +1,85 @@
 package com.server.anki.message.service;
 
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.GetResponse;
+import com.server.anki.config.RabbitMQConfig;
+import com.server.anki.message.DeadLetterDTO;
+import com.server.anki.message.DeadLetterQueueStatsDTO;
+import com.server.anki.message.DeadLetterReplayDTO;
 import com.server.anki.message.Message;
 import com.server.anki.message.MessageRepository;
+import com.server.anki.utils.IdempotentHelper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.AbstractJavaTypeMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.Map;
+import java.time.ZoneId;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 死信队列管理服务
+ * 提供死信消息的浏览过滤、按速率批量重放到原始交换机，以及各死信队列的积压和滞留时间监控。
+ * 浏览和重放都直接读取Broker中的消息：不符合条件的消息在同一通道内保持未确认，结束时统一放回队列，
+ * 重放以 消息ID+死信次数 作为幂等键，同一条死信只会被重放一次
+ */
 @Service
 public class DeadLetterService {
     private static final Logger logger = LoggerFactory.getLogger(DeadLetterService.class);
     private static final int MAX_RETRY_COUNT = 3;
 
-    private final Map<String, Integer> retryCountMap = new ConcurrentHashMap<>();
+    // 受管理的死信队列
+    public static final List<String> MANAGED_QUEUES = List.of(
+            RabbitMQConfig.CHAT_DLQ,
+            RabbitMQConfig.PAYMENT_TIMEOUT_DLQ,
+            RabbitMQConfig.WALLET_DLQ,
+            RabbitMQConfig.AUDIT_DLQ
+    );
+
+    private static final String REPLAY_KEY_PREFIX = "dlq:replay:";
+    private static final String REPLAYED_HEADER = "x-dlq-replayed";
+    private static final int PAYLOAD_PREVIEW_LENGTH = 2000;
+
+    // 单次浏览返回的最大条数
+    @Value("${dlq.browse.max-limit:200}")
+    private int maxBrowseLimit;
+
+    // 默认重放速率（条/秒）
+    @Value("${dlq.replay.default-rate:50}")
+    private int defaultReplayRate;
+
+    // 重放速率上限（条/秒）
+    @Value("${dlq.replay.max-rate:500}")
+    private int maxReplayRate;
+
+    // 等待重放消息发布确认的超时时间（毫秒）
+    @Value("${dlq.replay.confirm-timeout:5000}")
+    private long confirmTimeout;
+
+    // 幂等键保留天数
+    @Value("${dlq.replay.idempotent-days:7}")
+    private int idempotentDays;
 
     @Autowired
     private RabbitTemplate rabbitTemplate;
@@ -30,6 +90,46 @@ public class DeadLetterService {
     @Autowired
     private MessageRepository messageRepository;
 
+    @Autowired
+    private IdempotentHelper idempotentHelper;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, AtomicLong> queueDepths = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> oldestAges = new ConcurrentHashMap<>();
+    private final Map<String, ReplayJob> replayJobs = new ConcurrentHashMap<>();
+    private ExecutorService replayExecutor;
+
+    @PostConstruct
+    public void init() {
+        for (String queue : MANAGED_QUEUES) {
+            AtomicLong depth = queueDepths.computeIfAbsent(queue, q -> new AtomicLong(-1));
+            AtomicLong age = oldestAges.computeIfAbsent(queue, q -> new AtomicLong());
+            Gauge.builder("dlq.depth", depth, AtomicLong::get)
+                    .description("死信队列中的消息数")
+                    .tag("queue", queue)
+                    .register(meterRegistry);
+            Gauge.builder("dlq.oldest.age", age, AtomicLong::get)
+                    .description("死信队列队首消息的滞留时间（秒）")
+                    .tag("queue", queue)
+                    .baseUnit("seconds")
+                    .register(meterRegistry);
+        }
+        // 重放任务串行执行，避免多个任务同时争抢同一队列
+        replayExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dlq-replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        replayJobs.values().forEach(ReplayJob::cancel);
+        replayExecutor.shutdownNow();
+    }
+
     @Transactional
     public void handleDeadLetter(Message message, String originalQueue, String failureReason) {
         if (message.getId() == null) {
@@ -38,21 +138,19 @@ public class DeadLetterService {
         }
 
         String messageId = message.getId().toString();
-        int retryCount = retryCountMap.getOrDefault(messageId, 0);
+        // 重试次数持久化在消息记录上，不再依赖内存计数
+        int retryCount = Optional.ofNullable(message.getRetryCount()).orElse(0);
 
         logger.error("处理死信消息 - 消息ID: {}, 原始队列: {}, 失败原因: {}, 重试次数: {}",
                 messageId, originalQueue, failureReason, retryCount);
 
         // 更新消息的重试信息
-        message.setRetryCount(retryCount);
+        message.setRetryCount(retryCount + 1);
         message.setLastRetryTime(LocalDateTime.now());
         message.setFailureReason(failureReason);
         messageRepository.save(message);
 
         if (retryCount < MAX_RETRY_COUNT) {
-            // 增加重试次数
-            retryCountMap.put(messageId, retryCount + 1);
-
             // 重新发送到原始队列，添加延迟
             logger.info("尝试重新发送消息 - 消息ID: {}, 重试次数: {}", messageId, retryCount + 1);
             rabbitTemplate.convertAndSend(originalQueue, message, msg -> {
@@ -65,8 +163,6 @@ public class DeadLetterService {
 
         } else {
             logger.error("消息重试次数超过最大限制 - 消息ID: {}", messageId);
-            // 清理重试计数
-            retryCountMap.remove(messageId);
 
             // 发送告警通知
             alertService.sendAlert(
@@ -82,10 +178,398 @@ public class DeadLetterService {
         }
     }
 
-    // 定期清理过期的重试计数
-    @Scheduled(fixedDelay = 3600000) // 每小时执行一次
-    public void cleanupRetryCount() {
-        logger.info("清理过期的重试计数记录");
-        retryCountMap.clear();
+    /**
+     * 获取所有受管理死信队列的统计
+     * 积压数实时查询，滞留时间取最近一次采样的结果
+     */
+    public List<DeadLetterQueueStatsDTO> getQueueStats() {
+        List<DeadLetterQueueStatsDTO> stats = new ArrayList<>(MANAGED_QUEUES.size());
+        for (String queue : MANAGED_QUEUES) {
+            Long depth = rabbitTemplate.execute(channel -> channel.messageCount(queue));
+            stats.add(new DeadLetterQueueStatsDTO(queue, depth != null ? depth : 0,
+                    oldestAges.get(queue).get()));
+        }
+        return stats;
+    }
+
+    /**
+     * 浏览死信消息
+     * 读取的消息全部放回队列，不改变队列内容
+     *
+     * @param typeFilter 消息类型过滤（匹配__TypeId__头，忽略大小写的包含匹配），可为null
+     * @param errorFilter 错误过滤（匹配死信原因和异常信息），可为null
+     */
+    public List<DeadLetterDTO> browse(String queue, String typeFilter, String errorFilter, int limit) {
+        checkManagedQueue(queue);
+        int pageLimit = Math.max(1, Math.min(limit, maxBrowseLimit));
+
+        List<DeadLetterDTO> result = rabbitTemplate.execute(channel -> {
+            List<DeadLetterDTO> matched = new ArrayList<>(pageLimit);
+            long scanLimit = channel.messageCount(queue);
+            long lastTag = -1;
+            try {
+                for (long scanned = 0; scanned < scanLimit && matched.size() < pageLimit; scanned++) {
+                    GetResponse response = channel.basicGet(queue, false);
+                    if (response == null) {
+                        break;
+                    }
+                    lastTag = response.getEnvelope().getDeliveryTag();
+                    DeadLetterDTO view = toView(queue, response);
+                    if (matches(view, typeFilter, errorFilter)) {
+                        matched.add(view);
+                    }
+                }
+            } finally {
+                if (lastTag >= 0 && channel.isOpen()) {
+                    channel.basicNack(lastTag, true, true);
+                }
+            }
+            return matched;
+        });
+        return result != null ? result : List.of();
+    }
+
+    /**
+     * 启动死信重放任务
+     * 符合条件的消息按指定速率重新发布到死信前的原始交换机和路由键，收到发布确认后才从死信队列移除
+     *
+     * @param maxMessages 最多重放的消息数
+     * @param ratePerSecond 每秒最多重放的消息数，小于等于0时使用默认速率
+     */
+    public DeadLetterReplayDTO startReplay(String queue, String typeFilter, String errorFilter,
+                                           int maxMessages, int ratePerSecond) {
+        checkManagedQueue(queue);
+        int rate = ratePerSecond > 0 ? Math.min(ratePerSecond, maxReplayRate) : defaultReplayRate;
+        ReplayJob job = new ReplayJob(UUID.randomUUID().toString(), queue, typeFilter, errorFilter,
+                Math.max(maxMessages, 1), rate);
+        replayJobs.put(job.jobId, job);
+
+        try {
+            replayExecutor.execute(() -> runReplay(job));
+        } catch (RejectedExecutionException e) {
+            job.finish("FAILED", "重放线程已关闭");
+        }
+
+        logger.info("死信重放任务已提交: jobId={}, 队列={}, 类型过滤={}, 错误过滤={}, 最大条数={}, 速率={}/s",
+                job.jobId, queue, typeFilter, errorFilter, job.maxMessages, rate);
+        return job.toDTO();
+    }
+
+    /**
+     * 查询重放任务状态
+     */
+    public Optional<DeadLetterReplayDTO> getReplayJob(String jobId) {
+        return Optional.ofNullable(replayJobs.get(jobId)).map(ReplayJob::toDTO);
+    }
+
+    /**
+     * 查询所有重放任务，最近提交的在前
+     */
+    public List<DeadLetterReplayDTO> getReplayJobs() {
+        return replayJobs.values().stream()
+                .map(ReplayJob::toDTO)
+                .sorted(Comparator.comparing(DeadLetterReplayDTO::startTime).reversed())
+                .toList();
+    }
+
+    /**
+     * 取消重放任务，已重放的消息不会撤回
+     */
+    public boolean cancelReplay(String jobId) {
+        ReplayJob job = replayJobs.get(jobId);
+        if (job == null) {
+            return false;
+        }
+        job.cancel();
+        return true;
+    }
+
+    /**
+     * 定期采集各死信队列的积压数和队首滞留时间
+     * 积压增加时发出告警
+     */
+    @Scheduled(fixedDelayString = "${dlq.metrics.interval:30000}")
+    public void sampleQueueMetrics() {
+        for (String queue : MANAGED_QUEUES) {
+            try {
+                rabbitTemplate.execute(channel -> {
+                    long depth = channel.messageCount(queue);
+                    long previous = queueDepths.get(queue).getAndSet(depth);
+                    oldestAges.get(queue).set(depth > 0 ? peekOldestAgeSeconds(channel, queue) : 0);
+
+                    if (previous >= 0 && depth > previous) {
+                        alertService.sendAlert(String.format("死信队列 %s 新增 %d 条消息，当前积压 %d 条",
+                                queue, depth - previous, depth));
+                    }
+                    return null;
+                });
+            } catch (Exception e) {
+                logger.warn("采集死信队列 {} 指标失败: {}", queue, e.getMessage());
+            }
+        }
+
+        // 清理一天前结束的重放任务记录
+        LocalDateTime expireBefore = LocalDateTime.now().minusDays(1);
+        replayJobs.values().removeIf(job -> job.endTime != null && job.endTime.isBefore(expireBefore));
+    }
+
+    private long peekOldestAgeSeconds(Channel channel, String queue) throws Exception {
+        GetResponse response = channel.basicGet(queue, false);
+        if (response == null) {
+            return 0;
+        }
+        channel.basicNack(response.getEnvelope().getDeliveryTag(), false, true);
+        LocalDateTime deadLetteredTime = toView(queue, response).deadLetteredTime();
+        return deadLetteredTime != null
+                ? Math.max(Duration.between(deadLetteredTime, LocalDateTime.now()).getSeconds(), 0)
+                : 0;
+    }
+
+    private void runReplay(ReplayJob job) {
+        try {
+            rabbitTemplate.execute(channel -> {
+                replayOnChannel(channel, job);
+                return null;
+            });
+            job.finish(job.cancelled ? "CANCELLED" : "COMPLETED", null);
+            logger.info("死信重放任务结束: jobId={}, 重放={}, 跳过={}, 重复={}, 失败={}",
+                    job.jobId, job.replayed, job.skipped, job.duplicates, job.failed);
+        } catch (Exception e) {
+            job.finish("FAILED", e.getMessage());
+            logger.error("死信重放任务失败: jobId={}, 已重放={}", job.jobId, job.replayed, e);
+        }
+    }
+
+    private void replayOnChannel(Channel channel, ReplayJob job) throws Exception {
+        // 只检查任务开始时已在队列中的消息，重放后再次失败的消息不会在本次任务中被反复处理
+        long scanLimit = channel.messageCount(job.queue);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / job.ratePerSecond;
+        long nextSendAt = System.nanoTime();
+        List<Long> heldTags = new ArrayList<>();
+
+        try {
+            while (!job.cancelled && job.scanned < scanLimit && job.replayed < job.maxMessages) {
+                GetResponse response = channel.basicGet(job.queue, false);
+                if (response == null) {
+                    break;
+                }
+                job.scanned++;
+                long deliveryTag = response.getEnvelope().getDeliveryTag();
+                DeadLetterDTO view = toView(job.queue, response);
+
+                if (view.originalExchange() == null || !matches(view, job.typeFilter, job.errorFilter)) {
+                    heldTags.add(deliveryTag);
+                    job.skipped++;
+                    continue;
+                }
+
+                String idempotentKey = REPLAY_KEY_PREFIX + view.messageId() + ":" + view.deathCount();
+                if (idempotentHelper.isProcessed(idempotentKey)) {
+                    // 同一条死信已被重放过，当前是重复副本
+                    channel.basicAck(deliveryTag, false);
+                    job.duplicates++;
+                    continue;
+                }
+
+                // 按速率限流，限流等待期间不持有幂等标记
+                long waitNanos = nextSendAt - System.nanoTime();
+                if (waitNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+                nextSendAt = Math.max(nextSendAt, System.nanoTime()) + intervalNanos;
+
+                // 处理中标记只覆盖发布和等待确认，进程中途退出时标记到期后可再次重放
+                if (!idempotentHelper.tryProcess(idempotentKey, Duration.ofMillis(confirmTimeout * 2))) {
+                    if (idempotentHelper.isProcessed(idempotentKey)) {
+                        channel.basicAck(deliveryTag, false);
+                        job.duplicates++;
+                    } else {
+                        // 其他节点正在重放该死信的另一副本，结果未知时保留在队列中
+                        heldTags.add(deliveryTag);
+                        job.skipped++;
+                    }
+                    continue;
+                }
+
+                boolean confirmed = false;
+                try {
+                    channel.basicPublish(view.originalExchange(), view.originalRoutingKey(),
+                            replayProperties(response.getProps()), response.getBody());
+                    channel.waitForConfirmsOrDie(confirmTimeout);
+                    confirmed = true;
+                } catch (Exception e) {
+                    // 未确认时通道已关闭，所有未确认的消息由Broker放回队列
+                    job.failed++;
+                    throw e;
+                } finally {
+                    if (!confirmed) {
+                        idempotentHelper.release(idempotentKey);
+                    }
+                }
+                idempotentHelper.markProcessed(idempotentKey, Duration.ofDays(idempotentDays));
+                channel.basicAck(deliveryTag, false);
+                job.replayed++;
+            }
+        } finally {
+            if (channel.isOpen()) {
+                for (Long tag : heldTags) {
+                    channel.basicNack(tag, false, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * 在原消息属性基础上记录重放次数，保留x-death以便再次进入死信队列时累加计数
+     */
+    private AMQP.BasicProperties replayProperties(AMQP.BasicProperties properties) {
+        Map<String, Object> headers = properties.getHeaders() != null
+                ? new HashMap<>(properties.getHeaders()) : new HashMap<>();
+        Object replayed = headers.get(REPLAYED_HEADER);
+        int replayCount = replayed instanceof Number number ? number.intValue() : 0;
+        headers.put(REPLAYED_HEADER, replayCount + 1);
+        return properties.builder().headers(headers).build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private DeadLetterDTO toView(String queue, GetResponse response) {
+        AMQP.BasicProperties properties = response.getProps();
+        Map<String, Object> headers = properties.getHeaders() != null ? properties.getHeaders() : Map.of();
+
+        String type = stringValue(headers.get(AbstractJavaTypeMapper.DEFAULT_CLASSID_FIELD_NAME));
+        String error = stringValue(headers.get("x-exception-message"));
+        String reason = null;
+        String originalExchange = null;
+        String originalRoutingKey = null;
+        long deathCount = 0;
+        LocalDateTime deadLetteredTime = null;
+        Date firstDeathTime = null;
+
+        // x-death中最新的记录在最前面，原始目的地取最早的一条
+        Object xDeath = headers.get("x-death");
+        if (xDeath instanceof List<?> deaths && !deaths.isEmpty()) {
+            Map<String, Object> latest = (Map<String, Object>) deaths.get(0);
+            Map<String, Object> first = (Map<String, Object>) deaths.get(deaths.size() - 1);
+            reason = stringValue(latest.get("reason"));
+            originalExchange = stringValue(first.get("exchange"));
+            if (first.get("routing-keys") instanceof List<?> routingKeys && !routingKeys.isEmpty()) {
+                originalRoutingKey = stringValue(routingKeys.get(0));
+            }
+            for (Object death : deaths) {
+                if (((Map<String, Object>) death).get("count") instanceof Number count) {
+                    deathCount += count.longValue();
+                }
+                if (((Map<String, Object>) death).get("time") instanceof Date time
+                        && (firstDeathTime == null || time.before(firstDeathTime))) {
+                    firstDeathTime = time;
+                }
+            }
+            if (latest.get("time") instanceof Date time) {
+                deadLetteredTime = LocalDateTime.ofInstant(time.toInstant(), ZoneId.systemDefault());
+            }
+        }
+        if (deadLetteredTime == null && properties.getTimestamp() != null) {
+            deadLetteredTime = LocalDateTime.ofInstant(properties.getTimestamp().toInstant(), ZoneId.systemDefault());
+        }
+
+        String messageId = properties.getMessageId();
+        if (messageId == null) {
+            // 没有消息ID时以消息体和首次进入死信的时间、原始目的地计算SHA-256，保证幂等键稳定且不同消息不会冲突
+            messageId = "sha-" + digest(response.getBody(), type, originalExchange, originalRoutingKey,
+                    firstDeathTime != null ? firstDeathTime.getTime() : null);
+        }
+
+        String payload = new String(response.getBody(), StandardCharsets.UTF_8);
+        if (payload.length() > PAYLOAD_PREVIEW_LENGTH) {
+            payload = payload.substring(0, PAYLOAD_PREVIEW_LENGTH) + "...";
+        }
+
+        return new DeadLetterDTO(queue, messageId, type, reason, error, originalExchange, originalRoutingKey,
+                deathCount, deadLetteredTime, payload);
+    }
+
+    private String digest(byte[] body, Object... headers) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Object header : headers) {
+                digest.update(String.valueOf(header).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(digest.digest(body));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("不支持SHA-256摘要算法", e);
+        }
+    }
+
+    private boolean matches(DeadLetterDTO view, String typeFilter, String errorFilter) {
+        if (typeFilter != null && !typeFilter.isBlank()
+                && !containsIgnoreCase(view.type(), typeFilter)) {
+            return false;
+        }
+        return errorFilter == null || errorFilter.isBlank()
+                || containsIgnoreCase(view.reason(), errorFilter)
+                || containsIgnoreCase(view.error(), errorFilter);
+    }
+
+    private boolean containsIgnoreCase(String value, String filter) {
+        return value != null && value.toLowerCase().contains(filter.trim().toLowerCase());
+    }
+
+    private String stringValue(Object value) {
+        return value != null ? value.toString() : null;
+    }
+
+    private void checkManagedQueue(String queue) {
+        if (!MANAGED_QUEUES.contains(queue)) {
+            throw new IllegalArgumentException("不支持的死信队列: " + queue);
+        }
+    }
+
+    /**
+     * 重放任务
+     * 计数只由重放线程修改，查询线程读取的是最近的快照
+     */
+    private static final class ReplayJob {
+        private final String jobId;
+        private final String queue;
+        private final String typeFilter;
+        private final String errorFilter;
+        private final int maxMessages;
+        private final int ratePerSecond;
+        private final LocalDateTime startTime = LocalDateTime.now();
+        private volatile String status = "RUNNING";
+        private volatile boolean cancelled;
+        private volatile int scanned;
+        private volatile int replayed;
+        private volatile int skipped;
+        private volatile int duplicates;
+        private volatile int failed;
+        private volatile String error;
+        private volatile LocalDateTime endTime;
+
+        private ReplayJob(String jobId, String queue, String typeFilter, String errorFilter,
+                          int maxMessages, int ratePerSecond) {
+            this.jobId = jobId;
+            this.queue = queue;
+            this.typeFilter = typeFilter;
+            this.errorFilter = errorFilter;
+            this.maxMessages = maxMessages;
+            this.ratePerSecond = ratePerSecond;
+        }
+
+        private void cancel() {
+            cancelled = true;
+        }
+
+        private void finish(String finalStatus, String errorMessage) {
+            status = finalStatus;
+            error = errorMessage;
+            endTime = LocalDateTime.now();
+        }
+
+        private DeadLetterReplayDTO toDTO() {
+            return new DeadLetterReplayDTO(jobId, queue, typeFilter, errorFilter, maxMessages, ratePerSecond,
+                    status, scanned, replayed, skipped, duplicates, failed, error, startTime, endTime);
+        }
     }
-}
\ No newline at end of file
+}
@@ -2,20 +2,33 @@ package com.server.anki.message.service;
 
 import com.server.anki.user.User;
 import com.server.anki.websocket.NotificationWebSocketHandler;
+import com.server.anki.message.BulkMessageDTO;
 import com.server.anki.message.Message;
 import com.server.anki.message.MessageRepository;
 import com.server.anki.config.RabbitMQConfig;
 import com.server.anki.message.NotificationDTO;
 import com.server.anki.user.UserRepository;
+import com.rabbitmq.client.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.AmqpRejectAndDontRequeueException;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.converter.MessageConverter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 @Service
 public class MessageConsumerService {
@@ -30,32 +43,172 @@ public class MessageConsumerService {
     @Autowired
     private NotificationWebSocketHandler notificationWebSocketHandler;
 
-    @RabbitListener(queues = RabbitMQConfig.MESSAGE_QUEUE)
-    @Transactional
-    public void processMessage(Message message) {
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private MessageConverter messageConverter;
+
+    @Autowired
+    private UnreadCounterService unreadCounterService;
+
+    // 批量消息单次批量插入的行数
+    private static final int BULK_INSERT_CHUNK_SIZE = 500;
+
+    private static final String INSERT_MESSAGE_SQL =
+            "INSERT INTO `message` (`user_id`, `content`, `type`, `created_date`, `is_read`, `retry_count`) " +
+            "VALUES (?, ?, ?, ?, ?, ?)";
+
+    /**
+     * 批量消费站内消息
+     * 整批校验后使用JDBC批量插入，插入成功后一次性确认整批消息；
+     * 校验失败的毒消息单独拒绝进入死信队列，批量插入失败时退回逐条处理以定位问题消息
+     */
+    @RabbitListener(queues = RabbitMQConfig.MESSAGE_QUEUE,
+            containerFactory = RabbitMQConfig.MESSAGE_BATCH_CONTAINER_FACTORY)
+    public void processMessages(List<org.springframework.amqp.core.Message> amqpMessages, Channel channel)
+            throws IOException {
+        List<PendingMessage> pending = new ArrayList<>(amqpMessages.size());
+
+        for (org.springframework.amqp.core.Message amqpMessage : amqpMessages) {
+            long deliveryTag = amqpMessage.getMessageProperties().getDeliveryTag();
+            try {
+                // 批量监听时容器不做类型推断，这里按站内消息类型手动转换
+                amqpMessage.getMessageProperties().setInferredArgumentType(Message.class);
+                Message message = (Message) messageConverter.fromMessage(amqpMessage);
+                validateMessage(message);
+                if (message.getCreatedDate() == null) {
+                    message.setCreatedDate(LocalDateTime.now());
+                }
+                pending.add(new PendingMessage(deliveryTag, message));
+            } catch (Exception e) {
+                logger.error("消息校验失败，转入死信队列，deliveryTag: {}, 错误: {}", deliveryTag, e.getMessage());
+                channel.basicNack(deliveryTag, false, false);
+            }
+        }
+
+        if (pending.isEmpty()) {
+            return;
+        }
+
         try {
-            // 首先验证消息的完整性
-            validateMessage(message);
+            List<Message> messages = pending.stream().map(PendingMessage::message).toList();
+            transactionTemplate.executeWithoutResult(status -> batchInsert(messages));
+            // 同一通道上批内消息的deliveryTag最小，multiple确认只会覆盖本批次
+            long lastTag = pending.stream().mapToLong(PendingMessage::deliveryTag).max().getAsLong();
+            channel.basicAck(lastTag, true);
+            unreadCounterService.incrementAll(countByUser(messages));
+            logger.info("批量保存消息完成，数量: {}", pending.size());
+        } catch (DataAccessException | TransactionException e) {
+            logger.warn("批量保存 {} 条消息失败，改为逐条处理: {}", pending.size(), e.getMessage());
+            for (PendingMessage item : pending) {
+                processSingleMessage(item, channel);
+            }
+        }
+    }
 
-            // 重新加载完整的用户信息
-            User user = userRepository.findById(message.getUserId())
-                    .orElseThrow(() -> new IllegalStateException(
-                            "未找到用户: " + message.getUserId()));
-            message.setUser(user);
+    /**
+     * 消费批量站内消息
+     * 展开接收者后分块批量入库，需要实时通知时对在线接收者做一次群发
+     */
+    @RabbitListener(queues = RabbitMQConfig.MESSAGE_BULK_QUEUE,
+            containerFactory = RabbitMQConfig.THROUGHPUT_CONTAINER_FACTORY)
+    public void processBulkMessage(BulkMessageDTO bulkMessage) {
+        try {
+            List<Long> recipientIds = resolveRecipients(bulkMessage);
+            if (recipientIds.isEmpty()) {
+                logger.info("批量消息没有接收者，类型: {}", bulkMessage.getType());
+                return;
+            }
 
-            logger.info("处理消息，用户ID: {}, 类型: {}", user.getId(), message.getType());
+            LocalDateTime createdDate = bulkMessage.getCreatedDate() != null
+                    ? bulkMessage.getCreatedDate() : LocalDateTime.now();
+            List<Message> messages = new ArrayList<>(recipientIds.size());
+            for (Long recipientId : recipientIds) {
+                Message message = new Message();
+                message.setUserId(recipientId);
+                message.setContent(bulkMessage.getContent());
+                message.setType(bulkMessage.getType());
+                message.setCreatedDate(createdDate);
+                messages.add(message);
+            }
 
-            Message savedMessage = messageRepository.save(message);
-            logger.info("消息已保存到数据库，消息ID: {}", savedMessage.getId());
+            transactionTemplate.executeWithoutResult(status -> {
+                for (int from = 0; from < messages.size(); from += BULK_INSERT_CHUNK_SIZE) {
+                    batchInsert(messages.subList(from, Math.min(from + BULK_INSERT_CHUNK_SIZE, messages.size())));
+                }
+            });
+            unreadCounterService.incrementAll(countByUser(messages));
+            logger.info("批量消息已保存，接收者数量: {}, 类型: {}", recipientIds.size(), bulkMessage.getType());
 
+            if (bulkMessage.isNotify()) {
+                notificationWebSocketHandler.sendNotificationToUsers(recipientIds, bulkMessage.getContent(),
+                        bulkMessage.getType().toString(), bulkMessage.getTicketId());
+            }
         } catch (Exception e) {
-            logger.error("处理消息时发生错误: {}", e.getMessage(), e);
-            // 抛出特定异常以触发死信队列处理
-            throw new AmqpRejectAndDontRequeueException("消息处理失败", e);
+            logger.error("处理批量消息时发生错误: {}", e.getMessage(), e);
+            throw new AmqpRejectAndDontRequeueException("批量消息处理失败", e);
+        }
+    }
+
+    private List<Long> resolveRecipients(BulkMessageDTO bulkMessage) {
+        if (bulkMessage.getType() == null || bulkMessage.getContent() == null
+                || bulkMessage.getContent().trim().isEmpty()) {
+            throw new IllegalArgumentException("批量消息缺少类型或内容");
+        }
+        if (bulkMessage.getRecipientIds() != null) {
+            return bulkMessage.getRecipientIds().stream().distinct().toList();
+        }
+        if (bulkMessage.getRecipientGroup() != null) {
+            return userRepository.findIdsByUserGroup(bulkMessage.getRecipientGroup());
+        }
+        throw new IllegalArgumentException("批量消息缺少接收者");
+    }
+
+    private Map<Long, Long> countByUser(List<Message> messages) {
+        return messages.stream()
+                .filter(message -> !message.isRead())
+                .collect(Collectors.groupingBy(Message::getUserId, Collectors.counting()));
+    }
+
+    private void batchInsert(List<Message> messages) {
+        jdbcTemplate.batchUpdate(INSERT_MESSAGE_SQL, messages, messages.size(), (ps, message) -> {
+            ps.setLong(1, message.getUserId());
+            ps.setString(2, message.getContent());
+            ps.setString(3, message.getType().name());
+            ps.setTimestamp(4, Timestamp.valueOf(message.getCreatedDate()));
+            ps.setBoolean(5, message.isRead());
+            ps.setInt(6, message.getRetryCount() != null ? message.getRetryCount() : 0);
+        });
+    }
+
+    /**
+     * 逐条保存消息，用户只设置引用而不加载实体
+     */
+    private void processSingleMessage(PendingMessage item, Channel channel) throws IOException {
+        Message message = item.message();
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                message.setUser(userRepository.getReferenceById(message.getUserId()));
+                messageRepository.save(message);
+            });
+            channel.basicAck(item.deliveryTag(), false);
+            unreadCounterService.incrementAll(Map.of(message.getUserId(), 1L));
+            logger.info("消息已保存到数据库，用户ID: {}, 类型: {}", message.getUserId(), message.getType());
+        } catch (Exception e) {
+            logger.error("处理消息时发生错误，转入死信队列，用户ID: {}, 错误: {}",
+                    message.getUserId(), e.getMessage(), e);
+            channel.basicNack(item.deliveryTag(), false, false);
         }
     }
 
     private void validateMessage(Message message) {
+        if (message == null) {
+            throw new IllegalArgumentException("消息体为空");
+        }
         if (message.getUserId() == null) {
             throw new IllegalArgumentException("消息缺少用户ID");
         }
@@ -67,7 +220,8 @@ public class MessageConsumerService {
         }
     }
 
-    @RabbitListener(queues = RabbitMQConfig.NOTIFICATION_QUEUE)
+    @RabbitListener(queues = RabbitMQConfig.NOTIFICATION_QUEUE,
+            containerFactory = RabbitMQConfig.LATENCY_CONTAINER_FACTORY)
     public void processNotification(NotificationDTO notification) {
         try {
             logger.info("接收到新通知，用户ID: {}, 类型: {}",
@@ -88,7 +242,8 @@ public class MessageConsumerService {
         }
     }
 
-    @RabbitListener(queues = RabbitMQConfig.DEAD_LETTER_QUEUE)
+    @RabbitListener(queues = RabbitMQConfig.DEAD_LETTER_QUEUE,
+            containerFactory = RabbitMQConfig.THROUGHPUT_CONTAINER_FACTORY)
     public void processFailedMessages(Message message) {
         Long userId = Optional.ofNullable(message.getUser())
                 .map(User::getId)
@@ -97,4 +252,7 @@ public class MessageConsumerService {
         logger.error("消息处理失败，进入死信队列。用户ID: {}, 类型: {}, 失败原因: {}",
                 userId, message.getType(), message.getFailureReason());
     }
+
+    private record PendingMessage(long deliveryTag, Message message) {
+    }
 }
\ No newline at end of file
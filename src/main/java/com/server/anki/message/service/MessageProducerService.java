@@ -1,5 +1,6 @@
 package com.server.anki.message.service;
 
+import com.server.anki.message.BulkMessageDTO;
 import com.server.anki.message.Message;
 import com.server.anki.message.MessageType;
 import com.server.anki.config.RabbitMQConfig;
@@ -7,18 +8,20 @@ import com.server.anki.message.NotificationDTO;
 import com.server.anki.user.User;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import com.server.anki.message.publisher.MessagePublisher;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
 
 @Service
 public class MessageProducerService {
     private static final Logger logger = LoggerFactory.getLogger(MessageProducerService.class);
 
     @Autowired
-    private RabbitTemplate rabbitTemplate;
+    private MessagePublisher messagePublisher;
 
     public void sendMessage(User user, String content, MessageType type, Long ticketId) {
         logger.info("准备发送消息到队列，用户ID: {}, 类型: {}", user.getId(), type);
@@ -38,10 +41,12 @@ public class MessageProducerService {
             message.setCreatedDate(LocalDateTime.now());
 
             // 发送消息
-            rabbitTemplate.convertAndSend(
+            messagePublisher.publish(
                     RabbitMQConfig.MESSAGE_EXCHANGE,
                     RabbitMQConfig.MESSAGE_ROUTING_KEY,
-                    message
+                    message,
+                    payload -> logger.error("站内消息发布失败，消息已丢失, 用户ID: {}, 类型: {}",
+                            user.getId(), type)
             );
 
             // 处理通知
@@ -50,10 +55,11 @@ public class MessageProducerService {
                         user.getId(), content, type.toString(), ticketId
                 );
 
-                rabbitTemplate.convertAndSend(
+                messagePublisher.publish(
                         RabbitMQConfig.NOTIFICATION_EXCHANGE,
                         RabbitMQConfig.NOTIFICATION_ROUTING_KEY,
-                        notification
+                        notification,
+                        payload -> logger.error("实时通知发布失败, 用户ID: {}, 类型: {}", user.getId(), type)
                 );
             }
 
@@ -65,6 +71,59 @@ public class MessageProducerService {
         }
     }
 
+    /**
+     * 向一组用户发送同一条消息，只发布一次
+     *
+     * @param userIds 接收者ID
+     * @param forceNotify 为true时无论消息类型都推送实时通知
+     */
+    public void sendBulkMessage(Collection<Long> userIds, String content, MessageType type,
+                                Long ticketId, boolean forceNotify) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        BulkMessageDTO bulkMessage = createBulkMessage(content, type, ticketId, forceNotify);
+        bulkMessage.setRecipientIds(new ArrayList<>(userIds));
+        publishBulkMessage(bulkMessage, userIds.size() + " 个用户");
+    }
+
+    /**
+     * 向指定用户组的所有用户发送同一条消息，接收者由消费端解析
+     */
+    public void sendGroupMessage(String userGroup, String content, MessageType type,
+                                 Long ticketId, boolean forceNotify) {
+        BulkMessageDTO bulkMessage = createBulkMessage(content, type, ticketId, forceNotify);
+        bulkMessage.setRecipientGroup(userGroup);
+        publishBulkMessage(bulkMessage, "用户组 " + userGroup);
+    }
+
+    private BulkMessageDTO createBulkMessage(String content, MessageType type, Long ticketId, boolean forceNotify) {
+        BulkMessageDTO bulkMessage = new BulkMessageDTO();
+        bulkMessage.setContent(content);
+        bulkMessage.setType(type);
+        bulkMessage.setTicketId(ticketId);
+        bulkMessage.setCreatedDate(LocalDateTime.now());
+        bulkMessage.setNotify(forceNotify || shouldSendNotification(type));
+        return bulkMessage;
+    }
+
+    private void publishBulkMessage(BulkMessageDTO bulkMessage, String recipientsDescription) {
+        logger.info("准备发送批量消息到队列，接收者: {}, 类型: {}", recipientsDescription, bulkMessage.getType());
+        try {
+            messagePublisher.publish(
+                    RabbitMQConfig.MESSAGE_EXCHANGE,
+                    RabbitMQConfig.MESSAGE_BULK_ROUTING_KEY,
+                    bulkMessage,
+                    payload -> logger.error("批量消息发布失败，消息已丢失, 接收者: {}, 类型: {}",
+                            recipientsDescription, bulkMessage.getType())
+            );
+        } catch (Exception e) {
+            logger.error("发送批量消息到队列时发生错误，接收者: {}, 错误: {}",
+                    recipientsDescription, e.getMessage(), e);
+            throw new RuntimeException("批量消息发送失败", e);
+        }
+    }
+
     private boolean shouldSendNotification(MessageType type) {
         return type == MessageType.TICKET_STATUS_UPDATED ||
                 type == MessageType.ORDER_STATUS_UPDATED ||
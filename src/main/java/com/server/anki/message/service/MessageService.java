@@ -9,10 +9,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 
 @Service
@@ -23,10 +24,10 @@ public class MessageService {
     private MessageRepository messageRepository;
 
     @Autowired
-    private UserService userService;
+    private MessageProducerService messageProducer;
 
     @Autowired
-    private MessageProducerService messageProducer;
+    private UnreadCounterService unreadCounterService;
 
     public void sendMessage(User user, String content, MessageType type, Long ticketId) {
         logger.info("发送消息给用户: {}, 类型: {}", user.getId(), type);
@@ -35,11 +36,20 @@ public class MessageService {
 
     public void sendMessageToAdmins(String content, MessageType type, Long ticketId) {
         logger.info("发送消息给所有管理员");
-        List<User> admins = userService.getAllAdmins();
-        logger.debug("找到 {} 个管理员用户", admins.size());
-        for (User admin : admins) {
-            messageProducer.sendMessage(admin, content, type, ticketId);
-        }
+        // 只发布一条携带用户组的消息，由消费端展开为批量入库
+        messageProducer.sendGroupMessage(UserService.ADMIN_GROUP, content, type, ticketId, false);
+    }
+
+    /**
+     * 向多个用户发送同一条消息
+     *
+     * @param userIds 接收者ID
+     * @param realtime 是否同时推送实时通知
+     */
+    public void sendMessageToUsers(Collection<Long> userIds, String content, MessageType type,
+                                   Long ticketId, boolean realtime) {
+        logger.info("发送消息给 {} 个用户, 类型: {}", userIds.size(), type);
+        messageProducer.sendBulkMessage(userIds, content, type, ticketId, realtime);
     }
 
     // 新增分页查询方法
@@ -54,35 +64,40 @@ public class MessageService {
         return messagePage;
     }
 
-    public List<Message> getUnreadMessages(Long userId) {
-        logger.info("获取用户 {} 的未读消息", userId);
-        List<Message> unreadMessages = messageRepository.findByUserIdAndReadOrderByCreatedDateDesc(userId, false);
+    /**
+     * 键集分页获取未读消息
+     *
+     * @param beforeId 上一页最后一条消息的ID，为null时从最新一条开始
+     * @param limit 每页条数
+     */
+    public List<Message> getUnreadMessages(Long userId, Long beforeId, int limit) {
+        logger.info("获取用户 {} 的未读消息, beforeId: {}, limit: {}", userId, beforeId, limit);
+        List<Message> unreadMessages = messageRepository.findUnreadBefore(
+                userId, beforeId != null ? beforeId : Long.MAX_VALUE, PageRequest.of(0, limit));
         logger.debug("找到 {} 条未读消息", unreadMessages.size());
         return unreadMessages;
     }
 
-    @Transactional
-    public void markAsRead(Long messageId) {
+    public long getUnreadCount(Long userId) {
+        return unreadCounterService.getUnreadCount(userId);
+    }
+
+    public void markAsRead(Long userId, Long messageId) {
         logger.info("标记消息 {} 为已读", messageId);
-        messageRepository.findById(messageId).ifPresentOrElse(
-                message -> {
-                    message.setRead(true);
-                    messageRepository.save(message);
-                    logger.debug("消息已标记为已读");
-                },
-                () -> logger.warn("未找到消息: {}", messageId)
-        );
+        int updated = messageRepository.markAsRead(userId, messageId);
+        if (updated > 0) {
+            unreadCounterService.decrement(userId, updated);
+            logger.debug("消息已标记为已读");
+        } else {
+            logger.warn("未找到用户 {} 的未读消息: {}", userId, messageId);
+        }
     }
 
-    @Transactional
     public void markAllAsRead(Long userId) {
         logger.info("标记用户 {} 的所有消息为已读", userId);
-        List<Message> unreadMessages = getUnreadMessages(userId);
-        logger.debug("找到 {} 条未读消息需要标记", unreadMessages.size());
-        unreadMessages.forEach(message -> {
-            message.setRead(true);
-            messageRepository.save(message);
-        });
-        logger.info("所有消息已标记为已读");
+        int updated = messageRepository.markAllAsRead(userId);
+        // 按实际标记的条数扣减，期间新到的消息仍计入未读
+        unreadCounterService.decrement(userId, updated);
+        logger.info("所有消息已标记为已读, 数量: {}", updated);
     }
 }
\ No newline at end of file
@@ -0,0 +1,131 @@
+package com.server.anki.message.service;
+
+import com.server.anki.message.MessageRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 未读消息计数服务
+ * 每个用户的未读数保存在Redis中，首次读取时从数据库统计并缓存，
+ * 之后在消息入库和标记已读时增减，未读角标刷新不再需要查询消息列表。
+ * 每次增减都会递增用户的计数版本，从数据库统计期间版本发生变化时不缓存统计结果，
+ * 避免统计期间的增减丢失
+ */
+@Service
+public class UnreadCounterService {
+    private static final Logger logger = LoggerFactory.getLogger(UnreadCounterService.class);
+
+    private static final String UNREAD_COUNT_KEY = "message:unread:";
+    private static final String UNREAD_VERSION_KEY = "message:unread:ver:";
+
+    // 计数缓存的过期时间，过期后从数据库重新统计，用于修正可能的偏差
+    private static final long COUNTER_TTL_HOURS = 24;
+
+    // 递增计数版本；只在计数已缓存时调整，结果不小于0；未缓存时不创建，等待下次读取时从数据库统计
+    private static final RedisScript<Long> ADJUST_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('INCR', KEYS[2]) " +
+            "redis.call('EXPIRE', KEYS[2], ARGV[2]) " +
+            "if redis.call('EXISTS', KEYS[1]) == 0 then return -1 end " +
+            "local value = redis.call('INCRBY', KEYS[1], ARGV[1]) " +
+            "if value < 0 then redis.call('SET', KEYS[1], 0, 'KEEPTTL') value = 0 end " +
+            "return value",
+            Long.class);
+
+    // 计数版本与统计前读取的版本一致时才缓存统计结果
+    private static final RedisScript<Long> CACHE_IF_UNCHANGED_SCRIPT = new DefaultRedisScript<>(
+            "local version = redis.call('GET', KEYS[2]) or '0' " +
+            "if version ~= ARGV[1] then return 0 end " +
+            "if redis.call('SET', KEYS[1], ARGV[2], 'EX', ARGV[3], 'NX') then return 1 end " +
+            "return 0",
+            Long.class);
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    /**
+     * 获取用户未读消息数
+     */
+    public long getUnreadCount(Long userId) {
+        String key = UNREAD_COUNT_KEY + userId;
+        try {
+            String cached = redisTemplate.opsForValue().get(key);
+            if (cached != null) {
+                return Long.parseLong(cached);
+            }
+        } catch (Exception e) {
+            logger.warn("读取用户 {} 的未读计数缓存失败: {}", userId, e.getMessage());
+        }
+
+        String versionKey = UNREAD_VERSION_KEY + userId;
+        String version = null;
+        try {
+            version = redisTemplate.opsForValue().get(versionKey);
+        } catch (Exception e) {
+            logger.warn("读取用户 {} 的未读计数版本失败: {}", userId, e.getMessage());
+        }
+
+        long count = messageRepository.countByUserIdAndRead(userId, false);
+        try {
+            Long cached = redisTemplate.execute(CACHE_IF_UNCHANGED_SCRIPT, List.of(key, versionKey),
+                    version != null ? version : "0", String.valueOf(count),
+                    String.valueOf(TimeUnit.HOURS.toSeconds(COUNTER_TTL_HOURS)));
+            if (cached == null || cached == 0) {
+                logger.debug("统计期间用户 {} 的未读数发生变化，本次不缓存", userId);
+            }
+        } catch (Exception e) {
+            logger.warn("缓存用户 {} 的未读计数失败: {}", userId, e.getMessage());
+        }
+        return count;
+    }
+
+    /**
+     * 新消息入库后增加未读数
+     *
+     * @param countsByUser 用户ID到新增消息数的映射
+     */
+    public void incrementAll(Map<Long, Long> countsByUser) {
+        countsByUser.forEach(this::adjust);
+    }
+
+    /**
+     * 消息标记已读后减少未读数
+     */
+    public void decrement(Long userId, long count) {
+        if (count > 0) {
+            adjust(userId, -count);
+        }
+    }
+
+    private void adjust(Long userId, long delta) {
+        try {
+            redisTemplate.execute(ADJUST_SCRIPT, List.of(UNREAD_COUNT_KEY + userId, UNREAD_VERSION_KEY + userId),
+                    String.valueOf(delta), String.valueOf(TimeUnit.HOURS.toSeconds(COUNTER_TTL_HOURS)));
+        } catch (Exception e) {
+            evict(userId, e);
+        }
+    }
+
+    /**
+     * 计数更新失败时删除缓存，下次读取从数据库重新统计
+     */
+    private void evict(Long userId, Exception cause) {
+        logger.warn("更新用户 {} 的未读计数失败，清除缓存: {}", userId, cause.getMessage());
+        try {
+            redisTemplate.delete(UNREAD_COUNT_KEY + userId);
+        } catch (Exception e) {
+            logger.error("清除用户 {} 的未读计数缓存失败", userId, e);
+        }
+    }
+}
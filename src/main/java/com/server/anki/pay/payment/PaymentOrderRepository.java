@@ -2,6 +2,7 @@ package com.server.anki.pay.payment;
 
 import com.server.anki.user.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
@@ -22,6 +23,13 @@ public interface PaymentOrderRepository extends JpaRepository<PaymentOrder, Long
      */
     Optional<PaymentOrder> findByOrderNumber(String orderNumber);
 
+    /**
+     * 只查询支付订单的当前状态
+     * 返回数据库中的最新值，不受持久化上下文中已加载实体的影响
+     */
+    @Query("SELECT p.status FROM PaymentOrder p WHERE p.orderNumber = :orderNumber")
+    Optional<PaymentStatus> findStatusByOrderNumber(@Param("orderNumber") String orderNumber);
+
     /**
      * 查找用户未支付的订单
      */
@@ -32,6 +40,25 @@ public interface PaymentOrderRepository extends JpaRepository<PaymentOrder, Long
      */
     List<PaymentOrder> findByStatusAndExpireTimeBefore(PaymentStatus status, LocalDateTime expiryTime);
 
+    /**
+     * 将待支付订单标记为超时
+     * 仅当订单仍处于待支付状态时更新，返回0表示订单已被支付或已被其他节点处理
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE PaymentOrder p SET p.status = :timeout WHERE p.orderNumber = :orderNumber AND p.status = :waiting")
+    int markTimeoutIfWaiting(@Param("orderNumber") String orderNumber,
+                             @Param("waiting") PaymentStatus waiting,
+                             @Param("timeout") PaymentStatus timeout);
+
+    /**
+     * 将支付订单标记为已退款
+     * 仅当订单尚未退款时更新，返回0表示订单不存在或已被退款回调、推送或对账处理
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE PaymentOrder p SET p.status = :refunded WHERE p.orderNumber = :orderNumber AND p.status <> :refunded")
+    int markRefundedIfNot(@Param("orderNumber") String orderNumber,
+                          @Param("refunded") PaymentStatus refunded);
+
     /**
      * 根据订单类型和订单信息查找支付订单
      */
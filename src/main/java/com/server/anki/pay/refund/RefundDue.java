@@ -0,0 +1,14 @@
+package com.server.anki.pay.refund;
+
+import java.util.UUID;
+
+/**
+ * 到期需要对账的退款
+ * 各订单仓库的到期查询以该接口投影，只取订单号和已对账次数
+ */
+public interface RefundDue {
+
+    UUID getOrderNumber();
+
+    Integer getRefundAttempts();
+}
@@ -0,0 +1,217 @@
+package com.server.anki.pay.refund;
+
+import com.server.anki.alipay.AlipayService;
+import com.server.anki.mailorder.enums.OrderStatus;
+import com.server.anki.mailorder.repository.MailOrderRepository;
+import com.server.anki.mailorder.service.RefundProcessorService;
+import com.server.anki.pay.payment.OrderType;
+import com.server.anki.pay.payment.PaymentOrder;
+import com.server.anki.pay.payment.PaymentOrderRepository;
+import com.server.anki.pay.payment.PaymentStatus;
+import com.server.anki.shopping.repository.PurchaseRequestRepository;
+import com.server.anki.shopping.repository.ShoppingOrderRepository;
+import com.server.anki.utils.DistributedLockHelper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 退款对账服务
+ * 统一处理邮件订单、商品订单和代购需求三类退款中的订单：
+ * 邮件订单在宽限期后由配送员钱包自动退款，商品订单和代购需求向支付宝查询退款结果后完成本地退款。
+ * 每轮只取下次对账时间已到的订单，在有界线程池中并行处理；
+ * 未完成的退款按指数退避把下次对账时间写回订单，退款量再大也只处理到期的部分
+ */
+@Service
+public class RefundReconciliationService {
+    private static final Logger logger = LoggerFactory.getLogger(RefundReconciliationService.class);
+
+    // 每类订单每轮最多处理的退款数
+    @Value("${refund.reconcile.batch-size:200}")
+    private int batchSize;
+
+    // 并行对账的最大线程数，即同时进行的支付宝查询上限
+    @Value("${refund.reconcile.concurrency:4}")
+    private int concurrency;
+
+    // 首次未完成后的对账间隔（秒），之后每次翻倍
+    @Value("${refund.reconcile.base-delay:300}")
+    private long baseDelaySeconds;
+
+    // 对账间隔上限（秒）
+    @Value("${refund.reconcile.max-delay:21600}")
+    private long maxDelaySeconds;
+
+    // 邮件订单申请退款后到自动退款前的宽限期（分钟）
+    @Value("${refund.reconcile.mail-order-grace:30}")
+    private long mailOrderGraceMinutes;
+
+    @Autowired
+    private MailOrderRepository mailOrderRepository;
+
+    @Autowired
+    private ShoppingOrderRepository shoppingOrderRepository;
+
+    @Autowired
+    private PurchaseRequestRepository purchaseRequestRepository;
+
+    @Autowired
+    private PaymentOrderRepository paymentOrderRepository;
+
+    @Autowired
+    private RefundProcessorService refundProcessorService;
+
+    @Autowired
+    private AlipayService alipayService;
+
+    @Autowired
+    private DistributedLockHelper distributedLockHelper;
+
+    private ExecutorService reconcileExecutor;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        reconcileExecutor = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "refund-reconcile-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        reconcileExecutor.shutdown();
+        if (!reconcileExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+            reconcileExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 对账所有到期的退款
+     *
+     * @return 本轮完成的退款数
+     */
+    public int reconcileDueRefunds() {
+        LocalDateTime now = LocalDateTime.now();
+        Pageable pageable = PageRequest.of(0, batchSize);
+
+        List<RefundTask> tasks = new ArrayList<>();
+        mailOrderRepository.findRefundDue(OrderStatus.REFUNDING, now, now.minusMinutes(mailOrderGraceMinutes), pageable)
+                .forEach(due -> tasks.add(new RefundTask(OrderType.MAIL_ORDER, due)));
+        shoppingOrderRepository.findRefundDue(OrderStatus.REFUNDING, now, pageable)
+                .forEach(due -> tasks.add(new RefundTask(OrderType.SHOPPING_ORDER, due)));
+        purchaseRequestRepository.findRefundDue(OrderStatus.REFUNDING, now, pageable)
+                .forEach(due -> tasks.add(new RefundTask(OrderType.PURCHASE_REQUEST, due)));
+        if (tasks.isEmpty()) {
+            return 0;
+        }
+
+        long start = System.currentTimeMillis();
+        List<CompletableFuture<Boolean>> futures = tasks.stream()
+                .map(task -> CompletableFuture.supplyAsync(() -> reconcile(task), reconcileExecutor))
+                .toList();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+
+        int completed = (int) futures.stream().filter(CompletableFuture::join).count();
+        logger.info("退款对账完成: 到期 {} 笔, 完成 {} 笔, 耗时 {}ms",
+                tasks.size(), completed, System.currentTimeMillis() - start);
+        return completed;
+    }
+
+    /**
+     * 对账单笔退款，持有退款锁期间其他节点会跳过该订单
+     */
+    private boolean reconcile(RefundTask task) {
+        String lockKey = DistributedLockHelper.getRefundLockKey(task.orderNumber().toString());
+        if (!distributedLockHelper.tryLock(lockKey, 0, TimeUnit.SECONDS)) {
+            return false;
+        }
+
+        try {
+            boolean completed = switch (task.orderType()) {
+                case MAIL_ORDER -> refundProcessorService.processRefund(task.orderNumber(), task.attempts());
+                case SHOPPING_ORDER, PURCHASE_REQUEST -> reconcileAlipayRefund(task);
+                default -> false;
+            };
+            if (!completed) {
+                scheduleNextCheck(task);
+            }
+            return completed;
+        } catch (Exception e) {
+            logger.error("退款对账失败, 订单类型: {}, 订单号: {}, 第 {} 次: {}",
+                    task.orderType(), task.orderNumber(), task.attempts() + 1, e.getMessage(), e);
+            scheduleNextCheck(task);
+            return false;
+        } finally {
+            distributedLockHelper.unlock(lockKey);
+        }
+    }
+
+    /**
+     * 向支付宝查询商品订单或代购需求的退款结果，退款成功时按退款回调的逻辑完成本地退款
+     */
+    private boolean reconcileAlipayRefund(RefundTask task) throws Exception {
+        List<PaymentOrder> paymentOrders = paymentOrderRepository.findByOrderTypeAndOrderInfoAndStatus(
+                task.orderType(), task.orderNumber().toString(), PaymentStatus.PAID);
+        if (paymentOrders.isEmpty()) {
+            logger.warn("退款中的订单没有已支付的支付订单, 订单类型: {}, 订单号: {}",
+                    task.orderType(), task.orderNumber());
+            return false;
+        }
+
+        PaymentOrder paymentOrder = paymentOrders.get(0);
+        Optional<String> refundedAmount = alipayService.queryRefundedAmount(paymentOrder.getOrderNumber());
+        if (refundedAmount.isEmpty()) {
+            return false;
+        }
+
+        alipayService.handleRefundSuccess(paymentOrder.getOrderNumber(), paymentOrder.getAlipayTradeNo(),
+                refundedAmount.get());
+        return true;
+    }
+
+    /**
+     * 按指数退避安排下次对账时间
+     */
+    private void scheduleNextCheck(RefundTask task) {
+        long delay = Math.min(baseDelaySeconds << Math.min(task.attempts(), 16), maxDelaySeconds);
+        LocalDateTime nextCheckAt = LocalDateTime.now().plusSeconds(delay);
+        try {
+            switch (task.orderType()) {
+                case MAIL_ORDER -> mailOrderRepository.scheduleNextRefundCheck(task.orderNumber(), nextCheckAt);
+                case SHOPPING_ORDER -> shoppingOrderRepository.scheduleNextRefundCheck(task.orderNumber(), nextCheckAt);
+                case PURCHASE_REQUEST -> purchaseRequestRepository.scheduleNextRefundCheck(task.orderNumber(), nextCheckAt);
+                default -> {
+                }
+            }
+        } catch (Exception e) {
+            logger.error("更新退款对账时间失败, 订单号: {}: {}", task.orderNumber(), e.getMessage());
+        }
+    }
+
+    private record RefundTask(OrderType orderType, UUID orderNumber, int attempts) {
+
+        RefundTask(OrderType orderType, RefundDue due) {
+            this(orderType, due.getOrderNumber(),
+                    due.getRefundAttempts() != null ? due.getRefundAttempts() : 0);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.server.anki.pay.timeout;
 
+import com.server.anki.alipay.PaymentStatusNotifier;
 import com.server.anki.config.RedisConfig;
 import com.server.anki.mailorder.entity.MailOrder;
 import com.server.anki.mailorder.enums.OrderStatus;
@@ -21,15 +22,17 @@ import com.server.anki.shopping.service.PurchaseRequestService;
 import com.server.anki.shopping.service.ShoppingOrderService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 
 @Service
@@ -48,7 +51,22 @@ public class PaymentTimeoutService {
     private PaymentTimeoutProducer paymentTimeoutProducer;
 
     @Autowired
-    private RedisConfig redisConfig;
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private PaymentStatusNotifier paymentStatusNotifier;
+
+    // 每次从调度集合中取出的到期订单数
+    @Value("${payment.timeout.batch-size:100}")
+    private int batchSize;
+
+    // 超时处理失败后的首次重试间隔（毫秒），之后按2倍递增
+    @Value("${payment.timeout.retry-base-delay:5000}")
+    private long retryBaseDelay;
+
+    // 超时处理失败后的最大重试间隔（毫秒）
+    @Value("${payment.timeout.retry-max-delay:600000}")
+    private long retryMaxDelay;
 
     @Autowired
     private MailOrderService mailOrderService;
@@ -70,62 +88,128 @@ public class PaymentTimeoutService {
     private ProductRepository productRepository;
     /**
      * 设置支付超时监控
+     * 将订单按到期时间加入Redis有序集合，到期后由调度任务逐单处理
      */
-    public void setPaymentTimeout(String orderId) {
-        String key = RedisConfig.getPaymentTimeoutKey(orderId);
-        Duration timeoutDuration = Duration.ofMinutes(redisConfig.getPaymentTimeoutDuration());
-
-        redisTemplate.opsForValue().set(
-                key,
-                LocalDateTime.now().toString(),
-                timeoutDuration
-        );
-        log.info("已设置订单 {} 的支付超时时间为 {} 分钟", orderId, timeoutDuration.toMinutes());
+    public void setPaymentTimeout(String orderId, LocalDateTime expireTime) {
+        redisTemplate.opsForZSet().add(RedisConfig.PAYMENT_TIMEOUT_SCHEDULE_KEY, orderId, toScore(expireTime));
+        log.info("已设置订单 {} 的支付超时时间为 {}", orderId, expireTime);
     }
 
     /**
-     * 检查并处理超时订单
-     * 定时任务保持每分钟执行一次，查找所有已过期的待支付订单
+     * 处理已到期的订单
+     * 以ZREM的返回值认领订单，多个节点同时运行时每个订单只会被一个节点处理；
+     * 每个订单在独立的小事务中处理，单个订单失败只会按退避时间重新调度，不影响其他订单
      */
-    @Scheduled(fixedRate = 60000)
-    @Transactional
+    @Scheduled(fixedDelayString = "${payment.timeout.poll-interval:1000}")
+    public void processDueTimeouts() {
+        try {
+            Set<String> dueOrders;
+            do {
+                dueOrders = redisTemplate.opsForZSet().rangeByScore(
+                        RedisConfig.PAYMENT_TIMEOUT_SCHEDULE_KEY, 0, System.currentTimeMillis(), 0, batchSize);
+                if (dueOrders == null) {
+                    return;
+                }
+                for (String orderNumber : dueOrders) {
+                    Long removed = redisTemplate.opsForZSet().remove(RedisConfig.PAYMENT_TIMEOUT_SCHEDULE_KEY, orderNumber);
+                    if (removed != null && removed > 0) {
+                        expireOrder(orderNumber);
+                    }
+                }
+            } while (dueOrders.size() == batchSize);
+        } catch (Exception e) {
+            log.error("处理到期的待支付订单时发生错误", e);
+        }
+    }
+
+    /**
+     * 补偿扫描已过期但仍处于待支付状态的订单
+     * 调度集合中的订单在认领后、处理前节点崩溃，或订单创建于启用调度集合之前时，
+     * 由该任务重新加入调度集合；已在集合中的订单不会被改动
+     */
+    @Scheduled(fixedDelayString = "${payment.timeout.sweep-interval:300000}")
     public void checkTimeoutOrders() {
         List<PaymentOrder> timeoutOrders = paymentOrderRepository
                 .findByStatusAndExpireTimeBefore(PaymentStatus.WAITING, LocalDateTime.now());
 
+        int rescheduled = 0;
         for (PaymentOrder order : timeoutOrders) {
-            handleTimeoutOrder(order);
+            Boolean added = redisTemplate.opsForZSet().addIfAbsent(
+                    RedisConfig.PAYMENT_TIMEOUT_SCHEDULE_KEY, order.getOrderNumber(), toScore(order.getExpireTime()));
+            if (Boolean.TRUE.equals(added)) {
+                rescheduled++;
+            }
+        }
+        if (rescheduled > 0) {
+            log.warn("补偿扫描发现 {} 个未调度的超时订单，已重新加入调度集合", rescheduled);
         }
     }
 
     /**
-     * 处理超时订单
+     * 处理单个到期订单，失败时按指数退避重新调度
      */
-    private void handleTimeoutOrder(PaymentOrder order) {
+    private void expireOrder(String orderNumber) {
         try {
-            // 更新支付订单状态为超时
-            order.setStatus(PaymentStatus.TIMEOUT);
-            paymentOrderRepository.save(order);
+            transactionTemplate.executeWithoutResult(status -> handleTimeoutOrder(orderNumber));
+            redisTemplate.opsForHash().delete(RedisConfig.PAYMENT_TIMEOUT_ATTEMPTS_KEY, orderNumber);
+        } catch (Exception e) {
+            Long attempts = redisTemplate.opsForHash().increment(RedisConfig.PAYMENT_TIMEOUT_ATTEMPTS_KEY, orderNumber, 1);
+            long delay = Math.min(retryBaseDelay << Math.min(attempts - 1, 16), retryMaxDelay);
+            redisTemplate.opsForZSet().add(RedisConfig.PAYMENT_TIMEOUT_SCHEDULE_KEY, orderNumber,
+                    System.currentTimeMillis() + delay);
+            log.error("处理超时订单 {} 失败，第 {} 次，{}ms 后重试", orderNumber, attempts, delay, e);
+        }
+    }
 
-            // 处理对应类型的订单
-            processOrderTimeout(order);
+    /**
+     * 处理超时订单
+     * 以条件更新把订单从待支付改为超时，订单已支付或已被处理过时直接返回，保证重复处理无副作用
+     */
+    private void handleTimeoutOrder(String orderNumber) {
+        Optional<PaymentOrder> orderOpt = paymentOrderRepository.findByOrderNumber(orderNumber);
+        if (orderOpt.isEmpty()) {
+            log.warn("到期的支付订单不存在: {}", orderNumber);
+            return;
+        }
 
-            // 发送超时通知
-            messageService.sendMessage(
-                    order.getUser(),
-                    String.format("订单 #%s 因超时未支付已自动取消", order.getOrderNumber()),
-                    MessageType.ORDER_PAYMENT_TIMEOUT,
-                    null
-            );
+        PaymentOrder order = orderOpt.get();
+        if (order.getStatus() != PaymentStatus.WAITING) {
+            log.debug("订单 {} 当前状态为 {}，无需超时处理", orderNumber, order.getStatus());
+            return;
+        }
 
-            // 发布支付超时事件到消息队列
-            publishPaymentTimeoutEvent(order);
+        // 到期时间被延长的订单按新的到期时间重新调度
+        if (order.getExpireTime() != null && order.getExpireTime().isAfter(LocalDateTime.now())) {
+            setPaymentTimeout(orderNumber, order.getExpireTime());
+            return;
+        }
 
-            log.info("订单 {} 已标记为超时并完成相关处理", order.getOrderNumber());
-        } catch (Exception e) {
-            log.error("处理超时订单 {} 时发生错误", order.getOrderNumber(), e);
-            throw new RuntimeException("处理超时订单失败", e);
+        if (paymentOrderRepository.markTimeoutIfWaiting(orderNumber, PaymentStatus.WAITING, PaymentStatus.TIMEOUT) == 0) {
+            log.info("订单 {} 已被支付或已被其他节点处理，跳过超时处理", orderNumber);
+            return;
         }
+        order.setStatus(PaymentStatus.TIMEOUT);
+        paymentStatusNotifier.publish(orderNumber, PaymentStatus.TIMEOUT.name());
+
+        // 处理对应类型的订单
+        processOrderTimeout(order);
+
+        // 发送超时通知
+        messageService.sendMessage(
+                order.getUser(),
+                String.format("订单 #%s 因超时未支付已自动取消", order.getOrderNumber()),
+                MessageType.ORDER_PAYMENT_TIMEOUT,
+                null
+        );
+
+        // 发布支付超时事件到消息队列
+        publishPaymentTimeoutEvent(order);
+
+        log.info("订单 {} 已标记为超时并完成相关处理", order.getOrderNumber());
+    }
+
+    private double toScore(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 
     /**
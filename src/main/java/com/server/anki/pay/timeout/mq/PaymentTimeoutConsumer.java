@@ -7,6 +7,7 @@ import com.server.anki.pay.payment.PaymentOrderRepository;
 import com.server.anki.pay.payment.PaymentStatus;
 import com.server.anki.message.service.MessageService;
 import com.server.anki.message.MessageType;
+import com.server.anki.config.RabbitMQConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
@@ -39,7 +40,8 @@ public class PaymentTimeoutConsumer {
      * 使用 @RabbitListener 监听支付超时队列
      * 当收到超时消息时，会自动调用此方法处理
      */
-    @RabbitListener(queues = "payment.timeout.queue")
+    @RabbitListener(queues = "payment.timeout.queue",
+            containerFactory = RabbitMQConfig.THROUGHPUT_CONTAINER_FACTORY)
     @Transactional
     public void handleTimeoutMessage(PaymentTimeoutMessage message) {
         String orderNumber = message.getOrderNumber();
@@ -1,6 +1,8 @@
 package com.server.anki.pay.timeout.mq;
 
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import com.server.anki.message.publisher.MessagePublisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -11,9 +13,10 @@ import java.time.LocalDateTime;
  */
 @Component
 public class PaymentTimeoutProducer {
+    private static final Logger logger = LoggerFactory.getLogger(PaymentTimeoutProducer.class);
 
     @Autowired
-    private RabbitTemplate rabbitTemplate;
+    private MessagePublisher messagePublisher;
 
     private static final String EXCHANGE = "payment.exchange";
     private static final String ROUTING_KEY = "pay.timeout";
@@ -23,7 +26,9 @@ public class PaymentTimeoutProducer {
         message.setOrderNumber(orderNumber);
         message.setTimeoutTime(LocalDateTime.now());
 
-        rabbitTemplate.convertAndSend(EXCHANGE, ROUTING_KEY, message);
+        // 订单已在本地标记为超时，事件发布失败时记录订单号以便人工补发
+        messagePublisher.publish(EXCHANGE, ROUTING_KEY, message, payload ->
+                logger.error("支付超时事件发布失败，需人工补发, 订单号: {}", orderNumber));
     }
 }
 
@@ -26,7 +26,9 @@ import java.util.UUID;
  * 记录代购需求的详细信息，包括商品信息、配送信息和支付信息
  */
 @Entity
-@Table(name = "purchase_request")
+@Table(name = "purchase_request", indexes = {
+        @Index(name = "idx_purchase_request_refund_check", columnList = "status, refund_next_check_at")
+})
 @Getter
 @Setter
 public class PurchaseRequest implements FeeableOrder, Timeoutable {
@@ -163,6 +165,13 @@ public class PurchaseRequest implements FeeableOrder, Timeoutable {
     @Column(name = "refund_date")
     private LocalDateTime refundDate;
 
+    // 退款对账次数和下次对账时间，由退款对账任务按指数退避维护
+    @Column(name = "refund_attempts", nullable = false, columnDefinition = "int default 0")
+    private Integer refundAttempts = 0;
+
+    @Column(name = "refund_next_check_at")
+    private LocalDateTime refundNextCheckAt;
+
     // 超时管理相关字段
     @Enumerated(EnumType.STRING)
     @Column(name = "timeout_status")
@@ -25,7 +25,10 @@ import java.util.UUID;
  * 实现Timeoutable接口以支持统一超时管理框架
  */
 @Entity
-@Table(name = "shopping_order")
+@Table(name = "shopping_order", indexes = {
+        @Index(name = "idx_shopping_order_refund_check", columnList = "order_status, refund_next_check_at"),
+        @Index(name = "idx_shopping_order_created_at", columnList = "created_at")
+})
 @Getter
 @Setter
 public class ShoppingOrder implements FeeableOrder, Timeoutable {
@@ -136,6 +139,13 @@ public class ShoppingOrder implements FeeableOrder, Timeoutable {
     @Column(name = "refund_reason")
     private String refundReason;
 
+    // 退款对账次数和下次对账时间，由退款对账任务按指数退避维护
+    @Column(name = "refund_attempts", nullable = false, columnDefinition = "int default 0")
+    private Integer refundAttempts = 0;
+
+    @Column(name = "refund_next_check_at")
+    private LocalDateTime refundNextCheckAt;
+
     // 超时管理相关字段
     @Enumerated(EnumType.STRING)
     @Column(name = "timeout_status")
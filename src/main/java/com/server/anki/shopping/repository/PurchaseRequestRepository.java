@@ -1,6 +1,7 @@
 package com.server.anki.shopping.repository;
 
 import com.server.anki.mailorder.enums.OrderStatus;
+import com.server.anki.pay.refund.RefundDue;
 import com.server.anki.shopping.entity.PurchaseRequest;
 import com.server.anki.shopping.enums.DeliveryType;
 import com.server.anki.timeout.enums.TimeoutStatus;
@@ -260,4 +261,20 @@ public interface PurchaseRequestRepository extends JpaRepository<PurchaseRequest
     // 添加这个新方法，查找状态为PENDING且已超过截止时间的代购需求
     List<PurchaseRequest> findByStatusAndDeadlineBefore(OrderStatus status, LocalDateTime deadline);
 
-}
\ No newline at end of file
+    // 到期需要退款对账的订单，按下次对账时间排序
+    @Query("SELECT o.requestNumber AS orderNumber, o.refundAttempts AS refundAttempts " +
+            "FROM PurchaseRequest o WHERE o.status = :status " +
+            "AND (o.refundNextCheckAt IS NULL OR o.refundNextCheckAt <= :now) ORDER BY o.refundNextCheckAt")
+    List<RefundDue> findRefundDue(
+            @Param("status") OrderStatus status,
+            @Param("now") LocalDateTime now,
+            Pageable pageable);
+
+    // 记录一次未完成的退款对账，并安排下次对账时间
+    @Transactional
+    @Modifying
+    @Query("UPDATE PurchaseRequest o SET o.refundAttempts = o.refundAttempts + 1, o.refundNextCheckAt = :nextCheckAt " +
+            "WHERE o.requestNumber = :orderNumber")
+    int scheduleNextRefundCheck(@Param("orderNumber") UUID orderNumber,
+                                @Param("nextCheckAt") LocalDateTime nextCheckAt);
+}
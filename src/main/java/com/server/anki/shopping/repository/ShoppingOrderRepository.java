@@ -1,6 +1,7 @@
 package com.server.anki.shopping.repository;
 
 import com.server.anki.mailorder.enums.OrderStatus;
+import com.server.anki.pay.refund.RefundDue;
 import com.server.anki.shopping.entity.Product;
 import com.server.anki.shopping.entity.ShoppingOrder;
 import com.server.anki.shopping.entity.Store;
@@ -9,9 +10,11 @@ import com.server.anki.user.User;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
@@ -214,4 +217,101 @@ public interface ShoppingOrderRepository extends JpaRepository<ShoppingOrder, Lo
     // 根据店铺ID查询订单
     @Query("SELECT s FROM ShoppingOrder s WHERE s.store.id = :storeId")
     List<ShoppingOrder> findByStoreId(@Param("storeId") Long storeId);
-}
\ No newline at end of file
+
+    // 统计指定状态订单的总金额
+    @Query("SELECT COALESCE(SUM(s.totalAmount), 0) FROM ShoppingOrder s WHERE s.orderStatus = :status")
+    BigDecimal sumTotalAmountByOrderStatus(@Param("status") OrderStatus status);
+
+    // 统计指定时间之后的订单数和已完成订单金额
+    @Query("SELECT COUNT(s) AS orderCount, " +
+            "COALESCE(SUM(CASE WHEN s.orderStatus = :completed THEN s.totalAmount ELSE 0 END), 0) AS salesAmount " +
+            "FROM ShoppingOrder s WHERE s.createdAt >= :since")
+    OrderSummary summarizeOrdersSince(@Param("completed") OrderStatus completed,
+                                      @Param("since") LocalDateTime since);
+
+    // 按天统计指定时间之后的订单数和已完成订单金额
+    @Query(value = "SELECT DATE_FORMAT(created_at, '%Y-%m-%d') AS day, COUNT(*) AS orderCount, " +
+            "COALESCE(SUM(CASE WHEN order_status = :completed THEN total_amount ELSE 0 END), 0) AS salesAmount " +
+            "FROM shopping_order WHERE created_at >= :since " +
+            "GROUP BY DATE_FORMAT(created_at, '%Y-%m-%d')", nativeQuery = true)
+    List<DailyOrderSummary> summarizeOrdersByDaySince(@Param("completed") String completed,
+                                                     @Param("since") LocalDateTime since);
+
+    // 按已完成订单金额排序的店铺销售排行
+    @Query("SELECT st.id AS storeId, st.storeName AS storeName, m.username AS merchantName, " +
+            "mi.rating AS rating, COUNT(s) AS orderCount, " +
+            "COALESCE(SUM(CASE WHEN s.orderStatus = :completed THEN s.totalAmount ELSE 0 END), 0) AS salesAmount " +
+            "FROM ShoppingOrder s JOIN s.store st JOIN st.merchant m LEFT JOIN st.merchantInfo mi " +
+            "GROUP BY st.id, st.storeName, m.username, mi.rating " +
+            "ORDER BY salesAmount DESC, st.id")
+    List<StoreSalesSummary> findTopStoresBySales(@Param("completed") OrderStatus completed, Pageable pageable);
+
+    // 按已完成订单金额排序的商品销售排行
+    @Query("SELECT p.id AS productId, p.name AS productName, st.storeName AS storeName, p.price AS price, " +
+            "COUNT(s) AS orderCount, " +
+            "COALESCE(SUM(CASE WHEN s.orderStatus = :completed THEN s.productPrice * s.quantity ELSE 0 END), 0) " +
+            "AS salesAmount " +
+            "FROM ShoppingOrder s JOIN s.product p JOIN p.store st " +
+            "GROUP BY p.id, p.name, st.storeName, p.price " +
+            "ORDER BY salesAmount DESC, p.id")
+    List<ProductSalesSummary> findTopProductsBySales(@Param("completed") OrderStatus completed, Pageable pageable);
+
+    // 到期需要退款对账的订单，按下次对账时间排序
+    @Query("SELECT o.orderNumber AS orderNumber, o.refundAttempts AS refundAttempts " +
+            "FROM ShoppingOrder o WHERE o.orderStatus = :status " +
+            "AND (o.refundNextCheckAt IS NULL OR o.refundNextCheckAt <= :now) ORDER BY o.refundNextCheckAt")
+    List<RefundDue> findRefundDue(
+            @Param("status") OrderStatus status,
+            @Param("now") LocalDateTime now,
+            Pageable pageable);
+
+    // 记录一次未完成的退款对账，并安排下次对账时间
+    @Transactional
+    @Modifying
+    @Query("UPDATE ShoppingOrder o SET o.refundAttempts = o.refundAttempts + 1, o.refundNextCheckAt = :nextCheckAt " +
+            "WHERE o.orderNumber = :orderNumber")
+    int scheduleNextRefundCheck(@Param("orderNumber") UUID orderNumber,
+                                @Param("nextCheckAt") LocalDateTime nextCheckAt);
+
+    /**
+     * 订单数和销售额汇总
+     */
+    interface OrderSummary {
+        Long getOrderCount();
+
+        BigDecimal getSalesAmount();
+    }
+
+    /**
+     * 单日订单数和销售额汇总，日期格式为yyyy-MM-dd
+     */
+    interface DailyOrderSummary extends OrderSummary {
+        String getDay();
+    }
+
+    /**
+     * 店铺销售汇总
+     */
+    interface StoreSalesSummary extends OrderSummary {
+        Long getStoreId();
+
+        String getStoreName();
+
+        String getMerchantName();
+
+        Double getRating();
+    }
+
+    /**
+     * 商品销售汇总
+     */
+    interface ProductSalesSummary extends OrderSummary {
+        Long getProductId();
+
+        String getProductName();
+
+        String getStoreName();
+
+        BigDecimal getPrice();
+    }
+}
@@ -13,6 +13,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -31,6 +32,9 @@ import java.util.stream.Collectors;
 public class DashboardService {
     private static final Logger logger = LoggerFactory.getLogger(DashboardService.class);
 
+    // 热门店铺和商品的数量
+    private static final int TOP_LIMIT = 5;
+
     @Autowired
     private ShoppingOrderRepository orderRepository;
 
@@ -59,10 +63,7 @@ public class DashboardService {
             long totalOrders = orderRepository.count();
             logger.debug("获取全平台订单总数: {}", totalOrders);
 
-            List<ShoppingOrder> completedOrders = orderRepository.findByOrderStatus(OrderStatus.COMPLETED);
-            logger.debug("获取已完成订单数: {}", completedOrders.size());
-
-            BigDecimal totalSales = calculateTotalSales(completedOrders);
+            BigDecimal totalSales = orderRepository.sumTotalAmountByOrderStatus(OrderStatus.COMPLETED);
             logger.debug("计算总销售额: {}", totalSales);
 
             long totalStores = storeRepository.count();
@@ -71,20 +72,15 @@ public class DashboardService {
 
             // 今日数据
             LocalDateTime startOfDay = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS);
-            List<ShoppingOrder> todayOrders = orderRepository.findByCreatedAtAfter(startOfDay);
-            long todayOrderCount = todayOrders.size();
-            BigDecimal todaySales = calculateTotalSales(
-                    todayOrders.stream()
-                            .filter(order -> order.getOrderStatus() == OrderStatus.COMPLETED)
-                            .collect(Collectors.toList())
-            );
+            ShoppingOrderRepository.OrderSummary todaySummary =
+                    orderRepository.summarizeOrdersSince(OrderStatus.COMPLETED, startOfDay);
+            long todayOrderCount = todaySummary.getOrderCount();
+            BigDecimal todaySales = todaySummary.getSalesAmount();
             logger.debug("今日订单数: {}, 今日销售额: {}", todayOrderCount, todaySales);
 
             // 近七天数据
             logger.debug("开始计算近七天数据");
-            LocalDateTime sevenDaysAgo = LocalDateTime.now().minusDays(7);
-            List<ShoppingOrder> recentOrders = orderRepository.findByCreatedAtAfter(sevenDaysAgo);
-            Map<String, Object> weeklyStats = calculateWeeklyStats(recentOrders);
+            Map<String, Object> weeklyStats = getPlatformWeeklyStats();
 
             // 热门店铺/商品
             logger.debug("开始获取热门店铺和商品");
@@ -373,48 +369,58 @@ public class DashboardService {
     }
 
     /**
-     * 获取热门店铺
+     * 按天汇总全平台近七天的数据
      */
-    private List<Map<String, Object>> getTopStores() {
-        logger.debug("开始获取热门店铺 (TOP{})", 5);
-        List<Store> allStores = storeRepository.findAll();
-        Pageable unpaged = Pageable.unpaged();
+    private Map<String, Object> getPlatformWeeklyStats() {
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime since = now.minusDays(6).truncatedTo(ChronoUnit.DAYS);
 
-        // 计算每个店铺的订单数和销售额
-        Map<Store, Long> storeOrderCounts = new HashMap<>();
-        Map<Store, BigDecimal> storeSalesAmounts = new HashMap<>();
+        Map<String, ShoppingOrderRepository.DailyOrderSummary> summariesByDay = new HashMap<>();
+        for (ShoppingOrderRepository.DailyOrderSummary summary :
+                orderRepository.summarizeOrdersByDaySince(OrderStatus.COMPLETED.name(), since)) {
+            summariesByDay.put(summary.getDay(), summary);
+        }
 
-        for (Store store : allStores) {
-            List<ShoppingOrder> storeOrders = orderRepository.findByStore(store, unpaged).getContent();
-            storeOrderCounts.put(store, (long) storeOrders.size());
+        // 没有订单的日期补0
+        List<String> dates = new ArrayList<>();
+        List<Long> orderCounts = new ArrayList<>();
+        List<BigDecimal> salesAmounts = new ArrayList<>();
+        for (int i = 6; i >= 0; i--) {
+            String dateString = now.minusDays(i).toLocalDate().toString();
+            ShoppingOrderRepository.DailyOrderSummary summary = summariesByDay.get(dateString);
+            dates.add(dateString);
+            orderCounts.add(summary != null ? summary.getOrderCount() : 0L);
+            salesAmounts.add(summary != null ? summary.getSalesAmount() : BigDecimal.ZERO);
+        }
 
-            BigDecimal sales = storeOrders.stream()
-                    .filter(order -> order.getOrderStatus() == OrderStatus.COMPLETED)
-                    .map(ShoppingOrder::getTotalAmount)
-                    .reduce(BigDecimal.ZERO, BigDecimal::add);
+        Map<String, Object> weeklyStats = new HashMap<>();
+        weeklyStats.put("dates", dates);
+        weeklyStats.put("orderCounts", orderCounts);
+        weeklyStats.put("salesAmounts", salesAmounts);
 
-            storeSalesAmounts.put(store, sales);
-            logger.trace("店铺(ID:{}) {}: 订单数: {}, 销售额: {}",
-                    store.getId(), store.getStoreName(), storeOrders.size(), sales);
-        }
+        logger.debug("周统计数据计算完成");
+        return weeklyStats;
+    }
 
-        // 按销售额排序
-        List<Store> topStoresBySales = allStores.stream()
-                .sorted((s1, s2) -> storeSalesAmounts.get(s2).compareTo(storeSalesAmounts.get(s1)))
-                .limit(5)
-                .toList();
+    /**
+     * 获取热门店铺
+     */
+    private List<Map<String, Object>> getTopStores() {
+        logger.debug("开始获取热门店铺 (TOP{})", TOP_LIMIT);
+        List<ShoppingOrderRepository.StoreSalesSummary> topStores =
+                orderRepository.findTopStoresBySales(OrderStatus.COMPLETED, PageRequest.of(0, TOP_LIMIT));
 
         // 构建返回结果
         List<Map<String, Object>> result = new ArrayList<>();
 
-        for (Store store : topStoresBySales) {
+        for (ShoppingOrderRepository.StoreSalesSummary store : topStores) {
             Map<String, Object> storeData = new HashMap<>();
-            storeData.put("storeId", store.getId());
+            storeData.put("storeId", store.getStoreId());
             storeData.put("storeName", store.getStoreName());
-            storeData.put("merchantName", store.getMerchant().getUsername());
-            storeData.put("orderCount", storeOrderCounts.get(store));
-            storeData.put("salesAmount", storeSalesAmounts.get(store));
-            storeData.put("rating", store.getMerchantInfo().getRating());
+            storeData.put("merchantName", store.getMerchantName());
+            storeData.put("orderCount", store.getOrderCount());
+            storeData.put("salesAmount", store.getSalesAmount());
+            storeData.put("rating", store.getRating());
 
             result.add(storeData);
         }
@@ -427,47 +433,21 @@ public class DashboardService {
      * 获取热门商品
      */
     private List<Map<String, Object>> getTopProducts() {
-        logger.debug("开始获取热门商品 (TOP{})", 5);
-        Pageable unpaged = Pageable.unpaged(); // 使用无分页参数获取所有结果
-        Page<Product> productPage = productRepository.findAll(unpaged);
-        List<Product> allProducts = productPage.getContent(); // 从分页结果中提取内容
-
-        // 计算每个商品的销售情况
-        Map<Product, Long> productOrderCounts = new HashMap<>();
-        Map<Product, BigDecimal> productSalesAmounts = new HashMap<>();
-
-        for (Product product : allProducts) {
-            Page<ShoppingOrder> productOrdersPage = orderRepository.findByProduct(product, unpaged);
-            List<ShoppingOrder> productOrders = productOrdersPage.getContent();
-            productOrderCounts.put(product, (long) productOrders.size());
-
-            BigDecimal sales = productOrders.stream()
-                    .filter(order -> order.getOrderStatus() == OrderStatus.COMPLETED)
-                    .map(order -> order.getProductPrice().multiply(new BigDecimal(order.getQuantity())))
-                    .reduce(BigDecimal.ZERO, BigDecimal::add);
-
-            productSalesAmounts.put(product, sales);
-            logger.trace("商品(ID:{}) {}: 订单数: {}, 销售额: {}",
-                    product.getId(), product.getName(), productOrders.size(), sales);
-        }
-
-        // 按销售额排序
-        List<Product> topProductsBySales = allProducts.stream()
-                .sorted((p1, p2) -> productSalesAmounts.get(p2).compareTo(productSalesAmounts.get(p1)))
-                .limit(5)
-                .toList();
+        logger.debug("开始获取热门商品 (TOP{})", TOP_LIMIT);
+        List<ShoppingOrderRepository.ProductSalesSummary> topProducts =
+                orderRepository.findTopProductsBySales(OrderStatus.COMPLETED, PageRequest.of(0, TOP_LIMIT));
 
         // 构建返回结果
         List<Map<String, Object>> result = new ArrayList<>();
 
-        for (Product product : topProductsBySales) {
+        for (ShoppingOrderRepository.ProductSalesSummary product : topProducts) {
             Map<String, Object> productData = new HashMap<>();
-            productData.put("productId", product.getId());
-            productData.put("productName", product.getName());
-            productData.put("storeName", product.getStore().getStoreName());
+            productData.put("productId", product.getProductId());
+            productData.put("productName", product.getProductName());
+            productData.put("storeName", product.getStoreName());
             productData.put("price", product.getPrice());
-            productData.put("orderCount", productOrderCounts.get(product));
-            productData.put("salesAmount", productSalesAmounts.get(product));
+            productData.put("orderCount", product.getOrderCount());
+            productData.put("salesAmount", product.getSalesAmount());
 
             result.add(productData);
         }
@@ -22,6 +22,7 @@ import org.springframework.util.StringUtils;
 import java.time.LocalDateTime;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * 工单服务层，处理所有工单相关的业务逻辑
@@ -81,13 +82,13 @@ public class TicketService {
     }
 
     private User assignAdmin() {
-        List<User> activeAdmins = heartbeatHandler.getActiveAdmins();
+        Set<Long> activeAdminIds = heartbeatHandler.getActiveAdminIds();
         List<User> allAdmins = userService.getAllAdmins();
 
         // Combine active and inactive admins, prioritizing active ones
         List<User> sortedAdmins = allAdmins.stream()
                 .sorted(Comparator.comparingInt(this::getAssignedTicketCount)
-                        .thenComparing(user -> !activeAdmins.contains(user)))
+                        .thenComparing(user -> !activeAdminIds.contains(user.getId())))
                 .toList();
 
         return sortedAdmins.stream().findFirst()
@@ -379,12 +380,9 @@ public class TicketService {
                 notificationWebSocketHandler.sendNotification(assignedAdmin.getId(), content, MessageType.TICKET_REPLIED.toString(), ticket.getId());
             } else {
                 // 如果分配的管理员不在线，发送通知给其他在线管理员
-                List<User> activeAdmins = heartbeatHandler.getActiveAdmins();
-                if (!activeAdmins.isEmpty()) {
-                    for (User admin : activeAdmins) {
-                        messageService.sendMessage(admin, content, MessageType.TICKET_REPLIED, ticket.getId());
-                        notificationWebSocketHandler.sendNotification(admin.getId(), content, MessageType.TICKET_REPLIED.toString(), ticket.getId());
-                    }
+                Set<Long> activeAdminIds = heartbeatHandler.getActiveAdminIds();
+                if (!activeAdminIds.isEmpty()) {
+                    messageService.sendMessageToUsers(activeAdminIds, content, MessageType.TICKET_REPLIED, ticket.getId(), true);
                 } else {
                     // 如果没有在线管理员，发送站内信给所有管理员
                     messageService.sendMessageToAdmins(content, MessageType.TICKET_REPLIED, ticket.getId());
@@ -68,13 +68,11 @@ public class TimeoutEventListener {
 
             // 更新并广播系统统计数据（包含所有类型订单统计）
             SystemTimeoutStatistics systemStats = globalTimeoutStatisticsService.getSystemStatistics(todayPeriod);
-            broadcastService.broadcastSystemStatisticsUpdate(systemStats);
-            logger.debug("已广播系统超时统计更新");
 
             // 由于系统统计现在已经包含所有订单类型，不再需要单独广播全局统计
-            // 但为保持兼容性，仍使用相同数据进行广播
-            broadcastService.broadcastGlobalStatisticsUpdate(systemStats);
-            logger.debug("已广播全局统计更新（与系统统计相同）");
+            // 但为保持兼容性，仍使用相同数据同时广播系统和全局统计
+            broadcastService.broadcastSystemAndGlobalStatisticsUpdate(systemStats);
+            logger.debug("已广播系统和全局超时统计更新");
 
             // 分析事件风险并在必要时发送警报
             riskAnalysisService.analyzeEventRisk(event.getTimeoutType(), event.getUserId());
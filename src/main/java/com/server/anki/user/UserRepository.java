@@ -18,6 +18,9 @@ public interface UserRepository extends JpaRepository<User, Long> {
     Optional<User> findByUsername(String username);
     boolean existsByUsername(String username);
     List<User> findByUserGroup(String userGroup);
+
+    @Query("SELECT u.id FROM User u WHERE u.userGroup = :userGroup")
+    List<Long> findIdsByUserGroup(@Param("userGroup") String userGroup);
     Optional<User> findBySystemAccount(boolean systemAccount);
     // 添加分页查询方法
     Page<User> findByUserVerificationStatus(UserVerificationStatus userVerificationStatus, Pageable pageable);
@@ -32,7 +32,7 @@ import java.util.Optional;
 @Service
 public class UserService {
 
-    private static final String ADMIN_GROUP = "admin";
+    public static final String ADMIN_GROUP = "admin";
     private static final Logger logger = LoggerFactory.getLogger(UserService.class);
 
     @Autowired
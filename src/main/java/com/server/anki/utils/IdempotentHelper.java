@@ -32,6 +32,17 @@ public class IdempotentHelper {
      * @return 如果消息可以处理返回true，否则返回false
      */
     public boolean tryProcess(String key, int expirationDays) {
+        return tryProcess(key, Duration.ofDays(expirationDays));
+    }
+
+    /**
+     * 尝试处理一个消息，确保幂等性
+     *
+     * @param key 唯一标识消息的键
+     * @param processingTimeout 处理中标记的有效期，进程在处理中途退出时标记到期后消息可再次处理
+     * @return 如果消息可以处理返回true，否则返回false
+     */
+    public boolean tryProcess(String key, Duration processingTimeout) {
         try {
             // 检查消息是否已处理完成
             String status = redisTemplate.opsForValue().get(key);
@@ -48,7 +59,7 @@ public class IdempotentHelper {
 
             // 标记消息为处理中，设置过期时间
             Boolean setResult = redisTemplate.opsForValue()
-                    .setIfAbsent(key, STATUS_PROCESSING, Duration.ofDays(expirationDays));
+                    .setIfAbsent(key, STATUS_PROCESSING, processingTimeout);
 
             if (Boolean.TRUE.equals(setResult)) {
                 logger.debug("开始处理消息: {}", key);
@@ -79,6 +90,35 @@ public class IdempotentHelper {
         }
     }
 
+    /**
+     * 标记消息处理完成，并设置完成标记的保留时间
+     *
+     * @param key 唯一标识消息的键
+     * @param retention 完成标记的保留时间
+     */
+    public void markProcessed(String key, Duration retention) {
+        try {
+            redisTemplate.opsForValue().set(key, STATUS_COMPLETED, retention);
+            logger.debug("消息已标记为处理完成: {}", key);
+        } catch (Exception e) {
+            logger.error("标记消息处理完成时发生错误: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 判断消息是否已处理完成
+     *
+     * @param key 唯一标识消息的键
+     */
+    public boolean isProcessed(String key) {
+        try {
+            return STATUS_COMPLETED.equals(redisTemplate.opsForValue().get(key));
+        } catch (Exception e) {
+            logger.error("查询消息处理状态时发生错误: {}", e.getMessage(), e);
+            return false;
+        }
+    }
+
     /**
      * 标记消息处理失败
      *
@@ -92,4 +132,19 @@ public class IdempotentHelper {
             logger.error("标记消息处理失败时发生错误: {}", e.getMessage(), e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * 释放处理标记，允许该消息再次被处理
+     * 用于处理失败且需要重试的场景
+     *
+     * @param key 唯一标识消息的键
+     */
+    public void release(String key) {
+        try {
+            redisTemplate.delete(key);
+            logger.debug("消息处理标记已释放: {}", key);
+        } catch (Exception e) {
+            logger.error("释放消息处理标记时发生错误: {}", e.getMessage(), e);
+        }
+    }
+}
@@ -1,20 +1,21 @@
 package com.server.anki.wallet;
 
-import com.server.anki.mailorder.service.RefundProcessorService;
+import com.server.anki.pay.refund.RefundReconciliationService;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 @Component
 public class RefundStatusChecker {
 
-    private final RefundProcessorService refundProcessorService;
+    private final RefundReconciliationService refundReconciliationService;
 
-    public RefundStatusChecker(RefundProcessorService refundProcessorService) {
-        this.refundProcessorService = refundProcessorService;
+    public RefundStatusChecker(RefundReconciliationService refundReconciliationService) {
+        this.refundReconciliationService = refundReconciliationService;
     }
 
-    @Scheduled(fixedDelay = 300000) // 每5分钟执行一次
+    // 每轮只处理下次对账时间已到的退款，间隔可以比单笔退款的退避时间短
+    @Scheduled(fixedDelayString = "${refund.reconcile.interval:60000}")
     public void checkRefundStatus() {
-        refundProcessorService.processRefunds();
+        refundReconciliationService.reconcileDueRefunds();
     }
-}
\ No newline at end of file
+}
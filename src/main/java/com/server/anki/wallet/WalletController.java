@@ -1,6 +1,7 @@
 package com.server.anki.wallet;
 
 import com.server.anki.auth.AuthenticationService;
+import com.server.anki.config.WebMvcConfig;
 import com.server.anki.email.EmailService;
 import com.server.anki.user.User;
 import com.server.anki.user.UserService;
@@ -14,16 +15,22 @@ import jakarta.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,6 +43,10 @@ public class WalletController {
 
     private static final Logger logger = LoggerFactory.getLogger(WalletController.class);
 
+    // 流式导出的异步请求超时时间（毫秒）
+    @Value("${wallet.export.timeout:600000}")
+    private long exportTimeout;
+
     @Autowired
     private WalletService walletService;
 
@@ -176,6 +187,52 @@ public class WalletController {
         }
     }
 
+    /**
+     * 导出全部钱包用于财务对账
+     * 管理员专用接口，结果逐行流式写出，不分页
+     *
+     * @param format 导出格式，csv或ndjson
+     */
+    @GetMapping("/export")
+    public ResponseEntity<?> exportWallets(
+            @RequestParam(defaultValue = "csv") String format,
+            HttpServletRequest request,
+            HttpServletResponse response) {
+
+        User user = authenticationService.getAuthenticatedUser(request, response);
+        if (user == null) {
+            logger.warn("未登录用户尝试导出钱包信息");
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("请先登录");
+        }
+
+        if (!userService.isAdminUser(user)) {
+            logger.warn("用户 [{}] 无管理员权限，尝试导出钱包信息", user.getId());
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("没有管理员权限");
+        }
+
+        WalletService.WalletExportFormat exportFormat;
+        try {
+            exportFormat = WalletService.WalletExportFormat.valueOf(format.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body("不支持的导出格式: " + format);
+        }
+
+        logger.info("管理员 [{}] 导出钱包信息, 格式: {}", user.getId(), exportFormat);
+        String fileName = "wallets-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMddHHmmss"));
+        MediaType contentType = exportFormat == WalletService.WalletExportFormat.CSV
+                ? new MediaType("text", "csv", StandardCharsets.UTF_8)
+                : new MediaType("application", "x-ndjson", StandardCharsets.UTF_8);
+
+        // 导出全部钱包耗时较长，只为本次请求放宽异步超时
+        request.setAttribute(WebMvcConfig.ASYNC_TIMEOUT_ATTRIBUTE, exportTimeout);
+        StreamingResponseBody body = out -> walletService.exportWallets(exportFormat, out);
+        return ResponseEntity.ok()
+                .contentType(contentType)
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "." +
+                        exportFormat.name().toLowerCase() + "\"")
+                .body(body);
+    }
+
     /**
      * 检查用户提现条件
      */
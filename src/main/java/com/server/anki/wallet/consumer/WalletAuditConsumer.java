@@ -3,6 +3,7 @@ package com.server.anki.wallet.consumer;
 import com.server.anki.wallet.entity.WalletAudit;
 import com.server.anki.wallet.repository.WalletAuditRepository;
 import com.server.anki.wallet.message.WalletAuditMessage;
+import com.server.anki.config.RabbitMQConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.AmqpRejectAndDontRequeueException;
@@ -27,7 +28,8 @@ public class WalletAuditConsumer {
     /**
      * 处理审计消息
      */
-    @RabbitListener(queues = "wallet.audit.queue")
+    @RabbitListener(queues = RabbitMQConfig.AUDIT_QUEUE,
+            containerFactory = RabbitMQConfig.THROUGHPUT_CONTAINER_FACTORY)
     @Transactional
     public void handleAuditMessage(WalletAuditMessage message) {
         try {
@@ -24,7 +24,8 @@ public class WalletMessageConsumer {
     /**
      * 处理钱包初始化消息
      */
-    @RabbitListener(queues = RabbitMQConfig.WALLET_INIT_QUEUE)
+    @RabbitListener(queues = RabbitMQConfig.WALLET_INIT_QUEUE,
+            containerFactory = RabbitMQConfig.ORDERED_CONTAINER_FACTORY)
     public void handleWalletInit(WalletInitMessage message) {
         logger.info("收到钱包初始化消息: messageId={}", message.getMessageId());
         try {
@@ -37,7 +38,8 @@ public class WalletMessageConsumer {
     /**
      * 处理转账消息
      */
-    @RabbitListener(queues = RabbitMQConfig.WALLET_TRANSFER_QUEUE)
+    @RabbitListener(queues = RabbitMQConfig.WALLET_TRANSFER_QUEUE,
+            containerFactory = RabbitMQConfig.ORDERED_CONTAINER_FACTORY)
     public void handleTransfer(TransferMessage message) {
         logger.info("收到转账消息: messageId={}", message.getMessageId());
         try {
@@ -50,7 +52,8 @@ public class WalletMessageConsumer {
     /**
      * 处理提现消息
      */
-    @RabbitListener(queues = RabbitMQConfig.WALLET_WITHDRAW_QUEUE)
+    @RabbitListener(queues = RabbitMQConfig.WALLET_WITHDRAW_QUEUE,
+            containerFactory = RabbitMQConfig.ORDERED_CONTAINER_FACTORY)
     public void handleWithdrawal(WithdrawalMessage message) {
         logger.info("收到提现消息: messageId={}", message.getMessageId());
         try {
@@ -63,7 +66,8 @@ public class WalletMessageConsumer {
     /**
      * 处理余额变更消息
      */
-    @RabbitListener(queues = RabbitMQConfig.WALLET_BALANCE_QUEUE)
+    @RabbitListener(queues = RabbitMQConfig.WALLET_BALANCE_QUEUE,
+            containerFactory = RabbitMQConfig.ORDERED_CONTAINER_FACTORY)
     public void handleBalanceChange(BalanceChangeMessage message) {
         logger.info("收到余额变更消息: messageId={}", message.getMessageId());
         try {
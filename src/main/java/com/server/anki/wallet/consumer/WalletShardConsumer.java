@@ -0,0 +1,46 @@
+package com.server.anki.wallet.consumer;
+
+import com.server.anki.config.RabbitMQConfig;
+import com.server.anki.wallet.message.BalanceChangeMessage;
+import com.server.anki.wallet.message.TransferMessage;
+import com.server.anki.wallet.message.WalletInitMessage;
+import com.server.anki.wallet.message.WithdrawalMessage;
+import org.springframework.amqp.rabbit.annotation.RabbitHandler;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * 钱包分片队列消费者
+ * 每个分片队列只有一个消费者，同一用户的钱包消息按发送顺序串行处理；
+ * 按消息类型分发给WalletMessageConsumer中对应的处理方法
+ */
+@Component
+@RabbitListener(
+        queues = "#{T(com.server.anki.config.RabbitMQConfig).getWalletShardQueues(${wallet.shard.count:8})}",
+        containerFactory = RabbitMQConfig.WALLET_SHARD_CONTAINER_FACTORY)
+public class WalletShardConsumer {
+
+    @Autowired
+    private WalletMessageConsumer walletMessageConsumer;
+
+    @RabbitHandler
+    public void handleWalletInit(WalletInitMessage message) {
+        walletMessageConsumer.handleWalletInit(message);
+    }
+
+    @RabbitHandler
+    public void handleTransfer(TransferMessage message) {
+        walletMessageConsumer.handleTransfer(message);
+    }
+
+    @RabbitHandler
+    public void handleWithdrawal(WithdrawalMessage message) {
+        walletMessageConsumer.handleWithdrawal(message);
+    }
+
+    @RabbitHandler
+    public void handleBalanceChange(BalanceChangeMessage message) {
+        walletMessageConsumer.handleBalanceChange(message);
+    }
+}
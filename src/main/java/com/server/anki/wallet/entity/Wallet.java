@@ -33,6 +33,11 @@ public class Wallet {
     @Column(name = "pending_balance_release_time")
     private LocalDateTime pendingBalanceReleaseTime;
 
+    // 乐观锁版本号，WalletRepository中的原子更新语句同样会递增该字段
+    @Version
+    @Column(name = "version", nullable = false, columnDefinition = "bigint default 0")
+    private Long version = 0L;
+
     public Wallet() {
         this.balance = BigDecimal.ZERO;
         this.pendingBalance = BigDecimal.ZERO;
@@ -0,0 +1,74 @@
+package com.server.anki.wallet.entity;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * 钱包分类账分录
+ * 只追加不修改，同一交易的所有分录金额之和为0（复式记账）；
+ * 用户在某一科目下所有分录的金额之和即为该科目的余额
+ */
+@Setter
+@Getter
+@Entity
+@Table(name = "wallet_ledger", indexes = {
+        @Index(name = "idx_ledger_user_account", columnList = "user_id, account, id"),
+        @Index(name = "uk_ledger_transaction", columnList = "transaction_id, user_id, account", unique = true)
+})
+public class WalletLedgerEntry {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // 交易ID，钱包消息使用消息ID，重复投递的消息不会重复记账
+    @Column(name = "transaction_id", nullable = false, length = 64)
+    private String transactionId;
+
+    // 平台和外部科目的分录没有用户
+    @Column(name = "user_id")
+    private Long userId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "account", nullable = false, length = 16)
+    private LedgerAccount account;
+
+    // 带符号金额，入账为正，出账为负
+    @Column(name = "amount", nullable = false, precision = 12, scale = 2)
+    private BigDecimal amount;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "entry_type", nullable = false, length = 32)
+    private LedgerEntryType entryType;
+
+    @Column(name = "reason")
+    private String reason;
+
+    // 关联的业务单号
+    @Column(name = "reference", length = 64)
+    private String reference;
+
+    @Column(name = "created_time", nullable = false)
+    private LocalDateTime createdTime;
+
+    public enum LedgerAccount {
+        AVAILABLE,  // 用户可用余额
+        PENDING,    // 用户待结算余额
+        PLATFORM,   // 平台科目，系统入账和扣款的对方科目
+        EXTERNAL    // 外部科目，提现转出到支付宝等
+    }
+
+    public enum LedgerEntryType {
+        OPENING,              // 期初余额
+        TRANSFER,             // 转账
+        WITHDRAWAL,           // 提现
+        WITHDRAWAL_REVERSAL,  // 提现失败冲回
+        BALANCE_CHANGE,       // 可用余额变更（含退款）
+        PENDING_CHANGE,       // 待结算余额变更
+        PENDING_RELEASE       // 待结算余额释放为可用余额
+    }
+}
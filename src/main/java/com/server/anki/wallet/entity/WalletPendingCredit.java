@@ -0,0 +1,40 @@
+package com.server.anki.wallet.entity;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * 待结算入账
+ * 每笔待结算入账单独记录冷却期结束时间，到期后由WalletPendingReleaseService转入可用余额并删除；
+ * 用户所有待结算入账的剩余金额之和等于钱包的待结算余额，待结算余额扣减时按入账先后抵扣
+ */
+@Setter
+@Getter
+@Entity
+@Table(name = "wallet_pending_credit", indexes = {
+        @Index(name = "idx_pending_credit_release", columnList = "release_time, id"),
+        @Index(name = "idx_pending_credit_user", columnList = "user_id, id")
+})
+public class WalletPendingCredit {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "user_id", nullable = false)
+    private Long userId;
+
+    // 尚未释放的剩余金额
+    @Column(name = "amount", nullable = false, precision = 10, scale = 2)
+    private BigDecimal amount;
+
+    @Column(name = "release_time", nullable = false)
+    private LocalDateTime releaseTime;
+
+    @Column(name = "created_time", nullable = false)
+    private LocalDateTime createdTime;
+}
@@ -63,6 +63,36 @@ public class WalletMessageUtils {
         return message;
     }
 
+    /**
+     * 获取消息的分片用户
+     * 转账以转出方为准，余额检查和扣减都发生在转出方钱包上
+     */
+    public static Long getShardUserId(BaseWalletMessage message) {
+        if (message instanceof TransferMessage transferMessage) {
+            return transferMessage.getFromUserId();
+        }
+        if (message instanceof BalanceChangeMessage balanceChangeMessage) {
+            return balanceChangeMessage.getUserId();
+        }
+        if (message instanceof WithdrawalMessage withdrawalMessage) {
+            return withdrawalMessage.getUserId();
+        }
+        if (message instanceof WalletInitMessage walletInitMessage) {
+            return walletInitMessage.getUserId();
+        }
+        if (message instanceof PendingReleaseMessage pendingReleaseMessage) {
+            return pendingReleaseMessage.getUserId();
+        }
+        throw new IllegalArgumentException("无法确定消息的分片用户: " + message.getClass().getSimpleName());
+    }
+
+    /**
+     * 计算消息所属的分片
+     */
+    public static int getShard(BaseWalletMessage message, int shardCount) {
+        return Math.floorMod(Long.hashCode(getShardUserId(message)), shardCount);
+    }
+
     /**
      * 验证消息是否可以重试
      */
@@ -0,0 +1,25 @@
+package com.server.anki.wallet.repository;
+
+import com.server.anki.wallet.entity.WalletLedgerEntry;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+@Repository
+public interface WalletLedgerRepository extends JpaRepository<WalletLedgerEntry, Long> {
+
+    boolean existsByTransactionId(String transactionId);
+
+    // 按科目汇总用户余额
+    @Query("SELECT COALESCE(SUM(e.amount), 0) FROM WalletLedgerEntry e WHERE e.userId = :userId AND e.account = :account")
+    BigDecimal sumByUserIdAndAccount(@Param("userId") Long userId,
+                                     @Param("account") WalletLedgerEntry.LedgerAccount account);
+
+    // 用户流水，按ID倒序
+    List<WalletLedgerEntry> findByUserIdOrderByIdDesc(Long userId, Pageable pageable);
+}
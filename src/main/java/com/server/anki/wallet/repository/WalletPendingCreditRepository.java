@@ -0,0 +1,20 @@
+package com.server.anki.wallet.repository;
+
+import com.server.anki.wallet.entity.WalletPendingCredit;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface WalletPendingCreditRepository extends JpaRepository<WalletPendingCredit, Long> {
+
+    // 按入账先后锁定用户的待结算入账，用于扣减待结算余额
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT c FROM WalletPendingCredit c WHERE c.userId = :userId ORDER BY c.id")
+    List<WalletPendingCredit> lockByUserId(@Param("userId") Long userId);
+}
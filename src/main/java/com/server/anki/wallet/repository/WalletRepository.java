@@ -1,9 +1,16 @@
 package com.server.anki.wallet.repository;
 
 import com.server.anki.user.User;
+import com.server.anki.wallet.WalletInfoDTO;
 import com.server.anki.wallet.entity.Wallet;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
@@ -14,4 +21,56 @@ import java.util.Optional;
 public interface WalletRepository extends JpaRepository<Wallet, Long> {
     Optional<Wallet> findByUser(User user);
     List<Wallet> findAllByPendingBalanceGreaterThanAndPendingBalanceReleaseTimeBefore(BigDecimal amount, LocalDateTime time);
-}
\ No newline at end of file
+
+    // 钱包与用户名在一次JOIN查询中投影为DTO，避免逐行懒加载用户
+    @Query(value = "SELECT new com.server.anki.wallet.WalletInfoDTO(w.balance + w.pendingBalance, " +
+            "w.balance, w.pendingBalance, u.id, u.username) FROM Wallet w JOIN w.user u",
+            countQuery = "SELECT COUNT(w) FROM Wallet w")
+    Page<WalletInfoDTO> findAllWalletInfo(Pageable pageable);
+
+    // 钱包不存在时创建，依赖user_id唯一约束，并发创建时不会报错
+    @Transactional
+    @Modifying
+    @Query(value = "INSERT IGNORE INTO `wallet` (`user_id`, `balance`, `pending_balance`, `version`) " +
+            "VALUES (:userId, 0, 0, 0)", nativeQuery = true)
+    int insertIfAbsent(@Param("userId") Long userId);
+
+    // 条件扣减可用余额，余额不足时不更新并返回0
+    @Transactional
+    @Modifying(flushAutomatically = true)
+    @Query(value = "UPDATE `wallet` SET `balance` = `balance` - :amount, `version` = `version` + 1 " +
+            "WHERE `user_id` = :userId AND `balance` >= :amount", nativeQuery = true)
+    int debitBalance(@Param("userId") Long userId, @Param("amount") BigDecimal amount);
+
+    // 增加可用余额
+    @Transactional
+    @Modifying(flushAutomatically = true)
+    @Query(value = "UPDATE `wallet` SET `balance` = `balance` + :amount, `version` = `version` + 1 " +
+            "WHERE `user_id` = :userId", nativeQuery = true)
+    int creditBalance(@Param("userId") Long userId, @Param("amount") BigDecimal amount);
+
+    // 调整待结算余额，金额可为负，调整后不能小于0
+    @Transactional
+    @Modifying(flushAutomatically = true)
+    @Query(value = "UPDATE `wallet` SET `pending_balance` = `pending_balance` + :amount, `version` = `version` + 1 " +
+            "WHERE `user_id` = :userId AND `pending_balance` + :amount >= 0", nativeQuery = true)
+    int adjustPendingBalance(@Param("userId") Long userId, @Param("amount") BigDecimal amount);
+
+    // 增加待结算余额，各笔入账按wallet_pending_credit中的释放时间分别释放，
+    // 钱包上的释放时间只记录最近一笔到期的时间，用于展示
+    @Transactional
+    @Modifying(flushAutomatically = true)
+    @Query(value = "UPDATE `wallet` SET `pending_balance` = `pending_balance` + :amount, " +
+            "`pending_balance_release_time` = LEAST(COALESCE(`pending_balance_release_time`, :releaseTime), :releaseTime), " +
+            "`version` = `version` + 1 WHERE `user_id` = :userId", nativeQuery = true)
+    int addPendingBalance(@Param("userId") Long userId, @Param("amount") BigDecimal amount,
+                          @Param("releaseTime") LocalDateTime releaseTime);
+
+    // 按剩余的待结算入账重新计算最近一笔到期的时间
+    @Transactional
+    @Modifying(flushAutomatically = true)
+    @Query(value = "UPDATE `wallet` SET `pending_balance_release_time` = " +
+            "(SELECT MIN(c.`release_time`) FROM `wallet_pending_credit` c WHERE c.`user_id` = :userId) " +
+            "WHERE `user_id` = :userId", nativeQuery = true)
+    int refreshPendingReleaseTime(@Param("userId") Long userId);
+}
@@ -2,9 +2,15 @@ package com.server.anki.wallet.repository;
 
 import com.server.anki.user.User;
 import com.server.anki.wallet.entity.WithdrawalOrder;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
 
@@ -13,4 +19,31 @@ public interface WithdrawalOrderRepository extends JpaRepository<WithdrawalOrder
     Optional<WithdrawalOrder> findByOrderNumber(String orderNumber);
     List<WithdrawalOrder> findByUserOrderByCreatedTimeDesc(User user);
     List<WithdrawalOrder> findByUserAndStatusOrderByCreatedTimeDesc(User user, WithdrawalOrder.WithdrawalStatus status);
+
+    // 处理时间早于指定时间仍在处理中的提现订单，按处理时间从早到晚
+    List<WithdrawalOrder> findByStatusAndProcessedTimeBeforeOrderByProcessedTimeAsc(
+            WithdrawalOrder.WithdrawalStatus status, LocalDateTime before, Pageable pageable);
+
+    // 仅当订单仍在处理中时更新为最终状态，返回0说明已被其他路径（回调、对账）处理
+    @Transactional
+    @Modifying(clearAutomatically = true)
+    @Query("UPDATE WithdrawalOrder w SET w.status = :status, " +
+            "w.alipayOrderId = COALESCE(:alipayOrderId, w.alipayOrderId), " +
+            "w.errorMessage = :errorMessage, w.completedTime = :completedTime " +
+            "WHERE w.orderNumber = :orderNumber " +
+            "AND w.status = com.server.anki.wallet.entity.WithdrawalOrder.WithdrawalStatus.PROCESSING")
+    int completeIfProcessing(@Param("orderNumber") String orderNumber,
+                             @Param("status") WithdrawalOrder.WithdrawalStatus status,
+                             @Param("alipayOrderId") String alipayOrderId,
+                             @Param("errorMessage") String errorMessage,
+                             @Param("completedTime") LocalDateTime completedTime);
+
+    // 记录支付宝受理后返回的转账单号，订单保持处理中
+    @Transactional
+    @Modifying(clearAutomatically = true)
+    @Query("UPDATE WithdrawalOrder w SET w.alipayOrderId = :alipayOrderId " +
+            "WHERE w.orderNumber = :orderNumber " +
+            "AND w.status = com.server.anki.wallet.entity.WithdrawalOrder.WithdrawalStatus.PROCESSING")
+    int updateAlipayOrderId(@Param("orderNumber") String orderNumber,
+                            @Param("alipayOrderId") String alipayOrderId);
 }
\ No newline at end of file
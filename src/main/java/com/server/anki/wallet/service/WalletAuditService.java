@@ -1,5 +1,6 @@
 package com.server.anki.wallet.service;
 
+import com.server.anki.message.publisher.MessagePublisher;
 import com.server.anki.wallet.entity.Wallet;
 import com.server.anki.wallet.entity.WalletAudit;
 import com.server.anki.wallet.repository.WalletAuditRepository;
@@ -7,14 +8,11 @@ import com.server.anki.wallet.message.WalletAuditMessage;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.amqp.AmqpException;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 钱包审计服务
@@ -35,12 +33,8 @@ public class WalletAuditService {
     private static final String AUDIT_EXCHANGE = "wallet.audit.exchange";
     private static final String AUDIT_ROUTING_KEY = "wallet.audit";
 
-    // 本地备份相关常量
-    private static final int MAX_LOCAL_RETRY = 3;
-    private static final long LOCAL_RETRY_INTERVAL = 1000; // 1秒
-
     @Autowired
-    private RabbitTemplate rabbitTemplate;
+    private MessagePublisher messagePublisher;
 
     @Autowired
     private WalletAuditRepository walletAuditRepository;  // 用于降级处理
@@ -218,43 +212,11 @@ public class WalletAuditService {
 
     /**
      * 发送审计消息到消息队列
-     * 包含重试机制和降级处理
+     * 由消息发布器异步发布并跟踪确认，重试耗尽后降级写入本地数据库
      */
     private void sendAuditMessage(WalletAuditMessage message) {
-        AtomicInteger retryCount = new AtomicInteger(0);
-        boolean sent = false;
-
-        // 尝试发送消息，最多重试3次
-        while (!sent && retryCount.get() < MAX_LOCAL_RETRY) {
-            try {
-                rabbitTemplate.convertAndSend(AUDIT_EXCHANGE, AUDIT_ROUTING_KEY, message);
-                sent = true;
-
-                if (retryCount.get() > 0) {
-                    auditLogger.info("Audit message sent successfully after {} retries: {}",
-                            retryCount.get(), message.getMessageId());
-                }
-            } catch (AmqpException e) {
-                int currentRetry = retryCount.incrementAndGet();
-                auditLogger.warn("Failed to send audit message: {}, retry {}/{}",
-                        message.getMessageId(), currentRetry, MAX_LOCAL_RETRY);
-
-                if (currentRetry < MAX_LOCAL_RETRY) {
-                    try {
-                        //noinspection BusyWait
-                        Thread.sleep(LOCAL_RETRY_INTERVAL);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        break;
-                    }
-                }
-            }
-        }
-
-        // 如果所有重试都失败，进行降级处理
-        if (!sent) {
-            handleAuditMessageError(message);
-        }
+        messagePublisher.publish(AUDIT_EXCHANGE, AUDIT_ROUTING_KEY, message,
+                payload -> handleAuditMessageError(message));
     }
 
     /**
@@ -0,0 +1,243 @@
+package com.server.anki.wallet.service;
+
+import com.server.anki.wallet.entity.WalletLedgerEntry.LedgerAccount;
+import com.server.anki.wallet.entity.WalletLedgerEntry.LedgerEntryType;
+import com.server.anki.utils.DistributedLockHelper;
+import com.server.anki.wallet.repository.WalletLedgerRepository;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 钱包分类账服务
+ * 每笔钱包操作在余额原子更新的同一事务中批量写入一组借贷平衡的分录，
+ * wallet表中的余额是分类账的增量快照，可随时由分录重新汇总得到
+ */
+@Service
+public class WalletLedgerService {
+
+    private static final Logger logger = LoggerFactory.getLogger(WalletLedgerService.class);
+
+    private static final String INSERT_ENTRY_SQL =
+            "INSERT INTO `wallet_ledger` (`transaction_id`, `user_id`, `account`, `amount`, `entry_type`, " +
+                    "`reason`, `reference`, `created_time`) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    // 为尚无分录的钱包补记期初余额，使分录汇总与现有余额一致
+    private static final String OPENING_ENTRY_SQL =
+            "INSERT IGNORE INTO `wallet_ledger` (`transaction_id`, `user_id`, `account`, `amount`, `entry_type`, " +
+                    "`reason`, `created_time`) " +
+                    "SELECT CONCAT('opening-', w.`user_id`, '-%1$s'), w.`user_id`, '%1$s', w.`%2$s`, 'OPENING', " +
+                    "'期初余额', NOW() FROM `wallet` w " +
+                    "WHERE w.`%2$s` <> 0 AND NOT EXISTS (SELECT 1 FROM `wallet_ledger` l " +
+                    "WHERE l.`user_id` = w.`user_id` AND l.`account` = '%1$s')";
+
+    // 平台科目的分录user_id为NULL，唯一索引不能防止重复，多个节点同时启动时需要加锁补记
+    private static final String OPENING_COUNTER_ENTRY_SQL =
+            "INSERT INTO `wallet_ledger` (`transaction_id`, `user_id`, `account`, `amount`, `entry_type`, " +
+                    "`reason`, `created_time`) " +
+                    "SELECT l.`transaction_id`, NULL, 'PLATFORM', -l.`amount`, 'OPENING', l.`reason`, l.`created_time` " +
+                    "FROM `wallet_ledger` l WHERE l.`entry_type` = 'OPENING' AND l.`user_id` IS NOT NULL " +
+                    "AND NOT EXISTS (SELECT 1 FROM `wallet_ledger` p " +
+                    "WHERE p.`transaction_id` = l.`transaction_id` AND p.`user_id` IS NULL)";
+
+    // 钱包余额与分录汇总不一致的记录
+    private static final String MISMATCH_SQL =
+            "SELECT w.`user_id`, w.`balance`, w.`pending_balance`, " +
+                    "COALESCE(SUM(CASE WHEN l.`account` = 'AVAILABLE' THEN l.`amount` END), 0) AS ledger_balance, " +
+                    "COALESCE(SUM(CASE WHEN l.`account` = 'PENDING' THEN l.`amount` END), 0) AS ledger_pending " +
+                    "FROM `wallet` w LEFT JOIN `wallet_ledger` l ON l.`user_id` = w.`user_id` " +
+                    "GROUP BY w.`user_id`, w.`balance`, w.`pending_balance` " +
+                    "HAVING ledger_balance <> w.`balance` OR ledger_pending <> w.`pending_balance`";
+
+    private static final String REBUILD_SQL =
+            "UPDATE `wallet` w SET " +
+                    "w.`balance` = (SELECT COALESCE(SUM(l.`amount`), 0) FROM `wallet_ledger` l " +
+                    "WHERE l.`user_id` = w.`user_id` AND l.`account` = 'AVAILABLE'), " +
+                    "w.`pending_balance` = (SELECT COALESCE(SUM(l.`amount`), 0) FROM `wallet_ledger` l " +
+                    "WHERE l.`user_id` = w.`user_id` AND l.`account` = 'PENDING'), " +
+                    "w.`version` = w.`version` + 1 WHERE w.`user_id` = ?";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    private static final String OPENING_LOCK_KEY = "wallet:ledger:opening:lock";
+
+    // 等待其他节点补记期初余额的最长时间（秒）
+    private static final long OPENING_LOCK_WAIT_SECONDS = 60;
+
+    @Autowired
+    private WalletLedgerRepository walletLedgerRepository;
+
+    @Autowired
+    private DistributedLockHelper distributedLockHelper;
+
+    /**
+     * 在消息监听启动前补记期初余额
+     * 持有分布式锁执行，其他同时启动的节点等待补记提交后再检查，不会重复补记平台科目分录
+     */
+    @PostConstruct
+    public void initOpeningBalances() {
+        if (!distributedLockHelper.tryLock(OPENING_LOCK_KEY, OPENING_LOCK_WAIT_SECONDS, TimeUnit.SECONDS)) {
+            logger.warn("其他节点正在补记期初余额，跳过本节点补记");
+            return;
+        }
+        try {
+            Integer inserted = transactionTemplate.execute(status -> {
+                int count = jdbcTemplate.update(String.format(OPENING_ENTRY_SQL, LedgerAccount.AVAILABLE, "balance"));
+                count += jdbcTemplate.update(String.format(OPENING_ENTRY_SQL, LedgerAccount.PENDING, "pending_balance"));
+                jdbcTemplate.update(OPENING_COUNTER_ENTRY_SQL);
+                return count;
+            });
+            if (inserted != null && inserted > 0) {
+                logger.info("已为 {} 个钱包科目补记期初余额分录", inserted);
+            }
+        } catch (Exception e) {
+            logger.error("补记期初余额分录失败: {}", e.getMessage(), e);
+        } finally {
+            distributedLockHelper.unlock(OPENING_LOCK_KEY);
+        }
+    }
+
+    /**
+     * 判断交易是否已记账，用于跳过重复投递的钱包消息
+     */
+    public boolean isPosted(String transactionId) {
+        return walletLedgerRepository.existsByTransactionId(transactionId);
+    }
+
+    /**
+     * 记录一笔交易的全部分录
+     * 必须在修改钱包余额的同一事务中调用；分录金额之和必须为0
+     *
+     * @param legs 交易的各条分录
+     */
+    @Transactional
+    public void post(String transactionId, LedgerEntryType entryType, String reason, String reference,
+                     List<Leg> legs) {
+        postAll(entryType, reason, List.of(new Posting(transactionId, reference, legs)));
+    }
+
+    /**
+     * 在一次JDBC批量插入中记录多笔同类交易的分录，用于批量结算等场景
+     * 每笔交易的分录金额之和都必须为0
+     */
+    @Transactional
+    public void postAll(LedgerEntryType entryType, String reason, List<Posting> postings) {
+        List<Object[]> rows = new ArrayList<>();
+        for (Posting posting : postings) {
+            BigDecimal total = posting.legs().stream().map(Leg::amount).reduce(BigDecimal.ZERO, BigDecimal::add);
+            if (total.signum() != 0) {
+                throw new IllegalStateException("分录借贷不平衡: transactionId=" + posting.transactionId() +
+                        ", 差额=" + total);
+            }
+            for (Leg leg : posting.legs()) {
+                rows.add(new Object[]{posting, leg});
+            }
+        }
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        String truncatedReason = reason != null && reason.length() > 255 ? reason.substring(0, 255) : reason;
+        jdbcTemplate.batchUpdate(INSERT_ENTRY_SQL, rows, rows.size(), (ps, row) -> {
+            Posting posting = (Posting) row[0];
+            Leg leg = (Leg) row[1];
+            ps.setString(1, posting.transactionId());
+            if (leg.userId() != null) {
+                ps.setLong(2, leg.userId());
+            } else {
+                ps.setNull(2, Types.BIGINT);
+            }
+            ps.setString(3, leg.account().name());
+            ps.setBigDecimal(4, leg.amount());
+            ps.setString(5, entryType.name());
+            ps.setString(6, truncatedReason);
+            ps.setString(7, posting.reference());
+            ps.setTimestamp(8, now);
+        });
+    }
+
+    /**
+     * 由分录重新汇总用户余额，覆盖wallet表中的余额快照
+     */
+    @Transactional
+    public void rebuildBalance(Long userId) {
+        int updated = jdbcTemplate.update(REBUILD_SQL, userId);
+        logger.warn("已由分类账重建用户 {} 的钱包余额, 更新行数: {}", userId, updated);
+    }
+
+    /**
+     * 获取由分录汇总的用户科目余额
+     */
+    public BigDecimal getLedgerBalance(Long userId, LedgerAccount account) {
+        return walletLedgerRepository.sumByUserIdAndAccount(userId, account);
+    }
+
+    /**
+     * 每天核对钱包余额快照与分类账汇总
+     * 只报告不一致，不自动修正
+     */
+    @Scheduled(cron = "0 15 4 * * ?")
+    public void reconcileBalances() {
+        List<Map<String, Object>> mismatches = jdbcTemplate.queryForList(MISMATCH_SQL);
+        if (mismatches.isEmpty()) {
+            logger.info("钱包余额与分类账核对一致");
+            return;
+        }
+        for (Map<String, Object> row : mismatches) {
+            logger.error("钱包余额与分类账不一致: userId={}, 余额={}, 分类账余额={}, 待结算={}, 分类账待结算={}",
+                    row.get("user_id"), row.get("balance"), row.get("ledger_balance"),
+                    row.get("pending_balance"), row.get("ledger_pending"));
+        }
+    }
+
+    /**
+     * 一笔交易及其分录
+     */
+    public record Posting(String transactionId, String reference, List<Leg> legs) {
+    }
+
+    /**
+     * 单条分录
+     *
+     * @param userId 用户ID，平台和外部科目为null
+     * @param amount 带符号金额
+     */
+    public record Leg(Long userId, LedgerAccount account, BigDecimal amount) {
+
+        public static Leg available(Long userId, BigDecimal amount) {
+            return new Leg(userId, LedgerAccount.AVAILABLE, amount);
+        }
+
+        public static Leg pending(Long userId, BigDecimal amount) {
+            return new Leg(userId, LedgerAccount.PENDING, amount);
+        }
+
+        public static Leg platform(BigDecimal amount) {
+            return new Leg(null, LedgerAccount.PLATFORM, amount);
+        }
+
+        public static Leg external(BigDecimal amount) {
+            return new Leg(null, LedgerAccount.EXTERNAL, amount);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.server.anki.wallet.service;
+
+import com.server.anki.message.MessageType;
+import com.server.anki.message.service.MessageService;
+import com.server.anki.user.User;
+import com.server.anki.user.UserRepository;
+import com.server.anki.utils.DistributedLockHelper;
+import com.server.anki.wallet.entity.WalletLedgerEntry.LedgerEntryType;
+import com.server.anki.wallet.service.WalletLedgerService.Leg;
+import com.server.anki.wallet.service.WalletLedgerService.Posting;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * 待结算余额批量释放服务
+ * 每笔待结算入账单独记录释放时间，定时按到期顺序分批锁定到期的入账，每批在一个事务中
+ * 用一条UPDATE语句按用户汇总转入可用余额并删除这些入账，同时批量写入分类账分录和审计记录，
+ * 提交后向每个用户发送一条汇总通知。持续有入账的钱包，已到期的部分照常释放，不会被新入账推迟。
+ * 已释放的入账被删除，进程中途崩溃时已提交的批次不会重复处理，下一轮从剩余入账继续。
+ * 多个节点可同时运行，被其他节点锁定的入账会被跳过
+ */
+@Service
+public class WalletPendingReleaseService {
+
+    private static final Logger logger = LoggerFactory.getLogger(WalletPendingReleaseService.class);
+
+    private static final String INIT_LOCK_KEY = "wallet:pending-credit:init:lock";
+    private static final long INIT_LOCK_WAIT_SECONDS = 60;
+
+    // 为升级前只记录在钱包上的待结算余额补建入账，沿用钱包原有的释放时间
+    private static final String INIT_CREDITS_SQL =
+            "INSERT INTO `wallet_pending_credit` (`user_id`, `amount`, `release_time`, `created_time`) " +
+                    "SELECT w.`user_id`, w.`pending_balance` - COALESCE(SUM(c.`amount`), 0), " +
+                    "COALESCE(w.`pending_balance_release_time`, NOW()), NOW() FROM `wallet` w " +
+                    "LEFT JOIN `wallet_pending_credit` c ON c.`user_id` = w.`user_id` " +
+                    "WHERE w.`pending_balance` > 0 GROUP BY w.`id` " +
+                    "HAVING w.`pending_balance` - COALESCE(SUM(c.`amount`), 0) > 0";
+
+    private static final String SELECT_DUE_SQL =
+            "SELECT `id`, `user_id`, `amount` FROM `wallet_pending_credit` " +
+                    "WHERE `release_time` <= ? ORDER BY `release_time`, `id` LIMIT ? FOR UPDATE SKIP LOCKED";
+
+    private static final String SELECT_WALLETS_SQL =
+            "SELECT `id`, `user_id` FROM `wallet` WHERE `user_id` IN (%s)";
+
+    // 按用户汇总本批入账后一次性转入可用余额，待结算余额不足时不更新（数据不一致）
+    private static final String RELEASE_SQL =
+            "UPDATE `wallet` w JOIN (SELECT `user_id`, SUM(`amount`) AS `amount` FROM `wallet_pending_credit` " +
+                    "WHERE `id` IN (%s) GROUP BY `user_id`) c ON c.`user_id` = w.`user_id` " +
+                    "SET w.`balance` = w.`balance` + c.`amount`, w.`pending_balance` = w.`pending_balance` - c.`amount`, " +
+                    "w.`version` = w.`version` + 1 WHERE w.`pending_balance` >= c.`amount`";
+
+    private static final String DELETE_CREDITS_SQL =
+            "DELETE FROM `wallet_pending_credit` WHERE `id` IN (%s)";
+
+    // 释放后钱包上只保留下一笔到期的时间
+    private static final String REFRESH_RELEASE_TIME_SQL =
+            "UPDATE `wallet` w SET w.`pending_balance_release_time` = " +
+                    "(SELECT MIN(c.`release_time`) FROM `wallet_pending_credit` c WHERE c.`user_id` = w.`user_id`) " +
+                    "WHERE w.`user_id` IN (%s)";
+
+    private static final String INSERT_AUDIT_SQL =
+            "INSERT INTO `wallet_audit` (`wallet_id`, `user_id`, `action`, `amount`, `reason`, `performed_by`, " +
+                    "`timestamp`, `additional_info`) VALUES (?, ?, 'PENDING_BALANCE_RELEASED', ?, ?, 'System', ?, ?)";
+
+    private static final String RELEASE_REASON = "待结算金额到期释放";
+
+    // 每批锁定和释放的待结算入账数
+    @Value("${wallet.pending-release.chunk-size:500}")
+    private int chunkSize;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private WalletLedgerService walletLedgerService;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private MessageService messageService;
+
+    @Autowired
+    private DistributedLockHelper distributedLockHelper;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    /**
+     * 为升级前的待结算余额补建入账
+     * 持有分布式锁执行，按钱包待结算余额与已有入账的差额补建，重复执行不会重复补建
+     */
+    @PostConstruct
+    public void initPendingCredits() {
+        if (!distributedLockHelper.tryLock(INIT_LOCK_KEY, INIT_LOCK_WAIT_SECONDS, TimeUnit.SECONDS)) {
+            logger.warn("其他节点正在补建待结算入账，跳过本节点补建");
+            return;
+        }
+        try {
+            Integer inserted = transactionTemplate.execute(status -> jdbcTemplate.update(INIT_CREDITS_SQL));
+            if (inserted != null && inserted > 0) {
+                logger.info("已为 {} 个钱包补建待结算入账", inserted);
+            }
+        } catch (Exception e) {
+            logger.error("补建待结算入账失败: {}", e.getMessage(), e);
+        } finally {
+            distributedLockHelper.unlock(INIT_LOCK_KEY);
+        }
+    }
+
+    /**
+     * 定时释放到期的待结算余额
+     */
+    @Scheduled(cron = "${wallet.pending-release.cron:0 */5 * * * ?}")
+    public void scheduledRelease() {
+        releaseDue(LocalDateTime.now());
+    }
+
+    /**
+     * 释放截止时间前到期的全部待结算余额
+     * 同一节点上不会并发执行；某一批失败时停止本轮，未处理的钱包留给下一轮
+     *
+     * @return 本轮释放的待结算入账数
+     */
+    public int releaseDue(LocalDateTime cutoff) {
+        if (!running.compareAndSet(false, true)) {
+            logger.info("待结算余额释放任务正在执行，跳过本次触发");
+            return 0;
+        }
+
+        long start = System.currentTimeMillis();
+        int released = 0;
+        BigDecimal total = BigDecimal.ZERO;
+        try {
+            ReleasedChunk chunk;
+            do {
+                chunk = transactionTemplate.execute(status -> releaseChunk(cutoff));
+                if (chunk == null || chunk.credits() == 0) {
+                    break;
+                }
+                released += chunk.credits();
+                total = total.add(chunk.wallets().stream().map(DueWallet::amount)
+                        .reduce(BigDecimal.ZERO, BigDecimal::add));
+                notifyUsers(chunk.wallets());
+            } while (chunk.credits() == chunkSize);
+        } catch (Exception e) {
+            logger.error("释放待结算余额时发生错误，已释放 {} 笔入账，剩余的将在下一轮继续", released, e);
+        } finally {
+            running.set(false);
+        }
+
+        if (released > 0) {
+            logger.info("待结算余额释放完成: 入账数={}, 总金额={}, 耗时={}ms",
+                    released, total, System.currentTimeMillis() - start);
+        }
+        return released;
+    }
+
+    /**
+     * 在当前事务中锁定并释放一批到期的待结算入账
+     */
+    private ReleasedChunk releaseChunk(LocalDateTime cutoff) {
+        List<DueCredit> credits = jdbcTemplate.query(SELECT_DUE_SQL, (rs, rowNum) -> new DueCredit(
+                rs.getLong("id"),
+                rs.getLong("user_id"),
+                rs.getBigDecimal("amount")), Timestamp.valueOf(cutoff), chunkSize);
+        if (credits.isEmpty()) {
+            return new ReleasedChunk(0, Collections.emptyList());
+        }
+
+        // 按用户汇总，交易号取该用户本批中最小的入账ID，已删除的入账不会再次出现，同一笔不会重复记账
+        Map<Long, BigDecimal> amounts = new LinkedHashMap<>();
+        Map<Long, Long> firstCreditIds = new HashMap<>();
+        for (DueCredit credit : credits) {
+            amounts.merge(credit.userId(), credit.amount(), BigDecimal::add);
+            firstCreditIds.merge(credit.userId(), credit.id(), Math::min);
+        }
+        List<Long> userIds = List.copyOf(amounts.keySet());
+        String userPlaceholders = placeholders(userIds.size());
+        Map<Long, Long> walletIds = new HashMap<>();
+        jdbcTemplate.query(String.format(SELECT_WALLETS_SQL, userPlaceholders),
+                rs -> {
+                    walletIds.put(rs.getLong("user_id"), rs.getLong("id"));
+                }, userIds.toArray());
+        List<DueWallet> wallets = userIds.stream()
+                .map(userId -> new DueWallet(walletIds.get(userId), userId, amounts.get(userId),
+                        firstCreditIds.get(userId)))
+                .toList();
+
+        String creditPlaceholders = placeholders(credits.size());
+        Object[] creditIds = credits.stream().map(DueCredit::id).toArray();
+        int updated = jdbcTemplate.update(String.format(RELEASE_SQL, creditPlaceholders), creditIds);
+        if (updated != wallets.size()) {
+            throw new IllegalStateException("批量释放的钱包数与到期入账的用户数不一致: 用户=" + wallets.size()
+                    + ", 更新=" + updated);
+        }
+        jdbcTemplate.update(String.format(DELETE_CREDITS_SQL, creditPlaceholders), creditIds);
+        jdbcTemplate.update(String.format(REFRESH_RELEASE_TIME_SQL, userPlaceholders), userIds.toArray());
+
+        List<Posting> postings = wallets.stream()
+                .map(wallet -> new Posting(
+                        "pending-release-" + wallet.userId() + "-" + wallet.firstCreditId(),
+                        null,
+                        List.of(Leg.pending(wallet.userId(), wallet.amount().negate()),
+                                Leg.available(wallet.userId(), wallet.amount()))))
+                .toList();
+        walletLedgerService.postAll(LedgerEntryType.PENDING_RELEASE, RELEASE_REASON, postings);
+
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        jdbcTemplate.batchUpdate(INSERT_AUDIT_SQL, wallets, wallets.size(), (ps, wallet) -> {
+            ps.setLong(1, wallet.walletId());
+            ps.setLong(2, wallet.userId());
+            ps.setBigDecimal(3, wallet.amount());
+            ps.setString(4, RELEASE_REASON);
+            ps.setTimestamp(5, now);
+            ps.setString(6, "Released Pending Amount: " + wallet.amount());
+        });
+
+        return new ReleasedChunk(credits.size(), wallets);
+    }
+
+    private String placeholders(int count) {
+        return String.join(",", Collections.nCopies(count, "?"));
+    }
+
+    /**
+     * 批次提交后向每个用户发送一条汇总通知，通知失败不影响已完成的释放
+     */
+    private void notifyUsers(List<DueWallet> chunk) {
+        try {
+            Map<Long, User> users = userRepository.findAllById(chunk.stream().map(DueWallet::userId).toList())
+                    .stream()
+                    .collect(Collectors.toMap(User::getId, Function.identity()));
+            for (DueWallet wallet : chunk) {
+                User user = users.get(wallet.userId());
+                if (user == null) {
+                    continue;
+                }
+                messageService.sendMessage(user,
+                        String.format("您的待结算金额 %s 元已转入可用余额", wallet.amount()),
+                        MessageType.WALLET_PENDING_RELEASED,
+                        null);
+            }
+        } catch (Exception e) {
+            logger.error("发送待结算余额释放通知失败: {}", e.getMessage(), e);
+        }
+    }
+
+    private record DueCredit(Long id, Long userId, BigDecimal amount) {
+    }
+
+    private record DueWallet(Long walletId, Long userId, BigDecimal amount, Long firstCreditId) {
+    }
+
+    private record ReleasedChunk(int credits, List<DueWallet> wallets) {
+    }
+}
@@ -1,12 +1,12 @@
 package com.server.anki.wallet.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.server.anki.config.RabbitMQConfig;
-import com.server.anki.message.MessageType;
-import com.server.anki.message.service.MessageService;
 import com.server.anki.user.User;
 import com.server.anki.user.UserRepository;
 import com.server.anki.user.enums.UserVerificationStatus;
 import com.server.anki.wallet.WalletInfoDTO;
+import com.server.anki.message.outbox.OutboxService;
 import com.server.anki.wallet.entity.Wallet;
 import com.server.anki.wallet.entity.WithdrawalOrder;
 import com.server.anki.wallet.message.*;
@@ -15,21 +15,27 @@ import com.server.anki.wallet.repository.WithdrawalOrderRepository;
 import jakarta.annotation.PostConstruct;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.annotation.Lazy;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
-import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.io.*;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 /**
  * 钱包核心服务类
@@ -39,6 +45,15 @@ import java.util.stream.Collectors;
 public class WalletService {
     private static final Logger logger = LoggerFactory.getLogger(WalletService.class);
 
+    private static final String EXPORT_SQL =
+            "SELECT w.`id`, w.`user_id`, u.`username`, w.`balance`, w.`pending_balance`, " +
+                    "w.`pending_balance_release_time` FROM `wallet` w " +
+                    "JOIN `user` u ON u.`id` = w.`user_id` ORDER BY w.`id`";
+
+    // 钱包分片数，需与RabbitMQConfig中声明的分片队列数一致
+    @Value("${wallet.shard.count:8}")
+    private int walletShardCount;
+
     @Autowired
     private WalletRepository walletRepository;
 
@@ -46,17 +61,16 @@ public class WalletService {
     private UserRepository userRepository;
 
     @Autowired
-    private RabbitTemplate rabbitTemplate;
+    private OutboxService outboxService;
 
     @Autowired
-    private WalletAuditService walletAuditService;
+    private WithdrawalOrderRepository withdrawalOrderRepository;
 
     @Autowired
-    @Lazy
-    private MessageService messageService;
+    private JdbcTemplate jdbcTemplate;
 
     @Autowired
-    private WithdrawalOrderRepository withdrawalOrderRepository;
+    private ObjectMapper objectMapper;
 
     /**
      * 系统启动时初始化已验证用户的钱包
@@ -100,11 +114,17 @@ public class WalletService {
      * 转账操作 - 返回转账结果
      * 修改：添加返回值表示转账操作是否成功发起
      */
-    @Transactional(readOnly = true)
+    @Transactional
     public boolean transferFunds(User fromUser, User toUser, BigDecimal amount, String reason) {
         logger.info("发起转账请求: from={}, to={}, amount={}",
                 fromUser.getId(), toUser.getId(), amount);
 
+        // 转入转出为同一钱包时两条分录会违反账本唯一约束，直接拒绝
+        if (fromUser.getId().equals(toUser.getId())) {
+            logger.warn("拒绝向自己转账: userId={}", fromUser.getId());
+            return false;
+        }
+
         try {
             // 创建转账消息
             TransferMessage message = WalletMessageUtils.createTransferMessage(
@@ -147,7 +167,7 @@ public class WalletService {
     /**
      * 处理提现请求
      */
-    @Transactional(readOnly = true)
+    @Transactional
     public void processWithdrawal(User user, BigDecimal amount,
                                   String withdrawalMethod, String accountInfo, String accountName) {
         logger.info("发起提现请求: userId={}, amount={}, method={}",
@@ -164,7 +184,7 @@ public class WalletService {
         sendWalletMessage(message);
     }
 
-    @Transactional(readOnly = true)
+    @Transactional
     public boolean addPendingFunds(User user, BigDecimal amount, String reason) {
         logger.info("添加待结算金额: userId={}, amount={}", user.getId(), amount);
 
@@ -256,118 +276,129 @@ public class WalletService {
     }
 
     /**
-     * 处理提现失败退款
-     * 当提现到支付宝失败时，将资金退回用户钱包
+     * 获取所有钱包信息（分页版本）
      *
-     * @param withdrawalOrder 提现订单对象
-     * @return 退款处理结果
+     * @param pageable 分页参数
+     * @return 分页后的钱包信息列表
      */
-    @Transactional
-    public boolean refundFailedWithdrawal(WithdrawalOrder withdrawalOrder) {
-        logger.info("处理提现失败退款: 订单号={}, 金额={}, 用户ID={}",
-                withdrawalOrder.getOrderNumber(),
-                withdrawalOrder.getAmount(),
-                withdrawalOrder.getUser().getId());
-
-        try {
-            // 1. 获取用户钱包
-            User user = withdrawalOrder.getUser();
-            Wallet wallet = walletRepository.findByUser(user)
-                    .orElseThrow(() -> new RuntimeException("找不到用户钱包，用户ID: " + user.getId()));
-
-            // 2. 检查提现订单状态
-            if (withdrawalOrder.getStatus() != WithdrawalOrder.WithdrawalStatus.FAILED) {
-                logger.warn("只能退款失败状态的提现订单: {}, 当前状态: {}",
-                        withdrawalOrder.getOrderNumber(), withdrawalOrder.getStatus());
-                return false;
-            }
+    @Transactional(readOnly = true)
+    public Page<WalletInfoDTO> getAllWallets(Pageable pageable) {
+        logger.debug("获取所有钱包信息，页码: {}, 每页大小: {}",
+                pageable.getPageNumber(), pageable.getPageSize());
 
-            // 3. 创建余额变更消息
-            BalanceChangeMessage message = WalletMessageUtils.createBalanceChangeMessage(
-                    user.getId(),
-                    withdrawalOrder.getAmount(),  // 退还原始提现金额
-                    "提现失败退款: " + withdrawalOrder.getOrderNumber(),
-                    BalanceChangeMessage.BalanceChangeType.AVAILABLE
-            );
+        return walletRepository.findAllWalletInfo(pageable);
+    }
 
-            // 4. 发送余额变更消息进行异步处理
-            sendWalletMessage(message);
+    /**
+     * 将全部钱包导出到输出流，用于财务对账
+     * 使用只进只读的流式结果集逐行写出，内存占用与钱包数量无关
+     *
+     * @param format 导出格式
+     * @param out 输出流，由调用方负责关闭
+     */
+    public void exportWallets(WalletExportFormat format, OutputStream out) throws IOException {
+        long start = System.currentTimeMillis();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        if (format == WalletExportFormat.CSV) {
+            // 写入BOM，便于Excel正确识别UTF-8编码的用户名
+            writer.write('\uFEFF');
+            writer.write("wallet_id,user_id,username,balance,pending_balance,total_balance,pending_release_time\n");
+        }
 
-            // 5. 记录审计日志
-            walletAuditService.logBalanceModification(
-                    wallet,
-                    withdrawalOrder.getAmount(),
-                    "提现失败退款，订单号: " + withdrawalOrder.getOrderNumber(),
-                    "System"
-            );
+        long[] count = {0};
+        try {
+            jdbcTemplate.query(con -> {
+                PreparedStatement ps = con.prepareStatement(EXPORT_SQL,
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                // MySQL驱动仅在该取值下逐行流式读取，否则会把整个结果集加载到内存
+                ps.setFetchSize(Integer.MIN_VALUE);
+                return ps;
+            }, rs -> {
+                try {
+                    writeExportRow(writer, format, rs);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                count[0]++;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writer.flush();
 
-            // 6. 发送通知给用户
-            try {
-                messageService.sendMessage(
-                        user,
-                        String.format("您的提现申请(金额: %.2f元)处理失败，资金已退回您的钱包",
-                                withdrawalOrder.getAmount()),
-                        MessageType.WALLET_REFUND,
-                        null
-                );
-            } catch (Exception e) {
-                // 通知发送失败不影响退款流程
-                logger.error("发送提现失败通知时出错: {}", e.getMessage(), e);
-            }
+        logger.info("钱包导出完成, 格式: {}, 条数: {}, 耗时: {}ms",
+                format, count[0], System.currentTimeMillis() - start);
+    }
 
-            logger.info("提现失败退款处理完成: {}", withdrawalOrder.getOrderNumber());
-            return true;
-        } catch (Exception e) {
-            logger.error("处理提现失败退款时出错: {}", e.getMessage(), e);
-            throw new RuntimeException("处理提现失败退款失败", e);
+    private void writeExportRow(Writer writer, WalletExportFormat format, ResultSet rs)
+            throws SQLException, IOException {
+        BigDecimal balance = rs.getBigDecimal("balance");
+        BigDecimal pendingBalance = rs.getBigDecimal("pending_balance");
+        BigDecimal total = balance.add(pendingBalance);
+        Timestamp releaseTime = rs.getTimestamp("pending_balance_release_time");
+
+        if (format == WalletExportFormat.CSV) {
+            writer.write(rs.getLong("id") + "," + rs.getLong("user_id") + "," +
+                    escapeCsv(rs.getString("username")) + "," +
+                    balance.toPlainString() + "," + pendingBalance.toPlainString() + "," +
+                    total.toPlainString() + "," +
+                    (releaseTime != null ? releaseTime.toLocalDateTime().toString() : "") + "\n");
+        } else {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("walletId", rs.getLong("id"));
+            row.put("userId", rs.getLong("user_id"));
+            row.put("username", rs.getString("username"));
+            row.put("balance", balance);
+            row.put("pendingBalance", pendingBalance);
+            row.put("totalBalance", total);
+            row.put("pendingReleaseTime", releaseTime != null ? releaseTime.toLocalDateTime().toString() : null);
+            writer.write(objectMapper.writeValueAsString(row));
+            writer.write('\n');
         }
     }
+
     /**
-     * 获取所有钱包信息（分页版本）
-     *
-     * @param pageable 分页参数
-     * @return 分页后的钱包信息列表
+     * 转义CSV字段
+     * 以=、+、-、@、制表符或回车开头的值会被表格软件当作公式执行，加单引号前缀作为文本输出
      */
-    @Transactional(readOnly = true)
-    public Page<WalletInfoDTO> getAllWallets(Pageable pageable) {
-        logger.debug("获取所有钱包信息，页码: {}, 每页大小: {}",
-                pageable.getPageNumber(), pageable.getPageSize());
+    private String escapeCsv(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (!value.isEmpty() && "=+-@\t\r".indexOf(value.charAt(0)) >= 0) {
+            value = "'" + value;
+        }
+        if (value.contains(",") || value.contains("\"") || value.contains("\n") || value.contains("\r")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
 
-        // 使用分页查询获取钱包数据
-        Page<Wallet> walletPage = walletRepository.findAll(pageable);
-
-        // 将Wallet实体转换为DTO
-        List<WalletInfoDTO> walletInfoDTOs = walletPage.getContent().stream()
-                .map(wallet -> new WalletInfoDTO(
-                        wallet.getBalance().add(wallet.getPendingBalance()),
-                        wallet.getBalance(),
-                        wallet.getPendingBalance(),
-                        wallet.getUser().getId(),
-                        wallet.getUser().getUsername()
-                ))
-                .collect(Collectors.toList());
-
-        // 创建并返回分页DTO结果
-        return new PageImpl<>(
-                walletInfoDTOs,
-                pageable,
-                walletPage.getTotalElements()
-        );
+    /**
+     * 钱包导出格式
+     */
+    public enum WalletExportFormat {
+        CSV,
+        NDJSON
     }
 
     /**
      * 发送钱包相关消息到消息队列
+     * 消息先写入发件箱并加入当前事务，事务提交后由OutboxRelay投递，
+     * 避免业务回滚而消息已发出，或业务提交而消息丢失。
+     * 按用户ID路由到分片队列，同一用户的消息由同一个消费者按顺序处理
      */
     public void sendWalletMessage(BaseWalletMessage message) {
-        String routingKey = RabbitMQConfig.getWalletRoutingKey(message.getMessageType());
+        String routingKey = RabbitMQConfig.getWalletShardRoutingKey(
+                WalletMessageUtils.getShard(message, walletShardCount));
 
-        rabbitTemplate.convertAndSend(
+        outboxService.enqueue(
                 RabbitMQConfig.WALLET_EXCHANGE,
                 routingKey,
                 message
         );
 
-        logger.info("钱包消息已发送: type={}, messageId={}",
+        logger.info("钱包消息已写入发件箱: type={}, messageId={}",
                 message.getMessageType(),
                 message.getMessageId());
     }
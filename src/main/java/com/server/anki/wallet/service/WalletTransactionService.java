@@ -1,22 +1,31 @@
 package com.server.anki.wallet.service;
 
 import com.server.anki.alipay.AlipayService;
+import com.server.anki.message.MessageType;
+import com.server.anki.message.service.MessageService;
 import com.server.anki.user.User;
 import com.server.anki.user.UserRepository;
 import com.server.anki.wallet.entity.Wallet;
+import com.server.anki.wallet.entity.WalletLedgerEntry.LedgerEntryType;
+import com.server.anki.wallet.entity.WalletPendingCredit;
 import com.server.anki.wallet.entity.WithdrawalOrder;
+import com.server.anki.wallet.repository.WalletPendingCreditRepository;
 import com.server.anki.wallet.repository.WalletRepository;
 import com.server.anki.wallet.repository.WithdrawalOrderRepository;
 import com.server.anki.wallet.exception.InsufficientFundsException;
 import com.server.anki.wallet.message.*;
+import com.server.anki.wallet.service.WalletLedgerService.Leg;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -42,6 +51,22 @@ public class WalletTransactionService {
     @Autowired
     private WithdrawalOrderRepository withdrawalOrderRepository;
 
+    @Autowired
+    private WalletPendingCreditRepository walletPendingCreditRepository;
+
+    @Autowired
+    private WalletLedgerService walletLedgerService;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private MessageService messageService;
+
+    // 待结算金额的冷却期（小时），到期后由WalletPendingReleaseService批量释放
+    @Value("${wallet.cooldown.period:24}")
+    private long cooldownPeriodHours;
+
     /**
      * 创建钱包
      */
@@ -72,34 +97,45 @@ public class WalletTransactionService {
 
     /**
      * 处理转账
+     * 两个钱包都通过条件原子更新修改余额，不在内存中读改写；
+     * 按用户ID从小到大的顺序更新两行，并发的反向转账总是以相同顺序加行锁，不会死锁
      */
     @Transactional
     public void handleTransfer(TransferMessage message) {
         logger.info("处理转账操作: messageId={}", message.getMessageId());
+        if (isAlreadyPosted(message)) {
+            return;
+        }
+        // 在任何余额更新之前拒绝自我转账，同一用户的两条分录会违反账本唯一约束
+        if (message.getFromUserId().equals(message.getToUserId())) {
+            logger.warn("拒绝向自己转账，丢弃消息: messageId={}, userId={}",
+                    message.getMessageId(), message.getFromUserId());
+            return;
+        }
 
         User fromUser = userRepository.findById(message.getFromUserId())
                 .orElseThrow(() -> new RuntimeException("转出用户不存在"));
         User toUser = userRepository.findById(message.getToUserId())
                 .orElseThrow(() -> new RuntimeException("转入用户不存在"));
 
+        // 更新前的钱包快照，用于审计日志中的变更前余额
         Wallet fromWallet = getOrCreateWallet(fromUser);
         Wallet toWallet = getOrCreateWallet(toUser);
 
-        // 检查余额
-        if (fromWallet.getBalance().compareTo(message.getAmount()) < 0) {
-            try {
-                throw new InsufficientFundsException("余额不足");
-            } catch (InsufficientFundsException e) {
-                throw new RuntimeException(e);
-            }
+        BigDecimal amount = message.getAmount();
+        if (fromUser.getId() < toUser.getId()) {
+            debitOrThrow(fromUser.getId(), amount, "余额不足");
+            walletRepository.creditBalance(toUser.getId(), amount);
+        } else {
+            // 转入方先加锁，扣款失败时整个事务回滚
+            walletRepository.creditBalance(toUser.getId(), amount);
+            debitOrThrow(fromUser.getId(), amount, "余额不足");
         }
 
-        // 执行转账
-        fromWallet.setBalance(fromWallet.getBalance().subtract(message.getAmount()));
-        toWallet.setBalance(toWallet.getBalance().add(message.getAmount()));
-
-        walletRepository.save(fromWallet);
-        walletRepository.save(toWallet);
+        walletLedgerService.post(message.getMessageId(), LedgerEntryType.TRANSFER,
+                message.getReason(), message.getBusinessOrderNo(), List.of(
+                        Leg.available(fromUser.getId(), amount.negate()),
+                        Leg.available(toUser.getId(), amount)));
 
         // 记录审计日志
         walletAuditService.logTransfer(fromWallet, toWallet,
@@ -110,26 +146,61 @@ public class WalletTransactionService {
 
     /**
      * 处理提现
+     * 分三步执行，调用支付宝期间不持有钱包行锁，也不在事务中：
+     * 先在短事务中扣减余额、创建处理中的提现订单并记账；提交后在事务外调用支付宝转账；
+     * 再按转账结果在新的短事务中完成订单，支付宝明确拒绝时冲回余额。
+     * 结果未知（调用异常、进程在转账后退出）时订单保持处理中，由WithdrawalReconciliationService查询后完成
      */
-    @Transactional
     public void handleWithdrawal(WithdrawalMessage message) {
         logger.info("处理提现请求: messageId={}", message.getMessageId());
+        String orderNumber = transactionTemplate.execute(status -> createWithdrawal(message));
+        if (orderNumber == null) {
+            return;
+        }
 
-        User user = userRepository.findById(message.getUserId())
-                .orElseThrow(() -> new RuntimeException("用户不存在"));
+        if (!"ALIPAY".equals(message.getWithdrawalMethod())) {
+            logger.error("不支持的提现方式: {}", message.getWithdrawalMethod());
+            failWithdrawal(orderNumber, "不支持的提现方式: " + message.getWithdrawalMethod());
+            return;
+        }
 
-        Wallet wallet = getOrCreateWallet(user);
+        AlipayService.AlipayWithdrawalResponse response;
+        try {
+            // 调用支付宝时传入提现订单号，支付宝按该单号保证同一笔提现只转账一次
+            response = alipayService.withdrawToAlipay(message.getUserId(), message.getAmount(),
+                    message.getAccountInfo(), message.getAccountName(), orderNumber);
+        } catch (Exception e) {
+            logger.error("调用支付宝提现异常，结果未知，等待对账，订单号: {}, 错误: {}", orderNumber, e.getMessage(), e);
+            return;
+        }
 
-        // 检查余额
-        if (wallet.getBalance().compareTo(message.getAmount()) < 0) {
-            try {
-                throw new InsufficientFundsException("余额不足以完成提现");
-            } catch (InsufficientFundsException e) {
-                throw new RuntimeException(e);
-            }
+        try {
+            applyWithdrawalResult(orderNumber, response);
+        } catch (Exception e) {
+            // 余额已扣减且订单仍在处理中，由对账根据支付宝的结果完成
+            logger.error("更新提现结果失败，等待对账，订单号: {}, 错误: {}", orderNumber, e.getMessage(), e);
+        }
+
+        logger.info("提现处理完成: messageId={}, 订单号={}", message.getMessageId(), orderNumber);
+    }
+
+    /**
+     * 扣减余额、创建处理中的提现订单并记账
+     *
+     * @return 提现订单号，消息已处理过时返回null
+     */
+    private String createWithdrawal(WithdrawalMessage message) {
+        if (isAlreadyPosted(message)) {
+            return null;
         }
 
-        // 创建提现订单
+        User user = userRepository.findById(message.getUserId())
+                .orElseThrow(() -> new RuntimeException("用户不存在"));
+        getOrCreateWallet(user);
+
+        // 提交提现前先原子扣减余额，避免并发提现重复使用同一笔余额；提现失败时退回
+        debitOrThrow(user.getId(), message.getAmount(), "余额不足以完成提现");
+
         WithdrawalOrder withdrawalOrder = new WithdrawalOrder();
         withdrawalOrder.setUser(user);
         withdrawalOrder.setOrderNumber(message.getWithdrawalOrderNo() != null ?
@@ -139,93 +210,134 @@ public class WalletTransactionService {
         withdrawalOrder.setAccountInfo(message.getAccountInfo());
         withdrawalOrder.setStatus(WithdrawalOrder.WithdrawalStatus.PROCESSING);
         withdrawalOrder.setProcessedTime(LocalDateTime.now());
-
         withdrawalOrderRepository.save(withdrawalOrder);
 
-        try {
-            // 调用支付宝提现API
-            if ("ALIPAY".equals(message.getWithdrawalMethod())) {
-                // 通过支付宝进行提现操作
-                String orderNo = (message.getWithdrawalOrderNo() != null)
-                        ? message.getWithdrawalOrderNo()
-                        : generateWithdrawalOrderNumber();
-                withdrawalOrder.setOrderNumber(orderNo);
-
-                // 调用支付宝提现时传入统一生成的订单号
-                AlipayService.AlipayWithdrawalResponse response = alipayService.withdrawToAlipay(
-                        user.getId(), message.getAmount(), message.getAccountInfo(),
-                        message.getAccountName(), orderNo);
-
-                if (response.isSuccess()) {
-                    // 提现请求已受理，更新订单状态
-                    withdrawalOrder.setAlipayOrderId(response.getOrderId());
-
-                    // 根据支付宝返回状态判断
-                    if ("SUCCESS".equals(response.getStatus())) {
-                        withdrawalOrder.setStatus(WithdrawalOrder.WithdrawalStatus.SUCCESS);
-                        withdrawalOrder.setCompletedTime(LocalDateTime.now());
-
-                        // 扣减余额
-                        wallet.setBalance(wallet.getBalance().subtract(message.getAmount()));
-                        walletRepository.save(wallet);
-                    } else {
-                        // 处理中状态，保持订单状态不变
-                        logger.info("提现请求已提交到支付宝，等待结果，订单号: {}",
-                                withdrawalOrder.getOrderNumber());
-                    }
-                } else {
-                    // 提现请求失败
-                    withdrawalOrder.setStatus(WithdrawalOrder.WithdrawalStatus.FAILED);
-
-                    // 处理错误消息，确保不超过字段长度
-                    String errorMsg = response.getErrorMessage();
-                    if (errorMsg != null && errorMsg.length() > 255) {
-                        errorMsg = errorMsg.substring(0, 252) + "...";
-                    }
-                    withdrawalOrder.setErrorMessage(errorMsg);
-                    withdrawalOrder.setCompletedTime(LocalDateTime.now());
-                    logger.error("提现失败: {}", errorMsg);
-                }
-            } else {
-                // 不支持的提现方式
-                withdrawalOrder.setStatus(WithdrawalOrder.WithdrawalStatus.FAILED);
-                withdrawalOrder.setErrorMessage("不支持的提现方式: " + message.getWithdrawalMethod());
-                withdrawalOrder.setCompletedTime(LocalDateTime.now());
-                logger.error("不支持的提现方式: {}", message.getWithdrawalMethod());
-            }
+        walletLedgerService.post(message.getMessageId(), LedgerEntryType.WITHDRAWAL,
+                "用户提现", withdrawalOrder.getOrderNumber(), List.of(
+                        Leg.available(user.getId(), message.getAmount().negate()),
+                        Leg.external(message.getAmount())));
+        return withdrawalOrder.getOrderNumber();
+    }
 
-            // 保存更新的订单状态
-            withdrawalOrderRepository.save(withdrawalOrder);
+    /**
+     * 按支付宝的转账结果更新提现订单
+     * 转账成功时完成订单；支付宝明确拒绝时标记失败并冲回余额；
+     * 已受理但仍在处理时只记录支付宝转账单号，结果未知（如调用超时）时保持处理中，等待回调或对账
+     */
+    public void applyWithdrawalResult(String orderNumber, AlipayService.AlipayWithdrawalResponse response) {
+        if (response.isOutcomeUnknown()) {
+            logger.warn("提现转账结果未知，保持处理中等待对账: 订单号={}, 原因={}",
+                    orderNumber, response.getErrorMessage());
+            return;
+        }
 
-            // 记录审计日志
-            if (withdrawalOrder.getStatus() == WithdrawalOrder.WithdrawalStatus.SUCCESS) {
-                walletAuditService.logWithdrawal(wallet, message.getAmount(),
-                        message.getWithdrawalMethod(), message.getAccountInfo(),
-                        "用户提现");
-            }
+        if (!response.isSuccess()) {
+            logger.error("提现失败: 订单号={}, 原因={}", orderNumber, response.getErrorMessage());
+            failWithdrawal(orderNumber, response.getErrorMessage());
+            return;
+        }
 
-        } catch (Exception e) {
-            // 处理提现过程中的异常
-            withdrawalOrder.setStatus(WithdrawalOrder.WithdrawalStatus.FAILED);
+        if (!"SUCCESS".equals(response.getStatus())) {
+            withdrawalOrderRepository.updateAlipayOrderId(orderNumber, response.getOrderId());
+            logger.info("提现请求已提交到支付宝，等待结果，订单号: {}", orderNumber);
+            return;
+        }
 
-            // 提取并截断错误信息
-            String errorMsg = "提现处理异常: ";
-            if (e.getMessage() != null) {
-                errorMsg += truncateErrorMessage(e.getMessage(), 230);
-            } else {
-                errorMsg += e.getClass().getSimpleName();
-            }
+        completeWithdrawal(orderNumber, response.getOrderId());
+    }
 
-            withdrawalOrder.setErrorMessage(errorMsg);
-            withdrawalOrder.setCompletedTime(LocalDateTime.now());
-            withdrawalOrderRepository.save(withdrawalOrder);
+    /**
+     * 处理支付宝推送或回调的提现成功通知
+     */
+    public void handleWithdrawalSuccess(String orderNumber, String alipayOrderId) {
+        logger.info("处理提现成功通知: 订单号={}, 支付宝转账单号={}", orderNumber, alipayOrderId);
+        if (!completeWithdrawal(orderNumber, alipayOrderId)) {
+            return;
+        }
+        WithdrawalOrder withdrawalOrder = findWithdrawalOrder(orderNumber);
+        messageService.sendMessage(
+                withdrawalOrder.getUser(),
+                String.format("您的提现申请已成功处理，金额: %.2f元", withdrawalOrder.getAmount().doubleValue()),
+                MessageType.WALLET_WITHDRAW_SUCCESS,
+                null
+        );
+    }
 
-            logger.error("提现处理异常: {}", e.getMessage(), e);
-            throw new RuntimeException("提现处理失败", e);
+    /**
+     * 处理支付宝推送或回调的提现失败通知
+     * 与提现流程和对账使用同一冲回逻辑，重复通知只冲回一次
+     */
+    public void handleWithdrawalFailure(String orderNumber, String errorCode) {
+        logger.info("处理提现失败通知: 订单号={}, 错误码={}", orderNumber, errorCode);
+        if (!failWithdrawal(orderNumber, "提现失败: " + errorCode)) {
+            return;
         }
+        WithdrawalOrder withdrawalOrder = findWithdrawalOrder(orderNumber);
+        messageService.sendMessage(
+                withdrawalOrder.getUser(),
+                String.format("您的提现申请处理失败，金额: %.2f元已退回钱包", withdrawalOrder.getAmount().doubleValue()),
+                MessageType.WALLET_WITHDRAW_FAILED,
+                null
+        );
+    }
 
-        logger.info("提现处理完成: messageId={}, 状态={}",
-                message.getMessageId(), withdrawalOrder.getStatus());
+    /**
+     * 转账成功时完成仍在处理中的提现订单并记录审计日志
+     *
+     * @return 本次是否完成了订单，订单不存在或已处理时返回false
+     */
+    private boolean completeWithdrawal(String orderNumber, String alipayOrderId) {
+        return Boolean.TRUE.equals(transactionTemplate.execute(status -> {
+            int updated = withdrawalOrderRepository.completeIfProcessing(orderNumber,
+                    WithdrawalOrder.WithdrawalStatus.SUCCESS, alipayOrderId, null, LocalDateTime.now());
+            if (updated == 0) {
+                logger.info("提现订单不存在或已处理，跳过: {}", orderNumber);
+                return false;
+            }
+            WithdrawalOrder withdrawalOrder = findWithdrawalOrder(orderNumber);
+            walletRepository.findByUser(withdrawalOrder.getUser()).ifPresent(wallet ->
+                    walletAuditService.logWithdrawal(wallet, withdrawalOrder.getAmount(),
+                            withdrawalOrder.getWithdrawalMethod(), withdrawalOrder.getAccountInfo(), "用户提现"));
+            return true;
+        }));
+    }
+
+    /**
+     * 提现确定失败时标记订单失败并冲回余额
+     * 只有仍在处理中的订单会被冲回，回调和对账同时处理同一订单时只冲回一次
+     *
+     * @return 本次是否冲回了余额
+     */
+    public boolean failWithdrawal(String orderNumber, String errorMessage) {
+        return Boolean.TRUE.equals(transactionTemplate.execute(status -> {
+            int updated = withdrawalOrderRepository.completeIfProcessing(orderNumber,
+                    WithdrawalOrder.WithdrawalStatus.FAILED, null,
+                    truncateErrorMessage(errorMessage, 252), LocalDateTime.now());
+            if (updated == 0) {
+                logger.info("提现订单不存在或已处理，跳过冲回: {}", orderNumber);
+                return false;
+            }
+            reverseWithdrawal(findWithdrawalOrder(orderNumber));
+            return true;
+        }));
+    }
+
+    /**
+     * 提现未被受理时退回已扣减的余额并记录冲回分录
+     */
+    private void reverseWithdrawal(WithdrawalOrder withdrawalOrder) {
+        Long userId = withdrawalOrder.getUser().getId();
+        BigDecimal amount = withdrawalOrder.getAmount();
+        walletRepository.creditBalance(userId, amount);
+        walletLedgerService.post("withdrawal:" + withdrawalOrder.getOrderNumber() + ":reversal",
+                LedgerEntryType.WITHDRAWAL_REVERSAL, "提现失败冲回", withdrawalOrder.getOrderNumber(), List.of(
+                        Leg.available(userId, amount),
+                        Leg.external(amount.negate())));
+    }
+
+    private WithdrawalOrder findWithdrawalOrder(String orderNumber) {
+        return withdrawalOrderRepository.findByOrderNumber(orderNumber)
+                .orElseThrow(() -> new RuntimeException("提现订单不存在: " + orderNumber));
     }
 
     /**
@@ -239,41 +351,120 @@ public class WalletTransactionService {
 
     /**
      * 处理余额变更
+     * 通过条件原子更新修改余额，扣减时余额不能变为负数
      */
     @Transactional
     public void handleBalanceChange(BalanceChangeMessage message) {
         logger.info("处理余额变更: messageId={}", message.getMessageId());
+        if (isAlreadyPosted(message)) {
+            return;
+        }
 
         User user = userRepository.findById(message.getUserId())
                 .orElseThrow(() -> new RuntimeException("用户不存在"));
 
+        // 更新前的钱包快照，用于审计日志中的变更前余额
         Wallet wallet = getOrCreateWallet(user);
+        BigDecimal amount = message.getAmount();
 
         if (message.getChangeType() == BalanceChangeMessage.BalanceChangeType.PENDING) {
-            wallet.setPendingBalance(wallet.getPendingBalance().add(message.getAmount()));
-            walletAuditService.logPendingBalanceModification(wallet,
-                    message.getAmount(), message.getReason());
+            // 先写待结算入账再更新钱包，与释放任务的加锁顺序一致
+            if (amount.signum() > 0) {
+                addPendingCredit(user.getId(), amount);
+            } else {
+                deductPendingCredits(user.getId(), amount.negate());
+            }
+            walletLedgerService.post(message.getMessageId(), LedgerEntryType.PENDING_CHANGE,
+                    message.getReason(), message.getBusinessOrderNo(), List.of(
+                            Leg.pending(user.getId(), amount),
+                            Leg.platform(amount.negate())));
+            walletAuditService.logPendingBalanceModification(wallet, amount, message.getReason());
         } else {
-            wallet.setBalance(wallet.getBalance().add(message.getAmount()));
-            walletAuditService.logBalanceModification(wallet,
-                    message.getAmount(), message.getReason(), "System");
+            if (amount.signum() < 0) {
+                debitOrThrow(user.getId(), amount.negate(), "余额不足");
+            } else {
+                walletRepository.creditBalance(user.getId(), amount);
+            }
+            walletLedgerService.post(message.getMessageId(), LedgerEntryType.BALANCE_CHANGE,
+                    message.getReason(), message.getBusinessOrderNo(), List.of(
+                            Leg.available(user.getId(), amount),
+                            Leg.platform(amount.negate())));
+            walletAuditService.logBalanceModification(wallet, amount, message.getReason(), "System");
         }
 
-        walletRepository.save(wallet);
         logger.info("余额变更完成: messageId={}", message.getMessageId());
     }
 
+    /**
+     * 记录一笔待结算入账，该笔金额在自己的冷却期结束后释放
+     */
+    private void addPendingCredit(Long userId, BigDecimal amount) {
+        LocalDateTime now = LocalDateTime.now();
+        WalletPendingCredit credit = new WalletPendingCredit();
+        credit.setUserId(userId);
+        credit.setAmount(amount);
+        credit.setReleaseTime(now.plusHours(cooldownPeriodHours));
+        credit.setCreatedTime(now);
+        walletPendingCreditRepository.save(credit);
+        walletRepository.addPendingBalance(userId, amount, credit.getReleaseTime());
+    }
+
+    /**
+     * 扣减待结算余额，按入账先后抵扣各笔待结算入账
+     * 待结算余额不足时抛出异常，整个事务回滚
+     */
+    private void deductPendingCredits(Long userId, BigDecimal amount) {
+        BigDecimal remaining = amount;
+        for (WalletPendingCredit credit : walletPendingCreditRepository.lockByUserId(userId)) {
+            if (remaining.signum() <= 0) {
+                break;
+            }
+            BigDecimal deducted = credit.getAmount().min(remaining);
+            remaining = remaining.subtract(deducted);
+            if (deducted.compareTo(credit.getAmount()) == 0) {
+                walletPendingCreditRepository.delete(credit);
+            } else {
+                credit.setAmount(credit.getAmount().subtract(deducted));
+                walletPendingCreditRepository.save(credit);
+            }
+        }
+        if (walletRepository.adjustPendingBalance(userId, amount.negate()) == 0) {
+            throw new RuntimeException(new InsufficientFundsException("待结算余额不足"));
+        }
+        walletRepository.refreshPendingReleaseTime(userId);
+    }
+
+    /**
+     * 消息对应的交易已记账时跳过，防止重复投递导致重复记账
+     */
+    private boolean isAlreadyPosted(BaseWalletMessage message) {
+        if (walletLedgerService.isPosted(message.getMessageId())) {
+            logger.info("钱包消息已处理过，跳过: messageId={}, type={}",
+                    message.getMessageId(), message.getMessageType());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 条件扣减可用余额，余额不足时抛出异常使事务回滚
+     */
+    private void debitOrThrow(Long userId, BigDecimal amount, String errorMessage) {
+        if (walletRepository.debitBalance(userId, amount) == 0) {
+            throw new RuntimeException(new InsufficientFundsException(errorMessage));
+        }
+    }
+
     /**
      * 获取或创建钱包
+     * 使用INSERT IGNORE创建，不同分片的消费者同时为同一用户创建钱包时不会因唯一约束失败
      */
     private Wallet getOrCreateWallet(User user) {
         return walletRepository.findByUser(user)
                 .orElseGet(() -> {
-                    Wallet newWallet = new Wallet();
-                    newWallet.setUser(user);
-                    newWallet.setBalance(BigDecimal.ZERO);
-                    newWallet.setPendingBalance(BigDecimal.ZERO);
-                    return walletRepository.save(newWallet);
+                    walletRepository.insertIfAbsent(user.getId());
+                    return walletRepository.findByUser(user)
+                            .orElseThrow(() -> new RuntimeException("钱包创建失败: " + user.getId()));
                 });
     }
 
@@ -0,0 +1,110 @@
+package com.server.anki.wallet.service;
+
+import com.server.anki.alipay.AlipayService;
+import com.server.anki.wallet.entity.WithdrawalOrder;
+import com.server.anki.wallet.repository.WithdrawalOrderRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * 提现对账服务
+ * 定时向支付宝查询长时间处理中的提现订单，按查询结果完成订单或冲回余额。
+ * 用于提现结果未知的情况：调用支付宝超时、扣款提交后进程退出、转账结果回调丢失等。
+ * 支付宝查不到转账单时，只有订单处理时间超过宽限期才视为未转账，避免与仍在进行的转账请求冲突
+ */
+@Service
+public class WithdrawalReconciliationService {
+
+    private static final Logger logger = LoggerFactory.getLogger(WithdrawalReconciliationService.class);
+
+    private static final String ORDER_NOT_EXIST = "ORDER_NOT_EXIST";
+
+    // 每轮最多查询的订单数
+    @Value("${wallet.withdrawal.reconcile.batch-size:100}")
+    private int batchSize;
+
+    // 处理中超过该时间（秒）的订单才会被查询，避免与正在进行的提现请求重复处理
+    @Value("${wallet.withdrawal.reconcile.min-age:300}")
+    private long minAgeSeconds;
+
+    // 支付宝查不到转账单时，处理中超过该时间（秒）才视为未转账并冲回
+    @Value("${wallet.withdrawal.reconcile.not-found-grace:1800}")
+    private long notFoundGraceSeconds;
+
+    @Autowired
+    private WithdrawalOrderRepository withdrawalOrderRepository;
+
+    @Autowired
+    private WalletTransactionService walletTransactionService;
+
+    @Autowired
+    private AlipayService alipayService;
+
+    /**
+     * 对账处理中的提现订单
+     */
+    @Scheduled(fixedDelayString = "${wallet.withdrawal.reconcile.interval:60000}")
+    public void reconcileProcessingWithdrawals() {
+        LocalDateTime now = LocalDateTime.now();
+        List<WithdrawalOrder> orders = withdrawalOrderRepository.findByStatusAndProcessedTimeBeforeOrderByProcessedTimeAsc(
+                WithdrawalOrder.WithdrawalStatus.PROCESSING, now.minusSeconds(minAgeSeconds),
+                PageRequest.of(0, batchSize));
+        if (orders.isEmpty()) {
+            return;
+        }
+
+        int resolved = 0;
+        for (WithdrawalOrder order : orders) {
+            try {
+                if (reconcile(order, now)) {
+                    resolved++;
+                }
+            } catch (Exception e) {
+                logger.error("提现对账失败, 订单号: {}: {}", order.getOrderNumber(), e.getMessage(), e);
+            }
+        }
+        logger.info("提现对账完成: 处理中 {} 笔, 已完成 {} 笔", orders.size(), resolved);
+    }
+
+    private boolean reconcile(WithdrawalOrder order, LocalDateTime now) {
+        if (!"ALIPAY".equals(order.getWithdrawalMethod())) {
+            walletTransactionService.failWithdrawal(order.getOrderNumber(),
+                    "不支持的提现方式: " + order.getWithdrawalMethod());
+            return true;
+        }
+
+        AlipayService.AlipayWithdrawalResponse response = alipayService.queryWithdrawalStatus(order.getOrderNumber());
+        if (response.isSuccess()) {
+            String status = response.getStatus();
+            if ("SUCCESS".equals(status)) {
+                walletTransactionService.applyWithdrawalResult(order.getOrderNumber(), response);
+                return true;
+            }
+            if ("FAIL".equals(status) || "REFUND".equals(status)) {
+                walletTransactionService.failWithdrawal(order.getOrderNumber(), "支付宝转账失败: " + status);
+                return true;
+            }
+            logger.info("提现仍在支付宝处理中, 订单号: {}, 状态: {}", order.getOrderNumber(), status);
+            return false;
+        }
+
+        if (ORDER_NOT_EXIST.equals(response.getErrorCode())
+                && order.getProcessedTime() != null
+                && order.getProcessedTime().isBefore(now.minusSeconds(notFoundGraceSeconds))) {
+            walletTransactionService.failWithdrawal(order.getOrderNumber(), "支付宝未收到转账请求");
+            return true;
+        }
+
+        logger.warn("查询提现结果失败，稍后重试, 订单号: {}, 原因: {}",
+                order.getOrderNumber(), response.getErrorMessage());
+        return false;
+    }
+}
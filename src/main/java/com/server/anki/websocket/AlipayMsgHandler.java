@@ -7,18 +7,32 @@ import com.server.anki.alipay.AlipayLoginService;
 import com.server.anki.alipay.AlipayService;
 import com.server.anki.alipay.message.AlipayMessage;
 import com.server.anki.alipay.message.AlipayMessageService;
+import com.server.anki.config.AlipayConfig;
 import com.server.anki.config.RedisConfig;
 import com.server.anki.utils.IdempotentHelper;
+import com.server.anki.wallet.service.WalletTransactionService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.net.InetAddress;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 支付宝消息处理器
@@ -43,9 +57,30 @@ public class AlipayMsgHandler implements MsgHandler {
     private static final String TRANSFER_STATUS_SUCCESS = "SUCCESS";
     private static final String TRANSFER_STATUS_FAIL = "FAIL";
 
+    // 用于确定消息分区的业务字段，按顺序取第一个存在的字段
+    private static final List<String> PARTITION_KEY_FIELDS = List.of("out_trade_no", "out_biz_no", "user_id");
+
+    // 已确认但尚未处理完成的消息，消息ID -> 消息内容，处理完成后删除
+    private static final String INBOX_KEY = "alipay:msg:inbox";
+
+    // 待处理消息的到达序号
+    private static final String INBOX_SEQ_KEY = "alipay:msg:inbox:seq";
+
+    // 每个分区键的待处理消息按到达序号排队，只有排在最前的消息可以处理
+    private static final String PARTITION_QUEUE_PREFIX = "alipay:msg:queue:";
+
+    // 节点心跳，待处理消息记录认领它的节点，节点存活期间补偿任务不会重复提交这些消息
+    private static final String NODE_HEARTBEAT_PREFIX = "alipay:msg:node:";
+
+    // 处理完成标记的保留天数
+    private static final int PROCESSED_RETENTION_DAYS = 7;
+
     @Autowired
     private AlipayService alipayService;
 
+    @Autowired
+    private WalletTransactionService walletTransactionService;
+
     @Autowired
     private AlipayMessageService messageService;
 
@@ -58,63 +93,430 @@ public class AlipayMsgHandler implements MsgHandler {
     @Autowired
     private IdempotentHelper idempotentHelper;
 
+    @Autowired
+    private AlipayConfig alipayConfig;
+
+    // 本节点标识
+    private final String nodeId = resolveNodeId();
+
+    // 按订单号分区的消息处理线程，同一订单的消息在同一线程中按到达顺序处理
+    private final List<ThreadPoolExecutor> partitionExecutors = new ArrayList<>();
+
+    @PostConstruct
+    public void init() {
+        AlipayConfig.WsConfig ws = alipayConfig.getWs();
+        for (int i = 0; i < ws.getWorkerPartitions(); i++) {
+            String threadName = "alipay-msg-worker-" + i;
+            partitionExecutors.add(new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(ws.getWorkerQueueCapacity()),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, threadName);
+                        thread.setDaemon(true);
+                        return thread;
+                    }));
+        }
+        heartbeat();
+        logger.info("支付宝消息处理线程初始化完成, 节点: {}, 分区数: {}, 每分区队列容量: {}",
+                nodeId, ws.getWorkerPartitions(), ws.getWorkerQueueCapacity());
+    }
+
+    /**
+     * 刷新本节点心跳，节点退出后心跳到期，其认领的消息由其他节点补偿处理
+     */
+    @Scheduled(fixedDelayString = "${alipay.ws.node-heartbeat-interval:10000}")
+    public void heartbeat() {
+        try {
+            redisTemplate.opsForValue().set(NODE_HEARTBEAT_PREFIX + nodeId, LocalDateTime.now().toString(),
+                    Duration.ofMillis(alipayConfig.getWs().getNodeTimeout()));
+        } catch (Exception e) {
+            logger.error("刷新支付宝消息节点心跳失败: {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        partitionExecutors.forEach(ThreadPoolExecutor::shutdown);
+        for (ThreadPoolExecutor executor : partitionExecutors) {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * 接收支付宝推送的消息
+     * 在SDK的连接线程上只做去重、解析、写入待处理消息和入队，尽快确认消息；业务处理在分区线程中进行。
+     * 消息写入Redis待处理消息后才确认，进程退出或处理失败时由补偿任务重新处理；
+     * 队列已满或写入失败时不确认消息，由支付宝稍后重新推送
+     */
     @Override
     public void onMessage(String msgApi, String msgId, String bizContent) {
-        logger.info("收到支付宝消息推送 >>>>>>>>");
-        logger.info("消息API: {}", msgApi);
-        logger.info("消息ID: {}", msgId);
-        logger.info("消息内容: {}", bizContent);
+        logger.info("收到支付宝消息推送, 消息API: {}, 消息ID: {}", msgApi, msgId);
+        logger.debug("消息内容: {}", bizContent);
+
+        // 幂等性检查，避免重复处理同一消息
+        String idempotentKey = "alipay:msg:" + msgId;
+        if (!idempotentHelper.tryProcess(idempotentKey, processingTimeout())) {
+            logger.info("消息已处理过，跳过重复处理: {}", msgId);
+            return;
+        }
+
+        JSONObject msgContent;
+        try {
+            // 解析消息类型
+            msgContent = JSON.parseObject(bizContent);
+        } catch (Exception e) {
+            logger.error("消息解析失败: {}", e.getMessage(), e);
+            idempotentHelper.release(idempotentKey);
+            recordFailedMessage(msgId, bizContent, e);
+            throw new RuntimeException("消息处理失败", e);
+        }
 
+        String partitionKey = resolvePartitionKey(msgContent, msgId);
         try {
-            // 幂等性检查，避免重复处理同一消息
-            String idempotentKey = "alipay:msg:" + msgId;
-            if (!idempotentHelper.tryProcess(idempotentKey, 7)) {
-                logger.info("消息已处理过，跳过重复处理: {}", msgId);
+            if (!addToInbox(msgId, bizContent, partitionKey)) {
+                // 已确认过的消息仍在待处理消息中，由认领它的节点或补偿任务处理
+                idempotentHelper.release(idempotentKey);
+                logger.info("消息已在待处理消息中，跳过重复推送: {}", msgId);
                 return;
             }
+        } catch (Exception e) {
+            idempotentHelper.release(idempotentKey);
+            logger.error("写入待处理消息失败，等待支付宝重新推送: {}", msgId, e);
+            throw new RuntimeException("写入待处理消息失败", e);
+        }
 
-            // 解析消息类型
-            JSONObject msgContent = JSON.parseObject(bizContent);
-            String msgType = msgContent.getString("msg_type");
+        if (!submit(msgId, idempotentKey, partitionKey, bizContent, msgContent)) {
+            removeFromInbox(msgId, partitionKey);
+            idempotentHelper.release(idempotentKey);
+            logger.warn("消息处理队列已满，等待支付宝重新推送: {}", msgId);
+            throw new RuntimeException("消息处理队列已满");
+        }
+    }
+
+    /**
+     * 补偿处理已确认但未处理完成的消息
+     * 包括处理失败的消息、等待前序消息的消息，以及进程退出时仍在队列中、处理中标记已过期的消息。
+     * 同一分区键只补偿最早的一条，后续消息在它处理完成后依次提交；
+     * 认领消息的节点存活时（在队列中等待或正在处理）不补偿，处理中标记过期也不会重复提交；
+     * 超过最大补偿次数的消息只保留失败记录
+     */
+    @Scheduled(fixedDelayString = "${alipay.ws.replay-interval:60000}")
+    public void replayPendingMessages() {
+        Map<Object, Object> pending;
+        try {
+            pending = redisTemplate.opsForHash().entries(INBOX_KEY);
+        } catch (Exception e) {
+            logger.error("读取待处理消息失败: {}", e.getMessage(), e);
+            return;
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        int replayed = 0;
+        for (Map.Entry<Object, Object> entry : pending.entrySet()) {
+            String msgId = entry.getKey().toString();
+            try {
+                if (replay(msgId, JSON.parseObject(entry.getValue().toString()))) {
+                    replayed++;
+                }
+            } catch (Exception e) {
+                logger.error("补偿处理消息失败: {}, {}", msgId, e.getMessage(), e);
+            }
+        }
+        if (replayed > 0) {
+            logger.info("补偿处理支付宝消息: 待处理 {} 条, 重新提交 {} 条", pending.size(), replayed);
+        }
+    }
+
+    private boolean replay(String msgId, JSONObject pendingInfo) {
+        String idempotentKey = "alipay:msg:" + msgId;
+        String bizContent = pendingInfo.getString("bizContent");
+        JSONObject msgContent = JSON.parseObject(bizContent);
+        String partitionKey = pendingInfo.getString("partitionKey");
+        if (partitionKey == null) {
+            partitionKey = resolvePartitionKey(msgContent, msgId);
+        }
+
+        if (idempotentHelper.isProcessed(idempotentKey)) {
+            // 处理完成后删除待处理消息前进程退出
+            removeFromInbox(msgId, partitionKey);
+            submitNext(partitionKey);
+            return false;
+        }
 
-            if (msgType == null) {
-                logger.warn("消息类型为空，无法处理");
+        // 认领它的节点仍存活，消息在该节点的队列中等待或正在处理
+        if (isOwnerAlive(pendingInfo.getString("owner"))) {
+            return false;
+        }
+
+        // 同一分区键的前序消息尚未处理完成，等它完成后再处理
+        if (!isHead(partitionKey, msgId)) {
+            return false;
+        }
+
+        int replays = pendingInfo.getIntValue("replays");
+        if (replays >= alipayConfig.getWs().getMaxReplays()) {
+            logger.error("消息补偿处理次数已达上限，放弃处理: {}, 已补偿 {} 次", msgId, replays);
+            removeFromInbox(msgId, partitionKey);
+            submitNext(partitionKey);
+            return false;
+        }
+
+        if (!idempotentHelper.tryProcess(idempotentKey, processingTimeout())) {
+            // 正在处理中
+            return false;
+        }
+
+        pendingInfo.put("replays", replays + 1);
+        pendingInfo.put("owner", nodeId);
+        saveToInbox(msgId, pendingInfo);
+        if (!submit(msgId, idempotentKey, partitionKey, bizContent, msgContent)) {
+            releaseClaim(msgId, idempotentKey);
+            logger.warn("消息处理队列已满，下次补偿时再处理: {}", msgId);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 前一条消息处理完成或被放弃后，立即提交同一分区键中等待的下一条消息
+     * 提交不成功时留给补偿任务处理
+     */
+    private void submitNext(String partitionKey) {
+        try {
+            String nextMsgId = headOf(partitionKey);
+            if (nextMsgId == null) {
+                return;
+            }
+            Object value = redisTemplate.opsForHash().get(INBOX_KEY, nextMsgId);
+            if (value == null) {
+                // 待处理消息已被删除，只剩排队记录
+                redisTemplate.opsForZSet().remove(PARTITION_QUEUE_PREFIX + partitionKey, nextMsgId);
+                return;
+            }
+            String idempotentKey = "alipay:msg:" + nextMsgId;
+            if (!idempotentHelper.tryProcess(idempotentKey, processingTimeout())) {
                 return;
             }
+            JSONObject pendingInfo = JSON.parseObject(value.toString());
+            pendingInfo.put("owner", nodeId);
+            saveToInbox(nextMsgId, pendingInfo);
+            String bizContent = pendingInfo.getString("bizContent");
+            if (!submit(nextMsgId, idempotentKey, partitionKey, bizContent, JSON.parseObject(bizContent))) {
+                releaseClaim(nextMsgId, idempotentKey);
+            }
+        } catch (Exception e) {
+            logger.error("提交等待中的消息失败，留给补偿任务处理: {}, {}", partitionKey, e.getMessage());
+        }
+    }
 
-            // 根据消息类型分发处理
-            switch (msgType) {
-                case MSG_TYPE_ORDER_CHANGED:
-                    handleOrderStatusChanged(msgContent);
-                    break;
+    /**
+     * 把消息提交到所属分区的处理线程
+     *
+     * @return 分区队列已满时返回false
+     */
+    private boolean submit(String msgId, String idempotentKey, String partitionKey, String bizContent,
+                           JSONObject msgContent) {
+        ThreadPoolExecutor executor = partitionExecutors.get(
+                Math.floorMod(partitionKey.hashCode(), partitionExecutors.size()));
+        try {
+            executor.execute(() -> processMessage(msgId, idempotentKey, partitionKey, bizContent, msgContent));
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
 
-                case MSG_TYPE_ORDER_SETTLE:
-                    handleOrderSettle(msgContent);
-                    break;
+    /**
+     * 在分区线程中处理消息，失败时在同一线程内重试。
+     * 只处理同一分区键中最早的待处理消息，前序消息仍未完成（如在其他节点处理或等待补偿）时先不处理，
+     * 在前序消息完成后再提交；重试仍失败的消息保留在待处理消息中并继续挡住同一分区键的后续消息，
+     * 由补偿任务稍后再次处理，因此同一订单的消息不会越过失败的消息
+     */
+    private void processMessage(String msgId, String idempotentKey, String partitionKey, String bizContent,
+                                JSONObject msgContent) {
+        if (!isHead(partitionKey, msgId)) {
+            logger.info("同一订单的前序消息尚未处理完成，消息等待: {}, 分区键: {}", msgId, partitionKey);
+            releaseClaim(msgId, idempotentKey);
+            return;
+        }
 
-                case MSG_TYPE_FUND_TRANS:
-                    handleFundTransChanged(msgContent);
-                    break;
+        int maxAttempts = Math.max(1, alipayConfig.getWs().getMaxProcessAttempts());
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            try {
+                dispatchMessage(msgContent);
+
+                // 标记消息已处理成功
+                idempotentHelper.markProcessed(idempotentKey, Duration.ofDays(PROCESSED_RETENTION_DAYS));
+                removeFromInbox(msgId, partitionKey);
+                redisTemplate.delete("alipay:msg:failed:" + msgId);
+                logger.info("消息处理完成: {}", msgId);
+                submitNext(partitionKey);
+                return;
+            } catch (Exception e) {
+                if (attempt < maxAttempts) {
+                    logger.warn("消息处理失败，第 {} 次重试: {}, {}", attempt, msgId, e.getMessage());
+                    try {
+                        Thread.sleep(alipayConfig.getWs().getRetryInterval() * attempt);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        recordFailedMessage(msgId, bizContent, e);
+                        releaseClaim(msgId, idempotentKey);
+                        return;
+                    }
+                    continue;
+                }
 
-                case MSG_TYPE_AUTH_TOKEN:
-                    handleAuthTokenChanged(msgContent);
-                    break;
+                logger.error("消息处理失败: {}", e.getMessage(), e);
+                // 记录处理失败以便分析，并释放认领和幂等标记，由补偿任务再次处理
+                recordFailedMessage(msgId, bizContent, e);
+                releaseClaim(msgId, idempotentKey);
+            }
+        }
+    }
+
+    private Duration processingTimeout() {
+        return Duration.ofMillis(alipayConfig.getWs().getProcessingTimeout());
+    }
 
-                default:
-                    logger.info("未知消息类型: {}, 暂不处理", msgType);
+    /**
+     * 写入新的待处理消息，由本节点认领，并按到达顺序加入所属分区键的排队记录
+     *
+     * @return 消息已在待处理消息中时返回false
+     */
+    private boolean addToInbox(String msgId, String bizContent, String partitionKey) {
+        Long seq = redisTemplate.opsForValue().increment(INBOX_SEQ_KEY);
+        JSONObject pendingInfo = new JSONObject();
+        pendingInfo.put("msgId", msgId);
+        pendingInfo.put("bizContent", bizContent);
+        pendingInfo.put("partitionKey", partitionKey);
+        pendingInfo.put("seq", seq);
+        pendingInfo.put("replays", 0);
+        pendingInfo.put("owner", nodeId);
+        pendingInfo.put("timestamp", LocalDateTime.now().toString());
+        Boolean added = redisTemplate.opsForHash().putIfAbsent(INBOX_KEY, msgId, pendingInfo.toJSONString());
+        if (!Boolean.TRUE.equals(added)) {
+            return false;
+        }
+        redisTemplate.opsForZSet().add(PARTITION_QUEUE_PREFIX + partitionKey, msgId, seq != null ? seq : 0);
+        return true;
+    }
+
+    /**
+     * 放弃对消息的认领并释放处理中标记，消息留在待处理消息中由前序消息完成后提交或由补偿任务处理
+     */
+    private void releaseClaim(String msgId, String idempotentKey) {
+        try {
+            Object value = redisTemplate.opsForHash().get(INBOX_KEY, msgId);
+            if (value != null) {
+                JSONObject pendingInfo = JSON.parseObject(value.toString());
+                pendingInfo.remove("owner");
+                saveToInbox(msgId, pendingInfo);
             }
+        } catch (Exception e) {
+            logger.error("释放消息认领失败，等待节点心跳过期后补偿: {}, {}", msgId, e.getMessage());
+        }
+        idempotentHelper.release(idempotentKey);
+    }
 
-            logger.info("消息处理完成 <<<<<<<<");
+    private boolean isOwnerAlive(String owner) {
+        return owner != null && Boolean.TRUE.equals(redisTemplate.hasKey(NODE_HEARTBEAT_PREFIX + owner));
+    }
 
-            // 标记消息已处理成功
-            idempotentHelper.markProcessed(idempotentKey);
+    private static String resolveNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            host = "unknown";
+        }
+        return host + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    private void saveToInbox(String msgId, JSONObject pendingInfo) {
+        pendingInfo.put("timestamp", LocalDateTime.now().toString());
+        redisTemplate.opsForHash().put(INBOX_KEY, msgId, pendingInfo.toJSONString());
+    }
 
+    private void removeFromInbox(String msgId, String partitionKey) {
+        try {
+            redisTemplate.opsForHash().delete(INBOX_KEY, msgId);
+            redisTemplate.opsForZSet().remove(PARTITION_QUEUE_PREFIX + partitionKey, msgId);
         } catch (Exception e) {
-            logger.error("消息处理失败: {}", e.getMessage(), e);
-            // 记录处理失败以便后续可能的重试
-            recordFailedMessage(msgId, bizContent, e);
-            throw new RuntimeException("消息处理失败", e);
+            logger.error("删除待处理消息失败: {}, {}", msgId, e.getMessage());
+        }
+    }
+
+    /**
+     * 分区键中最早到达且尚未处理完成的消息
+     */
+    private String headOf(String partitionKey) {
+        Set<String> head = redisTemplate.opsForZSet().range(PARTITION_QUEUE_PREFIX + partitionKey, 0, 0);
+        return head == null || head.isEmpty() ? null : head.iterator().next();
+    }
+
+    /**
+     * 判断消息是否是分区键中最早的待处理消息，没有排队记录的消息（如升级前写入的）视为可以处理
+     */
+    private boolean isHead(String partitionKey, String msgId) {
+        try {
+            String head = headOf(partitionKey);
+            return head == null || head.equals(msgId);
+        } catch (Exception e) {
+            logger.error("查询消息排队记录失败，按可处理对待: {}, {}", msgId, e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * 根据消息类型分发处理
+     */
+    private void dispatchMessage(JSONObject msgContent) {
+        String msgType = msgContent.getString("msg_type");
+        if (msgType == null) {
+            logger.warn("消息类型为空，无法处理");
+            return;
+        }
+
+        switch (msgType) {
+            case MSG_TYPE_ORDER_CHANGED:
+                handleOrderStatusChanged(msgContent);
+                break;
+
+            case MSG_TYPE_ORDER_SETTLE:
+                handleOrderSettle(msgContent);
+                break;
+
+            case MSG_TYPE_FUND_TRANS:
+                handleFundTransChanged(msgContent);
+                break;
+
+            case MSG_TYPE_AUTH_TOKEN:
+                handleAuthTokenChanged(msgContent);
+                break;
+
+            default:
+                logger.info("未知消息类型: {}, 暂不处理", msgType);
+        }
+    }
+
+    /**
+     * 确定消息所属的分区
+     * 交易消息按商户订单号、转账消息按转账单号、授权消息按用户分区，无法确定时按消息ID分散
+     */
+    private String resolvePartitionKey(JSONObject msgContent, String msgId) {
+        JSONObject bizContent = msgContent != null ? msgContent.getJSONObject("biz_content") : null;
+        if (bizContent != null) {
+            for (String field : PARTITION_KEY_FIELDS) {
+                String value = bizContent.getString(field);
+                if (value != null) {
+                    return value;
+                }
+            }
         }
+        return msgId;
     }
 
     /**
@@ -315,13 +717,7 @@ public class AlipayMsgHandler implements MsgHandler {
      * 处理提现成功
      */
     private void processWithdrawalSuccess(String outBizNo, String orderId) {
-        Map<String, String> params = new HashMap<>();
-        params.put("out_biz_no", outBizNo);
-        params.put("order_id", orderId);
-        params.put("status", TRANSFER_STATUS_SUCCESS);
-
-        // 调用提现处理
-        alipayService.handleWithdrawalSuccess(params);
+        walletTransactionService.handleWithdrawalSuccess(outBizNo, orderId);
         logger.info("处理提现成功消息完成: {}", outBizNo);
     }
 
@@ -329,13 +725,7 @@ public class AlipayMsgHandler implements MsgHandler {
      * 处理提现失败
      */
     private void processWithdrawalFailure(String outBizNo, String errorCode) {
-        Map<String, String> params = new HashMap<>();
-        params.put("out_biz_no", outBizNo);
-        params.put("status", TRANSFER_STATUS_FAIL);
-        params.put("error_code", errorCode);
-
-        // 调用提现处理
-        alipayService.handleWithdrawalFailure(params);
+        walletTransactionService.handleWithdrawalFailure(outBizNo, errorCode);
         logger.info("处理提现失败消息完成: {}", outBizNo);
     }
 
@@ -404,7 +794,7 @@ public class AlipayMsgHandler implements MsgHandler {
 
     /**
      * 记录处理失败的消息
-     * 便于后续分析和可能的重试
+     * 便于后续分析，消息本身保留在待处理消息中由补偿任务重试，处理成功后删除该记录
      */
     private void recordFailedMessage(String msgId, String bizContent, Exception e) {
         try {
@@ -5,8 +5,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.server.anki.chat.dto.ChatDTO;
+import com.server.anki.chat.dto.ChatHistoryPage;
 import com.server.anki.chat.dto.ChatMessageDTO;
-import com.server.anki.chat.entity.Chat;
+import com.server.anki.chat.service.ChatHistoryService;
 import com.server.anki.chat.service.ChatMessageProducer;
 import com.server.anki.ticket.Ticket;
 import com.server.anki.ticket.TicketDTO;
@@ -15,7 +16,8 @@ import com.server.anki.user.User;
 import com.server.anki.auth.AuthenticationService;
 import com.server.anki.user.UserDTO;
 import com.server.anki.user.UserRepository;
-import jakarta.persistence.EntityNotFoundException;
+import com.server.anki.websocket.service.OutboundMessageType;
+import com.server.anki.websocket.service.WebSocketOutboundSender;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,7 +34,6 @@ import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.stream.Collectors;
 
 /**
  * WebSocket处理器
@@ -55,7 +56,13 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
     private ChatMessageProducer messageProducer;
 
     @Autowired
-    private UserRepository userRepository;  // 注入UserRepository
+    private UserRepository userRepository;  // 注入UserRepository，仅在参与者缓存未命中时使用
+
+    @Autowired
+    private WebSocketOutboundSender outboundSender;
+
+    @Autowired
+    private ChatHistoryService chatHistoryService;
 
     // 注入ChatRepository
 
@@ -74,6 +81,11 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
     private final ConcurrentHashMap<String, WebSocketSession> sessions = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<Long, CopyOnWriteArraySet<WebSocketSession>> ticketSessions = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, Long> sessionTickets = new ConcurrentHashMap<>();
+    // 工单展示信息缓存，连接建立时写入，工单最后一个会话关闭时清除
+    private final ConcurrentHashMap<Long, TicketDTO> ticketInfo = new ConcurrentHashMap<>();
+
+    // 会话属性：参与者展示信息
+    private static final String PARTICIPANT_ATTRIBUTE = "chatParticipant";
 
     @Override
     public void afterConnectionEstablished(@NotNull WebSocketSession session) throws Exception {
@@ -104,20 +116,24 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
             }
 
             // 验证工单访问权限
-            if (!validateTicketAccess(user, ticketId)) {
+            Ticket ticket = loadAccessibleTicket(user, ticketId);
+            if (ticket == null) {
                 logger.warn("用户无权访问此工单. 用户ID: {}, 工单ID: {}", user.getId(), ticketId);
                 sendErrorAndClose(session, "您没有权限访问此工单");
                 return;
             }
 
-            // 保存会话信息
+            // 保存会话信息，同时缓存参与者和工单的展示信息，后续消息推送无需再查询数据库
+            session.getAttributes().put("userId", user.getId());
+            session.getAttributes().put(PARTICIPANT_ATTRIBUTE, toUserDTO(user));
+            ticketInfo.put(ticketId, getTicketDTO(ticket));
             sessions.put(session.getId(), session);
             ticketSessions.computeIfAbsent(ticketId, k -> new CopyOnWriteArraySet<>()).add(session);
             sessionTickets.put(session.getId(), ticketId);
-            session.getAttributes().put("userId", user.getId());
 
-            // 发送连接成功消息
+            // 发送连接成功消息和最新一页聊天记录，更早的记录由客户端按游标分页加载
             sendConnectionSuccess(session);
+            sendLatestHistory(session, ticketId);
             logger.info("WebSocket连接建立成功. 会话ID: {}, 用户ID: {}, 工单ID: {}",
                     session.getId(), user.getId(), ticketId);
         } catch (Exception e) {
@@ -172,6 +188,7 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
     @Override
     public void afterConnectionClosed(@NotNull WebSocketSession session, @NotNull CloseStatus status) {
         logger.info("WebSocket连接关闭: {}, 状态: {}", session.getId(), status);
+        outboundSender.release(session);
 
         try {
             // 清理会话数据
@@ -184,6 +201,7 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
                     ticketGroup.remove(session);
                     if (ticketGroup.isEmpty()) {
                         ticketSessions.remove(ticketId);
+                        ticketInfo.remove(ticketId);
                     }
                 }
             }
@@ -202,7 +220,8 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
                 "type", "ERROR",
                 "message", errorMessage
         );
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(errorResponse)));
+        outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(errorResponse)),
+                OutboundMessageType.CONTROL);
     }
 
     /**
@@ -210,66 +229,72 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
      */
     public void sendMessage(WebSocketSession session, Object message) throws IOException {
         try {
-            Object enrichedMessage = message;
-
-            // 如果是Chat对象，确保包含完整信息
-            if (message instanceof Chat chat) {
-                enrichedMessage = enrichChatMessage(chat);
-            }
-            // 如果是数组或集合，处理每个元素
-            else if (message instanceof Collection<?> messages) {
-                enrichedMessage = messages.stream()
-                        .map(msg -> msg instanceof Chat ? enrichChatMessage((Chat) msg) : msg)
-                        .collect(Collectors.toList());
-            }
-
-            // 发送消息
-            String jsonMessage = objectMapper.writeValueAsString(enrichedMessage);
-            session.sendMessage(new TextMessage(jsonMessage));
-
+            String jsonMessage = objectMapper.writeValueAsString(message);
+            outboundSender.send(session, new TextMessage(jsonMessage), OutboundMessageType.CHAT);
         } catch (Exception e) {
             logger.error("发送消息时发生错误", e);
             sendErrorMessage(session, "消息发送失败：" + e.getMessage());
         }
     }
 
-    // 新增：消息充实方法
-    private ChatDTO enrichChatMessage(Chat chat) {
-        try {
-            // 创建充实的DTO对象
-            ChatDTO chatDTO = new ChatDTO();
-            chatDTO.setId(chat.getId());
-            chatDTO.setMessage(chat.getMessage());
-            chatDTO.setTimestamp(chat.getTimestamp());
-
-            // 充实用户信息
-            if (chat.getUser() != null) {
-                User user = userRepository.findById(chat.getUser().getId())
-                        .orElseThrow(() -> new EntityNotFoundException("用户不存在"));
-
-                UserDTO userDTO = new UserDTO();
-                userDTO.setId(user.getId());
-                userDTO.setUsername(user.getUsername());
-                userDTO.setEmail(user.getEmail());
-                userDTO.setUserGroup(user.getUserGroup());
-                userDTO.setUserVerificationStatus(user.getUserVerificationStatus());
-                chatDTO.setUser(userDTO);
+    /**
+     * 向工单的所有会话广播消息，消息只序列化一次
+     */
+    public void broadcastToTicket(Long ticketId, Object message) throws IOException {
+        Set<WebSocketSession> targets = ticketSessions.get(ticketId);
+        if (targets == null || targets.isEmpty()) {
+            return;
+        }
+
+        TextMessage textMessage = new TextMessage(objectMapper.writeValueAsString(message));
+        for (WebSocketSession session : targets) {
+            if (session.isOpen()) {
+                outboundSender.send(session, textMessage, OutboundMessageType.CHAT);
             }
+        }
+    }
 
-            // 充实工单信息
-            if (chat.getTicket() != null) {
-                Ticket ticket = ticketRepository.findById(chat.getTicket().getId())
-                        .orElseThrow(() -> new EntityNotFoundException("工单不存在"));
+    /**
+     * 使用会话建立时缓存的参与者和工单信息构建聊天消息
+     * 发送者已断开等缓存未命中的情况才回退到数据库查询
+     */
+    public ChatDTO buildChatDTO(Long ticketId, Long userId, String message, LocalDateTime timestamp) {
+        ChatDTO chatDTO = new ChatDTO();
+        chatDTO.setMessage(message);
+        chatDTO.setTimestamp(timestamp);
+        chatDTO.setUser(findParticipant(ticketId, userId));
+
+        TicketDTO ticketDTO = ticketInfo.get(ticketId);
+        if (ticketDTO == null) {
+            ticketDTO = ticketRepository.findById(ticketId)
+                    .map(ChatWebSocketHandler::getTicketDTO)
+                    .orElse(null);
+        }
+        chatDTO.setTicket(ticketDTO);
+        return chatDTO;
+    }
 
-                TicketDTO ticketDTO = getTicketDTO(ticket);
-                chatDTO.setTicket(ticketDTO);
+    private UserDTO findParticipant(Long ticketId, Long userId) {
+        Set<WebSocketSession> targets = ticketSessions.get(ticketId);
+        if (targets != null) {
+            for (WebSocketSession session : targets) {
+                if (userId.equals(session.getAttributes().get("userId"))) {
+                    return (UserDTO) session.getAttributes().get(PARTICIPANT_ATTRIBUTE);
+                }
             }
-
-            return chatDTO;
-        } catch (Exception e) {
-            logger.error("充实消息时发生错误", e);
-            throw new RuntimeException("消息处理失败", e);
         }
+        logger.debug("参与者缓存未命中，从数据库加载用户: {}", userId);
+        return userRepository.findById(userId).map(ChatWebSocketHandler::toUserDTO).orElse(null);
+    }
+
+    private static UserDTO toUserDTO(User user) {
+        UserDTO userDTO = new UserDTO();
+        userDTO.setId(user.getId());
+        userDTO.setUsername(user.getUsername());
+        userDTO.setEmail(user.getEmail());
+        userDTO.setUserGroup(user.getUserGroup());
+        userDTO.setUserVerificationStatus(user.getUserVerificationStatus());
+        return userDTO;
     }
 
     @NotNull
@@ -310,14 +335,34 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
         Map<String, String> response = new HashMap<>();
         response.put("type", "CONNECTION_ESTABLISHED");
         response.put("message", "连接成功");
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(response)));
+        outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(response)),
+                OutboundMessageType.CONTROL);
+    }
+
+    /**
+     * 发送工单最新一页聊天记录
+     */
+    private void sendLatestHistory(WebSocketSession session, Long ticketId) throws IOException {
+        ChatHistoryPage page = chatHistoryService.getLatestPage(ticketId);
+        Map<String, Object> response = new HashMap<>();
+        response.put("type", "CHAT_HISTORY");
+        response.put("messages", page.messages());
+        response.put("nextBeforeId", page.nextBeforeId());
+        response.put("hasMore", page.hasMore());
+        outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(response)),
+                OutboundMessageType.CHAT);
     }
 
     /**
      * 发送错误消息并关闭连接
+     * 握手阶段会话尚未注册，直接同步发送以保证错误消息先于关闭帧送达
      */
     private void sendErrorAndClose(WebSocketSession session, String errorMessage) throws IOException {
-        sendErrorMessage(session, errorMessage);
+        Map<String, Object> errorResponse = Map.of(
+                "type", "ERROR",
+                "message", errorMessage
+        );
+        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(errorResponse)));
         session.close(CloseStatus.NOT_ACCEPTABLE);
     }
 
@@ -353,18 +398,21 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
     }
 
     /**
-     * 验证用户是否有权限访问工单
+     * 加载用户有权访问的工单
+     *
+     * @return 工单；不存在或无权访问时返回null
      */
-    private boolean validateTicketAccess(User user, Long ticketId) {
+    private Ticket loadAccessibleTicket(User user, Long ticketId) {
         try {
             Ticket ticket = ticketRepository.findById(ticketId)
                     .orElseThrow(() -> new IllegalArgumentException("工单不存在"));
 
-            return ticket.getUser().getId().equals(user.getId()) ||
+            boolean accessible = ticket.getUser().getId().equals(user.getId()) ||
                     "admin".equals(user.getUserGroup());
+            return accessible ? ticket : null;
         } catch (Exception e) {
             logger.error("验证工单访问权限时发生错误: {}", e.getMessage(), e);
-            return false;
+            return null;
         }
     }
-}
\ No newline at end of file
+}
@@ -4,13 +4,14 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.server.anki.auth.token.TokenService;
 import com.server.anki.user.User;
-import com.server.anki.user.UserRepository;
 import com.server.anki.user.UserService;
+import com.server.anki.websocket.service.OutboundMessageType;
+import com.server.anki.websocket.service.SessionExpiryScheduler;
+import com.server.anki.websocket.service.WebSocketOutboundSender;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
@@ -28,11 +29,16 @@ public class HeartbeatWebSocketHandler extends TextWebSocketHandler {
     private static final Logger logger = LoggerFactory.getLogger(HeartbeatWebSocketHandler.class);
 
     private final ConcurrentHashMap<Long, WebSocketSession> authenticatedSessions = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<Long, Long> lastHeartbeatTime = new ConcurrentHashMap<>();
+    // 在线管理员ID集合，握手时根据令牌中的用户组维护
+    private final Set<Long> activeAdminIds = ConcurrentHashMap.newKeySet();
     private final Set<String> validSessionIds = Collections.newSetFromMap(new ConcurrentHashMap<>());
     private final ObjectMapper objectMapper = new ObjectMapper();
     private static final long HEARTBEAT_TIMEOUT = 30000; // 30秒超时
 
+    // 会话属性键
+    private static final String USER_ATTRIBUTE = "user";
+    private static final String EXPIRY_ATTRIBUTE = "heartbeatExpiry";
+
     @Autowired
     private TokenService tokenService;
 
@@ -40,7 +46,10 @@ public class HeartbeatWebSocketHandler extends TextWebSocketHandler {
     private UserService userService;
 
     @Autowired
-    private UserRepository userRepository;
+    private WebSocketOutboundSender outboundSender;
+
+    @Autowired
+    private SessionExpiryScheduler expiryScheduler;
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) {
@@ -56,18 +65,30 @@ public class HeartbeatWebSocketHandler extends TextWebSocketHandler {
 
             // 验证通过，保存认证信息
             Long userId = tokenService.getUserIdFromToken(accessToken);
+
+            // 握手时从令牌中缓存用户角色信息，后续判断在线管理员时无需查询数据库
+            User sessionUser = new User();
+            sessionUser.setId(userId);
+            sessionUser.setUsername(tokenService.getUsernameFromToken(accessToken));
+            sessionUser.setUserGroup(tokenService.getUserGroupFromToken(accessToken));
+
             session.getAttributes().put("userId", userId);
+            session.getAttributes().put(USER_ATTRIBUTE, sessionUser);
+            session.getAttributes().put(EXPIRY_ATTRIBUTE, expiryScheduler.schedule(HEARTBEAT_TIMEOUT,
+                    () -> handleHeartbeatTimeout(userId, session)));
             authenticatedSessions.put(userId, session);
-            lastHeartbeatTime.put(userId, System.currentTimeMillis());
+            if (userService.isAdminUser(sessionUser)) {
+                activeAdminIds.add(userId);
+            }
             validSessionIds.add(session.getId());
 
-            session.sendMessage(new TextMessage(objectMapper.writeValueAsString(
+            outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(
                     Map.of(
                             "type", "CONNECTION_ESTABLISHED",
                             "userId", userId,
                             "message", "WebSocket connection authenticated"
                     )
-            )));
+            )), OutboundMessageType.CONTROL);
             logger.info("Heartbeat WebSocket authenticated for user: {}", userId);
         } catch (Exception e) {
             logger.error("Error in heartbeat connection establishment", e);
@@ -100,11 +121,11 @@ public class HeartbeatWebSocketHandler extends TextWebSocketHandler {
 
     @Override
     public void afterConnectionClosed(@NotNull WebSocketSession session, @NotNull CloseStatus status) {
+        outboundSender.release(session);
+        cancelExpiry(session);
         Long userId = (Long) session.getAttributes().get("userId");
         if (userId != null) {
-            authenticatedSessions.remove(userId);
-            lastHeartbeatTime.remove(userId);
-            validSessionIds.remove(session.getId());
+            removeSession(userId, session);
             logger.info("WebSocket connection closed for User ID: {}. Status: {}", userId, status);
         } else {
             logger.warn("WebSocket connection closed for unknown user. Session ID: {}, Status: {}", session.getId(), status);
@@ -120,14 +141,18 @@ public class HeartbeatWebSocketHandler extends TextWebSocketHandler {
             return;
         }
 
-        lastHeartbeatTime.put(userId, System.currentTimeMillis());
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(
+        SessionExpiryScheduler.ExpiryHandle expiry =
+                (SessionExpiryScheduler.ExpiryHandle) session.getAttributes().get(EXPIRY_ATTRIBUTE);
+        if (expiry != null) {
+            expiry.touch();
+        }
+        outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(
                 Map.of(
                         "type", "PONG",
                         "timestamp", System.currentTimeMillis(),
                         "userId", userId
                 )
-        )));
+        )), OutboundMessageType.CONTROL);
         logger.debug("Responded to PING with PONG for user: {}", userId);
     }
 
@@ -147,12 +172,12 @@ public class HeartbeatWebSocketHandler extends TextWebSocketHandler {
     }
 
     private void sendErrorMessage(WebSocketSession session, String errorMessage) throws IOException {
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(
+        outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(
                 Map.of(
                         "type", "ERROR",
                         "message", errorMessage
                 )
-        )));
+        )), OutboundMessageType.CONTROL);
     }
 
     // 提供给其他WebSocket handler使用的验证方法
@@ -169,16 +194,28 @@ public class HeartbeatWebSocketHandler extends TextWebSocketHandler {
     }
     /**
      * 获取在线管理员列表
+     * 返回握手时缓存的用户信息（仅包含ID、用户名和用户组），不访问数据库
      * @return 在线管理员列表
      */
     public List<User> getActiveAdmins() {
-        return authenticatedSessions.entrySet().stream()
-                .filter(entry -> entry.getValue().isOpen())
-                .map(entry -> userRepository.findById(entry.getKey()))
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .filter(user -> userService.isAdminUser(user))
-                .collect(Collectors.toList());
+        List<User> admins = new ArrayList<>(activeAdminIds.size());
+        for (Long adminId : activeAdminIds) {
+            WebSocketSession session = authenticatedSessions.get(adminId);
+            if (session != null && session.isOpen()) {
+                admins.add((User) session.getAttributes().get(USER_ATTRIBUTE));
+            }
+        }
+        return admins;
+    }
+
+    /**
+     * 获取在线管理员ID集合
+     * @return 在线管理员ID集合
+     */
+    public Set<Long> getActiveAdminIds() {
+        return activeAdminIds.stream()
+                .filter(this::isUserAuthenticated)
+                .collect(Collectors.toSet());
     }
 
     // 在HeartbeatWebSocketHandler中添加
@@ -194,23 +231,32 @@ public class HeartbeatWebSocketHandler extends TextWebSocketHandler {
         return null;
     }
 
-    // 定期检查心跳超时
-    @Scheduled(fixedRate = 15000) // 每15秒检查一次
-    public void checkHeartbeats() {
-        long now = System.currentTimeMillis();
-        authenticatedSessions.forEach((userId, session) -> {
-            Long lastHeartbeat = lastHeartbeatTime.get(userId);
-            if (lastHeartbeat != null && now - lastHeartbeat > HEARTBEAT_TIMEOUT) {
-                try {
-                    logger.warn("Heartbeat timeout for user: {}", userId);
-                    session.close(CloseStatus.SESSION_NOT_RELIABLE.withReason("Heartbeat timeout"));
-                    authenticatedSessions.remove(userId);
-                    lastHeartbeatTime.remove(userId);
-                    validSessionIds.remove(session.getId());
-                } catch (IOException e) {
-                    logger.error("Error closing timed out session for user: {}", userId, e);
-                }
-            }
-        });
+    /**
+     * 心跳超时处理，由会话过期调度器回调
+     */
+    private void handleHeartbeatTimeout(Long userId, WebSocketSession session) {
+        logger.warn("Heartbeat timeout for user: {}", userId);
+        removeSession(userId, session);
+        try {
+            session.close(CloseStatus.SESSION_NOT_RELIABLE.withReason("Heartbeat timeout"));
+        } catch (IOException e) {
+            logger.error("Error closing timed out session for user: {}", userId, e);
+        }
+    }
+
+    private void removeSession(Long userId, WebSocketSession session) {
+        // 只移除当前会话，避免旧连接关闭时误删同一用户的新连接
+        if (authenticatedSessions.remove(userId, session)) {
+            activeAdminIds.remove(userId);
+        }
+        validSessionIds.remove(session.getId());
+    }
+
+    private void cancelExpiry(WebSocketSession session) {
+        SessionExpiryScheduler.ExpiryHandle expiry =
+                (SessionExpiryScheduler.ExpiryHandle) session.getAttributes().get(EXPIRY_ATTRIBUTE);
+        if (expiry != null) {
+            expiry.cancel();
+        }
     }
-}
\ No newline at end of file
+}
@@ -5,11 +5,13 @@ import com.server.anki.auth.token.TokenService;
 import com.server.anki.message.NotificationDTO;
 import com.server.anki.user.User;
 import com.server.anki.user.UserService;
+import com.server.anki.websocket.service.OutboundMessageType;
+import com.server.anki.websocket.service.SessionExpiryScheduler;
+import com.server.anki.websocket.service.WebSocketOutboundSender;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
@@ -27,8 +29,8 @@ public class NotificationWebSocketHandler extends TextWebSocketHandler {
 
     // 存储已认证用户的WebSocket会话
     private final ConcurrentHashMap<Long, WebSocketSession> authenticatedSessions = new ConcurrentHashMap<>();
-    // 存储用户最后活动时间
-    private final ConcurrentHashMap<Long, Long> lastActivityTime = new ConcurrentHashMap<>();
+    // 在线管理员ID集合，握手时根据令牌中的用户组维护
+    private final Set<Long> activeAdminIds = ConcurrentHashMap.newKeySet();
     // 存储有效会话ID集合
     private final Set<String> validSessionIds = Collections.newSetFromMap(new ConcurrentHashMap<>());
     private final ObjectMapper objectMapper = new ObjectMapper();
@@ -36,12 +38,20 @@ public class NotificationWebSocketHandler extends TextWebSocketHandler {
     // 会话超时时间设置为30秒
     private static final long SESSION_TIMEOUT = 30000;
 
+    private static final String EXPIRY_ATTRIBUTE = "sessionExpiry";
+
     @Autowired
     private TokenService tokenService;
 
     @Autowired
     private UserService userService;
 
+    @Autowired
+    private WebSocketOutboundSender outboundSender;
+
+    @Autowired
+    private SessionExpiryScheduler expiryScheduler;
+
     @Override
     public void afterConnectionEstablished(WebSocketSession session) {
         logger.info("通知WebSocket连接尝试: {}", session.getId());
@@ -67,24 +77,30 @@ public class NotificationWebSocketHandler extends TextWebSocketHandler {
             if (existingSession != null && existingSession.isOpen()) {
                 logger.warn("正在关闭用户已存在的通知会话: {}", userId);
                 existingSession.close(CloseStatus.POLICY_VIOLATION.withReason("新连接已建立"));
-                authenticatedSessions.remove(userId);
+                removeSession(userId, existingSession);
             }
 
-            // 保存新的会话信息
+            // 保存新的会话信息，用户组从令牌中读取并缓存，管理员推送时无需查询数据库
             session.getAttributes().put("userId", userId);
+            session.getAttributes().put(EXPIRY_ATTRIBUTE, expiryScheduler.schedule(SESSION_TIMEOUT,
+                    () -> handleSessionTimeout(userId, session)));
             authenticatedSessions.put(userId, session);
-            lastActivityTime.put(userId, System.currentTimeMillis());
+            User sessionUser = new User();
+            sessionUser.setUserGroup(tokenService.getUserGroupFromToken(accessToken));
+            if (userService.isAdminUser(sessionUser)) {
+                activeAdminIds.add(userId);
+            }
             validSessionIds.add(session.getId());
 
             // 发送连接成功消息
-            session.sendMessage(new TextMessage(objectMapper.writeValueAsString(
+            outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(
                     Map.of(
                             "type", "CONNECTION_ESTABLISHED",
                             "userId", userId,
                             "message", "通知连接已成功建立",
                             "timestamp", System.currentTimeMillis()
                     )
-            )));
+            )), OutboundMessageType.CONTROL);
             logger.info("用户通知WebSocket连接已建立: {}", userId);
 
         } catch (Exception e) {
@@ -99,11 +115,11 @@ public class NotificationWebSocketHandler extends TextWebSocketHandler {
 
     @Override
     public void afterConnectionClosed(@NotNull WebSocketSession session, @NotNull CloseStatus status) {
+        outboundSender.release(session);
+        cancelExpiry(session);
         Long userId = (Long) session.getAttributes().get("userId");
         if (userId != null) {
-            authenticatedSessions.remove(userId);
-            lastActivityTime.remove(userId);
-            validSessionIds.remove(session.getId());
+            removeSession(userId, session);
             logger.info("用户 {} 的通知WebSocket连接已关闭。状态: {}", userId, status);
         } else {
             logger.warn("未知用户的通知WebSocket连接已关闭。会话ID: {}, 状态: {}", session.getId(), status);
@@ -115,9 +131,10 @@ public class NotificationWebSocketHandler extends TextWebSocketHandler {
         if (session != null && session.isOpen()) {
             try {
                 NotificationDTO notification = new NotificationDTO(userId, content, type, ticketId);
-                session.sendMessage(new TextMessage(objectMapper.writeValueAsString(notification)));
-                // 更新最后活动时间
-                lastActivityTime.put(userId, System.currentTimeMillis());
+                outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(notification)),
+                        OutboundMessageType.NOTIFICATION);
+                // 有消息推送即视为活动，顺延会话过期时间
+                touchExpiry(session);
                 logger.info("已向用户 {} 发送通知。类型: {}, 工单ID: {}", userId, type, ticketId);
             } catch (IOException e) {
                 logger.error("向用户 {} 发送通知时发生错误", userId, e);
@@ -128,15 +145,44 @@ public class NotificationWebSocketHandler extends TextWebSocketHandler {
         }
     }
 
+    /**
+     * 向多个用户群发同一条通知，只推送给当前在线的用户
+     */
+    public void sendNotificationToUsers(Collection<Long> userIds, String content, String type, Long ticketId) {
+        int delivered = multicast(userIds, content, type, ticketId);
+        logger.info("群发通知完成，接收者: {}, 在线送达: {}, 类型: {}", userIds.size(), delivered, type);
+    }
+
     public void sendNotificationToAdmins(String content, Long ticketId) {
-        List<User> admins = userService.getAllAdmins();
-        logger.info("正在向 {} 个管理员发送工单 {} 的通知", admins.size(), ticketId);
+        logger.info("正在向 {} 个在线管理员发送工单 {} 的通知", activeAdminIds.size(), ticketId);
+        multicast(activeAdminIds, content, "NEW_MESSAGE", ticketId);
+    }
 
-        for (User admin : admins) {
-            if (isUserAuthenticated(admin.getId())) {
-                sendNotification(admin.getId(), content, "NEW_MESSAGE", ticketId);
+    /**
+     * 把同一条通知写入多个在线会话
+     * 通知只序列化一次，所有会话共享同一个消息帧；群发帧不含接收者ID，会话本身即属于接收者
+     *
+     * @return 成功入队的会话数
+     */
+    private int multicast(Collection<Long> userIds, String content, String type, Long ticketId) {
+        TextMessage frame;
+        try {
+            frame = new TextMessage(objectMapper.writeValueAsString(new NotificationDTO(null, content, type, ticketId)));
+        } catch (IOException e) {
+            logger.error("序列化群发通知失败，类型: {}, 工单ID: {}", type, ticketId, e);
+            return 0;
+        }
+
+        int delivered = 0;
+        for (Long userId : userIds) {
+            WebSocketSession session = authenticatedSessions.get(userId);
+            if (session != null && session.isOpen()
+                    && outboundSender.send(session, frame, OutboundMessageType.NOTIFICATION)) {
+                touchExpiry(session);
+                delivered++;
             }
         }
+        return delivered;
     }
 
     private String extractAccessTokenFromHandshake(WebSocketSession session) {
@@ -156,10 +202,9 @@ public class NotificationWebSocketHandler extends TextWebSocketHandler {
 
     private void handleFailedNotification(WebSocketSession session, Long userId) {
         try {
+            cancelExpiry(session);
             session.close(CloseStatus.SERVER_ERROR.withReason("通知发送失败"));
-            authenticatedSessions.remove(userId);
-            lastActivityTime.remove(userId);
-            validSessionIds.remove(session.getId());
+            removeSession(userId, session);
         } catch (IOException e) {
             logger.error("关闭失败会话时发生错误，用户ID: {}", userId, e);
         }
@@ -167,13 +212,13 @@ public class NotificationWebSocketHandler extends TextWebSocketHandler {
 
     private void sendErrorMessage(WebSocketSession session, String errorMessage) {
         try {
-            session.sendMessage(new TextMessage(objectMapper.writeValueAsString(
+            outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(
                     Map.of(
                             "type", "ERROR",
                             "message", errorMessage,
                             "timestamp", System.currentTimeMillis()
                     )
-            )));
+            )), OutboundMessageType.CONTROL);
         } catch (IOException e) {
             logger.error("发送错误消息时发生错误", e);
         }
@@ -184,23 +229,40 @@ public class NotificationWebSocketHandler extends TextWebSocketHandler {
         return session != null && session.isOpen();
     }
 
-    // 定期检查会话超时
-    @Scheduled(fixedRate = 15000) // 每15秒检查一次
-    public void checkSessionTimeouts() {
-        long now = System.currentTimeMillis();
-        authenticatedSessions.forEach((userId, session) -> {
-            Long lastActivity = lastActivityTime.get(userId);
-            if (lastActivity != null && now - lastActivity > SESSION_TIMEOUT) {
-                try {
-                    logger.warn("用户 {} 的会话已超时", userId);
-                    session.close(CloseStatus.SESSION_NOT_RELIABLE.withReason("会话超时"));
-                    authenticatedSessions.remove(userId);
-                    lastActivityTime.remove(userId);
-                    validSessionIds.remove(session.getId());
-                } catch (IOException e) {
-                    logger.error("关闭超时会话时发生错误，用户ID: {}", userId, e);
-                }
-            }
-        });
+    /**
+     * 会话超时处理，由会话过期调度器回调
+     */
+    private void handleSessionTimeout(Long userId, WebSocketSession session) {
+        logger.warn("用户 {} 的会话已超时", userId);
+        removeSession(userId, session);
+        try {
+            session.close(CloseStatus.SESSION_NOT_RELIABLE.withReason("会话超时"));
+        } catch (IOException e) {
+            logger.error("关闭超时会话时发生错误，用户ID: {}", userId, e);
+        }
+    }
+
+    private void removeSession(Long userId, WebSocketSession session) {
+        // 只移除当前会话，避免旧连接关闭时误删同一用户的新连接
+        if (authenticatedSessions.remove(userId, session)) {
+            activeAdminIds.remove(userId);
+        }
+        validSessionIds.remove(session.getId());
+    }
+
+    private void touchExpiry(WebSocketSession session) {
+        SessionExpiryScheduler.ExpiryHandle expiry =
+                (SessionExpiryScheduler.ExpiryHandle) session.getAttributes().get(EXPIRY_ATTRIBUTE);
+        if (expiry != null) {
+            expiry.touch();
+        }
+    }
+
+    private void cancelExpiry(WebSocketSession session) {
+        SessionExpiryScheduler.ExpiryHandle expiry =
+                (SessionExpiryScheduler.ExpiryHandle) session.getAttributes().get(EXPIRY_ATTRIBUTE);
+        if (expiry != null) {
+            expiry.cancel();
+        }
     }
-}
\ No newline at end of file
+}
@@ -7,7 +7,9 @@ import com.server.anki.timeout.model.*;
 import com.server.anki.timeout.service.GlobalTimeoutStatisticsService;
 import com.server.anki.user.User;
 import com.server.anki.user.UserService;
+import com.server.anki.websocket.service.OutboundMessageType;
 import com.server.anki.websocket.service.TimeoutStatisticsBroadcastService;
+import com.server.anki.websocket.service.WebSocketOutboundSender;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,6 +56,9 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
     @Autowired
     private TimeoutStatisticsBroadcastService broadcastService;
 
+    @Autowired
+    private WebSocketOutboundSender outboundSender;
+
     // 存储会话相关信息
     private final Set<String> validSessionIds = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
@@ -102,6 +107,12 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
             Map<String, String> params = parseQueryParams(session.getUri());
             String type = params.getOrDefault("type", "user");
 
+            // 管理员可通过 protocol=delta 参数开启增量推送协议
+            if (TimeoutStatisticsBroadcastService.DELTA_PROTOCOL.equals(params.get("protocol"))) {
+                session.getAttributes().put(TimeoutStatisticsBroadcastService.PROTOCOL_ATTRIBUTE,
+                        TimeoutStatisticsBroadcastService.DELTA_PROTOCOL);
+            }
+
             // 检查权限
             if (("system".equals(type) || "global".equals(type)) && !"admin".equals(user.getUserGroup())) {
                 logger.warn("非管理员用户 {} 尝试订阅系统超时统计", user.getId());
@@ -119,14 +130,14 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
             }
 
             // 发送连接成功消息
-            session.sendMessage(new TextMessage(objectMapper.writeValueAsString(
+            outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(
                     Map.of(
                             "type", "CONNECTION_ESTABLISHED",
                             "userId", userId,
                             "message", "超时统计连接已成功建立",
                             "timestamp", LocalDateTime.now().toString()
                     )
-            )));
+            )), OutboundMessageType.CONTROL);
 
             // 发送初始数据
             sendInitialData(session, user, type);
@@ -146,6 +157,7 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
      */
     @Override
     public void afterConnectionClosed(@NotNull WebSocketSession session, @NotNull CloseStatus status) {
+        outboundSender.release(session);
         Long userId = (Long) session.getAttributes().get("userId");
         if (userId != null) {
             broadcastService.removeSession(session);
@@ -406,6 +418,17 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                     handleRecommendationsRequest(session, user, request);
                     break;
 
+                // 增量协议：客户端检测到序列号断档后请求完整快照
+                case "resync":
+                    if (!"admin".equals(user.getUserGroup()) || !broadcastService.isDeltaSession(session)) {
+                        logger.warn("用户 {} 未使用增量协议，忽略重新同步请求", user.getId());
+                        sendErrorMessage(session, "当前连接未开启增量协议");
+                        return;
+                    }
+                    broadcastService.sendSystemStatisticsSnapshot(session,
+                            () -> globalTimeoutStatisticsService.getSystemStatistics(StatisticsPeriod.today()));
+                    break;
+
                 default:
                     logger.warn("未知的WebSocket命令: {}", command);
                     sendErrorMessage(session, "未知命令: " + command);
@@ -500,7 +523,7 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                 "timestamp", LocalDateTime.now().toString()
         );
 
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(response)));
+        outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(response)), OutboundMessageType.STATISTICS);
         logger.debug("已发送最新超时报告");
     }
 
@@ -515,7 +538,7 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                 "timestamp", LocalDateTime.now().toString()
         );
 
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(response)));
+        outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(response)), OutboundMessageType.STATISTICS);
         logger.debug("已发送 {} 份超时报告", reports.size());
     }
 
@@ -533,7 +556,7 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                 "timestamp", LocalDateTime.now().toString()
         );
 
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(response)));
+        outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(response)), OutboundMessageType.STATISTICS);
         logger.debug("已发送 {} 条建议", recommendations.size());
     }
 
@@ -582,7 +605,7 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                 "timestamp", LocalDateTime.now().toString()
         );
 
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(response)));
+        outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(response)), OutboundMessageType.STATISTICS);
     }
 
     /**
@@ -595,7 +618,7 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                 "timestamp", LocalDateTime.now().toString()
         );
 
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(response)));
+        outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(response)), OutboundMessageType.STATISTICS);
     }
 
     /**
@@ -608,7 +631,7 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                 "timestamp", LocalDateTime.now().toString()
         );
 
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(response)));
+        outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(response)), OutboundMessageType.STATISTICS);
     }
 
     /**
@@ -621,7 +644,7 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                 "timestamp", LocalDateTime.now().toString()
         );
 
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(response)));
+        outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(response)), OutboundMessageType.STATISTICS);
     }
 
     /**
@@ -634,7 +657,7 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                 "timestamp", LocalDateTime.now().toString()
         );
 
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(response)));
+        outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(response)), OutboundMessageType.STATISTICS);
     }
 
     /**
@@ -648,67 +671,29 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                 "timestamp", LocalDateTime.now().toString()
         );
 
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(response)));
+        outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(response)), OutboundMessageType.CONTROL);
     }
 
     /**
      * 广播风险警报
      */
     public void broadcastRiskAlert(Map<String, Object> alertData) {
-        try {
-            Map<String, Object> message = Map.of(
-                    "type", "riskAlert",
-                    "data", alertData,
-                    "timestamp", LocalDateTime.now().toString()
-            );
-
-            String json = objectMapper.writeValueAsString(message);
-            TextMessage textMessage = new TextMessage(json);
-
-            // 向所有订阅的管理员发送警报
-            for (WebSocketSession session : broadcastService.getAdminSessions()) {
-                if (session.isOpen() && "admin".equals(session.getAttributes().get("alertSubscription"))) {
-                    try {
-                        session.sendMessage(textMessage);
-                    } catch (IOException e) {
-                        logger.error("向管理员发送风险警报失败", e);
-                    }
-                }
-            }
-        } catch (Exception e) {
-            logger.error("序列化风险警报消息失败", e);
-        }
+        // 向所有订阅的管理员发送警报，消息只序列化一次
+        broadcastService.broadcast(broadcastService.getAdminSessions(),
+                session -> "admin".equals(session.getAttributes().get("alertSubscription")),
+                alertData, OutboundMessageType.NOTIFICATION, null, "riskAlert");
     }
 
     /**
      * 向指定用户发送风险警报
      */
     public void sendUserRiskAlert(Long userId, Map<String, Object> alertData) {
-        try {
-            Map<String, Object> message = Map.of(
-                    "type", "userRiskAlert",
-                    "data", alertData,
-                    "timestamp", LocalDateTime.now().toString()
-            );
-
-            String json = objectMapper.writeValueAsString(message);
-            TextMessage textMessage = new TextMessage(json);
-
-            // 获取用户的所有会话
-            Set<WebSocketSession> sessions = broadcastService.getUserSessions(userId);
-            if (sessions != null) {
-                for (WebSocketSession session : sessions) {
-                    if (session.isOpen() && "user".equals(session.getAttributes().get("alertSubscription"))) {
-                        try {
-                            session.sendMessage(textMessage);
-                        } catch (IOException e) {
-                            logger.error("向用户 {} 发送风险警报失败", userId, e);
-                        }
-                    }
-                }
-            }
-        } catch (Exception e) {
-            logger.error("序列化用户风险警报消息失败", e);
+        // 获取用户的所有会话
+        Set<WebSocketSession> sessions = broadcastService.getUserSessions(userId);
+        if (sessions != null) {
+            broadcastService.broadcast(sessions,
+                    session -> "user".equals(session.getAttributes().get("alertSubscription")),
+                    alertData, OutboundMessageType.NOTIFICATION, null, "userRiskAlert");
         }
     }
     /**
@@ -764,7 +749,7 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                         "message", "开始加载初始数据",
                         "timestamp", LocalDateTime.now().toString()
                 );
-                session.sendMessage(new TextMessage(objectMapper.writeValueAsString(testMessage)));
+                outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(testMessage)), OutboundMessageType.CONTROL);
                 logger.info("测试消息发送成功");
             } catch (Exception e) {
                 logger.error("发送测试消息失败", e);
@@ -785,7 +770,7 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                 logger.info("获取系统统计数据");
                 SystemTimeoutStatistics statistics = globalTimeoutStatisticsService.getSystemStatistics(period);
                 logger.info("系统统计数据获取成功，准备发送");
-                sendSystemStatistics(session, statistics);
+                sendSystemStatisticsOrSnapshot(session, statistics, period, false);
 
                 // 新增：发送系统级别的报告和建议数据
                 if ("admin".equals(user.getUserGroup())) {
@@ -800,7 +785,7 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                 // 使用相同的系统统计数据，保持一致性
                 SystemTimeoutStatistics statistics = globalTimeoutStatisticsService.getSystemStatistics(period);
                 logger.info("全局统计数据获取成功，准备发送");
-                sendGlobalStatistics(session, statistics);
+                sendSystemStatisticsOrSnapshot(session, statistics, period, true);
             }
             logger.info("初始数据发送完成");
         } catch (Exception e) {
@@ -812,7 +797,7 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                         "message", "获取初始数据失败: " + e.getMessage(),
                         "timestamp", LocalDateTime.now().toString()
                 );
-                session.sendMessage(new TextMessage(objectMapper.writeValueAsString(errorMessage)));
+                outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(errorMessage)), OutboundMessageType.CONTROL);
             } catch (IOException ex) {
                 logger.error("发送错误消息失败", ex);
             }
@@ -829,7 +814,7 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                 "timestamp", LocalDateTime.now().toString()
         );
 
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(response)));
+        outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(response)), OutboundMessageType.STATISTICS);
     }
 
     /**
@@ -842,7 +827,7 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                 "timestamp", LocalDateTime.now().toString()
         );
 
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(response)));
+        outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(response)), OutboundMessageType.STATISTICS);
     }
 
     /**
@@ -855,7 +840,22 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                 "timestamp", LocalDateTime.now().toString()
         );
 
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(response)));
+        outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(response)), OutboundMessageType.STATISTICS);
+    }
+
+    /**
+     * 发送初始系统统计数据
+     * 增量协议会话请求当天统计时发送带序列号的快照，其余情况按原格式发送所请求时间段的完整数据
+     */
+    private void sendSystemStatisticsOrSnapshot(WebSocketSession session, SystemTimeoutStatistics statistics,
+                                                StatisticsPeriod period, boolean global) throws IOException {
+        if (broadcastService.isDeltaSession(session) && broadcastService.isDeltaStreamPeriod(period)) {
+            broadcastService.sendSystemStatisticsSnapshot(session, () -> statistics);
+        } else if (global) {
+            sendGlobalStatistics(session, statistics);
+        } else {
+            sendSystemStatistics(session, statistics);
+        }
     }
 
     /**
@@ -870,7 +870,7 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                 "timestamp", LocalDateTime.now().toString()
         );
 
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(response)));
+        outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(response)), OutboundMessageType.STATISTICS);
     }
 
     /**
@@ -878,13 +878,13 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
      */
     private void sendErrorMessage(WebSocketSession session, String errorMessage) {
         try {
-            session.sendMessage(new TextMessage(objectMapper.writeValueAsString(
+            outboundSender.send(session, new TextMessage(objectMapper.writeValueAsString(
                     Map.of(
                             "type", "ERROR",
                             "message", errorMessage,
                             "timestamp", LocalDateTime.now().toString()
                     )
-            )));
+            )), OutboundMessageType.CONTROL);
         } catch (IOException e) {
             logger.error("发送错误消息时发生错误", e);
         }
@@ -910,9 +910,8 @@ public class TimeoutStatisticsWebSocketHandler extends TextWebSocketHandler {
                 // 使用合并后的统计服务获取系统统计数据
                 SystemTimeoutStatistics systemStats = globalTimeoutStatisticsService.getSystemStatistics(period);
 
-                // 广播系统统计和全局统计（数据相同）
-                broadcastService.broadcastSystemStatisticsUpdate(systemStats);
-                broadcastService.broadcastGlobalStatisticsUpdate(systemStats);
+                // 广播系统统计和全局统计（数据相同，只序列化一次，未变化时跳过）
+                broadcastService.broadcastSystemAndGlobalStatisticsUpdate(systemStats);
 
                 logger.debug("已向管理员广播系统和全局超时统计更新");
             }
@@ -0,0 +1,29 @@
+package com.server.anki.websocket.service;
+
+/**
+ * WebSocket出站消息类型
+ * 决定消息在会话发送队列溢出时的处理策略
+ */
+public enum OutboundMessageType {
+    // 聊天消息，任何情况下都不允许丢弃
+    CHAT(false),
+    // 业务通知消息，不允许丢弃
+    NOTIFICATION(false),
+    // 连接确认、心跳响应、错误提示等控制消息
+    CONTROL(false),
+    // 统计数据推送，队列拥塞时可以被合并或丢弃
+    STATISTICS(true);
+
+    private final boolean droppable;
+
+    OutboundMessageType(boolean droppable) {
+        this.droppable = droppable;
+    }
+
+    /**
+     * 判断该类型的消息在拥塞时是否可以丢弃
+     */
+    public boolean isDroppable() {
+        return droppable;
+    }
+}
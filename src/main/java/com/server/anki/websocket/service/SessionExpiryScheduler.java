@@ -0,0 +1,191 @@
+package com.server.anki.websocket.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WebSocket会话过期调度器
+ * 基于哈希时间轮实现，所有WebSocket处理器共享
+ * 续期只更新截止时间（O(1)），时间轮转到条目所在槽位时再按最新截止时间重新放置或触发过期，
+ * 每个tick只处理当前槽位中的条目，不需要遍历全部会话
+ */
+@Component
+public class SessionExpiryScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionExpiryScheduler.class);
+
+    // 时间轮每格的时长（毫秒）
+    @Value("${websocket.expiry.tick-duration:1000}")
+    private long tickDuration;
+
+    // 时间轮槽位数
+    @Value("${websocket.expiry.wheel-size:64}")
+    private int wheelSize;
+
+    // 槽位只由tick线程访问，新条目先放入待处理队列
+    private Queue<ExpiryHandle>[] wheel;
+    private final Queue<ExpiryHandle> pendingHandles = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private long currentTick;
+    private long startTime;
+    private ScheduledExecutorService ticker;
+
+    @PostConstruct
+    @SuppressWarnings("unchecked")
+    public void start() {
+        wheel = new Queue[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        startTime = System.currentTimeMillis();
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ws-session-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::tick, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+        logger.info("WebSocket会话过期调度器已启动, tick: {}ms, 槽位数: {}", tickDuration, wheelSize);
+    }
+
+    @PreDestroy
+    public void stop() {
+        ticker.shutdownNow();
+    }
+
+    /**
+     * 登记一个会话的过期任务
+     *
+     * @param timeoutMillis 无活动的超时时间
+     * @param onExpire 过期时执行的回调，在调度线程中执行，应尽量轻量
+     * @return 过期句柄，用于续期和取消
+     */
+    public ExpiryHandle schedule(long timeoutMillis, Runnable onExpire) {
+        ExpiryHandle handle = new ExpiryHandle(timeoutMillis, onExpire);
+        pendingHandles.add(handle);
+        activeCount.incrementAndGet();
+        return handle;
+    }
+
+    /**
+     * 获取当前登记中的过期任务数
+     */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+
+            // 将新登记的条目放入对应槽位
+            ExpiryHandle pending;
+            while ((pending = pendingHandles.poll()) != null) {
+                if (!pending.cancelled) {
+                    place(pending, currentTick);
+                }
+            }
+
+            // 追赶因调度延迟错过的tick
+            long targetTick = (now - startTime) / tickDuration;
+            while (currentTick <= targetTick) {
+                processBucket(wheel[(int) (currentTick % wheelSize)], now);
+                currentTick++;
+            }
+        } catch (Exception e) {
+            logger.error("处理WebSocket会话过期时发生错误", e);
+        }
+    }
+
+    private void processBucket(Queue<ExpiryHandle> bucket, long now) {
+        int count = bucket.size();
+        for (int i = 0; i < count; i++) {
+            ExpiryHandle handle = bucket.poll();
+            if (handle == null) {
+                return;
+            }
+            if (handle.cancelled) {
+                continue;
+            }
+            if (handle.deadline > now) {
+                // 期间已续期，按新的截止时间重新放置到后续槽位
+                place(handle, currentTick + 1);
+                continue;
+            }
+            expire(handle);
+        }
+    }
+
+    private void place(ExpiryHandle handle, long minTick) {
+        long deadlineTick = Math.max((handle.deadline - startTime) / tickDuration, minTick);
+        wheel[(int) (deadlineTick % wheelSize)].add(handle);
+    }
+
+    private void expire(ExpiryHandle handle) {
+        if (!handle.markDone()) {
+            return;
+        }
+        try {
+            handle.onExpire.run();
+        } catch (Exception e) {
+            logger.error("执行会话过期回调时发生错误", e);
+        }
+    }
+
+    /**
+     * 过期句柄
+     * 每次收到心跳或消息时调用touch续期，连接关闭时调用cancel
+     */
+    public final class ExpiryHandle {
+        private final long timeoutMillis;
+        private final Runnable onExpire;
+        private volatile long deadline;
+        private volatile boolean cancelled;
+        private boolean done;
+
+        private ExpiryHandle(long timeoutMillis, Runnable onExpire) {
+            this.timeoutMillis = timeoutMillis;
+            this.onExpire = onExpire;
+            this.deadline = System.currentTimeMillis() + timeoutMillis;
+        }
+
+        /**
+         * 续期，截止时间顺延一个超时周期
+         */
+        public void touch() {
+            deadline = System.currentTimeMillis() + timeoutMillis;
+        }
+
+        /**
+         * 取消过期任务
+         */
+        public void cancel() {
+            cancelled = true;
+            markDone();
+        }
+
+        public boolean isExpired() {
+            return !cancelled && deadline <= System.currentTimeMillis();
+        }
+
+        private synchronized boolean markDone() {
+            if (done) {
+                return false;
+            }
+            done = true;
+            activeCount.decrementAndGet();
+            return true;
+        }
+    }
+}
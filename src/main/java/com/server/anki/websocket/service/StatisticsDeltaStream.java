@@ -0,0 +1,144 @@
+package com.server.anki.websocket.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 统计数据增量流
+ * 保存最近一次快照和序列号，每次推进时计算与上一快照的JSON Patch（RFC 6902）风格差异
+ * 客户端通过 baseSeq/seq 检测丢包，发现断档后请求重新同步完整快照
+ */
+public class StatisticsDeltaStream {
+
+    private final String name;
+    private JsonNode snapshot;
+    private long seq;
+
+    public StatisticsDeltaStream(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 推进到新的快照
+     *
+     * @param next 新快照
+     * @return 与上一快照的差异；内容未变化时返回null
+     */
+    public synchronized Delta advance(JsonNode next) {
+        if (next.equals(snapshot)) {
+            return null;
+        }
+
+        ArrayNode ops = JsonNodeFactory.instance.arrayNode();
+        if (snapshot == null) {
+            ops.add(operation("replace", "", next));
+        } else {
+            diff(snapshot, next, "", ops);
+        }
+
+        long baseSeq = seq;
+        snapshot = next;
+        seq++;
+        return new Delta(baseSeq, seq, ops, next);
+    }
+
+    /**
+     * 在流为空时使用给定快照初始化
+     *
+     * @return 当前快照，流已有数据时忽略传入的快照
+     */
+    public synchronized Snapshot seedIfEmpty(JsonNode initial) {
+        if (snapshot == null) {
+            snapshot = initial;
+            seq = 1;
+        }
+        return new Snapshot(seq, snapshot);
+    }
+
+    /**
+     * 获取当前快照，流为空时返回null
+     */
+    public synchronized Snapshot current() {
+        return snapshot != null ? new Snapshot(seq, snapshot) : null;
+    }
+
+    /**
+     * 递归比较两个JSON节点，生成add/remove/replace操作
+     * 数组长度不同时整体替换，避免移位导致大量无意义的操作
+     */
+    private static void diff(JsonNode source, JsonNode target, String path, ArrayNode ops) {
+        if (source.equals(target)) {
+            return;
+        }
+
+        if (source.isObject() && target.isObject()) {
+            Iterator<Map.Entry<String, JsonNode>> sourceFields = source.fields();
+            while (sourceFields.hasNext()) {
+                Map.Entry<String, JsonNode> field = sourceFields.next();
+                String fieldPath = path + "/" + escape(field.getKey());
+                JsonNode targetValue = target.get(field.getKey());
+                if (targetValue == null) {
+                    ops.add(operation("remove", fieldPath, null));
+                } else {
+                    diff(field.getValue(), targetValue, fieldPath, ops);
+                }
+            }
+
+            Iterator<Map.Entry<String, JsonNode>> targetFields = target.fields();
+            while (targetFields.hasNext()) {
+                Map.Entry<String, JsonNode> field = targetFields.next();
+                if (!source.has(field.getKey())) {
+                    ops.add(operation("add", path + "/" + escape(field.getKey()), field.getValue()));
+                }
+            }
+            return;
+        }
+
+        if (source.isArray() && target.isArray() && source.size() == target.size()) {
+            for (int i = 0; i < source.size(); i++) {
+                diff(source.get(i), target.get(i), path + "/" + i, ops);
+            }
+            return;
+        }
+
+        ops.add(operation("replace", path, target));
+    }
+
+    private static ObjectNode operation(String op, String path, JsonNode value) {
+        ObjectNode operation = JsonNodeFactory.instance.objectNode();
+        operation.put("op", op);
+        operation.put("path", path);
+        if (value != null) {
+            operation.set("value", value);
+        }
+        return operation;
+    }
+
+    /**
+     * 按JSON Pointer规则转义字段名
+     */
+    private static String escape(String key) {
+        return key.replace("~", "~0").replace("/", "~1");
+    }
+
+    /**
+     * 一次推进产生的差异
+     */
+    public record Delta(long baseSeq, long seq, ArrayNode ops, JsonNode snapshot) {
+    }
+
+    /**
+     * 带序列号的完整快照
+     */
+    public record Snapshot(long seq, JsonNode data) {
+    }
+}
@@ -1,31 +1,66 @@
 package com.server.anki.websocket.service;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.RawValue;
 import com.server.anki.timeout.model.*;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 @Service
 public class TimeoutStatisticsBroadcastService {
 
     private static final Logger logger = LoggerFactory.getLogger(TimeoutStatisticsBroadcastService.class);
 
+    // 会话协议属性，取值为delta时使用增量协议
+    public static final String PROTOCOL_ATTRIBUTE = "statisticsProtocol";
+    public static final String DELTA_PROTOCOL = "delta";
+
     @Autowired
     private ObjectMapper objectMapper;
 
+    @Autowired
+    private WebSocketOutboundSender outboundSender;
+
     // 存储会话信息
     private final Map<Long, Set<WebSocketSession>> userSessionsMap = new ConcurrentHashMap<>();
     private final Set<WebSocketSession> adminSessions = ConcurrentHashMap.newKeySet();
 
+    // 系统统计增量流，供使用增量协议的管理员会话使用
+    private final StatisticsDeltaStream systemDeltaStream = new StatisticsDeltaStream("system");
+
+    // 每个广播主题最近一次发送内容的摘要，用于跳过未变化的快照
+    private final Map<String, String> lastDigests = new ConcurrentHashMap<>();
+
+    // 广播专用线程，单线程保证同一主题的快照按顺序入队
+    private final ExecutorService broadcastExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ws-statistics-broadcast");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PreDestroy
+    public void shutdown() {
+        broadcastExecutor.shutdownNow();
+    }
+
     /**
      * 注册用户会话
      */
@@ -75,8 +110,14 @@ public class TimeoutStatisticsBroadcastService {
             sessions.remove(session);
         }
 
-        // 清理空的用户会话集合
-        userSessionsMap.entrySet().removeIf(entry -> entry.getValue().isEmpty());
+        // 清理空的用户会话集合，用户最后一个会话关闭时一并清理其广播摘要
+        userSessionsMap.entrySet().removeIf(entry -> {
+            if (!entry.getValue().isEmpty()) {
+                return false;
+            }
+            releaseUserDigest(entry.getKey());
+            return true;
+        });
 
         // 从管理员会话中移除
         adminSessions.remove(session);
@@ -90,30 +131,7 @@ public class TimeoutStatisticsBroadcastService {
     public void broadcastUserStatisticsUpdate(Long userId, UserTimeoutStatistics statistics) {
         Set<WebSocketSession> sessions = userSessionsMap.get(userId);
         if (sessions != null && !sessions.isEmpty()) {
-            try {
-                Map<String, Object> message = Map.of(
-                        "type", "user",
-                        "data", statistics,
-                        "timestamp", LocalDateTime.now().toString()
-                );
-
-                String json = objectMapper.writeValueAsString(message);
-                TextMessage textMessage = new TextMessage(json);
-
-                for (WebSocketSession session : sessions) {
-                    if (session.isOpen()) {
-                        try {
-                            session.sendMessage(textMessage);
-                        } catch (IOException e) {
-                            logger.error("向用户 {} 发送超时统计更新失败", userId, e);
-                        }
-                    }
-                }
-
-                logger.debug("已向用户 {} 的 {} 个会话广播超时统计更新", userId, sessions.size());
-            } catch (Exception e) {
-                logger.error("序列化超时统计更新消息失败", e);
-            }
+            broadcast(sessions, null, statistics, OutboundMessageType.STATISTICS, userDigestKey(userId), "user");
         }
     }
 
@@ -122,30 +140,9 @@ public class TimeoutStatisticsBroadcastService {
      */
     public void broadcastSystemStatisticsUpdate(SystemTimeoutStatistics statistics) {
         if (!adminSessions.isEmpty()) {
-            try {
-                Map<String, Object> message = Map.of(
-                        "type", "system",
-                        "data", statistics,
-                        "timestamp", LocalDateTime.now().toString()
-                );
-
-                String json = objectMapper.writeValueAsString(message);
-                TextMessage textMessage = new TextMessage(json);
-
-                for (WebSocketSession session : adminSessions) {
-                    if (session.isOpen()) {
-                        try {
-                            session.sendMessage(textMessage);
-                        } catch (IOException e) {
-                            logger.error("向管理员发送系统超时统计更新失败", e);
-                        }
-                    }
-                }
-
-                logger.debug("已向 {} 个管理员会话广播系统超时统计更新", adminSessions.size());
-            } catch (Exception e) {
-                logger.error("序列化系统超时统计更新消息失败", e);
-            }
+            broadcast(adminSessions, this::isFullSnapshotSession, statistics,
+                    OutboundMessageType.STATISTICS, "system", "system");
+            broadcastSystemDelta(statistics);
         }
     }
 
@@ -154,31 +151,134 @@ public class TimeoutStatisticsBroadcastService {
      */
     public void broadcastGlobalStatisticsUpdate(SystemTimeoutStatistics statistics) {
         if (!adminSessions.isEmpty()) {
-            try {
-                Map<String, Object> message = Map.of(
-                        "type", "global",
-                        "data", statistics,
-                        "timestamp", LocalDateTime.now().toString()
-                );
-
-                String json = objectMapper.writeValueAsString(message);
-                TextMessage textMessage = new TextMessage(json);
-
-                for (WebSocketSession session : adminSessions) {
-                    if (session.isOpen()) {
-                        try {
-                            session.sendMessage(textMessage);
-                        } catch (IOException e) {
-                            logger.error("向管理员发送全局超时统计更新失败", e);
-                        }
-                    }
-                }
+            broadcast(adminSessions, this::isFullSnapshotSession, statistics,
+                    OutboundMessageType.STATISTICS, "global", "global");
+            broadcastSystemDelta(statistics);
+        }
+    }
 
-                logger.debug("已向 {} 个管理员会话广播全局超时统计更新", adminSessions.size());
-            } catch (Exception e) {
-                logger.error("序列化全局超时统计更新消息失败", e);
+    /**
+     * 同时广播系统和全局超时统计更新
+     * 两者数据相同，只序列化一次
+     */
+    public void broadcastSystemAndGlobalStatisticsUpdate(SystemTimeoutStatistics statistics) {
+        if (!adminSessions.isEmpty()) {
+            broadcast(adminSessions, this::isFullSnapshotSession, statistics,
+                    OutboundMessageType.STATISTICS, "system", "system", "global");
+            broadcastSystemDelta(statistics);
+        }
+    }
+
+    /**
+     * 清理用户统计的广播摘要
+     * 在广播线程中执行，排在已提交的广播之后，避免被尚未执行的广播重新写入；
+     * 期间用户重新连接时保留摘要
+     */
+    private void releaseUserDigest(Long userId) {
+        submit(() -> {
+            if (!userSessionsMap.containsKey(userId)) {
+                lastDigests.remove(userDigestKey(userId));
             }
+        });
+    }
+
+    private String userDigestKey(Long userId) {
+        return "user:" + userId;
+    }
+
+    /**
+     * 判断统计时间段是否与系统统计增量流一致
+     * 增量流始终跟踪当天零点到当前的统计，其他时间段只能发送完整数据
+     */
+    public boolean isDeltaStreamPeriod(StatisticsPeriod period) {
+        LocalDateTime now = LocalDateTime.now();
+        return period.startTime().equals(now.toLocalDate().atStartOfDay())
+                && !period.endTime().isBefore(now.minusMinutes(1));
+    }
+
+    /**
+     * 判断会话是否使用增量协议
+     * 客户端连接时通过 protocol=delta 参数开启，未开启的会话继续接收完整快照
+     */
+    public boolean isDeltaSession(WebSocketSession session) {
+        return DELTA_PROTOCOL.equals(session.getAttributes().get(PROTOCOL_ATTRIBUTE));
+    }
+
+    private boolean isFullSnapshotSession(WebSocketSession session) {
+        return !isDeltaSession(session);
+    }
+
+    /**
+     * 向增量协议会话发送系统统计的完整快照
+     * 用于订阅时的初始数据和客户端检测到序列号断档后的重新同步，
+     * 只适用于增量流跟踪的当天统计，其他时间段由调用方按完整数据发送
+     *
+     * @param session 目标会话
+     * @param loader 增量流为空时用于加载初始统计数据
+     */
+    public void sendSystemStatisticsSnapshot(WebSocketSession session, Supplier<SystemTimeoutStatistics> loader)
+            throws IOException {
+        StatisticsDeltaStream.Snapshot snapshot = systemDeltaStream.current();
+        if (snapshot == null) {
+            snapshot = systemDeltaStream.seedIfEmpty(objectMapper.valueToTree(loader.get()));
         }
+
+        TextMessage textMessage = new TextMessage(objectMapper.writeValueAsString(Map.of(
+                "type", "statisticsSnapshot",
+                "stream", systemDeltaStream.getName(),
+                "seq", snapshot.seq(),
+                "data", snapshot.data(),
+                "timestamp", LocalDateTime.now().toString()
+        )));
+        outboundSender.send(session, textMessage, OutboundMessageType.STATISTICS,
+                "snapshot:" + systemDeltaStream.getName());
+    }
+
+    /**
+     * 向增量协议会话广播系统统计的差异
+     * 内容未变化时不发送；差异比完整快照还大时改为发送快照
+     */
+    private void broadcastSystemDelta(SystemTimeoutStatistics statistics) {
+        submit(() -> {
+            JsonNode snapshotNode = objectMapper.valueToTree(statistics);
+            StatisticsDeltaStream.Delta delta = systemDeltaStream.advance(snapshotNode);
+            if (delta == null) {
+                logger.debug("系统统计未变化，跳过增量广播");
+                return;
+            }
+
+            String timestamp = LocalDateTime.now().toString();
+            String opsJson = objectMapper.writeValueAsString(delta.ops());
+            String snapshotJson = objectMapper.writeValueAsString(delta.snapshot());
+
+            TextMessage textMessage;
+            String coalesceKey;
+            if (opsJson.length() < snapshotJson.length()) {
+                textMessage = new TextMessage(objectMapper.writeValueAsString(Map.of(
+                        "type", "statisticsDelta",
+                        "stream", systemDeltaStream.getName(),
+                        "baseSeq", delta.baseSeq(),
+                        "seq", delta.seq(),
+                        "ops", new RawValue(opsJson),
+                        "timestamp", timestamp
+                )));
+                // 增量之间存在依赖，不能合并，只能在拥塞时整体丢弃后由客户端重新同步
+                coalesceKey = null;
+            } else {
+                textMessage = new TextMessage(objectMapper.writeValueAsString(Map.of(
+                        "type", "statisticsSnapshot",
+                        "stream", systemDeltaStream.getName(),
+                        "seq", delta.seq(),
+                        "data", new RawValue(snapshotJson),
+                        "timestamp", timestamp
+                )));
+                coalesceKey = "snapshot:" + systemDeltaStream.getName();
+            }
+
+            int sent = fanOut(adminSessions, this::isDeltaSession, textMessage,
+                    OutboundMessageType.STATISTICS, coalesceKey);
+            logger.debug("已向 {} 个增量会话广播系统统计 seq={}, 操作数: {}", sent, delta.seq(), delta.ops().size());
+        });
     }
 
     /**
@@ -186,30 +286,7 @@ public class TimeoutStatisticsBroadcastService {
      */
     public void broadcastTimeoutReportUpdate(GlobalTimeoutReport report) {
         if (!adminSessions.isEmpty()) {
-            try {
-                Map<String, Object> message = Map.of(
-                        "type", "timeoutReport",
-                        "data", report,
-                        "timestamp", LocalDateTime.now().toString()
-                );
-
-                String json = objectMapper.writeValueAsString(message);
-                TextMessage textMessage = new TextMessage(json);
-
-                for (WebSocketSession session : adminSessions) {
-                    if (session.isOpen()) {
-                        try {
-                            session.sendMessage(textMessage);
-                        } catch (IOException e) {
-                            logger.error("向管理员发送超时报告更新失败", e);
-                        }
-                    }
-                }
-
-                logger.debug("已向 {} 个管理员会话广播超时报告更新", adminSessions.size());
-            } catch (Exception e) {
-                logger.error("序列化超时报告更新消息失败", e);
-            }
+            broadcast(adminSessions, null, report, OutboundMessageType.STATISTICS, "timeoutReport", "timeoutReport");
         }
     }
 
@@ -218,34 +295,7 @@ public class TimeoutStatisticsBroadcastService {
      */
     public void broadcastRecommendationsUpdate(List<String> recommendations, StatisticsPeriod period) {
         if (!adminSessions.isEmpty()) {
-            try {
-                Map<String, Object> message = Map.of(
-                        "type", "recommendations",
-                        "recommendations", recommendations,
-                        "period", Map.of(
-                                "startTime", period.startTime(),
-                                "endTime", period.endTime()
-                        ),
-                        "timestamp", LocalDateTime.now().toString()
-                );
-
-                String json = objectMapper.writeValueAsString(message);
-                TextMessage textMessage = new TextMessage(json);
-
-                for (WebSocketSession session : adminSessions) {
-                    if (session.isOpen()) {
-                        try {
-                            session.sendMessage(textMessage);
-                        } catch (IOException e) {
-                            logger.error("向管理员发送超时建议更新失败", e);
-                        }
-                    }
-                }
-
-                logger.debug("已向 {} 个管理员会话广播超时建议更新", adminSessions.size());
-            } catch (Exception e) {
-                logger.error("序列化超时建议更新消息失败", e);
-            }
+            broadcastRecommendations(adminSessions, recommendations, period);
         }
     }
 
@@ -255,35 +305,99 @@ public class TimeoutStatisticsBroadcastService {
     public void broadcastUserRecommendationsUpdate(Long userId, List<String> recommendations, StatisticsPeriod period) {
         Set<WebSocketSession> sessions = userSessionsMap.get(userId);
         if (sessions != null && !sessions.isEmpty()) {
-            try {
-                Map<String, Object> message = Map.of(
-                        "type", "recommendations",
-                        "recommendations", recommendations,
-                        "period", Map.of(
-                                "startTime", period.startTime(),
-                                "endTime", period.endTime()
-                        ),
-                        "timestamp", LocalDateTime.now().toString()
-                );
-
-                String json = objectMapper.writeValueAsString(message);
-                TextMessage textMessage = new TextMessage(json);
-
-                for (WebSocketSession session : sessions) {
-                    if (session.isOpen()) {
-                        try {
-                            session.sendMessage(textMessage);
-                        } catch (IOException e) {
-                            logger.error("向用户 {} 发送超时建议更新失败", userId, e);
-                        }
-                    }
-                }
+            broadcastRecommendations(sessions, recommendations, period);
+        }
+    }
+
+    /**
+     * 广播原语：在广播线程中将数据序列化一次，生成共享的不可变TextMessage后发送给所有目标会话
+     *
+     * @param targets 目标会话集合
+     * @param filter 会话过滤条件，为null时发送给所有打开的会话
+     * @param data 消息数据，作为data字段
+     * @param messageType 出站消息类型
+     * @param dedupeKey 去重键，内容与上次相同时跳过广播；为null时不去重
+     * @param types 消息type，每个type生成一条消息，数据只序列化一次
+     */
+    public void broadcast(Collection<WebSocketSession> targets, Predicate<WebSocketSession> filter, Object data,
+                          OutboundMessageType messageType, String dedupeKey, String... types) {
+        submit(() -> {
+            String dataJson = objectMapper.writeValueAsString(data);
+            if (dedupeKey != null && !markChanged(dedupeKey, dataJson)) {
+                logger.debug("{} 数据未变化，跳过广播", dedupeKey);
+                return;
+            }
+
+            String timestamp = LocalDateTime.now().toString();
+            for (String type : types) {
+                TextMessage textMessage = new TextMessage(objectMapper.writeValueAsString(Map.of(
+                        "type", type,
+                        "data", new RawValue(dataJson),
+                        "timestamp", timestamp
+                )));
+                int sent = fanOut(targets, filter, textMessage, messageType, type);
+                logger.debug("已向 {} 个会话广播 {} 更新", sent, type);
+            }
+        });
+    }
+
+    private void broadcastRecommendations(Collection<WebSocketSession> targets, List<String> recommendations,
+                                          StatisticsPeriod period) {
+        submit(() -> {
+            TextMessage textMessage = new TextMessage(objectMapper.writeValueAsString(Map.of(
+                    "type", "recommendations",
+                    "recommendations", recommendations,
+                    "period", Map.of(
+                            "startTime", period.startTime(),
+                            "endTime", period.endTime()
+                    ),
+                    "timestamp", LocalDateTime.now().toString()
+            )));
+            int sent = fanOut(targets, null, textMessage, OutboundMessageType.STATISTICS, "recommendations");
+            logger.debug("已向 {} 个会话广播超时建议更新", sent);
+        });
+    }
 
-                logger.debug("已向用户 {} 的 {} 个会话广播超时建议更新", userId, sessions.size());
-            } catch (Exception e) {
-                logger.error("序列化用户超时建议更新消息失败", e);
+    /**
+     * 将同一个TextMessage实例放入所有目标会话的发送队列
+     */
+    private int fanOut(Collection<WebSocketSession> targets, Predicate<WebSocketSession> filter,
+                       TextMessage textMessage, OutboundMessageType messageType, String coalesceKey) {
+        int sent = 0;
+        for (WebSocketSession session : targets) {
+            if (session.isOpen() && (filter == null || filter.test(session))
+                    && outboundSender.send(session, textMessage, messageType, coalesceKey)) {
+                sent++;
             }
         }
+        return sent;
+    }
+
+    /**
+     * 比较内容摘要，内容变化时记录新摘要并返回true
+     */
+    private boolean markChanged(String dedupeKey, String dataJson) {
+        String digest = DigestUtils.md5DigestAsHex(dataJson.getBytes(StandardCharsets.UTF_8));
+        return !digest.equals(lastDigests.put(dedupeKey, digest));
+    }
+
+    private void submit(BroadcastTask task) {
+        try {
+            broadcastExecutor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    logger.error("序列化超时统计广播消息失败", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warn("广播线程池已关闭，放弃本次广播");
+        }
+    }
+
+    @FunctionalInterface
+    private interface BroadcastTask {
+        void run() throws Exception;
     }
 
     /**
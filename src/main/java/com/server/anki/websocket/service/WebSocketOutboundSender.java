@@ -0,0 +1,396 @@
+package com.server.anki.websocket.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WebSocket出站消息发送器
+ * 为每个会话维护一个有界发送队列，由独立线程池串行发送，
+ * 业务线程（MQ消费者、定时广播、请求线程）只负责入队，不会被慢客户端阻塞。
+ * 单次发送超过时间上限的会话由定时巡检中断发送并关闭，避免卡住的客户端长期占用发送线程。
+ * 关闭会话可能等待仍在进行的发送释放会话锁，因此在独立的关闭线程中执行，不阻塞巡检和业务线程
+ */
+@Service
+public class WebSocketOutboundSender {
+
+    private static final Logger logger = LoggerFactory.getLogger(WebSocketOutboundSender.class);
+
+    // 单次发送的最长耗时（毫秒），超过后认为客户端已经卡住
+    @Value("${websocket.outbound.send-time-limit:10000}")
+    private long sendTimeLimit;
+
+    // 每个会话待发送数据的字节上限
+    @Value("${websocket.outbound.buffer-size-limit:524288}")
+    private long bufferSizeLimit;
+
+    // 每个会话待发送消息的条数上限
+    @Value("${websocket.outbound.max-queue-size:256}")
+    private int maxQueueSize;
+
+    // 发送线程池大小
+    @Value("${websocket.outbound.pool-size:8}")
+    private int poolSize;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, SessionOutbound> outbounds = new ConcurrentHashMap<>();
+    private final Map<OutboundMessageType, Counter> droppedCounters = new EnumMap<>(OutboundMessageType.class);
+    private Counter coalescedCounter;
+    private Counter terminatedCounter;
+    private ExecutorService sendExecutor;
+    private ExecutorService closeExecutor;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        sendExecutor = Executors.newFixedThreadPool(poolSize, runnable -> {
+            Thread thread = new Thread(runnable, "ws-outbound-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // 关闭线程按需创建，多个卡住的会话可同时关闭，互不等待
+        AtomicInteger closeThreadIndex = new AtomicInteger();
+        closeExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "ws-outbound-close-" + closeThreadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (OutboundMessageType type : OutboundMessageType.values()) {
+            droppedCounters.put(type, Counter.builder("websocket.outbound.dropped")
+                    .description("因发送队列溢出被丢弃的WebSocket消息数")
+                    .tag("type", type.name())
+                    .register(meterRegistry));
+        }
+        coalescedCounter = Counter.builder("websocket.outbound.coalesced")
+                .description("被更新快照合并替换的WebSocket消息数")
+                .register(meterRegistry);
+        terminatedCounter = Counter.builder("websocket.outbound.terminated")
+                .description("因发送拥塞或超时被关闭的WebSocket会话数")
+                .register(meterRegistry);
+        Gauge.builder("websocket.outbound.queue.depth", outbounds,
+                        map -> map.values().stream().mapToInt(SessionOutbound::size).sum())
+                .description("所有会话待发送的WebSocket消息总数")
+                .register(meterRegistry);
+        Gauge.builder("websocket.outbound.sessions", outbounds, Map::size)
+                .description("持有发送队列的WebSocket会话数")
+                .register(meterRegistry);
+
+        logger.info("WebSocket出站发送器初始化完成, 线程数: {}, 队列上限: {}, 缓冲上限: {}字节, 发送超时: {}ms",
+                poolSize, maxQueueSize, bufferSizeLimit, sendTimeLimit);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        closeExecutor.shutdown();
+        sendExecutor.shutdown();
+        try {
+            if (!sendExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                sendExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            sendExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 将消息放入会话的发送队列
+     *
+     * @param session 目标会话
+     * @param message 待发送消息
+     * @param type 消息类型，决定溢出时的处理策略
+     * @return 消息是否成功入队
+     */
+    public boolean send(WebSocketSession session, TextMessage message, OutboundMessageType type) {
+        return send(session, message, type, null);
+    }
+
+    /**
+     * 将消息放入会话的发送队列，相同合并键的未发送消息会被新消息替换
+     * 合并只对可丢弃类型的消息生效，用于统计快照等只关心最新值的推送
+     *
+     * @param session 目标会话
+     * @param message 待发送消息
+     * @param type 消息类型
+     * @param coalesceKey 合并键，为null时不合并
+     * @return 消息是否成功入队
+     */
+    public boolean send(WebSocketSession session, TextMessage message, OutboundMessageType type, String coalesceKey) {
+        if (session == null || !session.isOpen()) {
+            return false;
+        }
+
+        SessionOutbound outbound = outbounds.computeIfAbsent(session.getId(), id -> new SessionOutbound(session));
+        boolean enqueued = outbound.enqueue(new PendingMessage(message, type,
+                type.isDroppable() ? coalesceKey : null));
+        if (enqueued) {
+            outbound.scheduleDrain();
+        }
+        return enqueued;
+    }
+
+    /**
+     * 释放会话的发送队列，应在连接关闭时调用
+     */
+    public void release(WebSocketSession session) {
+        if (session == null) {
+            return;
+        }
+        SessionOutbound outbound = outbounds.remove(session.getId());
+        if (outbound != null) {
+            outbound.clear();
+        }
+    }
+
+    /**
+     * 获取指定会话当前待发送的消息数
+     */
+    public int getQueueDepth(WebSocketSession session) {
+        SessionOutbound outbound = outbounds.get(session.getId());
+        return outbound != null ? outbound.size() : 0;
+    }
+
+    /**
+     * 获取所有会话待发送的消息总数
+     */
+    public int getTotalQueueDepth() {
+        return outbounds.values().stream().mapToInt(SessionOutbound::size).sum();
+    }
+
+    /**
+     * 巡检正在发送的会话，单次发送超过时间上限时中断发送线程并关闭会话
+     * 不依赖该会话的下一条消息触发检查，保证卡住的发送最多占用线程一个时间上限
+     */
+    @Scheduled(fixedDelayString = "${websocket.outbound.watchdog-interval:1000}")
+    public void terminateStalledSessions() {
+        long now = System.currentTimeMillis();
+        for (SessionOutbound outbound : outbounds.values()) {
+            long startTime = outbound.sendStartTime;
+            if (startTime > 0 && now - startTime > sendTimeLimit) {
+                outbound.abortSend(startTime);
+                terminate(outbound, "发送超时");
+            }
+        }
+    }
+
+    /**
+     * 关闭无法及时消费消息的会话
+     * 不可丢弃的消息无法入队时只能断开连接，由客户端重连后重新拉取数据。
+     * 队列立即清空，实际关闭交给关闭线程，调用方不会因卡住的发送持有会话锁而阻塞
+     */
+    private void terminate(SessionOutbound outbound, String reason) {
+        if (!outbounds.remove(outbound.session.getId(), outbound)) {
+            // 已被释放或已由其他线程关闭
+            return;
+        }
+        outbound.clear();
+        terminatedCounter.increment();
+        logger.warn("关闭拥塞的WebSocket会话: {}, 原因: {}", outbound.session.getId(), reason);
+        try {
+            closeExecutor.execute(() -> closeSession(outbound.session, reason));
+        } catch (RejectedExecutionException e) {
+            logger.warn("关闭线程池已关闭，放弃关闭会话: {}", outbound.session.getId());
+        }
+    }
+
+    private void closeSession(WebSocketSession session, String reason) {
+        try {
+            session.close(CloseStatus.SESSION_NOT_RELIABLE.withReason(reason));
+        } catch (IOException e) {
+            logger.error("关闭拥塞会话时发生错误: {}", session.getId(), e);
+        }
+    }
+
+    private record PendingMessage(TextMessage message, OutboundMessageType type, String coalesceKey) {
+        int size() {
+            return message.getPayloadLength();
+        }
+    }
+
+    /**
+     * 单个会话的发送队列
+     * 队列操作在对象锁内完成，实际发送由draining标志保证同一时刻只有一个线程执行
+     */
+    private final class SessionOutbound {
+        private final WebSocketSession session;
+        private final Deque<PendingMessage> queue = new ArrayDeque<>();
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+        private long bufferedBytes;
+        private boolean closed;
+        private volatile long sendStartTime;
+        private volatile Thread sendingThread;
+
+        private SessionOutbound(WebSocketSession session) {
+            this.session = session;
+        }
+
+        private boolean enqueue(PendingMessage pending) {
+            String terminateReason = null;
+
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+
+                // 同一合并键只保留最新的一条
+                if (pending.coalesceKey() != null && removeByCoalesceKey(pending.coalesceKey())) {
+                    coalescedCounter.increment();
+                }
+
+                long sendingFor = sendStartTime > 0 ? System.currentTimeMillis() - sendStartTime : 0;
+                if (sendingFor > sendTimeLimit) {
+                    if (pending.type().isDroppable()) {
+                        droppedCounters.get(pending.type()).increment();
+                        return false;
+                    }
+                    terminateReason = "发送超时";
+                } else if (!makeRoom(pending)) {
+                    if (pending.type().isDroppable()) {
+                        droppedCounters.get(pending.type()).increment();
+                        return false;
+                    }
+                    terminateReason = "发送缓冲区溢出";
+                } else {
+                    queue.addLast(pending);
+                    bufferedBytes += pending.size();
+                    return true;
+                }
+            }
+
+            terminate(this, terminateReason);
+            return false;
+        }
+
+        /**
+         * 为新消息腾出空间，优先丢弃队列中最早的可丢弃消息
+         */
+        private boolean makeRoom(PendingMessage pending) {
+            Iterator<PendingMessage> iterator = queue.iterator();
+            while (isFull(pending) && iterator.hasNext()) {
+                PendingMessage queued = iterator.next();
+                if (queued.type().isDroppable()) {
+                    iterator.remove();
+                    bufferedBytes -= queued.size();
+                    droppedCounters.get(queued.type()).increment();
+                }
+            }
+            return !isFull(pending);
+        }
+
+        private boolean isFull(PendingMessage pending) {
+            return queue.size() >= maxQueueSize || bufferedBytes + pending.size() > bufferSizeLimit;
+        }
+
+        private boolean removeByCoalesceKey(String coalesceKey) {
+            Iterator<PendingMessage> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                PendingMessage queued = iterator.next();
+                if (coalesceKey.equals(queued.coalesceKey())) {
+                    iterator.remove();
+                    bufferedBytes -= queued.size();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void scheduleDrain() {
+            if (draining.compareAndSet(false, true)) {
+                try {
+                    sendExecutor.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    draining.set(false);
+                    logger.warn("发送线程池已关闭，放弃发送会话 {} 的消息", session.getId());
+                }
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                PendingMessage next;
+                synchronized (this) {
+                    next = queue.pollFirst();
+                    if (next == null) {
+                        draining.set(false);
+                        return;
+                    }
+                    bufferedBytes -= next.size();
+                }
+
+                if (!session.isOpen()) {
+                    release(session);
+                    draining.set(false);
+                    return;
+                }
+
+                sendingThread = Thread.currentThread();
+                sendStartTime = System.currentTimeMillis();
+                try {
+                    session.sendMessage(next.message());
+                } catch (Exception e) {
+                    logger.error("向会话 {} 发送WebSocket消息失败: {}", session.getId(), e.getMessage());
+                    finishSend();
+                    draining.set(false);
+                    terminate(this, "消息发送失败");
+                    return;
+                }
+                finishSend();
+            }
+        }
+
+        private void finishSend() {
+            sendStartTime = 0;
+            sendingThread = null;
+            // 清除巡检可能在发送结束后才送达的中断，避免影响线程处理其他会话
+            Thread.interrupted();
+        }
+
+        /**
+         * 中断仍在进行的同一次发送
+         */
+        private void abortSend(long startTime) {
+            Thread thread = sendingThread;
+            if (thread != null && sendStartTime == startTime) {
+                thread.interrupt();
+            }
+        }
+
+        private synchronized void clear() {
+            closed = true;
+            queue.clear();
+            bufferedBytes = 0;
+        }
+
+        private synchronized int size() {
+            return queue.size();
+        }
+    }
+}
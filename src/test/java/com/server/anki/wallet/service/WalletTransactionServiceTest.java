@@ -0,0 +1,331 @@
+package com.server.anki.wallet.service;
+
+import com.server.anki.alipay.AlipayService;
+import com.server.anki.user.User;
+import com.server.anki.user.UserRepository;
+import com.server.anki.wallet.entity.Wallet;
+import com.server.anki.wallet.entity.WalletLedgerEntry.LedgerEntryType;
+import com.server.anki.wallet.entity.WalletPendingCredit;
+import com.server.anki.wallet.entity.WithdrawalOrder;
+import com.server.anki.wallet.message.BalanceChangeMessage;
+import com.server.anki.wallet.message.TransferMessage;
+import com.server.anki.wallet.message.WithdrawalMessage;
+import com.server.anki.wallet.repository.WalletPendingCreditRepository;
+import com.server.anki.wallet.repository.WalletRepository;
+import com.server.anki.wallet.repository.WithdrawalOrderRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * 钱包事务服务测试
+ * 覆盖提现的三段式处理（扣款事务、事务外转账、结果事务）、转账的加锁顺序和待结算入账
+ */
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class WalletTransactionServiceTest {
+
+    private static final Long USER_ID = 1L;
+    private static final String ORDER_NUMBER = "WD0001";
+    private static final BigDecimal AMOUNT = new BigDecimal("100.00");
+
+    @Mock
+    private WalletRepository walletRepository;
+
+    @Mock
+    private UserRepository userRepository;
+
+    @Mock
+    private WalletAuditService walletAuditService;
+
+    @Mock
+    private AlipayService alipayService;
+
+    @Mock
+    private WithdrawalOrderRepository withdrawalOrderRepository;
+
+    @Mock
+    private WalletLedgerService walletLedgerService;
+
+    @Mock
+    private TransactionTemplate transactionTemplate;
+
+    @Mock
+    private WalletPendingCreditRepository walletPendingCreditRepository;
+
+    @InjectMocks
+    private WalletTransactionService walletTransactionService;
+
+    // 当前是否处于TransactionTemplate回调中
+    private final AtomicBoolean inTransaction = new AtomicBoolean(false);
+
+    @BeforeEach
+    void setUp() {
+        when(transactionTemplate.execute(any())).thenAnswer(invocation -> {
+            TransactionCallback<?> callback = invocation.getArgument(0);
+            inTransaction.set(true);
+            try {
+                return callback.doInTransaction(mock(TransactionStatus.class));
+            } finally {
+                inTransaction.set(false);
+            }
+        });
+        doAnswer(invocation -> {
+            Consumer<TransactionStatus> action = invocation.getArgument(0);
+            inTransaction.set(true);
+            try {
+                action.accept(mock(TransactionStatus.class));
+            } finally {
+                inTransaction.set(false);
+            }
+            return null;
+        }).when(transactionTemplate).executeWithoutResult(any());
+
+        User user = user(USER_ID);
+        when(userRepository.findById(USER_ID)).thenReturn(Optional.of(user));
+        when(walletRepository.findByUser(any())).thenReturn(Optional.of(new Wallet()));
+        when(walletRepository.debitBalance(anyLong(), any())).thenReturn(1);
+        when(walletLedgerService.isPosted(anyString())).thenReturn(false);
+
+        WithdrawalOrder order = new WithdrawalOrder();
+        order.setUser(user);
+        order.setOrderNumber(ORDER_NUMBER);
+        order.setAmount(AMOUNT);
+        order.setWithdrawalMethod("ALIPAY");
+        when(withdrawalOrderRepository.findByOrderNumber(ORDER_NUMBER)).thenReturn(Optional.of(order));
+    }
+
+    @Test
+    void withdrawalCallsAlipayOutsideTheDebitTransaction() {
+        when(alipayService.withdrawToAlipay(anyLong(), any(), any(), any(), anyString())).thenAnswer(invocation -> {
+            assertFalse(inTransaction.get(), "支付宝转账不应在数据库事务中调用");
+            return response(true, "SUCCESS");
+        });
+        when(withdrawalOrderRepository.completeIfProcessing(eq(ORDER_NUMBER),
+                eq(WithdrawalOrder.WithdrawalStatus.SUCCESS), any(), any(), any())).thenReturn(1);
+
+        walletTransactionService.handleWithdrawal(withdrawalMessage());
+
+        InOrder inOrder = inOrder(walletRepository, withdrawalOrderRepository, walletLedgerService, alipayService);
+        inOrder.verify(walletRepository).debitBalance(USER_ID, AMOUNT);
+        inOrder.verify(withdrawalOrderRepository).save(any(WithdrawalOrder.class));
+        inOrder.verify(walletLedgerService).post(eq("msg-1"), eq(LedgerEntryType.WITHDRAWAL), any(), any(), any());
+        inOrder.verify(alipayService).withdrawToAlipay(eq(USER_ID), eq(AMOUNT), any(), any(), eq(ORDER_NUMBER));
+        inOrder.verify(withdrawalOrderRepository).completeIfProcessing(eq(ORDER_NUMBER),
+                eq(WithdrawalOrder.WithdrawalStatus.SUCCESS), any(), any(), any());
+        verify(walletRepository, never()).creditBalance(anyLong(), any());
+    }
+
+    @Test
+    void withdrawalWithUnknownOutcomeStaysProcessing() {
+        when(alipayService.withdrawToAlipay(anyLong(), any(), any(), any(), anyString()))
+                .thenThrow(new RuntimeException("Read timed out"));
+
+        walletTransactionService.handleWithdrawal(withdrawalMessage());
+
+        verify(walletRepository).debitBalance(USER_ID, AMOUNT);
+        verify(withdrawalOrderRepository, never()).completeIfProcessing(any(), any(), any(), any(), any());
+        verify(walletRepository, never()).creditBalance(anyLong(), any());
+    }
+
+    @Test
+    void withdrawalTimeoutIsNotReversed() {
+        AlipayService.AlipayWithdrawalResponse timeout = response(false, null);
+        timeout.setErrorMessage("支付宝接口调用超时: TRANSFER");
+        timeout.setOutcomeUnknown(true);
+        when(alipayService.withdrawToAlipay(anyLong(), any(), any(), any(), anyString())).thenReturn(timeout);
+
+        walletTransactionService.handleWithdrawal(withdrawalMessage());
+
+        verify(withdrawalOrderRepository, never()).completeIfProcessing(any(), any(), any(), any(), any());
+        verify(walletRepository, never()).creditBalance(anyLong(), any());
+    }
+
+    @Test
+    void rejectedWithdrawalIsReversedOnce() {
+        when(alipayService.withdrawToAlipay(anyLong(), any(), any(), any(), anyString()))
+                .thenReturn(response(false, null));
+        when(withdrawalOrderRepository.completeIfProcessing(eq(ORDER_NUMBER),
+                eq(WithdrawalOrder.WithdrawalStatus.FAILED), any(), any(), any())).thenReturn(1);
+
+        walletTransactionService.handleWithdrawal(withdrawalMessage());
+
+        verify(walletRepository, times(1)).creditBalance(USER_ID, AMOUNT);
+        verify(walletLedgerService).post(eq("withdrawal:" + ORDER_NUMBER + ":reversal"),
+                eq(LedgerEntryType.WITHDRAWAL_REVERSAL), any(), eq(ORDER_NUMBER), any());
+    }
+
+    @Test
+    void rejectedWithdrawalAlreadyResolvedConcurrentlyIsNotReversedAgain() {
+        when(alipayService.withdrawToAlipay(anyLong(), any(), any(), any(), anyString()))
+                .thenReturn(response(false, null));
+        // 回调或对账已先把订单从处理中改为最终状态
+        when(withdrawalOrderRepository.completeIfProcessing(any(), any(), any(), any(), any())).thenReturn(0);
+
+        walletTransactionService.handleWithdrawal(withdrawalMessage());
+
+        verify(walletRepository, never()).creditBalance(anyLong(), any());
+        verify(walletLedgerService, never()).post(eq("withdrawal:" + ORDER_NUMBER + ":reversal"),
+                any(), any(), any(), any());
+    }
+
+    @Test
+    void withdrawalWithInsufficientBalanceNeverCallsAlipay() {
+        when(walletRepository.debitBalance(USER_ID, AMOUNT)).thenReturn(0);
+
+        assertThrows(RuntimeException.class, () -> walletTransactionService.handleWithdrawal(withdrawalMessage()));
+
+        verify(alipayService, never()).withdrawToAlipay(anyLong(), any(), any(), any(), anyString());
+        verify(withdrawalOrderRepository, never()).save(any());
+    }
+
+    @Test
+    void alreadyPostedWithdrawalIsSkipped() {
+        when(walletLedgerService.isPosted("msg-1")).thenReturn(true);
+
+        walletTransactionService.handleWithdrawal(withdrawalMessage());
+
+        verify(walletRepository, never()).debitBalance(anyLong(), any());
+        verify(alipayService, never()).withdrawToAlipay(anyLong(), any(), any(), any(), anyString());
+    }
+
+    @Test
+    void oppositeTransfersLockWalletsInTheSameOrder() {
+        when(userRepository.findById(2L)).thenReturn(Optional.of(user(2L)));
+
+        walletTransactionService.handleTransfer(transferMessage("t-1", 1L, 2L));
+        walletTransactionService.handleTransfer(transferMessage("t-2", 2L, 1L));
+
+        // 无论转账方向，都先更新用户1的钱包行，再更新用户2的钱包行
+        InOrder inOrder = inOrder(walletRepository);
+        inOrder.verify(walletRepository).debitBalance(1L, AMOUNT);
+        inOrder.verify(walletRepository).creditBalance(2L, AMOUNT);
+        inOrder.verify(walletRepository).creditBalance(1L, AMOUNT);
+        inOrder.verify(walletRepository).debitBalance(2L, AMOUNT);
+    }
+
+    @Test
+    void transferWithInsufficientBalanceFails() {
+        when(userRepository.findById(2L)).thenReturn(Optional.of(user(2L)));
+        when(walletRepository.debitBalance(1L, AMOUNT)).thenReturn(0);
+
+        assertThrows(RuntimeException.class,
+                () -> walletTransactionService.handleTransfer(transferMessage("t-1", 1L, 2L)));
+
+        verify(walletLedgerService, never()).post(eq("t-1"), any(), any(), any(), any());
+    }
+
+    @Test
+    void selfTransferIsRejectedBeforeAnyBalanceUpdate() {
+        walletTransactionService.handleTransfer(transferMessage("t-1", 1L, 1L));
+
+        verify(walletRepository, never()).debitBalance(anyLong(), any());
+        verify(walletRepository, never()).creditBalance(anyLong(), any());
+        verify(walletLedgerService, never()).post(eq("t-1"), any(), any(), any(), any());
+    }
+
+    @Test
+    void pendingCreditKeepsItsOwnReleaseTime() {
+        when(walletPendingCreditRepository.save(any())).thenAnswer(invocation -> invocation.getArgument(0));
+
+        walletTransactionService.handleBalanceChange(pendingChangeMessage("p-1", AMOUNT));
+
+        InOrder inOrder = inOrder(walletPendingCreditRepository, walletRepository);
+        inOrder.verify(walletPendingCreditRepository).save(argThat(credit ->
+                credit.getUserId().equals(USER_ID) && credit.getAmount().equals(AMOUNT)
+                        && credit.getReleaseTime() != null));
+        inOrder.verify(walletRepository).addPendingBalance(eq(USER_ID), eq(AMOUNT), any());
+    }
+
+    @Test
+    void pendingDeductionConsumesOldestCreditsFirst() {
+        WalletPendingCredit older = pendingCredit(1L, new BigDecimal("30.00"));
+        WalletPendingCredit newer = pendingCredit(2L, new BigDecimal("100.00"));
+        when(walletPendingCreditRepository.lockByUserId(USER_ID)).thenReturn(List.of(older, newer));
+        when(walletRepository.adjustPendingBalance(eq(USER_ID), any())).thenReturn(1);
+
+        walletTransactionService.handleBalanceChange(pendingChangeMessage("p-2", new BigDecimal("-50.00")));
+
+        verify(walletPendingCreditRepository).delete(older);
+        verify(walletPendingCreditRepository).save(newer);
+        assertEquals(new BigDecimal("80.00"), newer.getAmount());
+        verify(walletRepository).adjustPendingBalance(USER_ID, new BigDecimal("-50.00"));
+    }
+
+    private static WalletPendingCredit pendingCredit(Long id, BigDecimal amount) {
+        WalletPendingCredit credit = new WalletPendingCredit();
+        credit.setId(id);
+        credit.setUserId(USER_ID);
+        credit.setAmount(amount);
+        return credit;
+    }
+
+    private static BalanceChangeMessage pendingChangeMessage(String messageId, BigDecimal amount) {
+        BalanceChangeMessage message = new BalanceChangeMessage();
+        message.setMessageId(messageId);
+        message.setUserId(USER_ID);
+        message.setAmount(amount);
+        message.setReason("测试待结算");
+        message.setChangeType(BalanceChangeMessage.BalanceChangeType.PENDING);
+        return message;
+    }
+
+    private static User user(Long id) {
+        User user = new User();
+        user.setId(id);
+        return user;
+    }
+
+    private static WithdrawalMessage withdrawalMessage() {
+        WithdrawalMessage message = new WithdrawalMessage();
+        message.setMessageId("msg-1");
+        message.setUserId(USER_ID);
+        message.setAmount(AMOUNT);
+        message.setWithdrawalMethod("ALIPAY");
+        message.setAccountInfo("2088000000000000");
+        message.setAccountName("测试用户");
+        message.setWithdrawalOrderNo(ORDER_NUMBER);
+        return message;
+    }
+
+    private static TransferMessage transferMessage(String messageId, Long fromUserId, Long toUserId) {
+        TransferMessage message = new TransferMessage();
+        message.setMessageId(messageId);
+        message.setFromUserId(fromUserId);
+        message.setToUserId(toUserId);
+        message.setAmount(AMOUNT);
+        message.setReason("测试转账");
+        return message;
+    }
+
+    private static AlipayService.AlipayWithdrawalResponse response(boolean success, String status) {
+        AlipayService.AlipayWithdrawalResponse response = new AlipayService.AlipayWithdrawalResponse();
+        response.setSuccess(success);
+        response.setOutBizNo(ORDER_NUMBER);
+        response.setOrderId(success ? "20240001" : null);
+        response.setStatus(status);
+        response.setErrorMessage(success ? null : "PAYEE_NOT_EXIST");
+        return response;
+    }
+}